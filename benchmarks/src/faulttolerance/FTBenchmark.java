@@ -0,0 +1,287 @@
+/**
+ * JMH benchmarks of the FT tool's vSphere access paths, run against the vSphere simulator
+ * -- retrieveHAClusterNHosts (inventory snapshot), findVm (cold index sync and warm lookup), Secondary VM
+ *    resolution, task monitoring and waiting for FT protection, at every inventory size of @Param inventoryVms
+ * -- The simulator runs in a process of its own, so ops/s and -prof gc allocation are of the client alone
+ * -- SOAP calls per operation are reported by SoapCallProfiler (-prof faulttolerance.SoapCallProfiler)
+ *
+ * Usage: gradle :benchmarks:jmh [-PjmhArgs="-p inventoryVms=1000 findVm"]
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.VirtualMachineFaultToleranceState;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+import com.vmware.vim25.mo.VirtualMachine;
+
+import faulttolerance.InventorySnapshot.ClusterInfo;
+import faulttolerance.SecondaryVmResolver.SecondaryVm;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FTBenchmark
+{
+    // Zero task latencies, so the benchmarks measure the client and its round trips, not simulated vCenter work
+    public static final String SIMULATOR_SPEC = "clusters=1,hosts=16,taskMs=0,ftStartMs=0";
+
+    private static final String CLUSTER_NAME = "sim-cluster-1";
+    private static final String TASK_VM_NAME = "sim-vm-1-1";
+    private static final String FT_VM_NAME = "sim-vm-1-2";
+    private static final int OP_TIMEOUT_SECS = 60;
+    private static final Pattern SIMULATOR_URL_PATTERN = Pattern.compile("serving (http://\\S+)");
+
+    // Metrics of the session being benchmarked, read by SoapCallProfiler. Kept past the trial's tear down, which
+    // JMH runs before the profiler's afterIteration() of the last iteration
+    private static volatile FTMetrics sessionMetrics;
+
+    @Param({ "1000", "10000" })
+    public int inventoryVms;
+
+    private Process simulatorProcess;
+    private ServiceInstance si;
+    private ClusterInfo cluster;
+    private VmIndex vmIndex;
+    private TaskTracker taskTracker;
+    private FTStateWatcher ftStateWatcher;
+    private SecondaryVmResolver resolver;
+    private VirtualMachine taskVm;
+    private VirtualMachine ftVm;
+    private boolean taskVmPoweredOn;
+    private int nextVm;
+    // Threads of the cold indexes' update loops - kept alive, so -prof gc counts what they allocate
+    private ExecutorService coldIndexExecutor;
+
+    /**
+     * SOAP calls of the benchmarked session so far
+     */
+    static long
+    soapCalls()
+    {
+        FTMetrics metrics = sessionMetrics;
+        return metrics != null ? metrics.getSoapCalls() : 0;
+    }
+
+    /**
+     * Start the simulator with the inventory size, log in, and prepare one FT VM (running) and one plain VM
+     */
+    @Setup(Level.Trial)
+    public void
+    setUp() throws Exception
+    {
+        FTMetrics metrics = new FTMetrics();
+        si = new ServiceInstance(new URL(startSimulator()), "benchmark", "benchmark", true);
+        new SoapTransport().install(si, metrics);
+        sessionMetrics = metrics;
+
+        cluster = InventorySnapshot.load(si).getCluster(CLUSTER_NAME);
+        vmIndex = new VmIndex(si, cluster.getCluster());
+        taskTracker = new TaskTracker(si);
+        ftStateWatcher = new FTStateWatcher(si);
+        resolver = new SecondaryVmResolver(si, vmIndex);
+        coldIndexExecutor = Executors.newFixedThreadPool(2, r -> {
+            Thread coldIndexThread = new Thread(r, "ft-vm-index-cold");
+            coldIndexThread.setDaemon(true);
+            return coldIndexThread;
+        });
+
+        taskVm = vmIndex.findByName(TASK_VM_NAME);
+        ftVm = vmIndex.findByName(FT_VM_NAME);
+        awaitTask(ftVm.createSecondaryVM_Task(null));
+        awaitTask(ftVm.powerOnVM_Task(null));
+        awaitFTProtection();
+    }
+
+    @TearDown(Level.Trial)
+    public void
+    tearDown()
+    {
+        ftStateWatcher.stop();
+        taskTracker.stop();
+        vmIndex.stop();
+        coldIndexExecutor.shutdownNow();
+        try {
+            si.getServerConnection().logout();
+        } catch (Exception e) {
+            System.err.println("Caught an exception while logging out of the simulator");
+        }
+        simulatorProcess.destroy();
+    }
+
+    /**
+     * Clusters, their HA config and hosts - what retrieveHAClusterNHosts() loads
+     */
+    @Benchmark
+    public ClusterInfo
+    retrieveHAClusterNHosts() throws Exception
+    {
+        return InventorySnapshot.load(si).getCluster(CLUSTER_NAME);
+    }
+
+    /**
+     * findVm() on a new VM index - the initial sync of the whole Cluster
+     */
+    @Benchmark
+    public VirtualMachine
+    findVmCold() throws Exception
+    {
+        VmIndex coldIndex = new VmIndex(si, cluster.getCluster(), coldIndexExecutor);
+        try {
+            return coldIndex.findByName(nextVmName());
+        } finally {
+            coldIndex.stop();
+        }
+    }
+
+    /**
+     * findVm() once the index is in sync
+     */
+    @Benchmark
+    public VirtualMachine
+    findVm() throws Exception
+    {
+        return vmIndex.findByName(nextVmName());
+    }
+
+    @Benchmark
+    public SecondaryVm
+    resolveSecondary() throws Exception
+    {
+        SecondaryVm secondary = resolver.resolve(ftVm);
+        if (secondary == null) {
+            throw new IllegalStateException("Secondary VM of " + FT_VM_NAME + " not found");
+        }
+        return secondary;
+    }
+
+    /**
+     * Submit a task (power on/off in turn) and wait for its completion through the task tracker
+     */
+    @Benchmark
+    public TaskInfoState
+    monitorTask() throws Exception
+    {
+        Task task = taskVmPoweredOn ? taskVm.powerOffVM_Task() : taskVm.powerOnVM_Task(null);
+        taskVmPoweredOn = !taskVmPoweredOn;
+        return awaitTask(task);
+    }
+
+    /**
+     * Disable and re-enable the Secondary, then wait for the FT state to get back to running
+     */
+    @Benchmark
+    public SecondaryVm
+    waitForFTProtectionState() throws Exception
+    {
+        SecondaryVm secondary = resolver.resolve(ftVm);
+        awaitTask(ftVm.disableSecondaryVM_Task(secondary.getVm()));
+        awaitTask(ftVm.enableSecondaryVM_Task(secondary.getVm(), null));
+        awaitFTProtection();
+        return secondary;
+    }
+
+    /**
+     * Run the simulator standalone, on a free port. Returns its SDK URL
+     */
+    private String
+    startSimulator() throws Exception
+    {
+        String javaBin = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder simulatorBuilder = new ProcessBuilder(javaBin, "-cp", System.getProperty("java.class.path"),
+            VimSimulator.class.getName(), "--spec", SIMULATOR_SPEC + ",vms=" + inventoryVms, "--port", "0");
+        simulatorBuilder.redirectErrorStream(true);
+        simulatorProcess = simulatorBuilder.start();
+
+        BufferedReader simulatorOut = new BufferedReader(
+            new InputStreamReader(simulatorProcess.getInputStream(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = simulatorOut.readLine()) != null) {
+            Matcher urlMatcher = SIMULATOR_URL_PATTERN.matcher(line);
+            if (urlMatcher.find()) {
+                return urlMatcher.group(1);
+            }
+        }
+        throw new IllegalStateException("vSphere simulator exited before serving");
+    }
+
+    private String
+    nextVmName()
+    {
+        nextVm = (nextVm + 7919) % inventoryVms;
+        return "sim-vm-1-" + (nextVm + 1);
+    }
+
+    private TaskInfoState
+    awaitTask(Task task) throws Exception
+    {
+        TaskInfoState taskState = taskTracker.track(task).get(OP_TIMEOUT_SECS, TimeUnit.SECONDS);
+        if (!TaskInfoState.success.equals(taskState)) {
+            throw new IllegalStateException("Task " + task.getMOR().getVal() + " failed");
+        }
+        return taskState;
+    }
+
+    private void
+    awaitFTProtection() throws Exception
+    {
+        if (!ftStateWatcher.await(ftVm, FTStateWatcher.ftStateIn(VirtualMachineFaultToleranceState.running),
+            OP_TIMEOUT_SECS)) {
+            throw new IllegalStateException("FT VM " + FT_VM_NAME + " did not reach running state");
+        }
+    }
+}
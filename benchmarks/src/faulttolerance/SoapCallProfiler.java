@@ -0,0 +1,77 @@
+/**
+ * JMH profiler reporting the SOAP calls of each benchmark iteration, in total and per operation
+ * -- Use with -prof faulttolerance.SoapCallProfiler, next to -prof gc
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.ScalarResult;
+
+public class SoapCallProfiler implements InternalProfiler
+{
+    private long soapCallsBefore;
+
+    @Override
+    public String
+    getDescription()
+    {
+        return "SOAP calls of the benchmarked vSphere session, per operation";
+    }
+
+    @Override
+    public void
+    beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams)
+    {
+        soapCallsBefore = FTBenchmark.soapCalls();
+    }
+
+    @Override
+    public Collection<ScalarResult>
+    afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams, IterationResult result)
+    {
+        long soapCalls = FTBenchmark.soapCalls() - soapCallsBefore;
+        long ops = result.getMetadata() != null ? result.getMetadata().getAllOps() : 0;
+
+        List<ScalarResult> results = new ArrayList<ScalarResult>();
+        results.add(new ScalarResult("soap.calls", soapCalls, "calls", AggregationPolicy.SUM));
+        if (ops > 0) {
+            results.add(new ScalarResult("soap.calls.norm", (double) soapCalls / ops, "calls/op",
+                AggregationPolicy.AVG));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ * Finds a VM of the Cluster that FT can be turned on for, when the user did not name one
+ * -- VMs are streamed page by page (RetrievePropertiesEx / ContinueRetrievePropertiesEx with a small maxObjects),
+ *    with only the properties needed to check eligibility
+ * -- Stops at the first eligible VM, and cancels the rest of the retrieval
+ * -- Eligible: not a template, powered off, FT not configured, within the FT vCPU limit, on a connected host
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.VirtualMachineFaultToleranceState;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.ContainerView;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.VirtualMachine;
+import com.vmware.vim25.mo.util.PropertyCollectorUtil;
+
+import faulttolerance.InventorySnapshot.ClusterInfo;
+import faulttolerance.InventorySnapshot.HostInfo;
+
+public class CandidateVmFinder
+{
+    public static final int DEFAULT_PAGE_SIZE = 25;
+
+    private static final String[] CANDIDATE_PROPS = { "name", VmIndex.VM_TEMPLATE_PROP, VmIndex.VM_POWER_STATE_PROP,
+        VmIndex.VM_NUM_CPU_PROP, FTStateWatcher.FT_STATE_PROP, VmIndex.VM_HOST_PROP };
+
+    private final ServiceInstance si;
+    private final ClusterInfo cluster;
+    private final int pageSize;
+    private final int maxFtVcpus;
+    private final PrintStream out;
+    private final Map<String, Integer> rejectCounts = new HashMap<String, Integer>();
+    private int scannedVms;
+    private int pages;
+
+    /**
+     * Eligible VM, and the host it is on
+     */
+    public static class Candidate
+    {
+        private final VirtualMachine vmObj;
+        private final String name;
+        private final HostInfo hostInfo;
+
+        Candidate(VirtualMachine vmObj, String name, HostInfo hostInfo)
+        {
+            this.vmObj = vmObj;
+            this.name = name;
+            this.hostInfo = hostInfo;
+        }
+
+        public VirtualMachine
+        getVm()
+        {
+            return vmObj;
+        }
+
+        public String
+        getName()
+        {
+            return name;
+        }
+
+        public HostInfo
+        getHost()
+        {
+            return hostInfo;
+        }
+    }
+
+    /**
+     * Constructor
+     */
+    public CandidateVmFinder(ServiceInstance si, ClusterInfo cluster, int pageSize, int maxFtVcpus, PrintStream out)
+    {
+        this.si = si;
+        this.cluster = cluster;
+        this.pageSize = pageSize;
+        this.maxFtVcpus = maxFtVcpus;
+        this.out = out;
+    }
+
+    /**
+     * First eligible VM of the Cluster, null if there is none
+     */
+    public Candidate
+    findFirst() throws Exception
+    {
+        Map<String, HostInfo> connectedHosts = new HashMap<String, HostInfo>();
+        for (HostInfo hostInfo : cluster.getConnectedHosts()) {
+            connectedHosts.put(hostInfo.getHostSystem().getMOR().getVal(), hostInfo);
+        }
+
+        PropertyCollector pc = si.getPropertyCollector();
+        ContainerView vmView = si.getViewManager().createContainerView(cluster.getCluster(),
+            new String[] { FTOps.VM_MOR_TYPE }, true);
+        try {
+            RetrieveOptions pageOptions = new RetrieveOptions();
+            pageOptions.setMaxObjects(pageSize);
+            RetrieveResult result = pc.retrievePropertiesEx(new PropertyFilterSpec[] { vmFilterSpec(vmView) },
+                pageOptions);
+            while (result != null) {
+                pages++;
+                if (result.getObjects() != null) {
+                    for (ObjectContent vmContent : result.getObjects()) {
+                        scannedVms++;
+                        Candidate candidate = toCandidate(vmContent, connectedHosts);
+                        if (candidate != null) {
+                            if (result.getToken() != null) {
+                                // Frees the server side state of the pages not fetched
+                                pc.cancelRetrievePropertiesEx(result.getToken());
+                            }
+                            printScanSummary();
+                            return candidate;
+                        }
+                    }
+                }
+                result = result.getToken() != null ? pc.continueRetrievePropertiesEx(result.getToken()) : null;
+            }
+        } finally {
+            vmView.destroyView();
+        }
+
+        printScanSummary();
+        return null;
+    }
+
+    /**
+     * The eligible VM of the content, null if it is not eligible (the reason is counted)
+     */
+    private Candidate
+    toCandidate(ObjectContent vmContent, Map<String, HostInfo> connectedHosts)
+    {
+        Map<String, Object> vmProps = InventorySnapshot.toPropertyMap(vmContent);
+        String rejectReason = null;
+        HostInfo hostInfo = null;
+
+        if (Boolean.TRUE.equals(vmProps.get(VmIndex.VM_TEMPLATE_PROP))) {
+            rejectReason = "template";
+        } else if (!VirtualMachinePowerState.poweredOff.equals(vmProps.get(VmIndex.VM_POWER_STATE_PROP))) {
+            rejectReason = "not powered off";
+        } else if (vmProps.get(FTStateWatcher.FT_STATE_PROP) != null
+            && !VirtualMachineFaultToleranceState.notConfigured.equals(vmProps.get(FTStateWatcher.FT_STATE_PROP))) {
+            rejectReason = "FT already configured";
+        } else if (vmProps.get(VmIndex.VM_NUM_CPU_PROP) == null
+            || (Integer) vmProps.get(VmIndex.VM_NUM_CPU_PROP) > maxFtVcpus) {
+            rejectReason = "more than " + maxFtVcpus + " vCPUs";
+        } else {
+            ManagedObjectReference hostMor = (ManagedObjectReference) vmProps.get(VmIndex.VM_HOST_PROP);
+            hostInfo = hostMor != null ? connectedHosts.get(hostMor.getVal()) : null;
+            if (hostInfo == null) {
+                rejectReason = "not on a connected host";
+            }
+        }
+
+        if (rejectReason != null) {
+            Integer count = rejectCounts.get(rejectReason);
+            rejectCounts.put(rejectReason, count != null ? count + 1 : 1);
+            return null;
+        }
+        return new Candidate(new VirtualMachine(si.getServerConnection(), vmContent.getObj()),
+            (String) vmProps.get("name"), hostInfo);
+    }
+
+    private static PropertyFilterSpec
+    vmFilterSpec(ContainerView vmView)
+    {
+        TraversalSpec viewToVm = new TraversalSpec();
+        viewToVm.setName("viewToVm");
+        viewToVm.setType(vmView.getMOR().getType());
+        viewToVm.setPath("view");
+        viewToVm.setSkip(Boolean.FALSE);
+
+        ObjectSpec viewSpec = new ObjectSpec();
+        viewSpec.setObj(vmView.getMOR());
+        viewSpec.setSkip(Boolean.TRUE);
+        viewSpec.setSelectSet(new SelectionSpec[] { viewToVm });
+
+        PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+        filterSpec.setObjectSet(new ObjectSpec[] { viewSpec });
+        filterSpec.setPropSet(new PropertySpec[] {
+            PropertyCollectorUtil.createPropertySpec(FTOps.VM_MOR_TYPE, false, CANDIDATE_PROPS) });
+        return filterSpec;
+    }
+
+    private void
+    printScanSummary()
+    {
+        out.println("Scanned " + scannedVms + " VM(s) in " + pages + " page(s) of up to " + pageSize
+            + " for a VM to turn on FT" + (rejectCounts.isEmpty() ? "" : ", skipped: " + rejectCounts));
+    }
+}
@@ -0,0 +1,495 @@
+/**
+ * Bounded, host aware scheduler to run the FT workflow on many VMs of a Cluster at once
+ * -- Caps the number of concurrent VM workflows globally and per ESXi host
+ * -- Respects per host FT limits (number of FT VMs and FT vCPUs), counting FT VMs already on the host
+ * -- Picks the Secondary host of each VM turning on FT and reports the outcome of every VM
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import com.vmware.vim25.mo.HostSystem;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.VirtualMachine;
+
+import faulttolerance.InventorySnapshot.HostInfo;
+import faulttolerance.SecondaryHostPlacer.HostStats;
+import faulttolerance.VmIndex.VmEntry;
+
+public class FTBatchScheduler
+{
+    // vSphere defaults of das.maxftvmsperhost and das.maxftvcpusperhost
+    public static final int DEFAULT_MAX_FT_VMS_PER_HOST = 4;
+    public static final int DEFAULT_MAX_FT_VCPUS_PER_HOST = 8;
+
+    private final ServiceInstance si;
+    private final SecondaryHostPlacer placer;
+    private final Map<String, HostLoad> hostLoads = new LinkedHashMap<String, HostLoad>();
+    private final int maxConcurrent;
+    private final int maxPerHost;
+    private final int maxFtVmsPerHost;
+    private final int maxFtVcpusPerHost;
+    private final PrintStream err;
+
+    private int runningWorkflows;
+
+    /**
+     * Per VM FT workflow, run by the scheduler once the VM has been placed
+     */
+    public interface VmWorkflow
+    {
+        /**
+         * True if the workflow turns on FT on the VM - it then needs a host for the Secondary VM, and takes FT
+         * capacity on both hosts
+         */
+        boolean
+        turnsOnFT(VmEntry vmEntry);
+
+        /**
+         * Workflow to run on the VM, not started yet. secondaryHostSys is null if the workflow does not turn on FT
+         */
+        FTWorkflow
+        create(VirtualMachine vmObj, String vmName, HostSystem secondaryHostSys);
+    }
+
+    /**
+     * Result of the workflow on one VM
+     */
+    public static class VmOutcome
+    {
+        private final String vmName;
+        private final boolean succeeded;
+        private final String secondaryHostName;
+        private final String message;
+        private final long durationMillis;
+
+        VmOutcome(String vmName, boolean succeeded, String secondaryHostName, String message, long durationMillis)
+        {
+            this.vmName = vmName;
+            this.succeeded = succeeded;
+            this.secondaryHostName = secondaryHostName;
+            this.message = message;
+            this.durationMillis = durationMillis;
+        }
+
+        public String
+        getVmName()
+        {
+            return vmName;
+        }
+
+        public boolean
+        isSucceeded()
+        {
+            return succeeded;
+        }
+
+        public String
+        getSecondaryHostName()
+        {
+            return secondaryHostName;
+        }
+
+        public String
+        getMessage()
+        {
+            return message;
+        }
+
+        public long
+        getDurationMillis()
+        {
+            return durationMillis;
+        }
+    }
+
+    /**
+     * Workflows and FT VMs/vCPUs currently on a host
+     */
+    private static class HostLoad
+    {
+        final HostInfo hostInfo;
+        int activeWorkflows;
+        int ftVms;
+        int ftVcpus;
+
+        HostLoad(HostInfo hostInfo)
+        {
+            this.hostInfo = hostInfo;
+        }
+    }
+
+    /**
+     * VM placed by runAll, with its host slots reserved, waiting for its workflow to be started
+     */
+    private static class Placement
+    {
+        final VmEntry vmEntry;
+        final boolean turnsOnFT;
+        final HostLoad primaryLoad;
+        final HostLoad secondaryLoad;
+
+        Placement(VmEntry vmEntry, boolean turnsOnFT, HostLoad primaryLoad, HostLoad secondaryLoad)
+        {
+            this.vmEntry = vmEntry;
+            this.turnsOnFT = turnsOnFT;
+            this.primaryLoad = primaryLoad;
+            this.secondaryLoad = secondaryLoad;
+        }
+    }
+
+    /**
+     * Constructor
+     */
+    public FTBatchScheduler(ServiceInstance si, List<HostInfo> clusteredHosts, VmIndex vmIndex,
+        SecondaryHostPlacer placer, int maxConcurrent, int maxPerHost, int maxFtVmsPerHost, int maxFtVcpusPerHost,
+        PrintStream err) throws Exception
+    {
+        this.si = si;
+        this.placer = placer;
+        this.maxConcurrent = maxConcurrent;
+        this.maxPerHost = maxPerHost;
+        this.maxFtVmsPerHost = maxFtVmsPerHost;
+        this.maxFtVcpusPerHost = maxFtVcpusPerHost;
+        this.err = err;
+
+        for (HostInfo hostInfo : clusteredHosts) {
+            hostLoads.put(hostInfo.getHostSystem().getMOR().getVal(), new HostLoad(hostInfo));
+        }
+
+        // FT VMs (Primaries and Secondaries) already running on the hosts count towards the limits
+        for (VmEntry vmEntry : vmIndex.getEntries()) {
+            if (vmEntry.getFtRole() > 0 && vmEntry.getHostMor() != null) {
+                HostLoad hostLoad = hostLoads.get(vmEntry.getHostMor().getVal());
+                if (hostLoad != null) {
+                    hostLoad.ftVms++;
+                    hostLoad.ftVcpus += vmEntry.getNumCpu();
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the workflow on all given VMs and wait for every VM to finish. Several callers can run their VMs at the
+     * same time, sharing the concurrency and host limits
+     */
+    public List<VmOutcome>
+    runAll(List<VmEntry> vmEntries, final VmWorkflow workflow) throws InterruptedException
+    {
+        final List<VmOutcome> outcomes = new ArrayList<VmOutcome>();
+        LinkedList<VmEntry> waitingVms = new LinkedList<VmEntry>(vmEntries);
+        // Workflows of this call still running, guarded by this
+        final int[] ownWorkflows = { 0 };
+
+        while (true) {
+            // Host stats may need a vCenter call, so they are fetched before taking the lock
+            Map<String, HostStats> hostStats = needsSecondaryHost(waitingVms, workflow) ? getHostStats() : null;
+            List<Placement> placements = new ArrayList<Placement>();
+
+            synchronized (this) {
+                if (waitingVms.isEmpty() && ownWorkflows[0] == 0) {
+                    break;
+                }
+
+                Iterator<VmEntry> vmItr = waitingVms.iterator();
+                while (vmItr.hasNext() && runningWorkflows < maxConcurrent) {
+                    VmEntry vmEntry = vmItr.next();
+
+                    boolean turnsOnFT = workflow.turnsOnFT(vmEntry);
+                    String rejectReason = checkPlaceable(vmEntry, turnsOnFT);
+                    if (rejectReason != null) {
+                        vmItr.remove();
+                        outcomes.add(new VmOutcome(vmEntry.getName(), false, null, rejectReason, 0));
+                        continue;
+                    }
+
+                    // Only a workflow turning on FT needs a Secondary host, and FT capacity
+                    HostLoad primaryLoad = hostLoads.get(vmEntry.getHostMor().getVal());
+                    HostLoad secondaryLoad = turnsOnFT ? pickSecondaryHost(vmEntry, primaryLoad, hostStats) : null;
+                    if (turnsOnFT ? secondaryLoad == null : primaryLoad.activeWorkflows >= maxPerHost) {
+                        // No capacity right now, retry once a running workflow releases its hosts
+                        continue;
+                    }
+
+                    vmItr.remove();
+                    reserve(primaryLoad, vmEntry, turnsOnFT);
+                    if (secondaryLoad != null) {
+                        reserve(secondaryLoad, vmEntry, true);
+                    }
+                    runningWorkflows++;
+                    ownWorkflows[0]++;
+                    placements.add(new Placement(vmEntry, turnsOnFT, primaryLoad, secondaryLoad));
+                }
+
+                if (placements.isEmpty() && runningWorkflows == 0 && !waitingVms.isEmpty()) {
+                    // Nothing is running, so no capacity will ever be released for the remaining VMs
+                    for (VmEntry vmEntry : waitingVms) {
+                        outcomes.add(new VmOutcome(vmEntry.getName(), false, null,
+                            "No host with free FT capacity for a Secondary VM", 0));
+                    }
+                    waitingVms.clear();
+                } else if (placements.isEmpty()) {
+                    wait();
+                }
+            }
+
+            // Workflows are created and started outside the lock, their slots are already taken
+            for (Placement placement : placements) {
+                launch(placement, workflow, outcomes, ownWorkflows);
+            }
+        }
+
+        return outcomes;
+    }
+
+    /**
+     * Create and start the workflow of a placed VM. Its host slots are given back once the workflow completes
+     */
+    private void
+    launch(final Placement placement, VmWorkflow workflow, final List<VmOutcome> outcomes, final int[] ownWorkflows)
+    {
+        final VmEntry vmEntry = placement.vmEntry;
+        final HostLoad secondaryLoad = placement.secondaryLoad;
+
+        FTWorkflow created = null;
+        CompletableFuture<VmOutcome> workflowOutcome;
+        try {
+            created = workflow.create(new VirtualMachine(si.getServerConnection(), vmEntry.getVmMor()),
+                vmEntry.getName(), secondaryLoad != null ? secondaryLoad.hostInfo.getHostSystem() : null);
+            workflowOutcome = startWorkflow(vmEntry, secondaryLoad != null ? secondaryLoad.hostInfo : null, created);
+        } catch (Exception e) {
+            workflowOutcome = CompletableFuture.completedFuture(new VmOutcome(vmEntry.getName(), false, null,
+                "Caught an exception while creating the workflow: " + e.getMessage(), 0));
+        }
+        final FTWorkflow vmWorkflow = created;
+
+        // Workflow completes on another thread; capacity is released from there
+        workflowOutcome.thenAccept(outcome -> {
+            synchronized (FTBatchScheduler.this) {
+                // FT capacity stays taken while FT may still be on, e.g. kept on by a plan step
+                boolean ftReleased = placement.turnsOnFT && (vmWorkflow == null || !vmWorkflow.mayHaveLeftFtOn());
+                outcomes.add(outcome);
+                release(placement.primaryLoad, vmEntry, ftReleased);
+                if (secondaryLoad != null) {
+                    release(secondaryLoad, vmEntry, ftReleased);
+                }
+                runningWorkflows--;
+                ownWorkflows[0]--;
+                FTBatchScheduler.this.notifyAll();
+            }
+        });
+    }
+
+    /**
+     * Print the outcome of every VM
+     */
+    public static void
+    printOutcomes(List<VmOutcome> outcomes, PrintStream out)
+    {
+        int succeededCount = 0;
+        out.println("\n-------------------------------------------------------------------");
+        out.println("FT Operations summary");
+        out.println("-------------------------------------------------------------------");
+        for (VmOutcome outcome : outcomes) {
+            if (outcome.isSucceeded()) {
+                succeededCount++;
+            }
+            out.println(String.format("%-40s %-8s %-30s %8d ms  %s", outcome.getVmName(),
+                outcome.isSucceeded() ? "SUCCESS" : "FAILED",
+                outcome.getSecondaryHostName() != null ? outcome.getSecondaryHostName() : "-",
+                outcome.getDurationMillis(), outcome.getMessage() != null ? outcome.getMessage() : ""));
+        }
+        out.println("-------------------------------------------------------------------");
+        out.println(succeededCount + " of " + outcomes.size() + " VM(s) succeeded");
+    }
+
+    /**
+     * Reason why the VM can never be placed, null if it can be placed once capacity is free
+     */
+    private String
+    checkPlaceable(VmEntry vmEntry, boolean turnsOnFT)
+    {
+        if (vmEntry.getHostMor() == null || !hostLoads.containsKey(vmEntry.getHostMor().getVal())) {
+            return "VM is not on a connected host of the Cluster";
+        }
+        if (!turnsOnFT) {
+            return null;
+        }
+        if (vmEntry.getNumCpu() > maxFtVcpusPerHost) {
+            return "VM has " + vmEntry.getNumCpu() + " vCPUs, more than the FT vCPU limit per host ("
+                + maxFtVcpusPerHost + ")";
+        }
+        if (hostLoads.size() < 2) {
+            return "Cluster has no other connected host for a Secondary VM";
+        }
+        return null;
+    }
+
+    /**
+     * Least loaded host, other than the primary host, that can take the Secondary VM. Null if none right now.
+     * Hosts are compared by FT VMs, then by CPU + memory utilization, then by workflows running on them
+     */
+    private HostLoad
+    pickSecondaryHost(VmEntry vmEntry, HostLoad primaryLoad, Map<String, HostStats> hostStats)
+    {
+        if (!hasCapacity(primaryLoad, vmEntry)) {
+            return null;
+        }
+
+        HostLoad bestLoad = null;
+        double bestUtil = 0;
+        for (HostLoad hostLoad : hostLoads.values()) {
+            if (hostLoad == primaryLoad || !hasCapacity(hostLoad, vmEntry)) {
+                continue;
+            }
+            HostStats stats = hostStats != null
+                ? hostStats.get(hostLoad.hostInfo.getHostSystem().getMOR().getVal()) : null;
+            if (stats != null && !stats.canHostSecondary()) {
+                continue;
+            }
+            double hostUtil = stats != null ? stats.getUtilization() : 0;
+
+            if (bestLoad == null || hostLoad.ftVms < bestLoad.ftVms
+                || (hostLoad.ftVms == bestLoad.ftVms && hostUtil < bestUtil)
+                || (hostLoad.ftVms == bestLoad.ftVms && hostUtil == bestUtil
+                    && hostLoad.activeWorkflows < bestLoad.activeWorkflows)) {
+                bestLoad = hostLoad;
+                bestUtil = hostUtil;
+            }
+        }
+        return bestLoad;
+    }
+
+    /**
+     * True if a waiting VM's workflow turns on FT, so placing it needs the host stats
+     */
+    private static boolean
+    needsSecondaryHost(List<VmEntry> waitingVms, VmWorkflow workflow)
+    {
+        for (VmEntry vmEntry : waitingVms) {
+            if (workflow.turnsOnFT(vmEntry)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Cached stats of the hosts by host MOR value. A host whose stats could not be fetched is missing from the
+     * map, and is then ranked on FT VMs only
+     */
+    private Map<String, HostStats>
+    getHostStats()
+    {
+        Map<String, HostStats> hostStats = new HashMap<String, HostStats>();
+        for (HostLoad hostLoad : hostLoads.values()) {
+            try {
+                HostStats stats = placer.getHostStats(hostLoad.hostInfo.getHostSystem().getMOR());
+                if (stats != null) {
+                    hostStats.put(hostLoad.hostInfo.getHostSystem().getMOR().getVal(), stats);
+                }
+            } catch (Exception e) {
+                err.println("Could not retrieve stats of host: " + hostLoad.hostInfo.getName());
+            }
+        }
+        return hostStats;
+    }
+
+    private boolean
+    hasCapacity(HostLoad hostLoad, VmEntry vmEntry)
+    {
+        return hostLoad.activeWorkflows < maxPerHost && hostLoad.ftVms < maxFtVmsPerHost
+            && hostLoad.ftVcpus + vmEntry.getNumCpu() <= maxFtVcpusPerHost;
+    }
+
+    /**
+     * Take a workflow slot on the host, and with ftVm, an FT VM/vCPU share
+     */
+    private void
+    reserve(HostLoad hostLoad, VmEntry vmEntry, boolean ftVm)
+    {
+        hostLoad.activeWorkflows++;
+        if (ftVm) {
+            hostLoad.ftVms++;
+            hostLoad.ftVcpus += vmEntry.getNumCpu();
+        }
+    }
+
+    /**
+     * Give back the workflow slot on the host, and with ftVm, the FT VM/vCPU share (only once FT is off again)
+     */
+    private void
+    release(HostLoad hostLoad, VmEntry vmEntry, boolean ftVm)
+    {
+        hostLoad.activeWorkflows--;
+        if (ftVm) {
+            hostLoad.ftVms--;
+            hostLoad.ftVcpus -= vmEntry.getNumCpu();
+        }
+    }
+
+    /**
+     * Start the workflow on the VM. Returned future always completes normally, with the VM's outcome
+     */
+    private CompletableFuture<VmOutcome>
+    startWorkflow(final VmEntry vmEntry, final HostInfo secondaryHostInfo, FTWorkflow vmWorkflow)
+    {
+        final long startMillis = System.currentTimeMillis();
+
+        CompletableFuture<Boolean> workflowDone;
+        try {
+            workflowDone = vmWorkflow.start();
+        } catch (Exception e) {
+            workflowDone = new CompletableFuture<Boolean>();
+            workflowDone.completeExceptionally(e);
+        }
+
+        return workflowDone.handle((succeeded, failure) -> {
+            String message = null;
+            if (failure != null) {
+                Throwable cause = failure.getCause() != null ? failure.getCause() : failure;
+                message = "Caught an exception: " + cause.getMessage();
+                succeeded = false;
+            } else if (!succeeded) {
+                message = "One or more FT operations failed";
+            }
+            return new VmOutcome(vmEntry.getName(), succeeded,
+                secondaryHostInfo != null ? secondaryHostInfo.getName() : null, message,
+                System.currentTimeMillis() - startMillis);
+        });
+    }
+}
\ No newline at end of file
@@ -0,0 +1,319 @@
+/**
+ * Daemon mode - keeps one authenticated vSphere session and serves FT requests over a local socket
+ * -- A request is one line: the tool's command line options (--clusterName, --vmName, --stages, ..), tab separated
+ * -- The run's output is streamed back, followed by a result line. Requests are served one at a time
+ * -- The session is checked every few minutes (which also keeps it from idling out), and renewed once expired
+ * -- The socket is bound to the loopback interface only. Request "--shutdown" stops the daemon
+ * -- A request is served only if its first line is the daemon's secret, kept in a file readable by its owner only.
+ *    Options naming files (--metricsOut, --trace, --journal, ..) are set on the daemon, not per request
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class FTDaemon
+{
+    public static final String SHUTDOWN_REQUEST = "--shutdown";
+    public static final String RESULT_PREFIX = "FTOPS-RESULT ";
+    public static final int DEFAULT_KEEPALIVE_SECS = 300;
+    public static final String DEFAULT_SECRET_FILE = System.getProperty("user.home") + File.separator
+        + ".ftops-daemon.secret";
+
+    // Options naming files the daemon would write (or read) as its own user, or starting a server or monitor
+    // that would outlive the request
+    private static final List<String> REJECTED_REQUEST_OPTIONS = Arrays.asList("--metricsOut", "--trace",
+        "--journal", "--sessionCache", "--plan", "--daemonSecret", "--metricsPort", "--monitor");
+    private static final Set<PosixFilePermission> OWNER_ONLY = EnumSet.of(PosixFilePermission.OWNER_READ,
+        PosixFilePermission.OWNER_WRITE);
+    private static final int SECRET_BYTES = 32;
+
+    private final FTOps sessionOwner;
+    private final int port;
+    private final String secretFile;
+    private String secret;
+    private final ScheduledExecutorService keepAliveExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread keepAliveThread = new Thread(r, "ft-daemon-keepalive");
+        keepAliveThread.setDaemon(true);
+        return keepAliveThread;
+    });
+
+    /**
+     * Output stream writing to the daemon's console and to the requester's socket. A requester that goes away
+     * does not fail the run
+     */
+    private static class TeeOutputStream extends OutputStream
+    {
+        private final OutputStream console;
+        private final OutputStream requester;
+        private boolean requesterGone;
+
+        TeeOutputStream(OutputStream console, OutputStream requester)
+        {
+            this.console = console;
+            this.requester = requester;
+        }
+
+        @Override
+        public synchronized void
+        write(int b) throws IOException
+        {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public synchronized void
+        write(byte[] buf, int off, int len) throws IOException
+        {
+            console.write(buf, off, len);
+            if (!requesterGone) {
+                try {
+                    requester.write(buf, off, len);
+                } catch (IOException e) {
+                    requesterGone = true;
+                }
+            }
+        }
+
+        @Override
+        public synchronized void
+        flush() throws IOException
+        {
+            console.flush();
+            if (!requesterGone) {
+                try {
+                    requester.flush();
+                } catch (IOException e) {
+                    requesterGone = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructor - sessionOwner is the logged in FTOps, whose session the requests share. Requesters must send
+     * the secret of secretFile, which is created if it does not exist
+     */
+    public FTDaemon(FTOps sessionOwner, int port, String secretFile)
+    {
+        this.sessionOwner = sessionOwner;
+        this.port = port;
+        this.secretFile = secretFile;
+    }
+
+    /**
+     * Serve requests until a shutdown request comes in, then close the session
+     */
+    public void
+    serve()
+    {
+        secret = readSecret(secretFile, true);
+        if (secret == null) {
+            sessionOwner.closeSession();
+            return;
+        }
+        keepAliveExecutor.scheduleWithFixedDelay(() -> {
+            synchronized (FTDaemon.this) {
+                sessionOwner.ensureSession();
+            }
+        }, DEFAULT_KEEPALIVE_SECS, DEFAULT_KEEPALIVE_SECS, TimeUnit.SECONDS);
+
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.out.println("FT daemon listening on " + serverSocket.getLocalSocketAddress()
+                + ", send \"" + SHUTDOWN_REQUEST + "\" to stop it");
+            boolean serving = true;
+            while (serving) {
+                try (Socket socket = serverSocket.accept()) {
+                    serving = handle(socket);
+                } catch (IOException e) {
+                    System.err.println("Caught an exception while serving an FT request: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Caught an exception while listening on port: " + port);
+            e.printStackTrace();
+        }
+
+        keepAliveExecutor.shutdownNow();
+        sessionOwner.closeSession();
+    }
+
+    /**
+     * Run one request, with its output going to the requester as well. Returns false for a shutdown request
+     */
+    private synchronized boolean
+    handle(Socket socket) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(
+            new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        OutputStream socketOut = socket.getOutputStream();
+        String requestSecret = reader.readLine();
+        if (requestSecret == null || !MessageDigest.isEqual(requestSecret.getBytes(StandardCharsets.UTF_8),
+            secret.getBytes(StandardCharsets.UTF_8))) {
+            reject(socketOut, "the request did not carry the daemon's secret");
+            return true;
+        }
+        String request = reader.readLine();
+        if (request == null || request.trim().isEmpty()) {
+            return true;
+        }
+        String[] requestArgs = request.trim().split("\t");
+        for (String requestArg : requestArgs) {
+            if (REJECTED_REQUEST_OPTIONS.contains(requestArg)) {
+                reject(socketOut, "option " + requestArg + " is not taken per request, set it on the daemon");
+                return true;
+            }
+        }
+
+        if (requestArgs[0].equals(SHUTDOWN_REQUEST)) {
+            System.out.println("FT daemon shutting down, on request");
+            socketOut.write((RESULT_PREFIX + "SUCCESS\n").getBytes(StandardCharsets.UTF_8));
+            return false;
+        }
+
+        // The request prints to its own streams, System.out/System.err stay the daemon's
+        PrintStream requestOut = new PrintStream(new TeeOutputStream(System.out, socketOut), true, "UTF-8");
+        PrintStream requestErr = new PrintStream(new TeeOutputStream(System.err, socketOut), true, "UTF-8");
+        boolean succeeded = false;
+        try {
+            if (sessionOwner.ensureSession()) {
+                succeeded = new FTOps(requestArgs, sessionOwner, requestOut, requestErr).performFTOps();
+            }
+        } catch (Exception e) {
+            requestErr.println("Caught an exception while performing FT request");
+            e.printStackTrace(requestErr);
+        }
+        requestOut.println(RESULT_PREFIX + (succeeded ? "SUCCESS" : "FAILED"));
+        return true;
+    }
+
+    private static void
+    reject(OutputStream socketOut, String reason) throws IOException
+    {
+        System.err.println("FT daemon rejected a request: " + reason);
+        socketOut.write(("FT daemon rejected the request: " + reason + "\n" + RESULT_PREFIX + "FAILED\n")
+            .getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Secret of the secret file, null (with the reason printed) if it cannot be read or others may read it. The
+     * daemon side creates the file, with a new secret, if it does not exist
+     */
+    static String
+    readSecret(String secretFile, boolean create)
+    {
+        Path secretPath = Paths.get(secretFile);
+        boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        try {
+            if (create && !Files.exists(secretPath)) {
+                byte[] secretBytes = new byte[SECRET_BYTES];
+                new SecureRandom().nextBytes(secretBytes);
+                if (posix) {
+                    Files.createFile(secretPath, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+                }
+                // Windows - the file is created in the user's own directory, and ACLs are inherited
+                Files.write(secretPath, Base64.getUrlEncoder().withoutPadding().encodeToString(secretBytes)
+                    .getBytes(StandardCharsets.UTF_8));
+                System.out.println("FT daemon secret created in " + secretFile);
+            }
+            if (posix && !OWNER_ONLY.containsAll(Files.getPosixFilePermissions(secretPath))) {
+                System.err.println("FT daemon secret file " + secretFile + " must be readable by its owner only"
+                    + " (chmod 600)");
+                return null;
+            }
+            List<String> lines = Files.readAllLines(secretPath, StandardCharsets.UTF_8);
+            if (lines.isEmpty() || lines.get(0).trim().isEmpty()) {
+                System.err.println("FT daemon secret file " + secretFile + " is empty");
+                return null;
+            }
+            return lines.get(0).trim();
+        } catch (IOException e) {
+            System.err.println("Caught an exception while reading FT daemon secret file: " + secretFile);
+            return null;
+        }
+    }
+
+    /**
+     * Client side - send the request, with the secret of secretFile, to the daemon on the local port, print its
+     * output. Returns the result
+     */
+    public static boolean
+    submit(int port, String secretFile, String[] requestArgs)
+    {
+        String secret = readSecret(secretFile, false);
+        if (secret == null) {
+            return false;
+        }
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.getOutputStream().write((secret + "\n" + String.join("\t", requestArgs) + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+            socket.getOutputStream().flush();
+
+            BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(RESULT_PREFIX)) {
+                    System.out.println("FT daemon result: " + line.substring(RESULT_PREFIX.length()));
+                    return line.endsWith("SUCCESS");
+                }
+                System.out.println(line);
+            }
+            System.err.println("FT daemon closed the connection before sending a result");
+        } catch (IOException e) {
+            System.err.println("Caught an exception while sending the request to FT daemon on port: " + port
+                + ", is it running?");
+        }
+        return false;
+    }
+}
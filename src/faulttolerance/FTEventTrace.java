@@ -0,0 +1,497 @@
+/**
+ * Structured trace of FT workflow events - VM, phase, state and nanosecond timestamps
+ * -- Events go into a preallocated ring buffer; recording never blocks on I/O (a full buffer drops the event and
+ *    counts it)
+ * -- A repeat of the last event of the same VM and phase (same state) is collapsed into a count
+ * -- One background thread drains the buffer to a JSONL file, or a compact binary one for a ".bin" file name
+ * -- The trace can be replayed as a timeline for timing analysis
+ *
+ * Usage (replay): java -cp ftops.jar faulttolerance.FTEventTrace <trace file>
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+public class FTEventTrace
+{
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+    // Phase of the record counting events dropped while the buffer was full
+    public static final String DROPPED_PHASE = "trace.dropped";
+
+    private static final int BINARY_MAGIC = 0x46544556; // "FTEV"
+    private static final long DRAIN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // Number of most recent events searched for the same VM and phase when collapsing repeats
+    private static final int COLLAPSE_WINDOW = 32;
+
+    private final File traceFile;
+    private final boolean binary;
+    private final DataOutputStream out;
+    private final long startEpochMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+
+    // Ring buffer, guarded by this. Slot of an event is its position & mask
+    private final int mask;
+    private final long[] firstNanos;
+    private final long[] lastNanos;
+    private final int[] counts;
+    private final String[] vmMors;
+    private final String[] phases;
+    private final String[] states;
+    private long writePos;
+    private long readPos;
+    private long dropped;
+
+    // Writer's copy of the drained events, only touched by the writer thread
+    private final Event[] drained;
+
+    private final Thread writerThread;
+    private volatile boolean closed;
+
+    /**
+     * One traced event - count is the number of identical events collapsed into it, first to last
+     */
+    public static class Event
+    {
+        long firstNanos;
+        long lastNanos;
+        int count;
+        String vmMor;
+        String phase;
+        String state;
+
+        public long
+        getFirstNanos()
+        {
+            return firstNanos;
+        }
+
+        public long
+        getLastNanos()
+        {
+            return lastNanos;
+        }
+
+        public int
+        getCount()
+        {
+            return count;
+        }
+
+        public String
+        getVmMor()
+        {
+            return vmMor;
+        }
+
+        public String
+        getPhase()
+        {
+            return phase;
+        }
+
+        public String
+        getState()
+        {
+            return state;
+        }
+    }
+
+    /**
+     * Constructor - creates the trace file and starts the writer thread
+     */
+    public FTEventTrace(String tracePath, int capacity) throws IOException
+    {
+        this.traceFile = new File(tracePath);
+        this.binary = tracePath.endsWith(".bin");
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(traceFile), 64 * 1024));
+
+        int slots = Integer.highestOneBit(Math.max(capacity, COLLAPSE_WINDOW) - 1) << 1;
+        this.mask = slots - 1;
+        this.firstNanos = new long[slots];
+        this.lastNanos = new long[slots];
+        this.counts = new int[slots];
+        this.vmMors = new String[slots];
+        this.phases = new String[slots];
+        this.states = new String[slots];
+        this.drained = new Event[slots];
+        for (int i = 0; i < slots; i++) {
+            drained[i] = new Event();
+        }
+
+        writeHeader();
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                writeEvents();
+            }
+        }, "ft-event-trace");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public File
+    getFile()
+    {
+        return traceFile;
+    }
+
+    /**
+     * Record an event of the VM. Never blocks on I/O - if the writer has fallen a full buffer behind, the event is
+     * dropped and counted
+     */
+    public void
+    record(String vmMor, String phase, String state)
+    {
+        long nowNanos = System.nanoTime();
+        vmMor = vmMor != null ? vmMor : "";
+        state = state != null ? state : "";
+        synchronized (this) {
+            long oldestPos = Math.max(readPos, writePos - COLLAPSE_WINDOW);
+            for (long pos = writePos - 1; pos >= oldestPos; pos--) {
+                int slot = (int) pos & mask;
+                if (vmMors[slot].equals(vmMor) && phases[slot].equals(phase)) {
+                    if (states[slot].equals(state)) {
+                        counts[slot]++;
+                        lastNanos[slot] = nowNanos;
+                        return;
+                    }
+                    break;
+                }
+            }
+
+            if (writePos - readPos > mask) {
+                dropped++;
+                return;
+            }
+            int slot = (int) writePos & mask;
+            firstNanos[slot] = nowNanos;
+            lastNanos[slot] = nowNanos;
+            counts[slot] = 1;
+            vmMors[slot] = vmMor;
+            phases[slot] = phase;
+            states[slot] = state;
+            writePos++;
+        }
+    }
+
+    /**
+     * Write out the remaining events, and close the trace file
+     */
+    public void
+    close()
+    {
+        closed = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Replay a trace file (JSONL or binary) - the consumer gets every event, in the order they were recorded.
+     * Returns the wall clock time (epoch millis) of the trace's nanosecond timestamp 0
+     */
+    public static long
+    replay(File traceFile, Consumer<Event> consumer) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(traceFile)))) {
+            if (in.readInt() == BINARY_MAGIC) {
+                return replayBinary(in, consumer);
+            }
+        } catch (EOFException e) {
+            // empty trace
+            return 0;
+        }
+        return replayJson(traceFile, consumer);
+    }
+
+    /**
+     * Print a trace as a timeline - offset from the trace's start, duration of collapsed events, and count
+     */
+    public static void
+    main(String[] args) throws Exception
+    {
+        if (args.length != 1) {
+            System.err.println("Usage: java -cp ftops.jar faulttolerance.FTEventTrace <trace file>");
+            System.exit(1);
+        }
+
+        final long[] baseNanos = { Long.MIN_VALUE };
+        final StringBuilder timeline = new StringBuilder();
+        long epochMillis = replay(new File(args[0]), event -> {
+            if (baseNanos[0] == Long.MIN_VALUE) {
+                baseNanos[0] = event.firstNanos;
+            }
+            timeline.append(String.format("%12.6f %10.6f %6d  %-12s %-32s %s%n",
+                (event.firstNanos - baseNanos[0]) / 1e9, (event.lastNanos - event.firstNanos) / 1e9, event.count,
+                event.vmMor, event.phase, event.state));
+        });
+        if (baseNanos[0] != Long.MIN_VALUE) {
+            System.out.println("Trace starting " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS")
+                .format(new Date(epochMillis + TimeUnit.NANOSECONDS.toMillis(baseNanos[0]))));
+        }
+        System.out.println(String.format("%12s %10s %6s  %-12s %-32s %s", "offset s", "span s", "count", "VM",
+            "phase", "state"));
+        System.out.print(timeline);
+    }
+
+    /**
+     * Writer thread - drain the buffer every interval, until closed
+     */
+    private void
+    writeEvents()
+    {
+        try {
+            while (!closed) {
+                LockSupport.parkNanos(DRAIN_INTERVAL_NANOS);
+                drain();
+            }
+            drain();
+        } catch (IOException e) {
+            System.err.println("Caught an exception while writing the event trace " + traceFile + ": " + e);
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // trace is incomplete, already reported
+            }
+        }
+    }
+
+    /**
+     * Copy the buffered events out under the lock, then encode and write them outside of it
+     */
+    private void
+    drain() throws IOException
+    {
+        int eventCount;
+        long droppedEvents;
+        synchronized (this) {
+            eventCount = (int) (writePos - readPos);
+            for (int i = 0; i < eventCount; i++) {
+                int slot = (int) (readPos + i) & mask;
+                Event event = drained[i];
+                event.firstNanos = firstNanos[slot];
+                event.lastNanos = lastNanos[slot];
+                event.count = counts[slot];
+                event.vmMor = vmMors[slot];
+                event.phase = phases[slot];
+                event.state = states[slot];
+                vmMors[slot] = null;
+                phases[slot] = null;
+                states[slot] = null;
+            }
+            readPos = writePos;
+            droppedEvents = dropped;
+            dropped = 0;
+        }
+
+        for (int i = 0; i < eventCount; i++) {
+            writeEvent(drained[i]);
+            drained[i].vmMor = null;
+            drained[i].phase = null;
+            drained[i].state = null;
+        }
+        if (droppedEvents > 0) {
+            Event droppedEvent = new Event();
+            droppedEvent.firstNanos = System.nanoTime();
+            droppedEvent.lastNanos = droppedEvent.firstNanos;
+            droppedEvent.count = (int) Math.min(droppedEvents, Integer.MAX_VALUE);
+            droppedEvent.vmMor = "";
+            droppedEvent.phase = DROPPED_PHASE;
+            droppedEvent.state = "";
+            writeEvent(droppedEvent);
+        }
+        if (eventCount > 0 || droppedEvents > 0) {
+            out.flush();
+        }
+    }
+
+    private void
+    writeHeader() throws IOException
+    {
+        if (binary) {
+            out.writeInt(BINARY_MAGIC);
+            out.writeLong(startEpochMillis);
+            out.writeLong(startNanos);
+        } else {
+            out.write(("{\"epochMillis\":" + startEpochMillis + ",\"nanos\":" + startNanos + "}\n")
+                .getBytes(StandardCharsets.UTF_8));
+        }
+        out.flush();
+    }
+
+    private void
+    writeEvent(Event event) throws IOException
+    {
+        if (binary) {
+            out.writeLong(event.firstNanos);
+            out.writeLong(event.lastNanos);
+            out.writeInt(event.count);
+            out.writeUTF(event.vmMor);
+            out.writeUTF(event.phase);
+            out.writeUTF(event.state);
+            return;
+        }
+        StringBuilder json = new StringBuilder(128);
+        json.append("{\"nanos\":").append(event.firstNanos);
+        if (event.count > 1) {
+            json.append(",\"lastNanos\":").append(event.lastNanos).append(",\"count\":").append(event.count);
+        }
+        json.append(",\"vm\":\"");
+        appendEscaped(json, event.vmMor);
+        json.append("\",\"phase\":\"");
+        appendEscaped(json, event.phase);
+        json.append("\",\"state\":\"");
+        appendEscaped(json, event.state);
+        json.append("\"}\n");
+        out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long
+    replayBinary(DataInputStream in, Consumer<Event> consumer) throws IOException
+    {
+        long epochMillis = in.readLong();
+        long startNanos = in.readLong();
+        while (true) {
+            Event event = new Event();
+            try {
+                event.firstNanos = in.readLong();
+                event.lastNanos = in.readLong();
+                event.count = in.readInt();
+                event.vmMor = in.readUTF();
+                event.phase = in.readUTF();
+                event.state = in.readUTF();
+            } catch (EOFException e) {
+                // end of the trace, or a record torn by a crash
+                break;
+            }
+            consumer.accept(event);
+        }
+        return epochMillis - TimeUnit.NANOSECONDS.toMillis(startNanos);
+    }
+
+    private static long
+    replayJson(File traceFile, Consumer<Event> consumer) throws IOException
+    {
+        long epochMillis = 0;
+        try (BufferedReader reader = new BufferedReader(
+            new InputStreamReader(new FileInputStream(traceFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("{\"epochMillis\":")) {
+                    epochMillis = Long.parseLong(jsonValue(line, "epochMillis"))
+                        - TimeUnit.NANOSECONDS.toMillis(Long.parseLong(jsonValue(line, "nanos")));
+                    continue;
+                }
+                String nanos = jsonValue(line, "nanos");
+                if (nanos == null || !line.endsWith("}")) {
+                    // record torn by a crash
+                    continue;
+                }
+                Event event = new Event();
+                event.firstNanos = Long.parseLong(nanos);
+                String lastNanos = jsonValue(line, "lastNanos");
+                event.lastNanos = lastNanos != null ? Long.parseLong(lastNanos) : event.firstNanos;
+                String count = jsonValue(line, "count");
+                event.count = count != null ? Integer.parseInt(count) : 1;
+                event.vmMor = jsonValue(line, "vm");
+                event.phase = jsonValue(line, "phase");
+                event.state = jsonValue(line, "state");
+                consumer.accept(event);
+            }
+        }
+        return epochMillis;
+    }
+
+    /**
+     * Value of a field of one of the trace's own (flat, single line) JSON records
+     */
+    private static String
+    jsonValue(String line, String field)
+    {
+        String key = "\"" + field + "\":";
+        int start = line.indexOf(key);
+        if (start < 0) {
+            return null;
+        }
+        start += key.length();
+        if (line.charAt(start) != '"') {
+            int end = start;
+            while (end < line.length() && line.charAt(end) != ',' && line.charAt(end) != '}') {
+                end++;
+            }
+            return line.substring(start, end);
+        }
+
+        StringBuilder value = new StringBuilder();
+        for (int i = start + 1; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                break;
+            }
+            if (c == '\\' && i + 1 < line.length()) {
+                c = line.charAt(++i);
+            }
+            value.append(c);
+        }
+        return value.toString();
+    }
+
+    private static void
+    appendEscaped(StringBuilder json, String value)
+    {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\');
+            }
+            json.append(c < 0x20 ? ' ' : c);
+        }
+    }
+}
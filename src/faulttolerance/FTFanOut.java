@@ -0,0 +1,304 @@
+/**
+ * Fan-out mode - FT Operations on several vCenter Server/Cluster targets at once
+ * -- Targets are read from a file, one per line: <vsphereip>,<clusterName>[,<username>,<password>]
+ *    (credentials default to --username/--password, lines starting with # are skipped)
+ * -- Every target runs on its own thread, with its own session and the usual per target limits
+ *    (--maxConcurrent, --maxPerHost). At most --maxTargets targets run at a time
+ * -- All other options (VM selection, stages, timeouts, ..) apply to every target
+ * -- Results and latency metrics of all targets are merged into one report, --metricsOut writes the merged metrics
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FTFanOut
+{
+    public static final int DEFAULT_MAX_TARGETS = 16;
+
+    // Options set per target, or handled for all targets together
+    private static final List<String> FAN_OUT_OPTIONS = Arrays.asList("--targets", "--maxTargets", "--vsphereip",
+        "--clusterName", "--username", "--password", "--metricsOut", "--metricsPort", "--sessionCache", "--journal",
+        "--trace", "--daemon", "--daemonSecret");
+
+    private final List<String> commonArgs = new ArrayList<String>();
+    private final List<Target> targets = new ArrayList<Target>();
+    private String targetsFile;
+    private int maxTargets = DEFAULT_MAX_TARGETS;
+    private String userName;
+    private String password;
+    private String metricsOut;
+    private String sessionCacheFile;
+    private String journalFile;
+    private String traceFile;
+
+    /**
+     * One vCenter Server/Cluster, and its outcome
+     */
+    private static class Target
+    {
+        final String vsphereIp;
+        final String clusterName;
+        final String userName;
+        final String password;
+        boolean loggedIn;
+        boolean succeeded;
+        long durationMillis;
+        FTMetrics metrics;
+
+        Target(String vsphereIp, String clusterName, String userName, String password)
+        {
+            this.vsphereIp = vsphereIp;
+            this.clusterName = clusterName;
+            this.userName = userName;
+            this.password = password;
+        }
+
+        String
+        getName()
+        {
+            return vsphereIp + "/" + clusterName;
+        }
+    }
+
+    /**
+     * Constructor
+     */
+    public FTFanOut(String[] cmdProps)
+    {
+        for (int i = 0; i < cmdProps.length; i++) {
+            if (!FAN_OUT_OPTIONS.contains(cmdProps[i])) {
+                commonArgs.add(cmdProps[i]);
+                continue;
+            }
+            if (i + 1 >= cmdProps.length) {
+                break;
+            }
+            String value = cmdProps[++i];
+            if (cmdProps[i - 1].equals("--targets")) {
+                targetsFile = value;
+            } else if (cmdProps[i - 1].equals("--maxTargets")) {
+                maxTargets = Integer.parseInt(value);
+            } else if (cmdProps[i - 1].equals("--username")) {
+                userName = value;
+            } else if (cmdProps[i - 1].equals("--password")) {
+                password = value;
+            } else if (cmdProps[i - 1].equals("--metricsOut")) {
+                metricsOut = value;
+            } else if (cmdProps[i - 1].equals("--sessionCache")) {
+                sessionCacheFile = value;
+            } else if (cmdProps[i - 1].equals("--journal")) {
+                journalFile = value;
+            } else if (cmdProps[i - 1].equals("--trace")) {
+                traceFile = value;
+            } else {
+                System.out.println("Ignoring " + cmdProps[i - 1] + " in fan-out mode");
+            }
+        }
+    }
+
+    /**
+     * Run all targets, print the merged report. Returns true if all targets succeeded
+     */
+    public boolean
+    runAll()
+    {
+        if (!readTargets()) {
+            return false;
+        }
+        System.out.println("Running FT Operations on " + targets.size() + " target(s), at most " + maxTargets
+            + " at a time");
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService targetExecutor = Executors.newFixedThreadPool(Math.min(maxTargets, targets.size()), r -> {
+            Thread t = new Thread(r, "ft-target-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        long startNanos = System.nanoTime();
+        List<CompletableFuture<Void>> runs = new ArrayList<CompletableFuture<Void>>();
+        for (final Target target : targets) {
+            runs.add(CompletableFuture.runAsync(() -> runTarget(target), targetExecutor));
+        }
+        CompletableFuture.allOf(runs.toArray(new CompletableFuture<?>[runs.size()])).join();
+        targetExecutor.shutdown();
+
+        printReport(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        for (Target target : targets) {
+            if (!target.succeeded) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void
+    runTarget(Target target)
+    {
+        System.out.println("Starting FT Operations on target: " + target.getName());
+        long startNanos = System.nanoTime();
+        try {
+            FTOps ftOps = new FTOps(targetArgs(target));
+            target.metrics = ftOps.getMetrics();
+            if (ftOps.validateProperties()) {
+                target.loggedIn = true;
+                target.succeeded = ftOps.performFTOps();
+            }
+        } catch (Exception e) {
+            System.err.println("Caught an exception while performing FT Operations on target: " + target.getName());
+            e.printStackTrace();
+        }
+        target.durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        System.out.println("Finished FT Operations on target: " + target.getName() + " ("
+            + (target.succeeded ? "SUCCESS" : "FAILED") + ")");
+    }
+
+    /**
+     * Command line of a single target run
+     */
+    private String[]
+    targetArgs(Target target)
+    {
+        List<String> args = new ArrayList<String>(commonArgs);
+        args.addAll(Arrays.asList("--vsphereip", target.vsphereIp, "--clusterName", target.clusterName));
+        if (target.userName != null) {
+            args.addAll(Arrays.asList("--username", target.userName, "--password", target.password));
+        }
+        if (sessionCacheFile != null) {
+            // One cached session per vCenter Server
+            args.addAll(Arrays.asList("--sessionCache",
+                sessionCacheFile + "." + target.vsphereIp.replaceAll("[^A-Za-z0-9.-]", "_")));
+        }
+        if (journalFile != null) {
+            // One journal per vCenter Server/Cluster
+            args.addAll(Arrays.asList("--journal",
+                journalFile + "." + (target.vsphereIp + "_" + target.clusterName).replaceAll("[^A-Za-z0-9.-]", "_")));
+        }
+        if (traceFile != null) {
+            // One event trace per vCenter Server/Cluster, keeping the ".bin" suffix of a binary trace
+            String targetSuffix = "." + (target.vsphereIp + "_" + target.clusterName).replaceAll("[^A-Za-z0-9.-]", "_");
+            args.addAll(Arrays.asList("--trace", traceFile.endsWith(".bin")
+                ? traceFile.substring(0, traceFile.length() - 4) + targetSuffix + ".bin" : traceFile + targetSuffix));
+        }
+        return args.toArray(new String[args.size()]);
+    }
+
+    private boolean
+    readTargets()
+    {
+        if (targetsFile == null) {
+            System.err.println("Targets file is missing. See below the usage of script");
+            RunApp.usage();
+            return false;
+        }
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(Paths.get(targetsFile), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("Caught an exception while reading targets file: " + targetsFile);
+            return false;
+        }
+
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            // Password is the last field, so that it may contain commas
+            String[] fields = line.split(",", 4);
+            if (fields.length != 2 && fields.length != 4) {
+                System.err.println("Ignoring invalid target (expected <vsphereip>,<clusterName>[,<username>,"
+                    + "<password>]): " + fields[0]);
+                continue;
+            }
+            if (fields.length == 4) {
+                targets.add(new Target(fields[0].trim(), fields[1].trim(), fields[2].trim(), fields[3]));
+            } else {
+                targets.add(new Target(fields[0].trim(), fields[1].trim(), userName, password));
+            }
+        }
+        if (targets.isEmpty()) {
+            System.err.println("Could not find any target in: " + targetsFile);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Per target results, then latencies merged over all targets
+     */
+    private void
+    printReport(long totalMillis)
+    {
+        FTMetrics mergedMetrics = new FTMetrics();
+        int succeededCount = 0;
+        long slowestMillis = 0;
+        long summedMillis = 0;
+
+        System.out.println("\n-------------------------------------------------------------------");
+        System.out.println("FT Operations summary, per target");
+        System.out.println("-------------------------------------------------------------------");
+        for (Target target : targets) {
+            if (target.succeeded) {
+                succeededCount++;
+            }
+            if (target.metrics != null) {
+                mergedMetrics.merge(target.metrics);
+            }
+            slowestMillis = Math.max(slowestMillis, target.durationMillis);
+            summedMillis += target.durationMillis;
+            System.out.println(String.format("%-50s %-8s %10d ms  %s", target.getName(),
+                target.succeeded ? "SUCCESS" : "FAILED", target.durationMillis,
+                target.loggedIn ? "" : "login failed"));
+        }
+        System.out.println("-------------------------------------------------------------------");
+        System.out.println(succeededCount + " of " + targets.size() + " target(s) succeeded");
+        System.out.println(String.format("Total time %d ms, slowest target %d ms, sum over targets %d ms",
+            totalMillis, slowestMillis, summedMillis));
+
+        mergedMetrics.printSummary(System.out);
+        if (metricsOut != null) {
+            try {
+                mergedMetrics.writeFiles(metricsOut);
+            } catch (Exception e) {
+                System.err.println("Caught an exception while writing metrics to " + metricsOut);
+            }
+        }
+    }
+}
@@ -0,0 +1,549 @@
+/**
+ * Evacuation of all FT Secondary VMs off a host, e.g. before the host is patched
+ * -- The host's Secondaries (and their Primaries) come from a single RetrievePropertiesEx call over the host's VMs
+ * -- Each Secondary is disabled, then enabled again on another host (enableSecondaryVM_Task), many at a time
+ * -- Moves to the same destination host are bounded, so no host's FT logging link is saturated
+ * -- Each FT pair is tracked until it runs (i.e. is protected) again; the host is checked for Secondaries at the end
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import com.vmware.vim25.FaultToleranceConfigInfo;
+import com.vmware.vim25.FaultToleranceSecondaryConfigInfo;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.VirtualMachineFaultToleranceState;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.Task;
+import com.vmware.vim25.mo.VirtualMachine;
+import com.vmware.vim25.mo.util.PropertyCollectorUtil;
+
+import faulttolerance.FTBatchScheduler.VmOutcome;
+import faulttolerance.FTStateWatcher.StateTransition;
+import faulttolerance.FTWorkflow.Stage;
+import faulttolerance.InventorySnapshot.HostInfo;
+import faulttolerance.TaskTracker.TaskOutcome;
+import faulttolerance.VmIndex.VmEntry;
+
+public class FTHostEvacuator
+{
+    public static final String EVACUATE_PHASE = "evacuateSecondary";
+    public static final String UNPROTECTED_PHASE = "evacuate.unprotectedWindow";
+
+    private static final String[] SECONDARY_PROPS = { "name", SecondaryVmResolver.VM_FT_INFO_PROP };
+
+    private final FTWorkflowEngine engine;
+    private final SecondaryHostPlacer placer;
+    private final HostInfo evacuatedHost;
+    private final Map<String, HostInfo> hostsByMor = new HashMap<String, HostInfo>();
+    private final int maxConcurrent;
+    private final int maxPerDestination;
+
+    // Dispatch state, guarded by this
+    private final LinkedList<SecondaryOnHost> pendingMoves = new LinkedList<SecondaryOnHost>();
+    private final Map<String, Integer> movesByDestination = new HashMap<String, Integer>();
+    private final List<VmOutcome> outcomes = new ArrayList<VmOutcome>();
+    private final CompletableFuture<Void> allMoved = new CompletableFuture<Void>();
+    private int movesInFlight;
+    private boolean hostClear;
+    // One thread dispatches at a time; a dispatch asked for meanwhile makes it run another pass
+    private boolean dispatching;
+    private boolean dispatchAgain;
+
+    /**
+     * Secondary VM found on the host, and its Primary
+     */
+    public static class SecondaryOnHost
+    {
+        private final VirtualMachine secondaryVm;
+        private final String secondaryName;
+        private final VirtualMachine primaryVm;
+        private final String primaryName;
+
+        SecondaryOnHost(VirtualMachine secondaryVm, String secondaryName, VirtualMachine primaryVm,
+            String primaryName)
+        {
+            this.secondaryVm = secondaryVm;
+            this.secondaryName = secondaryName;
+            this.primaryVm = primaryVm;
+            this.primaryName = primaryName;
+        }
+
+        public VirtualMachine
+        getSecondaryVm()
+        {
+            return secondaryVm;
+        }
+
+        public VirtualMachine
+        getPrimaryVm()
+        {
+            return primaryVm;
+        }
+
+        /**
+         * Name of the FT pair - the Primary's, the Secondary's if the Primary is not in the VM index
+         */
+        public String
+        getName()
+        {
+            return primaryName != null ? primaryName : secondaryName;
+        }
+    }
+
+    /**
+     * Constructor - at most maxConcurrent Secondaries move at a time, and at most maxPerDestination to the same host
+     */
+    public FTHostEvacuator(FTWorkflowEngine engine, SecondaryHostPlacer placer, HostInfo evacuatedHost,
+        List<HostInfo> clusteredHosts, int maxConcurrent, int maxPerDestination)
+    {
+        this.engine = engine;
+        this.placer = placer;
+        this.evacuatedHost = evacuatedHost;
+        this.maxConcurrent = Math.max(maxConcurrent, 1);
+        this.maxPerDestination = Math.max(maxPerDestination, 1);
+        for (HostInfo hostInfo : clusteredHosts) {
+            hostsByMor.put(hostInfo.getHostSystem().getMOR().getVal(), hostInfo);
+        }
+    }
+
+    /**
+     * Secondary VMs on the host, from a single RetrievePropertiesEx call over the host's VMs
+     */
+    public List<SecondaryOnHost>
+    findSecondaries() throws Exception
+    {
+        TraversalSpec hostToVm = new TraversalSpec();
+        hostToVm.setName("hostToVm");
+        hostToVm.setType(FTOps.HOST_MOR_TYPE);
+        hostToVm.setPath("vm");
+        hostToVm.setSkip(Boolean.FALSE);
+
+        ObjectSpec hostSpec = new ObjectSpec();
+        hostSpec.setObj(evacuatedHost.getHostSystem().getMOR());
+        hostSpec.setSkip(Boolean.TRUE);
+        hostSpec.setSelectSet(new SelectionSpec[] { hostToVm });
+
+        PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+        filterSpec.setObjectSet(new ObjectSpec[] { hostSpec });
+        filterSpec.setPropSet(new PropertySpec[] {
+            PropertyCollectorUtil.createPropertySpec(FTOps.VM_MOR_TYPE, false, SECONDARY_PROPS) });
+
+        List<SecondaryOnHost> secondaries = new ArrayList<SecondaryOnHost>();
+        PropertyCollector pc = engine.serviceInstance().getPropertyCollector();
+        RetrieveResult result = engine.metrics().inPhase(EVACUATE_PHASE,
+            () -> pc.retrievePropertiesEx(new PropertyFilterSpec[] { filterSpec }, new RetrieveOptions())).call();
+        while (result != null) {
+            if (result.getObjects() != null) {
+                for (ObjectContent vmContent : result.getObjects()) {
+                    SecondaryOnHost secondary = toSecondary(vmContent);
+                    if (secondary != null) {
+                        secondaries.add(secondary);
+                    }
+                }
+            }
+            result = result.getToken() != null ? pc.continueRetrievePropertiesEx(result.getToken()) : null;
+        }
+        return secondaries;
+    }
+
+    /**
+     * Move every Secondary VM off the host, and wait for the FT pairs to be protected again. Returns the outcome
+     * per FT pair
+     */
+    public List<VmOutcome>
+    evacuate() throws Exception
+    {
+        List<SecondaryOnHost> secondaries = findSecondaries();
+        engine.out().println("Found " + secondaries.size() + " FT Secondary VM(s) on host: " + evacuatedHost.getName()
+            + ", moving at most " + maxConcurrent + " at a time and " + maxPerDestination + " per destination host");
+        if (secondaries.isEmpty()) {
+            hostClear = true;
+            return new ArrayList<VmOutcome>();
+        }
+
+        // Fresh host stats, so the destinations spread by the current load
+        placer.invalidate();
+        synchronized (this) {
+            pendingMoves.addAll(secondaries);
+        }
+        dispatch();
+        allMoved.join();
+
+        List<SecondaryOnHost> remaining = findSecondaries();
+        hostClear = remaining.isEmpty();
+        if (hostClear) {
+            engine.out().println("Host: " + evacuatedHost.getName() + " has no FT Secondary VM left");
+        } else {
+            for (SecondaryOnHost secondary : remaining) {
+                engine.err().println("Secondary VM of " + secondary.getName() + " is still on host: "
+                    + evacuatedHost.getName());
+            }
+        }
+        synchronized (this) {
+            return new ArrayList<VmOutcome>(outcomes);
+        }
+    }
+
+    /**
+     * True if the host had no FT Secondary left at the end of evacuate()
+     */
+    public synchronized boolean
+    isHostClear()
+    {
+        return hostClear;
+    }
+
+    /**
+     * Start the pending moves there is room for - in flight overall, and on a destination the placer ranks for
+     * the FT pair. A move that has no destination with room yet waits for a running move to end
+     */
+    private void
+    dispatch()
+    {
+        synchronized (this) {
+            if (dispatching) {
+                dispatchAgain = true;
+                return;
+            }
+            dispatching = true;
+        }
+        while (true) {
+            dispatchPending();
+            synchronized (this) {
+                if (!dispatchAgain) {
+                    dispatching = false;
+                    if (pendingMoves.isEmpty() && movesInFlight == 0) {
+                        allMoved.complete(null);
+                    }
+                    return;
+                }
+                dispatchAgain = false;
+            }
+        }
+    }
+
+    /**
+     * One pass over the pending moves. The placement (host stats and the Primary's host may be read from
+     * vCenter) is done outside the lock, which only guards the bookkeeping - so a move ending meanwhile is not
+     * held up. Destinations only gain room while placing, as no other thread dispatches
+     */
+    private void
+    dispatchPending()
+    {
+        List<SecondaryOnHost> secondaries;
+        synchronized (this) {
+            secondaries = new ArrayList<SecondaryOnHost>(pendingMoves);
+        }
+        for (SecondaryOnHost secondary : secondaries) {
+            synchronized (this) {
+                if (movesInFlight >= maxConcurrent) {
+                    return;
+                }
+            }
+
+            HostInfo destination;
+            try {
+                destination = placeSecondary(secondary, this::hasRoomOn);
+            } catch (Exception e) {
+                engine.err().println("Caught an exception while placing the Secondary VM of " + secondary.getName()
+                    + ": " + e);
+                synchronized (this) {
+                    pendingMoves.remove(secondary);
+                    outcomes.add(new VmOutcome(secondary.getName(), false, null, "Could not place: " + e, 0));
+                }
+                continue;
+            }
+
+            final String destinationKey;
+            synchronized (this) {
+                if (destination == null) {
+                    if (!hasDestinationRoom()) {
+                        return;
+                    }
+                    if (movesInFlight == 0) {
+                        // Nothing running will free a destination for it
+                        pendingMoves.remove(secondary);
+                        outcomes.add(new VmOutcome(secondary.getName(), false, null,
+                            "No host with FT support and FT logging NIC for the Secondary VM", 0));
+                    }
+                    continue;
+                }
+
+                pendingMoves.remove(secondary);
+                movesInFlight++;
+                destinationKey = destination.getHostSystem().getMOR().getVal();
+                Integer destinationMoves = movesByDestination.get(destinationKey);
+                movesByDestination.put(destinationKey, destinationMoves != null ? destinationMoves + 1 : 1);
+            }
+            // Async, so a move that ends at once does not re-enter this loop
+            move(secondary, destination).whenCompleteAsync((outcome, failure) -> moveEnded(destinationKey, outcome),
+                engine.executor());
+        }
+    }
+
+    private void
+    moveEnded(String destinationKey, VmOutcome outcome)
+    {
+        synchronized (this) {
+            movesInFlight--;
+            movesByDestination.put(destinationKey, movesByDestination.get(destinationKey) - 1);
+            outcomes.add(outcome);
+        }
+        dispatch();
+    }
+
+    /**
+     * Least loaded destination for the Secondary that the filter accepts, away from the Primary's and the
+     * evacuated host. Null if there is none
+     */
+    private HostInfo
+    placeSecondary(SecondaryOnHost secondary, final Predicate<HostInfo> hostFilter) throws Exception
+    {
+        VmEntry primaryEntry = engine.vmIndex().getEntry(secondary.getPrimaryVm().getMOR());
+        ManagedObjectReference primaryHostMor = primaryEntry != null && primaryEntry.getHostMor() != null
+            ? primaryEntry.getHostMor() : engine.properties().getHost(secondary.getPrimaryVm());
+        final String evacuatedKey = evacuatedHost.getHostSystem().getMOR().getVal();
+        return placer.placeSecondary(primaryHostMor,
+            hostInfo -> !hostInfo.getHostSystem().getMOR().getVal().equals(evacuatedKey) && hostFilter.test(hostInfo));
+    }
+
+    /**
+     * True if the host has room for one more move
+     */
+    private synchronized boolean
+    hasRoomOn(HostInfo hostInfo)
+    {
+        Integer destinationMoves = movesByDestination.get(hostInfo.getHostSystem().getMOR().getVal());
+        return destinationMoves == null || destinationMoves < maxPerDestination;
+    }
+
+    /**
+     * True if some destination has room for another move (as far as moves in flight go)
+     */
+    private boolean
+    hasDestinationRoom()
+    {
+        for (Integer destinationMoves : movesByDestination.values()) {
+            if (destinationMoves >= maxPerDestination) {
+                continue;
+            }
+            return true;
+        }
+        return movesByDestination.size() < hostsByMor.size() - 1;
+    }
+
+    /**
+     * Disable the Secondary, enable it on the destination and wait for the FT pair to run again. If it cannot be
+     * enabled on the destination, it is enabled on the next host the placer ranks (never the evacuated host), so
+     * the pair is not left unprotected. The move fails if there is no such host
+     */
+    private CompletableFuture<VmOutcome>
+    move(final SecondaryOnHost secondary, final HostInfo destination)
+    {
+        final long startMillis = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        final VirtualMachine primaryVm = secondary.getPrimaryVm();
+        log(secondary, "Moving Secondary VM to host: " + destination.getName());
+
+        // Registered before the disable, so the pair leaving running is not missed (nor a stale running state taken)
+        final CompletableFuture<StateTransition> leftRunning = engine.ftStateWatcher().whenObserved(primaryVm,
+            ftState -> !VirtualMachineFaultToleranceState.running.equals(ftState));
+
+        return runTask(() -> primaryVm.disableSecondaryVM_Task(secondary.getSecondaryVm()), Stage.DISABLE_SECONDARY)
+            .thenCompose(disabled -> runTask(() -> primaryVm.enableSecondaryVM_Task(secondary.getSecondaryVm(),
+                destination.getHostSystem()), Stage.ENABLE_SECONDARY)
+                .handle((enabled, failure) -> {
+                    if (failure == null) {
+                        return CompletableFuture.completedFuture(enabled);
+                    }
+                    logError(secondary, "Could not enable the Secondary VM on host: " + destination.getName() + " ("
+                        + causeOf(failure).getMessage() + ")");
+                    return engine.callAsync(EVACUATE_PHASE, () -> placeSecondary(secondary,
+                        hostInfo -> !hostInfo.getHostSystem().getMOR().getVal().equals(
+                            destination.getHostSystem().getMOR().getVal())))
+                        .thenCompose(fallback -> {
+                            if (fallback == null) {
+                                throw new IllegalStateException("No other host than " + destination.getName()
+                                    + " can take the Secondary VM, it is left disabled");
+                            }
+                            log(secondary, "Enabling the Secondary VM on host: " + fallback.getName() + " instead");
+                            return runTask(() -> primaryVm.enableSecondaryVM_Task(secondary.getSecondaryVm(),
+                                fallback.getHostSystem()), Stage.ENABLE_SECONDARY);
+                        });
+                })
+                .thenCompose(Function.identity()))
+            .thenCompose(enabled -> waitForProtection(primaryVm, leftRunning))
+            .thenCompose(protectedNanos -> {
+                if (protectedNanos > 0) {
+                    engine.metrics().recordLatency(UNPROTECTED_PHASE,
+                        TimeUnit.NANOSECONDS.toMillis(protectedNanos - startNanos));
+                }
+                engine.properties().invalidate(secondary.getSecondaryVm().getMOR());
+                return engine.callAsync(EVACUATE_PHASE, () -> engine.properties().getHost(secondary.getSecondaryVm()));
+            })
+            .handle((secondaryHostMor, failure) -> {
+                // Not waited for any more, e.g. the disable failed or the Primary is powered off
+                engine.ftStateWatcher().cancel(leftRunning);
+                long durationMillis = System.currentTimeMillis() - startMillis;
+                engine.metrics().recordLatency(EVACUATE_PHASE, durationMillis);
+                if (failure != null) {
+                    logError(secondary, "Could not move the Secondary VM: " + causeOf(failure).getMessage());
+                    return new VmOutcome(secondary.getName(), false, null,
+                        "Caught an exception: " + causeOf(failure).getMessage(), durationMillis);
+                }
+
+                HostInfo secondaryHost = secondaryHostMor != null ? hostsByMor.get(secondaryHostMor.getVal()) : null;
+                String secondaryHostName = secondaryHost != null ? secondaryHost.getName()
+                    : secondaryHostMor != null ? secondaryHostMor.getVal() : null;
+                if (secondaryHostMor == null || secondaryHost == evacuatedHost) {
+                    return new VmOutcome(secondary.getName(), false, secondaryHostName,
+                        "Secondary VM is still on the evacuated host", durationMillis);
+                }
+                log(secondary, "Secondary VM is protecting the Primary from host: " + secondaryHostName);
+                return new VmOutcome(secondary.getName(), true, secondaryHostName,
+                    secondaryHost == destination ? null : "Not enabled on " + destination.getName(), durationMillis);
+            });
+    }
+
+    /**
+     * Issue the task and track it, bound by the stage's timeout. Fails if the task fails
+     */
+    private CompletableFuture<TaskOutcome>
+    runTask(Callable<Task> taskSubmitter, Stage stage)
+    {
+        CompletableFuture<TaskOutcome> taskDone = engine.callAsync(EVACUATE_PHASE, taskSubmitter)
+            .thenCompose(taskRef -> engine.taskTracker().trackOutcome(taskRef))
+            .thenApply(outcome -> {
+                if (!outcome.isSucceeded()) {
+                    throw new IllegalStateException(stage.getCliName() + " task failed: "
+                        + outcome.getErrorMessage());
+                }
+                return outcome;
+            });
+        return engine.withTimeout(taskDone, engine.getStageTimeout(stage), stage.getCliName());
+    }
+
+    /**
+     * Wait for the FT pair to run again. Future completes with the time the running state was received, 0 if
+     * the Primary is powered off (its Secondary does not run). The running waiter is cancelled if the wait fails
+     * or times out
+     */
+    private CompletableFuture<Long>
+    waitForProtection(final VirtualMachine primaryVm, final CompletableFuture<StateTransition> leftRunning)
+    {
+        engine.properties().invalidate(primaryVm.getMOR());
+        return engine.callAsync(EVACUATE_PHASE, () -> engine.properties().getPowerState(primaryVm))
+            .thenCompose(powerState -> {
+                if (!VirtualMachinePowerState.poweredOn.equals(powerState)) {
+                    return CompletableFuture.completedFuture(0L);
+                }
+                // Set to leftRunning once the wait is given up, so a waiter registered after that is cancelled too
+                final AtomicReference<CompletableFuture<StateTransition>> backRunning =
+                    new AtomicReference<CompletableFuture<StateTransition>>();
+                return engine.withTimeout(leftRunning.thenCompose(left -> {
+                    CompletableFuture<StateTransition> running = engine.ftStateWatcher().whenObserved(primaryVm,
+                        FTStateWatcher.ftStateIn(VirtualMachineFaultToleranceState.running));
+                    if (!backRunning.compareAndSet(null, running)) {
+                        engine.ftStateWatcher().cancel(running);
+                    }
+                    return running;
+                }), engine.getStageTimeout(Stage.ENABLE_SECONDARY), "Reprotection")
+                    .whenComplete((running, failure) -> {
+                        if (failure != null) {
+                            engine.ftStateWatcher().cancel(leftRunning);
+                            CompletableFuture<StateTransition> runningWaiter = backRunning.getAndSet(leftRunning);
+                            if (runningWaiter != null) {
+                                engine.ftStateWatcher().cancel(runningWaiter);
+                            }
+                        }
+                    })
+                    .thenApply(transition -> transition.getObservedNanos());
+            });
+    }
+
+    /**
+     * Secondary VM (and its Primary) from the VM's properties, null if the VM is no FT Secondary
+     */
+    private SecondaryOnHost
+    toSecondary(ObjectContent vmContent) throws Exception
+    {
+        Map<String, Object> vmProps = InventorySnapshot.toPropertyMap(vmContent);
+        FaultToleranceConfigInfo ftInfo = (FaultToleranceConfigInfo) vmProps.get(SecondaryVmResolver.VM_FT_INFO_PROP);
+        if (!(ftInfo instanceof FaultToleranceSecondaryConfigInfo)) {
+            return null;
+        }
+        ManagedObjectReference primaryMor = ((FaultToleranceSecondaryConfigInfo) ftInfo).getPrimaryVM();
+        if (primaryMor == null) {
+            return null;
+        }
+        VmEntry primaryEntry = engine.vmIndex().getEntry(primaryMor);
+        return new SecondaryOnHost(new VirtualMachine(engine.serviceInstance().getServerConnection(),
+            vmContent.getObj()), (String) vmProps.get("name"),
+            new VirtualMachine(engine.serviceInstance().getServerConnection(), primaryMor),
+            primaryEntry != null ? primaryEntry.getName() : null);
+    }
+
+    private static Throwable
+    causeOf(Throwable failure)
+    {
+        return failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    private void
+    log(SecondaryOnHost secondary, String msg)
+    {
+        engine.out().println("[" + secondary.getName() + "] " + msg);
+    }
+
+    private void
+    logError(SecondaryOnHost secondary, String msg)
+    {
+        engine.err().println("[" + secondary.getName() + "] " + msg);
+    }
+}
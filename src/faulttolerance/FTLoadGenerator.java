@@ -0,0 +1,626 @@
+/**
+ * Soak / load generator - keeps cycling FT operations over a pool of VMs, to find the rate of FT operations a
+ * vCenter Server and Cluster sustain before task queueing builds up
+ * -- Each VM goes through createSecondary (turnOnFT), powerOn (first cycle only), disableSecondary,
+ *    enableSecondary, makePrimary and turnOffFT, one operation at a time; the pool runs them concurrently
+ * -- Holds a target rate (operations per minute) or, without one, as many operations in flight as allowed
+ * -- Queued and running time of every task come from its TaskInfo (queueTime, startTime, completeTime)
+ * -- Prints throughput, error rate and queued / running time percentiles every report interval, and per
+ *    operation at the end. The pool is restored (powered off, FT turned off) once the run is over
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.VirtualMachineFaultToleranceState;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.HostSystem;
+import com.vmware.vim25.mo.VirtualMachine;
+
+import faulttolerance.FTMetrics.LatencyHistogram;
+import faulttolerance.FTStateWatcher.StateTransition;
+import faulttolerance.FTWorkflow.Stage;
+import faulttolerance.InventorySnapshot.HostInfo;
+import faulttolerance.SecondaryVmResolver.SecondaryVm;
+import faulttolerance.TaskTracker.TaskOutcome;
+import faulttolerance.VmIndex.VmEntry;
+
+public class FTLoadGenerator
+{
+    public static final String LOAD_PHASE = "load";
+    public static final int DEFAULT_REPORT_INTERVAL_SECS = 10;
+
+    // A VM failing this many operations in a row is taken out of the pool
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+    private static final long POLL_MILLIS = 100;
+
+    private final FTWorkflowEngine engine;
+    private final SecondaryHostPlacer placer;
+    private final int maxInFlight;
+    private final double targetOpsPerMin;
+    private final List<LoadVm> pool = new ArrayList<LoadVm>();
+    private final LinkedBlockingQueue<LoadVm> idleVms = new LinkedBlockingQueue<LoadVm>();
+    private final Semaphore inFlightSlots;
+    private final AtomicInteger retiredVms = new AtomicInteger();
+    private final Map<Stage, OpStats> opStats = new EnumMap<Stage, OpStats>(Stage.class);
+    private final LatencyHistogram reprotection = new LatencyHistogram();
+    private Window window = new Window();
+    private long missedSlots;
+    private long startNanos;
+
+    /**
+     * VM of the pool and the operation it runs next. Only the VM's own operation chain touches it
+     */
+    private static class LoadVm
+    {
+        final VirtualMachine vmObj;
+        final String vmName;
+        Stage nextOp;
+        boolean poweredOn;
+        int consecutiveFailures;
+
+        LoadVm(VirtualMachine vmObj, String vmName)
+        {
+            this.vmObj = vmObj;
+            this.vmName = vmName;
+        }
+    }
+
+    /**
+     * Totals of one operation over the whole run
+     */
+    private static class OpStats
+    {
+        long ops;
+        long errors;
+        final LatencyHistogram queued = new LatencyHistogram();
+        final LatencyHistogram running = new LatencyHistogram();
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    /**
+     * Operations of one report interval
+     */
+    private static class Window
+    {
+        final long startNanos = System.nanoTime();
+        long started;
+        long completed;
+        long errors;
+        long missed;
+        final LatencyHistogram queued = new LatencyHistogram();
+        final LatencyHistogram running = new LatencyHistogram();
+    }
+
+    /**
+     * Constructor - at most maxInFlight operations at a time, targetOpsPerMin 0 to issue them as fast as that
+     * allows
+     */
+    public FTLoadGenerator(FTWorkflowEngine engine, SecondaryHostPlacer placer, int maxInFlight,
+        double targetOpsPerMin)
+    {
+        this.engine = engine;
+        this.placer = placer;
+        this.maxInFlight = Math.max(maxInFlight, 1);
+        this.targetOpsPerMin = Math.max(targetOpsPerMin, 0);
+        this.inFlightSlots = new Semaphore(this.maxInFlight);
+        for (Stage op : Stage.values()) {
+            opStats.put(op, new OpStats());
+        }
+        engine.metrics().addPrometheusSource(() -> toPrometheus());
+    }
+
+    /**
+     * Run the load on the VMs for the given time, printing a report row every report interval, then restore
+     * them. Returns true if every VM of the pool was restored
+     */
+    public boolean
+    run(List<VmEntry> vmEntries, int durationSecs, int reportSecs) throws Exception
+    {
+        for (VmEntry vmEntry : vmEntries) {
+            pool.add(new LoadVm(new VirtualMachine(engine.serviceInstance().getServerConnection(),
+                vmEntry.getVmMor()), vmEntry.getName()));
+        }
+        engine.out().println("Running FT load on " + pool.size() + " VM(s) for " + durationSecs + " secs, "
+            + (targetOpsPerMin > 0 ? String.format("%.1f operations/min", targetOpsPerMin) : "no target rate")
+            + ", at most " + maxInFlight + " operation(s) in flight");
+
+        // Where each VM starts its cycle depends on its current power and FT state
+        List<CompletableFuture<Void>> synced = new ArrayList<CompletableFuture<Void>>();
+        for (LoadVm loadVm : pool) {
+            synced.add(resync(loadVm).thenAccept(resynced -> makeIdle(loadVm, resynced)));
+        }
+        CompletableFuture.allOf(synced.toArray(new CompletableFuture<?>[synced.size()])).join();
+
+        printReportHeader();
+        startNanos = System.nanoTime();
+        synchronized (this) {
+            window = new Window();
+        }
+        long endNanos = startNanos + TimeUnit.SECONDS.toNanos(durationSecs);
+        long reportIntervalNanos = TimeUnit.SECONDS.toNanos(Math.max(reportSecs, 1));
+        long nextReportNanos = startNanos + reportIntervalNanos;
+        long slotIntervalNanos = targetOpsPerMin > 0 ? (long) (TimeUnit.MINUTES.toNanos(1) / targetOpsPerMin) : 0;
+        long nextSlotNanos = startNanos;
+
+        long nowNanos;
+        while ((nowNanos = System.nanoTime()) < endNanos && retiredVms.get() < pool.size()) {
+            if (nowNanos >= nextReportNanos) {
+                printReportRow();
+                nextReportNanos += reportIntervalNanos;
+            }
+            if (slotIntervalNanos > 0) {
+                long waitNanos = Math.min(nextSlotNanos, Math.min(nextReportNanos, endNanos)) - nowNanos;
+                if (waitNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                    continue;
+                }
+                nextSlotNanos += slotIntervalNanos;
+                // A slot finding no idle VM (or no room in flight) is missed, not made up for later
+                if (!inFlightSlots.tryAcquire()) {
+                    recordMissedSlot();
+                    continue;
+                }
+                LoadVm loadVm = idleVms.poll();
+                if (loadVm == null) {
+                    inFlightSlots.release();
+                    recordMissedSlot();
+                    continue;
+                }
+                issue(loadVm);
+            } else {
+                if (!inFlightSlots.tryAcquire(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+                LoadVm loadVm = idleVms.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (loadVm == null) {
+                    inFlightSlots.release();
+                    continue;
+                }
+                issue(loadVm);
+            }
+        }
+        long loadNanos = System.nanoTime() - startNanos;
+
+        // No new operations; the ones in flight (and their reprotection) end by their stage timeouts
+        while (idleVms.size() + retiredVms.get() < pool.size()) {
+            Thread.sleep(POLL_MILLIS);
+        }
+        printReportRow();
+        printSummary(loadNanos);
+        return restorePool();
+    }
+
+    /**
+     * Start the VM's next operation. Its in flight slot is released once the task has ended, the VM is idle again
+     * once the FT pair is back to running (if the operation starts the Secondary)
+     */
+    private void
+    issue(final LoadVm loadVm)
+    {
+        final Stage op = loadVm.nextOp;
+        final long opStartNanos = System.nanoTime();
+        synchronized (this) {
+            window.started++;
+        }
+
+        // Registered before the task, so the pair leaving running is not missed (nor a stale running state taken)
+        final CompletableFuture<StateTransition> leftRunning = settles(loadVm, op)
+            ? engine.ftStateWatcher().whenObserved(loadVm.vmObj, notRunning()) : null;
+
+        submit(loadVm, op).whenComplete((outcome, failure) -> {
+            inFlightSlots.release();
+            engine.properties().invalidate(loadVm.vmObj.getMOR());
+            long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - opStartNanos);
+            String error = failure != null ? failure.toString() : outcome.getErrorMessage();
+            record(op, outcome, error == null, latencyMillis);
+
+            if (error != null) {
+                if (leftRunning != null) {
+                    engine.ftStateWatcher().cancel(leftRunning);
+                }
+                engine.err().println("[" + loadVm.vmName + "] " + op.getCliName() + " failed: " + error);
+                if (++loadVm.consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+                    retire(loadVm, loadVm.consecutiveFailures + " operations failed in a row");
+                    return;
+                }
+                resync(loadVm).thenAccept(resynced -> makeIdle(loadVm, resynced));
+                return;
+            }
+
+            loadVm.consecutiveFailures = 0;
+            if (op == Stage.POWER_ON) {
+                loadVm.poweredOn = true;
+            }
+            loadVm.nextOp = nextOp(op, loadVm.poweredOn);
+            if (leftRunning == null) {
+                makeIdle(loadVm, true);
+                return;
+            }
+            final long settleStartNanos = System.nanoTime();
+            // Set to leftRunning once the settling is given up, so a waiter registered after that is cancelled too
+            final AtomicReference<CompletableFuture<StateTransition>> backRunning =
+                new AtomicReference<CompletableFuture<StateTransition>>();
+            engine.withTimeout(leftRunning.thenCompose(left -> {
+                CompletableFuture<StateTransition> running = engine.ftStateWatcher().whenObserved(loadVm.vmObj,
+                    FTStateWatcher.ftStateIn(VirtualMachineFaultToleranceState.running));
+                if (!backRunning.compareAndSet(null, running)) {
+                    engine.ftStateWatcher().cancel(running);
+                }
+                return running;
+            }), engine.getStageTimeout(op), "Reprotection")
+                .whenComplete((running, settleFailure) -> {
+                    if (settleFailure != null) {
+                        engine.ftStateWatcher().cancel(leftRunning);
+                        CompletableFuture<StateTransition> runningWaiter = backRunning.getAndSet(leftRunning);
+                        if (runningWaiter != null) {
+                            engine.ftStateWatcher().cancel(runningWaiter);
+                        }
+                        engine.err().println("[" + loadVm.vmName + "] FT pair did not get back to running after "
+                            + op.getCliName() + ": " + settleFailure);
+                        resync(loadVm).thenAccept(resynced -> makeIdle(loadVm, resynced));
+                        return;
+                    }
+                    reprotection.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - settleStartNanos));
+                    makeIdle(loadVm, true);
+                });
+        });
+    }
+
+    /**
+     * Issue the operation's task and track it to its end, bound by the operation's stage timeout
+     */
+    private CompletableFuture<TaskOutcome>
+    submit(final LoadVm loadVm, final Stage op)
+    {
+        final VirtualMachine vmObj = loadVm.vmObj;
+        if (op == Stage.TURN_OFF_FT) {
+            // Registered before the call, so FT turning off is not missed
+            final CompletableFuture<StateTransition> ftTurnedOff = engine.ftStateWatcher().whenObserved(vmObj,
+                FTStateWatcher.ftStateIn(VirtualMachineFaultToleranceState.notConfigured));
+            return engine.withTimeout(turnOffFT(vmObj, ftTurnedOff), engine.getStageTimeout(op), op.getCliName())
+                .whenComplete((outcome, failure) -> engine.ftStateWatcher().cancel(ftTurnedOff));
+        }
+        CompletableFuture<TaskOutcome> taskDone = engine.callAsync(LOAD_PHASE + "." + op.getCliName(), () -> {
+            switch (op) {
+                case TURN_ON_FT:
+                    return vmObj.createSecondaryVM_Task(placeSecondary(vmObj));
+                case POWER_ON:
+                    return vmObj.powerOnVM_Task(null);
+                case DISABLE_SECONDARY:
+                    return vmObj.disableSecondaryVM_Task(resolveSecondary(vmObj).getVm());
+                case ENABLE_SECONDARY:
+                    return vmObj.enableSecondaryVM_Task(resolveSecondary(vmObj).getVm(), null);
+                default:
+                    return vmObj.makePrimaryVM_Task(resolveSecondary(vmObj).getVm());
+            }
+        }).thenCompose(taskRef -> engine.taskTracker().trackOutcome(taskRef));
+        return engine.withTimeout(taskDone, engine.getStageTimeout(op), op.getCliName());
+    }
+
+    /**
+     * Turn off FT. vijava loses the task reference of TurnOffFaultToleranceForVM_Task (see FTWorkflow), the FT
+     * state (ftTurnedOff) then tells when FT is off, and the operation has no TaskInfo times. A fault raised by
+     * vCenter fails the operation at once
+     */
+    private CompletableFuture<TaskOutcome>
+    turnOffFT(final VirtualMachine vmObj, final CompletableFuture<StateTransition> ftTurnedOff)
+    {
+        return engine.callAsync(LOAD_PHASE + "." + Stage.TURN_OFF_FT.getCliName(),
+            () -> vmObj.turnOffFaultToleranceForVM_Task())
+            .handle((taskRef, failure) -> {
+                if (failure == null) {
+                    return engine.taskTracker().trackOutcome(taskRef);
+                }
+                if (!FTWorkflow.isUnparsedTurnOffResponse(failure)) {
+                    CompletableFuture<TaskOutcome> refused = new CompletableFuture<TaskOutcome>();
+                    refused.completeExceptionally(failure);
+                    return refused;
+                }
+                return ftTurnedOff.thenApply(transition -> new TaskOutcome(TaskInfoState.success, null, null, null,
+                    null, transition.getObservedNanos()));
+            })
+            .thenCompose(outcome -> outcome);
+    }
+
+    /**
+     * Host for the new Secondary, away from the host the VM runs on now (a failover moves the Primary)
+     */
+    private HostSystem
+    placeSecondary(VirtualMachine vmObj) throws Exception
+    {
+        VmEntry vmEntry = engine.vmIndex().getEntry(vmObj.getMOR());
+        ManagedObjectReference hostMor = vmEntry != null && vmEntry.getHostMor() != null ? vmEntry.getHostMor()
+            : engine.properties().getHost(vmObj);
+        HostInfo secondaryHost = hostMor != null ? placer.placeSecondary(hostMor) : null;
+        // Without a placement, vCenter picks the host
+        return secondaryHost != null ? secondaryHost.getHostSystem() : null;
+    }
+
+    private SecondaryVm
+    resolveSecondary(VirtualMachine vmObj) throws Exception
+    {
+        SecondaryVm secondaryVm = new SecondaryVmResolver(engine.serviceInstance(), engine.vmIndex(),
+            engine.properties()).resolve(vmObj);
+        if (secondaryVm == null) {
+            throw new IllegalStateException("Could not obtain Secondary VM's reference object");
+        }
+        return secondaryVm;
+    }
+
+    /**
+     * Read the VM's power and FT state, and set the operation its cycle goes on with. Completes with false if the
+     * VM is in no state the cycle can go on from
+     */
+    private CompletableFuture<Boolean>
+    resync(final LoadVm loadVm)
+    {
+        engine.properties().invalidate(loadVm.vmObj.getMOR());
+        return engine.callAsync(LOAD_PHASE, () -> engine.properties().getAll(loadVm.vmObj.getMOR(),
+            FTStateWatcher.POWER_STATE_PROP, FTStateWatcher.FT_STATE_PROP))
+            .thenCompose(states -> {
+                VirtualMachineFaultToleranceState ftState =
+                    (VirtualMachineFaultToleranceState) states.get(FTStateWatcher.FT_STATE_PROP);
+                loadVm.poweredOn =
+                    VirtualMachinePowerState.poweredOn.equals(states.get(FTStateWatcher.POWER_STATE_PROP));
+                if (ftState == null || VirtualMachineFaultToleranceState.notConfigured.equals(ftState)) {
+                    loadVm.nextOp = Stage.TURN_ON_FT;
+                } else if (!loadVm.poweredOn) {
+                    loadVm.nextOp = Stage.POWER_ON;
+                } else if (VirtualMachineFaultToleranceState.disabled.equals(ftState)) {
+                    loadVm.nextOp = Stage.ENABLE_SECONDARY;
+                } else {
+                    // Starting or waiting for its Secondary - goes on once the pair is running
+                    loadVm.nextOp = Stage.DISABLE_SECONDARY;
+                    final CompletableFuture<StateTransition> backRunning = engine.ftStateWatcher().whenObserved(
+                        loadVm.vmObj, FTStateWatcher.ftStateIn(VirtualMachineFaultToleranceState.running));
+                    return engine.withTimeout(backRunning, engine.getStageTimeout(Stage.ENABLE_SECONDARY),
+                        "Reprotection")
+                        .whenComplete((running, failure) -> engine.ftStateWatcher().cancel(backRunning))
+                        .thenApply(running -> true);
+                }
+                return CompletableFuture.completedFuture(true);
+            })
+            .exceptionally(failure -> {
+                engine.err().println("Caught an exception while reading the state of VM: " + loadVm.vmName + ": "
+                    + failure);
+                return false;
+            });
+    }
+
+    private void
+    makeIdle(LoadVm loadVm, boolean resynced)
+    {
+        if (!resynced) {
+            retire(loadVm, "its state could not be read");
+            return;
+        }
+        idleVms.add(loadVm);
+    }
+
+    private void
+    retire(LoadVm loadVm, String reason)
+    {
+        engine.err().println("[" + loadVm.vmName + "] Taking the VM out of the load, " + reason);
+        retiredVms.incrementAndGet();
+    }
+
+    /**
+     * Operation following the given one in the cycle - power on is only needed while the VM is powered off
+     */
+    private static Stage
+    nextOp(Stage op, boolean poweredOn)
+    {
+        Stage next = Stage.values()[(op.ordinal() + 1) % Stage.values().length];
+        return next == Stage.POWER_ON && poweredOn ? nextOp(next, poweredOn) : next;
+    }
+
+    /**
+     * True if the operation (re)starts the Secondary, i.e. the VM goes on once the FT pair is running again
+     */
+    private static boolean
+    settles(LoadVm loadVm, Stage op)
+    {
+        return op == Stage.POWER_ON || op == Stage.ENABLE_SECONDARY || op == Stage.MAKE_PRIMARY
+            || (op == Stage.TURN_ON_FT && loadVm.poweredOn);
+    }
+
+    private static Predicate<VirtualMachineFaultToleranceState>
+    notRunning()
+    {
+        return ftState -> !VirtualMachineFaultToleranceState.running.equals(ftState);
+    }
+
+    private synchronized void
+    record(Stage op, TaskOutcome outcome, boolean succeeded, long latencyMillis)
+    {
+        OpStats stats = opStats.get(op);
+        stats.ops++;
+        window.completed++;
+        if (!succeeded) {
+            stats.errors++;
+            window.errors++;
+        }
+        stats.latency.record(latencyMillis);
+        engine.metrics().recordLatency(LOAD_PHASE + "." + op.getCliName(), latencyMillis);
+
+        long queuedMillis = outcome != null ? outcome.getQueuedMillis() : -1;
+        long runningMillis = outcome != null ? outcome.getRunningMillis() : -1;
+        if (queuedMillis < 0) {
+            return;
+        }
+        stats.queued.record(queuedMillis);
+        window.queued.record(queuedMillis);
+        engine.metrics().recordLatency(LOAD_PHASE + ".queued", queuedMillis);
+        if (runningMillis >= 0) {
+            stats.running.record(runningMillis);
+            window.running.record(runningMillis);
+            engine.metrics().recordLatency(LOAD_PHASE + ".running", runningMillis);
+        }
+    }
+
+    private synchronized void
+    recordMissedSlot()
+    {
+        missedSlots++;
+        window.missed++;
+    }
+
+    private void
+    printReportHeader()
+    {
+        engine.out().println("-------------------------------------------------------------------");
+        engine.out().println(String.format("%8s %9s %8s %8s %9s %7s %7s %8s %8s %8s %8s", "Time s", "In flight",
+            "Started", "Ended", "Ops/min", "Error%", "Missed", "Queue50", "Queue95", "Run50", "Run95"));
+    }
+
+    /**
+     * One row of the time series - operations of the interval since the previous row
+     */
+    private void
+    printReportRow()
+    {
+        Window ended;
+        synchronized (this) {
+            ended = window;
+            window = new Window();
+        }
+        long nowNanos = System.nanoTime();
+        double intervalMins = (nowNanos - ended.startNanos) / 6e10;
+        engine.out().println(String.format("%8.0f %9d %8d %8d %9.1f %7.1f %7d %8d %8d %8d %8d",
+            (nowNanos - startNanos) / 1e9, maxInFlight - inFlightSlots.availablePermits(), ended.started,
+            ended.completed, intervalMins > 0 ? ended.completed / intervalMins : 0,
+            ended.completed > 0 ? 100.0 * ended.errors / ended.completed : 0, ended.missed,
+            ended.queued.getPercentileMillis(0.5), ended.queued.getPercentileMillis(0.95),
+            ended.running.getPercentileMillis(0.5), ended.running.getPercentileMillis(0.95)));
+    }
+
+    private synchronized void
+    printSummary(long loadNanos)
+    {
+        long totalOps = 0;
+        long totalErrors = 0;
+        engine.out().println("\n-------------------------------------------------------------------");
+        engine.out().println("FT load summary (queued / running times in ms, from TaskInfo)");
+        engine.out().println("-------------------------------------------------------------------");
+        engine.out().println(String.format("%-18s %8s %7s %7s %8s %8s %8s %8s %10s", "Operation", "Ops", "Errors",
+            "Error%", "Queue50", "Queue95", "Run50", "Run95", "Latency95"));
+        for (Map.Entry<Stage, OpStats> opEntry : opStats.entrySet()) {
+            OpStats stats = opEntry.getValue();
+            if (stats.ops == 0) {
+                continue;
+            }
+            totalOps += stats.ops;
+            totalErrors += stats.errors;
+            engine.out().println(String.format("%-18s %8d %7d %7.1f %8s %8s %8s %8s %10d",
+                opEntry.getKey().getCliName(), stats.ops, stats.errors, 100.0 * stats.errors / stats.ops,
+                timed(stats.queued, 0.5), timed(stats.queued, 0.95), timed(stats.running, 0.5),
+                timed(stats.running, 0.95), stats.latency.getPercentileMillis(0.95)));
+        }
+        engine.out().println("-------------------------------------------------------------------");
+        double loadMins = loadNanos / 6e10;
+        engine.out().println(String.format("%d operation(s) in %.1f min: %.1f operations/min achieved%s, %.1f%% errors",
+            totalOps, loadMins, loadMins > 0 ? totalOps / loadMins : 0,
+            targetOpsPerMin > 0 ? String.format(" (target %.1f, %d slot(s) missed)", targetOpsPerMin, missedSlots)
+                : "", totalOps > 0 ? 100.0 * totalErrors / totalOps : 0));
+        engine.out().println(String.format("Reprotection after operations: p50 %d ms, p95 %d ms, %d VM(s) taken out",
+            reprotection.getPercentileMillis(0.5), reprotection.getPercentileMillis(0.95), retiredVms.get()));
+    }
+
+    /**
+     * Percentile of the operation's TaskInfo times, "-" if none of its tasks had them (lost task reference)
+     */
+    private static String
+    timed(LatencyHistogram histogram, double quantile)
+    {
+        return histogram.getCount() > 0 ? String.valueOf(histogram.getPercentileMillis(quantile)) : "-";
+    }
+
+    /**
+     * Power off and turn off FT on every VM of the pool, concurrently. Returns true if all of them were restored
+     */
+    private boolean
+    restorePool()
+    {
+        engine.out().println("Restoring the state of " + pool.size() + " VM(s)");
+        List<CompletableFuture<Boolean>> restored = new ArrayList<CompletableFuture<Boolean>>();
+        for (final LoadVm loadVm : pool) {
+            engine.properties().invalidate(loadVm.vmObj.getMOR());
+            restored.add(engine.callAsync(LOAD_PHASE, () -> engine.properties().getAll(loadVm.vmObj.getMOR(),
+                FTStateWatcher.POWER_STATE_PROP, FTStateWatcher.FT_STATE_PROP))
+                .thenCompose(states -> engine.rollback(loadVm.vmObj, loadVm.vmName,
+                    (VirtualMachinePowerState) states.get(FTStateWatcher.POWER_STATE_PROP),
+                    (VirtualMachineFaultToleranceState) states.get(FTStateWatcher.FT_STATE_PROP)))
+                .exceptionally(failure -> {
+                    engine.err().println("Caught an exception while restoring VM: " + loadVm.vmName + ": " + failure);
+                    return false;
+                }));
+        }
+
+        boolean allRestored = true;
+        for (CompletableFuture<Boolean> vmRestored : restored) {
+            allRestored &= vmRestored.join();
+        }
+        return allRestored;
+    }
+
+    /**
+     * Operation counters in Prometheus text exposition format
+     */
+    private synchronized String
+    toPrometheus()
+    {
+        StringBuilder prom = new StringBuilder();
+        prom.append("# HELP ftops_load_operations_total FT operations issued by the load generator, by result\n");
+        prom.append("# TYPE ftops_load_operations_total counter\n");
+        for (Map.Entry<Stage, OpStats> opEntry : opStats.entrySet()) {
+            OpStats stats = opEntry.getValue();
+            prom.append("ftops_load_operations_total{op=\"").append(opEntry.getKey().getCliName())
+                .append("\",result=\"success\"} ").append(stats.ops - stats.errors).append('\n');
+            prom.append("ftops_load_operations_total{op=\"").append(opEntry.getKey().getCliName())
+                .append("\",result=\"error\"} ").append(stats.errors).append('\n');
+        }
+        prom.append("# HELP ftops_load_missed_slots_total Target rate slots that found no idle VM\n");
+        prom.append("# TYPE ftops_load_missed_slots_total counter\n");
+        prom.append("ftops_load_missed_slots_total ").append(missedSlots).append('\n');
+        return prom.toString();
+    }
+}
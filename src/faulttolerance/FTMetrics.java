@@ -0,0 +1,511 @@
+/**
+ * Per phase latency and SOAP call metrics of the FT workflows
+ * -- Latencies are recorded into log-bucketed histograms (p50/p95/p99/max)
+ * -- SOAP calls are counted in the vim25 client's transport and attributed to the phase issuing them
+ * -- Exported as JSON and Prometheus text exposition, to files on exit or on a local HTTP endpoint
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class FTMetrics
+{
+    // Phase of SOAP calls not issued on behalf of a workflow phase (login, inventory, update streams)
+    public static final String BACKGROUND_PHASE = "background";
+    // Latency of every single SOAP request, up to its response headers
+    public static final String SOAP_REQUEST_PHASE = "soap.request";
+
+    private final Map<String, LatencyHistogram> phaseLatencies = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final Map<String, AtomicLong> phaseSoapCalls = new ConcurrentHashMap<String, AtomicLong>();
+    private final ThreadLocal<String> currentPhase = new ThreadLocal<String>();
+    private final AtomicLong soapBytesSent = new AtomicLong();
+    private final AtomicLong soapBytesReceived = new AtomicLong();
+    private final AtomicLong soapBytesUncompressed = new AtomicLong();
+    private final List<Supplier<String>> prometheusSources = new CopyOnWriteArrayList<Supplier<String>>();
+
+    private HttpServer httpServer;
+
+    /**
+     * Log bucketed latency histogram, 8 buckets per power of two (worst case error ~9%) from 1 ms up to ~9 hours.
+     * The coarser Prometheus buckets are counted exactly, alongside
+     */
+    public static class LatencyHistogram
+    {
+        private static final int SUB_BUCKETS = 8;
+        private static final int NUM_BUCKETS = 25 * SUB_BUCKETS;
+
+        // Histogram upper bounds (seconds) in the Prometheus exposition
+        static final double[] EXPOSITION_BUCKETS_SECS = { 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 15, 30, 60, 120, 300, 600,
+            1800 };
+
+        private final long[] bucketCounts = new long[NUM_BUCKETS];
+        private final long[] expositionCounts = new long[EXPOSITION_BUCKETS_SECS.length];
+        private long count;
+        private long sumMillis;
+        private long maxMillis;
+
+        public synchronized void
+        record(long millis)
+        {
+            bucketCounts[bucketOf(millis)]++;
+            for (int i = 0; i < EXPOSITION_BUCKETS_SECS.length; i++) {
+                if (millis <= EXPOSITION_BUCKETS_SECS[i] * 1000) {
+                    expositionCounts[i]++;
+                }
+            }
+            count++;
+            sumMillis += millis;
+            maxMillis = Math.max(maxMillis, millis);
+        }
+
+        public synchronized long
+        getCount()
+        {
+            return count;
+        }
+
+        public synchronized long
+        getSumMillis()
+        {
+            return sumMillis;
+        }
+
+        public synchronized long
+        getMaxMillis()
+        {
+            return maxMillis;
+        }
+
+        /**
+         * Latency at the given quantile (0..1), as the upper bound of the bucket holding it
+         */
+        public synchronized long
+        getPercentileMillis(double quantile)
+        {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                seen += bucketCounts[i];
+                if (seen >= Math.max(rank, 1)) {
+                    return Math.min(upperBoundMillis(i), maxMillis);
+                }
+            }
+            return maxMillis;
+        }
+
+        /**
+         * Add the samples of the other histogram into this one
+         */
+        synchronized void
+        add(LatencyHistogram other)
+        {
+            synchronized (other) {
+                for (int i = 0; i < NUM_BUCKETS; i++) {
+                    bucketCounts[i] += other.bucketCounts[i];
+                }
+                for (int i = 0; i < expositionCounts.length; i++) {
+                    expositionCounts[i] += other.expositionCounts[i];
+                }
+                count += other.count;
+                sumMillis += other.sumMillis;
+                maxMillis = Math.max(maxMillis, other.maxMillis);
+            }
+        }
+
+        /**
+         * Cumulative sample counts at the Prometheus bucket bounds
+         */
+        synchronized long[]
+        getExpositionCounts()
+        {
+            return expositionCounts.clone();
+        }
+
+        private static int
+        bucketOf(long millis)
+        {
+            if (millis <= 1) {
+                return 0;
+            }
+            int bucket = (int) Math.ceil(Math.log(millis) / Math.log(2) * SUB_BUCKETS);
+            return Math.min(bucket, NUM_BUCKETS - 1);
+        }
+
+        private static long
+        upperBoundMillis(int bucket)
+        {
+            return (long) Math.floor(Math.pow(2, (double) bucket / SUB_BUCKETS));
+        }
+    }
+
+    /**
+     * Record the latency of one occurrence of the phase
+     */
+    public void
+    recordLatency(String phase, long millis)
+    {
+        histogramOf(phase).record(millis);
+    }
+
+    /**
+     * Add the latencies, SOAP calls and bytes of another session's metrics into these, to report on several
+     * vCenter Servers at once
+     */
+    public void
+    merge(FTMetrics other)
+    {
+        for (Map.Entry<String, LatencyHistogram> phaseEntry : other.phaseLatencies.entrySet()) {
+            histogramOf(phaseEntry.getKey()).add(phaseEntry.getValue());
+        }
+        for (Map.Entry<String, AtomicLong> callsEntry : other.phaseSoapCalls.entrySet()) {
+            soapCallsOf(callsEntry.getKey()).addAndGet(callsEntry.getValue().get());
+        }
+        soapBytesSent.addAndGet(other.soapBytesSent.get());
+        soapBytesReceived.addAndGet(other.soapBytesReceived.get());
+        soapBytesUncompressed.addAndGet(other.soapBytesUncompressed.get());
+    }
+
+    /**
+     * Callable attributing the SOAP calls it makes on its thread to the given phase
+     */
+    public <T> Callable<T>
+    inPhase(final String phase, final Callable<T> apiCall)
+    {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception
+            {
+                String outerPhase = currentPhase.get();
+                currentPhase.set(phase);
+                try {
+                    return apiCall.call();
+                } finally {
+                    currentPhase.set(outerPhase);
+                }
+            }
+        };
+    }
+
+    /**
+     * SOAP calls counted so far, over all phases
+     */
+    public long
+    getSoapCalls()
+    {
+        long soapCalls = 0;
+        for (AtomicLong phaseCalls : phaseSoapCalls.values()) {
+            soapCalls += phaseCalls.get();
+        }
+        return soapCalls;
+    }
+
+    /**
+     * Record one SOAP request/response, as seen by the transport
+     */
+    void
+    recordSoapExchange(long latencyMillis, long bytesSent, long bytesReceived, long bytesUncompressed)
+    {
+        if (latencyMillis >= 0) {
+            recordLatency(SOAP_REQUEST_PHASE, latencyMillis);
+        }
+        soapBytesSent.addAndGet(bytesSent);
+        soapBytesReceived.addAndGet(bytesReceived);
+        soapBytesUncompressed.addAndGet(bytesUncompressed);
+    }
+
+    /**
+     * Phase latencies and SOAP calls per phase, as JSON
+     */
+    public String
+    toJson()
+    {
+        StringBuilder json = new StringBuilder("{\n  \"phases\": {");
+        String separator = "\n";
+        for (Map.Entry<String, LatencyHistogram> phaseEntry : sortedLatencies().entrySet()) {
+            LatencyHistogram histogram = phaseEntry.getValue();
+            json.append(separator).append("    \"").append(phaseEntry.getKey()).append("\": {")
+                .append("\"count\": ").append(histogram.getCount())
+                .append(", \"sumMillis\": ").append(histogram.getSumMillis())
+                .append(", \"p50Millis\": ").append(histogram.getPercentileMillis(0.50))
+                .append(", \"p95Millis\": ").append(histogram.getPercentileMillis(0.95))
+                .append(", \"p99Millis\": ").append(histogram.getPercentileMillis(0.99))
+                .append(", \"maxMillis\": ").append(histogram.getMaxMillis()).append("}");
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"soapCalls\": {");
+        separator = "\n";
+        for (Map.Entry<String, AtomicLong> callsEntry : sortedSoapCalls().entrySet()) {
+            json.append(separator).append("    \"").append(callsEntry.getKey()).append("\": ")
+                .append(callsEntry.getValue().get());
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"soapBytes\": {\"sent\": ").append(soapBytesSent.get())
+            .append(", \"received\": ").append(soapBytesReceived.get())
+            .append(", \"receivedUncompressed\": ").append(soapBytesUncompressed.get()).append("}\n}\n");
+        return json.toString();
+    }
+
+    /**
+     * Phase latencies and SOAP calls per phase, in Prometheus text exposition format
+     */
+    public String
+    toPrometheus()
+    {
+        StringBuilder prom = new StringBuilder();
+        prom.append("# HELP ftops_phase_duration_seconds Duration of FT workflow phases\n");
+        prom.append("# TYPE ftops_phase_duration_seconds histogram\n");
+        for (Map.Entry<String, LatencyHistogram> phaseEntry : sortedLatencies().entrySet()) {
+            String phase = phaseEntry.getKey();
+            LatencyHistogram histogram = phaseEntry.getValue();
+            long[] bucketCounts = histogram.getExpositionCounts();
+            for (int i = 0; i < bucketCounts.length; i++) {
+                prom.append("ftops_phase_duration_seconds_bucket{phase=\"").append(phase).append("\",le=\"")
+                    .append(LatencyHistogram.EXPOSITION_BUCKETS_SECS[i]).append("\"} ").append(bucketCounts[i])
+                    .append('\n');
+            }
+            prom.append("ftops_phase_duration_seconds_bucket{phase=\"").append(phase).append("\",le=\"+Inf\"} ")
+                .append(histogram.getCount()).append('\n');
+            prom.append("ftops_phase_duration_seconds_sum{phase=\"").append(phase).append("\"} ")
+                .append(histogram.getSumMillis() / 1000.0).append('\n');
+            prom.append("ftops_phase_duration_seconds_count{phase=\"").append(phase).append("\"} ")
+                .append(histogram.getCount()).append('\n');
+        }
+
+        prom.append("# HELP ftops_phase_duration_max_seconds Longest duration of FT workflow phases\n");
+        prom.append("# TYPE ftops_phase_duration_max_seconds gauge\n");
+        for (Map.Entry<String, LatencyHistogram> phaseEntry : sortedLatencies().entrySet()) {
+            prom.append("ftops_phase_duration_max_seconds{phase=\"").append(phaseEntry.getKey()).append("\"} ")
+                .append(phaseEntry.getValue().getMaxMillis() / 1000.0).append('\n');
+        }
+
+        prom.append("# HELP ftops_soap_calls_total vSphere API (SOAP) calls issued\n");
+        prom.append("# TYPE ftops_soap_calls_total counter\n");
+        for (Map.Entry<String, AtomicLong> callsEntry : sortedSoapCalls().entrySet()) {
+            prom.append("ftops_soap_calls_total{phase=\"").append(callsEntry.getKey()).append("\"} ")
+                .append(callsEntry.getValue().get()).append('\n');
+        }
+
+        prom.append("# HELP ftops_soap_sent_bytes_total Bytes of SOAP requests sent\n");
+        prom.append("# TYPE ftops_soap_sent_bytes_total counter\n");
+        prom.append("ftops_soap_sent_bytes_total ").append(soapBytesSent.get()).append('\n');
+        prom.append("# HELP ftops_soap_received_bytes_total Bytes of SOAP responses received, on the wire\n");
+        prom.append("# TYPE ftops_soap_received_bytes_total counter\n");
+        prom.append("ftops_soap_received_bytes_total ").append(soapBytesReceived.get()).append('\n');
+        prom.append("# HELP ftops_soap_received_uncompressed_bytes_total Bytes of SOAP responses, uncompressed\n");
+        prom.append("# TYPE ftops_soap_received_uncompressed_bytes_total counter\n");
+        prom.append("ftops_soap_received_uncompressed_bytes_total ").append(soapBytesUncompressed.get())
+            .append('\n');
+        for (Supplier<String> source : prometheusSources) {
+            prom.append(source.get());
+        }
+        return prom.toString();
+    }
+
+    /**
+     * Append the metrics of another component (in Prometheus text exposition format) to the exposition
+     */
+    public void
+    addPrometheusSource(Supplier<String> source)
+    {
+        prometheusSources.add(source);
+    }
+
+    /**
+     * Print p50/p95/p99/max and SOAP calls of every phase
+     */
+    public void
+    printSummary(PrintStream out)
+    {
+        out.println("\n-------------------------------------------------------------------");
+        out.println("FT Operations latencies");
+        out.println("-------------------------------------------------------------------");
+        out.println(String.format("%-32s %6s %10s %10s %10s %10s %8s", "Phase", "Count", "p50 ms", "p95 ms",
+            "p99 ms", "max ms", "SOAP"));
+        for (Map.Entry<String, LatencyHistogram> phaseEntry : sortedLatencies().entrySet()) {
+            LatencyHistogram histogram = phaseEntry.getValue();
+            AtomicLong soapCalls = phaseSoapCalls.get(phaseEntry.getKey());
+            out.println(String.format("%-32s %6d %10d %10d %10d %10d %8d", phaseEntry.getKey(),
+                histogram.getCount(), histogram.getPercentileMillis(0.50), histogram.getPercentileMillis(0.95),
+                histogram.getPercentileMillis(0.99), histogram.getMaxMillis(), soapCalls != null ? soapCalls.get() : 0));
+        }
+        // Phases that made SOAP calls but recorded no latency, e.g. a task whose completion could not be read
+        for (Map.Entry<String, AtomicLong> callsEntry : sortedSoapCalls().entrySet()) {
+            if (!callsEntry.getKey().equals(BACKGROUND_PHASE) && !phaseLatencies.containsKey(callsEntry.getKey())) {
+                out.println(String.format("%-32s %6d %10s %10s %10s %10s %8d", callsEntry.getKey(), 0, "-",
+                    "-", "-", "-", callsEntry.getValue().get()));
+            }
+        }
+        AtomicLong backgroundCalls = phaseSoapCalls.get(BACKGROUND_PHASE);
+        out.println(
+            "SOAP calls outside of workflow phases: " + (backgroundCalls != null ? backgroundCalls.get() : 0));
+        out.println(String.format("SOAP bytes sent: %d KB, received: %d KB (%d KB uncompressed)",
+            soapBytesSent.get() / 1024, soapBytesReceived.get() / 1024, soapBytesUncompressed.get() / 1024));
+        out.println("-------------------------------------------------------------------");
+    }
+
+    /**
+     * Write <prefix>.json and <prefix>.prom
+     */
+    public void
+    writeFiles(String pathPrefix) throws IOException
+    {
+        writeFile(pathPrefix + ".json", toJson());
+        writeFile(pathPrefix + ".prom", toPrometheus());
+        System.out.println("Metrics written to " + pathPrefix + ".json and " + pathPrefix + ".prom");
+    }
+
+    /**
+     * Serve /metrics (Prometheus) and /metrics.json on the loopback interface
+     */
+    public synchronized void
+    startHttpEndpoint(int port) throws IOException
+    {
+        if (httpServer != null) {
+            return;
+        }
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                boolean json = exchange.getRequestURI().getPath().endsWith(".json");
+                byte[] body = (json ? toJson() : toPrometheus()).getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type",
+                    json ? "application/json" : "text/plain; version=0.0.4");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+        });
+        httpServer.setExecutor(Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "ft-metrics-http");
+                t.setDaemon(true);
+                return t;
+            }
+        }));
+        httpServer.start();
+        System.out.println("Serving metrics on http://127.0.0.1:" + port + "/metrics");
+    }
+
+    public synchronized void
+    stopHttpEndpoint()
+    {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpServer = null;
+        }
+    }
+
+    /**
+     * Count a SOAP call, for the phase of the calling thread
+     */
+    void
+    countSoapCall()
+    {
+        String phase = currentPhase.get();
+        soapCallsOf(phase != null ? phase : BACKGROUND_PHASE).incrementAndGet();
+    }
+
+    private LatencyHistogram
+    histogramOf(String phase)
+    {
+        LatencyHistogram histogram = phaseLatencies.get(phase);
+        if (histogram == null) {
+            phaseLatencies.putIfAbsent(phase, new LatencyHistogram());
+            histogram = phaseLatencies.get(phase);
+        }
+        return histogram;
+    }
+
+    private AtomicLong
+    soapCallsOf(String phase)
+    {
+        AtomicLong soapCalls = phaseSoapCalls.get(phase);
+        if (soapCalls == null) {
+            phaseSoapCalls.putIfAbsent(phase, new AtomicLong());
+            soapCalls = phaseSoapCalls.get(phase);
+        }
+        return soapCalls;
+    }
+
+    private Map<String, LatencyHistogram>
+    sortedLatencies()
+    {
+        return new TreeMap<String, LatencyHistogram>(phaseLatencies);
+    }
+
+    private Map<String, AtomicLong>
+    sortedSoapCalls()
+    {
+        return new TreeMap<String, AtomicLong>(phaseSoapCalls);
+    }
+
+    private static void
+    writeFile(String path, String content) throws IOException
+    {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -40,27 +40,35 @@
 
 package faulttolerance;
 
+import java.io.PrintStream;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
-import com.vmware.vim25.ClusterConfigInfo;
-import com.vmware.vim25.ClusterDasConfigInfo;
-import com.vmware.vim25.HostRuntimeInfo;
-import com.vmware.vim25.HostSystemConnectionState;
-import com.vmware.vim25.TaskInfoState;
-import com.vmware.vim25.VirtualMachineFaultToleranceState;
 import com.vmware.vim25.VirtualMachinePowerState;
-import com.vmware.vim25.mo.ClusterComputeResource;
 import com.vmware.vim25.mo.HostSystem;
-import com.vmware.vim25.mo.InventoryNavigator;
-import com.vmware.vim25.mo.ManagedEntity;
 import com.vmware.vim25.mo.ServiceInstance;
-import com.vmware.vim25.mo.Task;
 import com.vmware.vim25.mo.VirtualMachine;
 
+import faulttolerance.CandidateVmFinder.Candidate;
+import faulttolerance.InventorySnapshot.ClusterInfo;
+import faulttolerance.InventorySnapshot.HostInfo;
+import faulttolerance.FTBatchScheduler.VmOutcome;
+import faulttolerance.FTWorkflow.Stage;
+import faulttolerance.VmIndex.VmEntry;
+
 public class FTOps
 {
     // VC inventory related objects
@@ -70,7 +78,8 @@ public class FTOps
     public static final String HOST_MOR_TYPE = "HostSystem";
     public static final String VM_MOR_TYPE = "VirtualMachine";
 
-    private final int TASK_TIMEOUT = 240; //seconds
+    private final int DEFAULT_MAX_CONCURRENT = 8;
+    private final int DEFAULT_MAX_PER_HOST = 2;
 
     private String vsphereIp;
     private String userName;
@@ -80,7 +89,54 @@ public class FTOps
     private String clusterName;
     private String primaryVmName;
     private HostSystem primaryHostSys;
+    private String vmNames;
+    private String vmPattern;
+    private boolean allVms;
+    private int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+    private int maxPerHost = DEFAULT_MAX_PER_HOST;
+    private EnumSet<Stage> stages = EnumSet.allOf(Stage.class);
+    private String stageTimeouts;
+    private String planFile;
+    private int failoverCycles = 1;
+    private int workflowDeadlineSecs;
+    private int propertyTtlMillis = PropertyReader.DEFAULT_TTL_MILLIS;
+    private String metricsOut;
+    private int metricsPort;
+    private String simulateSpec;
+    private VimSimulator simulator;
+    private String sessionCacheFile;
+    private SessionCache sessionCache;
+    private int daemonPort;
+    private String daemonSecretFile = FTDaemon.DEFAULT_SECRET_FILE;
+    private int connectTimeoutSecs = SoapTransport.DEFAULT_CONNECT_TIMEOUT_SECS;
+    private int readTimeoutSecs = SoapTransport.DEFAULT_READ_TIMEOUT_SECS;
+    private boolean gzip = true;
+    private boolean preflight = true;
+    private String journalFile;
+    private FTRecovery.Mode recoveryMode = FTRecovery.Mode.ROLLBACK;
+    private WorkflowJournal journal;
+    private String traceFile;
+    private FTEventTrace trace;
+    // Seconds to monitor FT protection for, 0 until interrupted, -1 to run FT Operations instead
+    private int monitorSecs = -1;
+    private int monitorReportSecs = FTProtectionMonitor.DEFAULT_REPORT_INTERVAL_SECS;
+    // Seconds to run the FT load for, 0 to run FT Operations instead
+    private int loadSecs;
+    private double loadRate;
+    private int loadReportSecs = FTLoadGenerator.DEFAULT_REPORT_INTERVAL_SECS;
+    // Host to move the FT Secondaries off, null to run FT Operations instead
+    private String evacuateHost;
+    private boolean sharedSession;
+    private FTMetrics metrics = new FTMetrics();
+    private PrintStream out = System.out;
+    private PrintStream err = System.err;
     private VirtualMachine ftVmObj;
+    private InventorySnapshot inventory;
+    private VmIndex vmIndex;
+    private TaskTracker taskTracker;
+    private FTStateWatcher ftStateWatcher;
+    private FTWorkflowEngine workflowEngine;
+    private SecondaryHostPlacer placer;
 
     /**
      * Constructor
@@ -90,6 +146,22 @@ public class FTOps
         makeProperties(cmdProps);
     }
 
+    /**
+     * Constructor for a daemon request - runs on the session (and metrics) of the daemon's FTOps, and prints to the
+     * request's own output instead of System.out/System.err
+     */
+    FTOps(String[] cmdProps, FTOps sessionOwner, PrintStream out, PrintStream err)
+    {
+        this.out = out;
+        this.err = err;
+        makeProperties(cmdProps);
+        vsphereIp = sessionOwner.vsphereIp;
+        url = sessionOwner.url;
+        si = sessionOwner.si;
+        metrics = sessionOwner.metrics;
+        sharedSession = true;
+    }
+
     /**
      * Default constructor
      */
@@ -105,28 +177,118 @@ public class FTOps
     makeProperties(String[] cmdProps)
     {
         // get the property value and print it out
-        System.out.println("Reading vSphere IP and Credentials information from command line arguments");
-        System.out.println("-------------------------------------------------------------------");
+        out.println("Reading vSphere IP and Credentials information from command line arguments");
+        out.println("-------------------------------------------------------------------");
 
         for (int i = 0; i < cmdProps.length; i++) {
             if (cmdProps[i].equals("--vsphereip")) {
                 vsphereIp = cmdProps[i + 1];
-                System.out.println("vSphere IP:" + vsphereIp);
+                out.println("vSphere IP:" + vsphereIp);
             } else if (cmdProps[i].equals("--username")) {
                 userName = cmdProps[i + 1];
-                System.out.println("Username:" + userName);
+                out.println("Username:" + userName);
             } else if (cmdProps[i].equals("--password")) {
                 password = cmdProps[i + 1];
-                System.out.println("password: ******");
+                out.println("password: ******");
             } else if (cmdProps[i].equals("--clusterName")) {
                 clusterName = cmdProps[i + 1];
-                System.out.println("Cluster Name:" + clusterName);
+                out.println("Cluster Name:" + clusterName);
             }  else if (cmdProps[i].equals("--vmName")) {
                 primaryVmName = cmdProps[i + 1];
-                System.out.println("VM Name:" + primaryVmName);
+                out.println("VM Name:" + primaryVmName);
+            } else if (cmdProps[i].equals("--vmNames")) {
+                vmNames = cmdProps[i + 1];
+                out.println("VM Names:" + vmNames);
+            } else if (cmdProps[i].equals("--vmPattern")) {
+                vmPattern = cmdProps[i + 1];
+                out.println("VM Name Pattern:" + vmPattern);
+            } else if (cmdProps[i].equals("--allVms")) {
+                allVms = true;
+                out.println("All VMs: true");
+            } else if (cmdProps[i].equals("--maxConcurrent")) {
+                maxConcurrent = Integer.parseInt(cmdProps[i + 1]);
+                out.println("Max concurrent VMs:" + maxConcurrent);
+            } else if (cmdProps[i].equals("--maxPerHost")) {
+                maxPerHost = Integer.parseInt(cmdProps[i + 1]);
+                out.println("Max concurrent VMs per host:" + maxPerHost);
+            } else if (cmdProps[i].equals("--stages")) {
+                stages = Stage.parseList(cmdProps[i + 1]);
+                out.println("Stages:" + stages);
+            } else if (cmdProps[i].equals("--plan")) {
+                planFile = cmdProps[i + 1];
+                out.println("Plan:" + planFile);
+            } else if (cmdProps[i].equals("--stageTimeouts")) {
+                stageTimeouts = cmdProps[i + 1];
+                out.println("Stage timeouts:" + stageTimeouts);
+            } else if (cmdProps[i].equals("--failoverCycles")) {
+                failoverCycles = Integer.parseInt(cmdProps[i + 1]);
+                out.println("Test Failover cycles:" + failoverCycles);
+            } else if (cmdProps[i].equals("--workflowDeadline")) {
+                workflowDeadlineSecs = Integer.parseInt(cmdProps[i + 1]);
+                out.println("Workflow deadline per VM:" + workflowDeadlineSecs + " secs");
+            } else if (cmdProps[i].equals("--propertyTtl")) {
+                propertyTtlMillis = Integer.parseInt(cmdProps[i + 1]);
+                out.println("VM property cache TTL (ms):" + propertyTtlMillis);
+            } else if (cmdProps[i].equals("--metricsOut")) {
+                metricsOut = cmdProps[i + 1];
+                out.println("Metrics output:" + metricsOut + ".json/.prom");
+            } else if (cmdProps[i].equals("--metricsPort")) {
+                metricsPort = Integer.parseInt(cmdProps[i + 1]);
+                out.println("Metrics port:" + metricsPort);
+            } else if (cmdProps[i].equals("--simulate")) {
+                simulateSpec = cmdProps[i + 1];
+                out.println("Simulated vSphere:" + simulateSpec);
+            } else if (cmdProps[i].equals("--sessionCache")) {
+                sessionCacheFile = cmdProps[i + 1];
+                out.println("Session cache:" + sessionCacheFile);
+            } else if (cmdProps[i].equals("--daemon")) {
+                daemonPort = Integer.parseInt(cmdProps[i + 1]);
+                out.println("Daemon port:" + daemonPort);
+            } else if (cmdProps[i].equals("--daemonSecret")) {
+                daemonSecretFile = cmdProps[i + 1];
+                out.println("Daemon secret file:" + daemonSecretFile);
+            } else if (cmdProps[i].equals("--connectTimeout")) {
+                connectTimeoutSecs = Integer.parseInt(cmdProps[i + 1]);
+                out.println("Connect timeout (secs):" + connectTimeoutSecs);
+            } else if (cmdProps[i].equals("--readTimeout")) {
+                readTimeoutSecs = Integer.parseInt(cmdProps[i + 1]);
+                out.println("Read timeout (secs):" + readTimeoutSecs);
+            } else if (cmdProps[i].equals("--noGzip")) {
+                gzip = false;
+                out.println("Compressed responses: false");
+            } else if (cmdProps[i].equals("--noPreflight")) {
+                preflight = false;
+                out.println("FT pre-flight: false");
+            } else if (cmdProps[i].equals("--journal")) {
+                journalFile = cmdProps[i + 1];
+                out.println("Workflow journal:" + journalFile);
+            } else if (cmdProps[i].equals("--trace")) {
+                traceFile = cmdProps[i + 1];
+                out.println("Event trace:" + traceFile);
+            } else if (cmdProps[i].equals("--recover")) {
+                recoveryMode = FTRecovery.Mode.fromCliName(cmdProps[i + 1]);
+                out.println("Recovery of unfinished VMs:" + recoveryMode.getCliName());
+            } else if (cmdProps[i].equals("--monitor")) {
+                monitorSecs = Math.max(Integer.parseInt(cmdProps[i + 1]), 0);
+                out.println("Monitor FT protection (secs):" + (monitorSecs > 0 ? monitorSecs : "until stopped"));
+            } else if (cmdProps[i].equals("--load")) {
+                loadSecs = Math.max(Integer.parseInt(cmdProps[i + 1]), 0);
+                out.println("FT load (secs):" + loadSecs);
+            } else if (cmdProps[i].equals("--loadRate")) {
+                loadRate = Double.parseDouble(cmdProps[i + 1]);
+                out.println("FT load target rate (operations/min):" + loadRate);
+            } else if (cmdProps[i].equals("--loadReport")) {
+                loadReportSecs = Math.max(Integer.parseInt(cmdProps[i + 1]), 1);
+                out.println("FT load report interval (secs):" + loadReportSecs);
+            } else if (cmdProps[i].equals("--evacuateHost")) {
+                evacuateHost = cmdProps[i + 1];
+                out.println("Evacuate FT Secondaries off host:" + evacuateHost);
+            } else if (cmdProps[i].equals("--monitorReport")) {
+                monitorReportSecs = Math.max(Integer.parseInt(cmdProps[i + 1]), 1);
+                out.println("FT protection report interval (secs):" + monitorReportSecs);
             }
         }
-        System.out.println("-------------------------------------------------------------------\n");
+        out.println("-------------------------------------------------------------------\n");
     }
 
     /**
@@ -136,28 +298,38 @@ public class FTOps
     validateProperties()
     {
         boolean val = false;
+        if (simulateSpec != null && !startSimulator()) {
+            return false;
+        }
+        if (sessionCacheFile != null) {
+            sessionCache = new SessionCache(sessionCacheFile);
+        }
+        // before the first connection, i.e. login
+        SoapTransport.sizeConnectionPool(maxConcurrent);
         if (vsphereIp != null) {
-            url = "https://" + vsphereIp + "/sdk";
+            // A full URL (e.g. of a standalone simulator) is taken as is
+            url = vsphereIp.contains("://") ? vsphereIp : "https://" + vsphereIp + "/sdk";
 
             try {
-                System.out.println("Logging into vSphere : " + vsphereIp + ", with provided credentials");
+                out.println("Logging into vSphere : " + vsphereIp + ", with provided credentials");
                 si = loginTovSphere(url);
 
                 if (si != null) {
-                    System.out.println("Succesfully logged into vSphere: " + vsphereIp);
+                    out.println("Succesfully logged into vSphere: " + vsphereIp);
+                    new SoapTransport(connectTimeoutSecs, readTimeoutSecs, gzip).install(si, metrics);
                     val = true;
                 } else {
-                    System.err.println(
+                    err.println(
                         "Service Instance object for vSphere:" + vsphereIp + " is null, probably we failed to login");
                     printFailedLoginReasons();
                 }
             } catch (Exception e) {
-                System.err.println(
+                err.println(
                     "Caught an exception, while logging into vSphere :" + vsphereIp + " with provided credentials");
                 printFailedLoginReasons();
             }
         } else {
-            System.err.println("vSphere IP is null. See below the usage of script");
+            err.println("vSphere IP is null. See below the usage of script");
             RunApp.usage();
         }
 
@@ -165,27 +337,131 @@ public class FTOps
     }
 
     /**
-     * Login method to VC/ESXi
+     * Start the in-process vSphere simulator, and log into it instead of a vCenter Server
+     */
+    private boolean
+    startSimulator()
+    {
+        try {
+            simulator = VimSimulator.fromSpec(simulateSpec);
+            vsphereIp = simulator.start(0);
+            if (userName == null) {
+                userName = "simulator";
+                password = "simulator";
+            }
+            out.println("Started vSphere simulator on " + vsphereIp);
+            return true;
+        } catch (Exception e) {
+            err.println("Caught an exception while starting the vSphere simulator: " + simulateSpec);
+            e.printStackTrace(err);
+            return false;
+        }
+    }
+
+    /**
+     * Login method to VC/ESXi - reuses the cached session if there is a valid one
      */
     private ServiceInstance
     loginTovSphere(String url)
     {
+        if (sessionCache != null) {
+            ServiceInstance cachedSi = sessionCache.reuse(url, userName, password);
+            if (cachedSi != null) {
+                si = cachedSi;
+                return si;
+            }
+        }
         try {
             si = new ServiceInstance(new URL(url), userName, password, true);
+            if (sessionCache != null) {
+                sessionCache.save(si, url, userName, password);
+            }
         } catch (Exception e) {
-            System.out.println("Caught exception while logging into vSphere server");
-            e.printStackTrace();
+            out.println("Caught exception while logging into vSphere server");
+            e.printStackTrace(err);
         }
         return si;
     }
 
+    /**
+     * Check that the session is still authenticated, log in again if it has expired (daemon mode)
+     */
+    boolean
+    ensureSession()
+    {
+        try {
+            if (si.getSessionManager().getCurrentSession() != null) {
+                return true;
+            }
+        } catch (Exception e) {
+            // Treated as expired, a new login reports the actual problem
+        }
+        out.println("vSphere session has expired, logging into vSphere : " + vsphereIp + " again");
+        ServiceInstance expiredSi = si;
+        si = null;
+        if (loginTovSphere(url) != null) {
+            try {
+                new SoapTransport(connectTimeoutSecs, readTimeoutSecs, gzip).install(si, metrics);
+                return true;
+            } catch (Exception e) {
+                err.println("Caught an exception while setting up the transport of the new vSphere session");
+            }
+        }
+        si = expiredSi;
+        printFailedLoginReasons();
+        return false;
+    }
+
+    /**
+     * Log out, unless the session is cached for the next run
+     */
+    private void
+    logout()
+    {
+        if (si == null || sessionCache != null) {
+            return;
+        }
+        try {
+            si.getServerConnection().logout();
+        } catch (Exception e) {
+            err.println("Caught an exception while logging out of vSphere: " + vsphereIp);
+        }
+    }
+
+    /**
+     * Latency and SOAP call metrics of this session
+     */
+    FTMetrics
+    getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Daemon port from --daemon, 0 if not running as a daemon
+     */
+    int
+    getDaemonPort()
+    {
+        return daemonPort;
+    }
+
+    /**
+     * Daemon secret file from --daemonSecret, or the default one
+     */
+    String
+    getDaemonSecretFile()
+    {
+        return daemonSecretFile;
+    }
+
     /**
      * Method prints out possible reasons for failed login
      */
     private void
     printFailedLoginReasons()
     {
-        System.err.println(
+        err.println(
             "Possible reasons:\n1. Provided username/password credentials are incorrect\n"
                 + "2. If username/password or other fields contain special characters, surround them with double "
                 + "quotes and for non-windows environment with single quotes (Refer readme doc for more information)\n"
@@ -193,397 +469,669 @@ public class FTOps
     }
 
     /**
-     * Check and apply Advanced option - "das.heartbeatDsPerHost" on HA Enabled Cluster
+     * Check HA Enabled Cluster and perform FT Operations on the user provided VM(s). Returns true if all of
+     * them succeeded
      */
-    void
+    boolean
     performFTOps()
     {
+        boolean succeeded = false;
+        taskTracker = new TaskTracker(si);
+        ftStateWatcher = new FTStateWatcher(si);
         try {
+            if (metricsPort > 0) {
+                metrics.startHttpEndpoint(metricsPort);
+            }
 
             // check and retrieve HA Enabled Cluster and its hosts
-            Map<ManagedEntity, List<HostSystem>> clusterNHostsMap = retrieveHAClusterNHosts(clusterName);
+            ClusterInfo haCluster = retrieveHAClusterNHosts(clusterName);
 
-            if (clusterNHostsMap != null && clusterNHostsMap.size() > 0) {
-                ManagedEntity haCluster = clusterNHostsMap.keySet().iterator().next();
-                List<HostSystem> clusteredHosts = clusterNHostsMap.get(haCluster);
-
-                if (primaryVmName != null) {
-                    ftVmObj = findVm(clusterNHostsMap, primaryVmName);
-                } else {
-                    // Get a VM from any of the clustered host
-                    for (HostSystem hostSys : clusteredHosts) {
-                        VirtualMachine[] allVms = hostSys.getVms();
-
-                        if (allVms != null && allVms.length > 0) {
-                            primaryHostSys = hostSys;
-                            ftVmObj = allVms[0];
-                            primaryVmName = ftVmObj.getName();
-                            System.out.println("Taking VM: " + primaryVmName + " for FT operations");
-                            break;
-                        }
-                    }
+            if (haCluster != null && monitorSecs >= 0) {
+                succeeded = monitorFTProtection(haCluster);
+            } else if (haCluster != null) {
+                List<HostInfo> clusteredHosts = haCluster.getConnectedHosts();
+                vmIndex = new VmIndex(si, haCluster.getCluster());
+                workflowEngine = new FTWorkflowEngine(si, taskTracker, ftStateWatcher, vmIndex, metrics,
+                    FTWorkflowEngine.DEFAULT_WORKFLOW_THREADS);
+                workflowEngine.setConsole(out, err);
+                applyStageTimeouts();
+                workflowEngine.setFailoverCycles(failoverCycles);
+                workflowEngine.setWorkflowDeadline(workflowDeadlineSecs);
+                workflowEngine.setPropertyTtl(propertyTtlMillis);
+                placer = new SecondaryHostPlacer(si, clusteredHosts, vmIndex,
+                    SecondaryHostPlacer.DEFAULT_STATS_TTL_SECS);
+                if (journalFile != null && (planFile != null || loadSecs > 0 || evacuateHost != null)) {
+                    // The journal records a single run of stages; plan steps, load operations and evacuations are
+                    // not journaled
+                    err.println("Ignoring --journal, it is not supported with --plan, --load or --evacuateHost");
+                } else if (journalFile != null) {
+                    journal = new WorkflowJournal(journalFile);
+                    workflowEngine.setJournal(journal);
                 }
-
-                // Get Secondary host
-                HostSystem secondaryHostSys = null;
-                for (HostSystem hostSys : clusteredHosts) {
-                    if (!hostSys.getName().equals(primaryHostSys.getName())) {
-                        secondaryHostSys = hostSys;
-                    }
+                if (traceFile != null) {
+                    trace = new FTEventTrace(traceFile, FTEventTrace.DEFAULT_CAPACITY);
+                    workflowEngine.setTrace(trace);
+                    ftStateWatcher.setTrace(trace);
                 }
 
-                if (ftVmObj != null) {
-                    boolean ftTurnedOn = false;
-                    System.out.println("\n* * * * Turning on FT on VM: " + primaryVmName + " * * * *");
-                    Task createSecVmTask = ftVmObj.createSecondaryVM_Task(secondaryHostSys);
-
-                    if (monitorTask(createSecVmTask, TASK_TIMEOUT)) {
-                        System.out.println("Successfully Turned on FT");
-                        // Power on the Primary VM
-                        if (monitorTask(ftVmObj.powerOnVM_Task(null), TASK_TIMEOUT)) {
-                            System.out.println("FT Primary VM successfully powered on");
-                            System.out.println("Now Monitor for its secondary VM");
-                            if(waitForFTProtectionState(ftVmObj, TASK_TIMEOUT)) {
-                                System.out.println("FT Pair is successfully powered on");
-                                System.out.println("VM FT State: " + ftVmObj.getRuntime().getFaultToleranceState());
-                                ftTurnedOn = true;
-                            } else {
-                                System.err.println("Failed to Power on Secondary VM");
-                            }
+                if (journal != null && journal.hasUnfinishedVms()) {
+                    // A crashed run left VMs mid-workflow - they are recovered instead of starting a new run
+                    succeeded = recoverUnfinishedVms(clusteredHosts);
+                } else if (evacuateHost != null) {
+                    succeeded = evacuateSecondaries(clusteredHosts);
+                } else if (loadSecs > 0) {
+                    succeeded = runLoad();
+                } else if (planFile != null) {
+                    succeeded = runPlan(clusteredHosts);
+                } else if (isBatchMode()) {
+                    succeeded = performBatchFTOps(clusteredHosts);
+                } else {
+                    if (primaryVmName != null) {
+                        ftVmObj = findVm(primaryVmName);
+                    } else {
+                        // Take the first VM of the Cluster that FT can be turned on for
+                        Candidate candidate = new CandidateVmFinder(si, haCluster, CandidateVmFinder.DEFAULT_PAGE_SIZE,
+                            FTBatchScheduler.DEFAULT_MAX_FT_VCPUS_PER_HOST, out).findFirst();
+                        if (candidate != null) {
+                            primaryHostSys = candidate.getHost().getHostSystem();
+                            ftVmObj = candidate.getVm();
+                            primaryVmName = candidate.getName();
+                            out.println("Taking VM: " + primaryVmName + " for FT operations");
                         } else {
-                            System.err.println("Failed to Power on FT VM");
+                            err.println("Could not find a VM for FT operations in Cluster: " + clusterName);
                         }
-                    } else {
-                        System.out.println("Failed to Turn on FT");
                     }
 
-                    if (ftTurnedOn) {
-                        System.out.println("\n* * * * Disable Secondary VM of FT VM " + primaryVmName + " * * * *");
-                        // Get Secondary VM reference
-                        VirtualMachine secondaryVMObj = null;
-                        VirtualMachine[] secHostVms = secondaryHostSys.getVms();
-                        for (VirtualMachine tempVm : secHostVms) {
-                            if (tempVm.getName().equals(primaryVmName)) {
-                                secondaryVMObj = tempVm;
-                            }
-                        }
+                    if (ftVmObj != null && !passesPreflight(ftVmObj)) {
+                        ftVmObj = null;
+                        primaryHostSys = null;
+                    }
 
-                        if (secondaryVMObj != null) {
-                            Task disableSecTask = ftVmObj.disableSecondaryVM_Task(secondaryVMObj);
-                            if (monitorTask(disableSecTask, 120)) {
-                                System.out.println("Successfully disabled Secondary VM");
-                                System.out.println("VM FT State: " + ftVmObj.getRuntime().getFaultToleranceState());
-
-                                System.out.println("\n* * * * Enable Secondary VM of FT VM " + primaryVmName + " * * * *");
-                                Task enableSecTask = ftVmObj.enableSecondaryVM_Task(secondaryVMObj, secondaryHostSys);
-                                if (monitorTask(enableSecTask, TASK_TIMEOUT)) {
-                                    if(waitForFTProtectionState(ftVmObj, TASK_TIMEOUT)) {
-                                        System.out.println("Successfully enabled Secondary VM");
-                                        System.out.println("VM FT State: " + ftVmObj.getRuntime().getFaultToleranceState());
-                                        ftTurnedOn = true;
-                                    } else {
-                                        System.err.println("Failed to Enable Secondary VM");
-                                    }
-                                }
-                            }
-
-                            System.out.println("\n* * * * Promote Secondary VM to Primary VM  (Test Failover) * * * *");
-                            Task makePrimary = ftVmObj.makePrimaryVM_Task(secondaryVMObj);
-                            if (monitorTask(makePrimary, TASK_TIMEOUT)) {
-                                // Check if failover started
-                                if (waitForFailover(ftVmObj, TASK_TIMEOUT)) {
-                                    System.out.println("Now, wait for secondary to come up");
-                                    if (waitForFTProtectionState(ftVmObj, TASK_TIMEOUT)) {
-                                        System.out.println("Successfully Promoted Secondary to Primary VM");
-                                        System.out
-                                            .println("VM FT State: " + ftVmObj.getRuntime().getFaultToleranceState());
-                                    } else {
-                                        System.err.println("Failed to Promote Secondary VM");
-                                    }
-                                } else {
-                                    System.err.println(
-                                        "FT VM state did not enter into NeedSecondary/Starting, after 'Test Failover'");
-                                }
-                            }
+                    // Get Secondary host - least loaded host that can run the Secondary
+                    HostSystem secondaryHostSys = null;
+                    if (primaryHostSys != null) {
+                        HostInfo secondaryHostInfo = placer.placeSecondary(primaryHostSys.getMOR());
+                        if (secondaryHostInfo != null) {
+                            out.println("Placing Secondary VM on host: " + secondaryHostInfo.getName());
+                            secondaryHostSys = secondaryHostInfo.getHostSystem();
                         } else {
-                            System.out.println("Could not obtain Secondary VM's reference object");
+                            err.println("Could not find a host with FT support and FT logging NIC, "
+                                + "for the Secondary VM");
                         }
                     }
 
-                    System.out.println("\n* * * * Turn off FT on VM  * * * *");
-                    VirtualMachineFaultToleranceState vmFtState = ftVmObj.getRuntime().getFaultToleranceState();
-                    if (vmFtState.equals(VirtualMachineFaultToleranceState.enabled)
-                        || vmFtState.equals(VirtualMachineFaultToleranceState.running)) {
-                        Task turnOffFtTask = ftVmObj.turnOffFaultToleranceForVM_Task();
-                        if (monitorTask(turnOffFtTask, TASK_TIMEOUT)) {
-                            System.out.println("Successfully Turned off FT on VM");
-                        } else {
-                            System.err.println("Failed to turn off FT");
+                    if (ftVmObj != null) {
+                        VmEntry vmEntry = vmIndex.getEntry(ftVmObj.getMOR());
+                        if (vmEntry != null) {
+                            journalRun(Collections.singletonList(vmEntry));
                         }
+                        succeeded = workflowEngine.run(ftVmObj, primaryVmName, secondaryHostSys, stages).get();
                     }
                 }
             }
 
         } catch (Exception e) {
-            System.err.println("Caught an exception while performing FT Operations on " + clusterName);
-            e.printStackTrace();
-            restoreInventoryState(ftVmObj);
+            err.println("Caught an exception while performing FT Operations on " + clusterName);
+            e.printStackTrace(err);
         }
 
-        restoreInventoryState(ftVmObj);
+        if (workflowEngine != null) {
+            out.println("VM property reads: " + workflowEngine.properties().getStats());
+            workflowEngine.shutdown();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        ftStateWatcher.stop();
+        if (trace != null) {
+            trace.close();
+        }
+        taskTracker.stop();
+        if (vmIndex != null) {
+            vmIndex.stop();
+        }
+        if (!sharedSession) {
+            closeSession();
+        }
+        return succeeded;
     }
 
     /**
-     * Restore VM's State
+     * End of the session - export metrics, log out and stop the simulator if there is one
+     */
+    void
+    closeSession()
+    {
+        exportMetrics();
+        logout();
+        if (simulator != null) {
+            simulator.printStats();
+            simulator.stop();
+        }
+    }
+
+    /**
+     * Print the latency summary, and write the metrics files if requested
      */
     private void
-    restoreInventoryState(VirtualMachine vmObj)
+    exportMetrics()
     {
-        try {
-            if (vmObj != null) {
-                System.out.println("\n* * * * Restore VM State  * * * *");
-                Thread.sleep(1000 * 5);
-
-                // Check power state and Power off VM
-                if (vmObj.getRuntime().getPowerState().equals(VirtualMachinePowerState.poweredOn)) {
-                    if (monitorTask(vmObj.powerOffVM_Task(), TASK_TIMEOUT)) {
-                        System.out.println("Successfully powered off the VM");
-                        Thread.sleep(1000 * 5);
-                    }
-                }
-                // Turn off FT
-                VirtualMachineFaultToleranceState vmFtState = vmObj.getRuntime().getFaultToleranceState();
-                if (vmFtState.equals(VirtualMachineFaultToleranceState.enabled)
-                    || vmFtState.equals(VirtualMachineFaultToleranceState.running)) {
-                    if (monitorTask(vmObj.turnOffFaultToleranceForVM_Task(), TASK_TIMEOUT)) {
-                        System.out.println("Successfully Turned off FT on VM");
-                    }
-                }
+        metrics.printSummary(out);
+        if (metricsOut != null) {
+            try {
+                metrics.writeFiles(metricsOut);
+            } catch (Exception e) {
+                err.println("Caught an exception while writing metrics to " + metricsOut);
             }
-        } catch (Exception e) {
-            System.err.println("Caught exception while restoring VM state. Pls check and restore the state");
         }
+        metrics.stopHttpEndpoint();
     }
 
     /**
-     * Monitor the task state
+     * Monitor mode - watch the FT protection of the Cluster's Primary VMs, and print a status every report
+     * interval. The final report is also printed if the process is interrupted
      */
     private boolean
-    monitorTask(Task taskRef, int timeoutSecs)
+    monitorFTProtection(ClusterInfo haCluster) throws Exception
     {
-        boolean taskSucceeded = false;
-        try {
-            // Monitor the task status
-            int loopDelay = 5; //seconds
-            int count = timeoutSecs / loopDelay;
-            if (taskRef != null) {
-                while (count > 0) {
-                    TaskInfoState taskState = taskRef.getTaskInfo().getState();
-                    if (taskState.equals(TaskInfoState.queued) || taskState.equals(TaskInfoState.running)) {
-                        System.out
-                            .println("Task is still running, wait for the task to complete");
-                        Thread.sleep(1000 * 2);
-                        --count;
-                    } else if (taskState.equals(TaskInfoState.success)) {
-                        System.out.println("Task succeeded");
-                        taskSucceeded = true;
-                        break;
-                    } else if (taskState.equals(TaskInfoState.error)) {
-                        System.out.println("Task Failed");
-                        break;
-                    }
-                }
-            } else {
-                System.err.println("Task reference is null");
+        final FTProtectionMonitor monitor = new FTProtectionMonitor(si, haCluster.getCluster(), metrics);
+        Thread reportHook = new Thread(() -> monitor.printReport(), "ft-protection-report");
+        Runtime.getRuntime().addShutdownHook(reportHook);
+        monitor.start();
+        out.println("Monitoring FT protection of Cluster: " + clusterName);
+
+        long endMillis = monitorSecs > 0 ? System.currentTimeMillis() + monitorSecs * 1000L : Long.MAX_VALUE;
+        long nowMillis;
+        while (monitor.isRunning() && (nowMillis = System.currentTimeMillis()) < endMillis) {
+            Thread.sleep(Math.min(monitorReportSecs * 1000L, endMillis - nowMillis));
+            if (System.currentTimeMillis() < endMillis) {
+                // the final report includes the status
+                monitor.printStatus();
             }
+        }
 
-        } catch (Exception e) {
-            System.err.println("Caught an exception while monitoring the task");
+        boolean succeeded = monitor.isRunning();
+        monitor.stop();
+        Runtime.getRuntime().removeShutdownHook(reportHook);
+        monitor.printReport();
+        return succeeded;
+    }
+
+    /**
+     * Per stage timeouts from --stageTimeouts, e.g. "powerOn=600,makePrimary=900"
+     */
+    private void
+    applyStageTimeouts()
+    {
+        if (stageTimeouts == null) {
+            return;
+        }
+        for (String stageTimeout : stageTimeouts.split(",")) {
+            String[] nameNSecs = stageTimeout.split("=");
+            if (nameNSecs.length != 2) {
+                err.println("Ignoring invalid stage timeout: " + stageTimeout);
+                continue;
+            }
+            workflowEngine.setStageTimeout(Stage.fromCliName(nameNSecs[0]), Integer.parseInt(nameNSecs[1].trim()));
+        }
+    }
+
+    /**
+     * Evacuation mode - move every FT Secondary off the --evacuateHost host, at most --maxConcurrent at a time and
+     * --maxPerHost to the same destination. Returns true if all FT pairs are protected again and the host has no
+     * Secondary left
+     */
+    private boolean
+    evacuateSecondaries(List<HostInfo> clusteredHosts) throws Exception
+    {
+        HostInfo evacuatedHost = null;
+        for (HostInfo hostInfo : clusteredHosts) {
+            if (hostInfo.getName().equals(evacuateHost)) {
+                evacuatedHost = hostInfo;
+            }
+        }
+        if (evacuatedHost == null) {
+            err.println("Could not find connected host: " + evacuateHost + " in Cluster: " + clusterName);
+            return false;
+        }
+
+        FTHostEvacuator evacuator = new FTHostEvacuator(workflowEngine, placer, evacuatedHost, clusteredHosts,
+            maxConcurrent, maxPerHost);
+        List<VmOutcome> outcomes = evacuator.evacuate();
+        FTBatchScheduler.printOutcomes(outcomes, out);
+        boolean succeeded = evacuator.isHostClear();
+        for (VmOutcome outcome : outcomes) {
+            succeeded &= outcome.isSucceeded();
+        }
+        return succeeded;
+    }
+
+    /**
+     * Load mode - cycle FT operations over the VMs selected as for batch mode, for --load seconds. Returns true if
+     * the VMs were all restored at the end (failed operations are part of the measurement)
+     */
+    private boolean
+    runLoad() throws Exception
+    {
+        if (!isBatchMode()) {
+            err.println("FT load needs a pool of VMs - use --vmNames, --vmPattern or --allVms");
+            return false;
+        }
+        List<VmEntry> loadVms = selectBatchVms();
+        if (preflight && !loadVms.isEmpty()) {
+            FTPreflight.Result preflightResult = newPreflight().check(loadVms);
+            for (VmOutcome rejected : preflightResult.getRejectedVms()) {
+                err.println("Leaving VM: " + rejected.getVmName() + " out of the load, "
+                    + rejected.getMessage());
+            }
+            loadVms = preflightResult.getPassedVms();
         }
+        if (loadVms.isEmpty()) {
+            err.println("Could not find any VM for the FT load in Cluster: " + clusterName);
+            return false;
+        }
+        return new FTLoadGenerator(workflowEngine, placer, maxConcurrent, loadRate).run(loadVms, loadSecs,
+            loadReportSecs);
+    }
+
+    /**
+     * Plan mode - run the steps of the --plan file, each once the steps it comes after have succeeded. Steps that
+     * do not depend on each other run at the same time, sharing the concurrency and host limits
+     */
+    private boolean
+    runPlan(List<HostInfo> clusteredHosts) throws Exception
+    {
+        FTPlan plan = FTPlan.load(planFile);
+        out.println("Running plan " + planFile + " of " + plan.getSteps().size() + " step(s), at most "
+            + maxConcurrent + " VM(s) at a time and " + maxPerHost + " per host");
+
+        final FTBatchScheduler scheduler = newScheduler(clusteredHosts);
+        final List<VmOutcome> outcomes = Collections.synchronizedList(new ArrayList<VmOutcome>());
+        final Set<String> busyVms = new HashSet<String>();
+        final AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService stepExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "ft-plan-step-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
 
-        return taskSucceeded;
+        // Steps are ordered after their dependencies, so every dependency's run already exists
+        Map<String, CompletableFuture<Boolean>> stepRuns = new HashMap<String, CompletableFuture<Boolean>>();
+        for (final FTPlan.Step step : plan.getSteps()) {
+            final List<CompletableFuture<Boolean>> dependencies = new ArrayList<CompletableFuture<Boolean>>();
+            for (String dependency : step.getAfter()) {
+                dependencies.add(stepRuns.get(dependency));
+            }
+            CompletableFuture<Boolean> stepRun = CompletableFuture
+                .allOf(dependencies.toArray(new CompletableFuture<?>[dependencies.size()]))
+                .thenApplyAsync(ignored -> {
+                    for (CompletableFuture<Boolean> dependency : dependencies) {
+                        if (!dependency.join()) {
+                            err.println("Skipping plan step " + step.getName()
+                                + ", as a step it comes after did not succeed");
+                            outcomes.add(new VmOutcome(step.getName() + "/*", false, null,
+                                "Skipped, as a step it comes after did not succeed", 0));
+                            return false;
+                        }
+                    }
+                    return runPlanStep(step, scheduler, busyVms, outcomes);
+                }, stepExecutor);
+            stepRuns.put(step.getName(), stepRun);
+        }
+
+        CompletableFuture.allOf(stepRuns.values().toArray(new CompletableFuture<?>[stepRuns.size()])).join();
+        stepExecutor.shutdown();
+        FTBatchScheduler.printOutcomes(outcomes, out);
+        return allSucceeded(outcomes);
     }
 
     /**
-     * Monitor the task state
+     * Run one plan step on its VMs, selected as the step starts (so that earlier steps' changes are seen).
+     * Returns true if the stages succeeded on all of them
      */
     private boolean
-    waitForFTProtectionState(VirtualMachine vmObj, int timeoutSecs)
+    runPlanStep(final FTPlan.Step step, FTBatchScheduler scheduler, Set<String> busyVms, List<VmOutcome> outcomes)
     {
-        boolean ftProtected = false;
+        List<VmOutcome> stepOutcomes = new ArrayList<VmOutcome>();
+        List<VmEntry> stepVms = new ArrayList<VmEntry>();
         try {
-            // Monitor the task status
-            int loopDelay = 5; //seconds
-            int count = timeoutSecs / loopDelay;
-            if (vmObj != null) {
-                while (count > 0) {
-                    VirtualMachineFaultToleranceState vmFTState = vmObj.getRuntime().getFaultToleranceState();
-                    if (vmFTState.equals(VirtualMachineFaultToleranceState.starting)
-                        || vmFTState.equals(VirtualMachineFaultToleranceState.needSecondary)) {
-                        System.out.println("Secondary VM is still starting up, wait for the power on to complete");
-                        Thread.sleep(1000 * 2);
-                        --count;
-                    } else if (vmFTState.equals(VirtualMachineFaultToleranceState.running)) {
-                        System.out.println("Secondary VM is running now");
-                        ftProtected = true;
-                        break;
+            for (VmEntry vmEntry : selectPlanVms(step, vmIndex, clusterName, err)) {
+                synchronized (busyVms) {
+                    if (!busyVms.add(vmEntry.getVmMor().getVal())) {
+                        stepOutcomes.add(new VmOutcome(vmEntry.getName(), false, null,
+                            "VM is in another plan step running at the same time", 0));
+                        continue;
                     }
                 }
-            } else {
-                System.err.println("VirtualMachine reference is null");
+                stepVms.add(vmEntry);
             }
+            out.println("Plan step " + step.getName() + ": " + stepVms.size() + " VM(s), stages "
+                + step.getStages() + (step.isRestore() ? "" : ", keeping the VMs' state"));
 
+            List<VmEntry> runVms = stepVms;
+            if (preflight && step.getStages().contains(Stage.TURN_ON_FT)) {
+                FTPreflight.Result preflightResult = newPreflight().check(stepVms);
+                stepOutcomes.addAll(preflightResult.getRejectedVms());
+                runVms = preflightResult.getPassedVms();
+            }
+
+            stepOutcomes.addAll(scheduler.runAll(runVms, new FTBatchScheduler.VmWorkflow() {
+                @Override
+                public boolean turnsOnFT(VmEntry vmEntry)
+                {
+                    return step.getStages().contains(Stage.TURN_ON_FT);
+                }
+
+                @Override
+                public FTWorkflow create(VirtualMachine vmObj, String vmName, HostSystem secondaryHostSys)
+                {
+                    FTWorkflow workflow = workflowEngine.newWorkflow(vmObj, vmName, secondaryHostSys, step.getStages());
+                    return step.isRestore() ? workflow : workflow.withoutRestore();
+                }
+            }));
+            if (stepVms.isEmpty() && stepOutcomes.isEmpty()) {
+                err.println("Plan step " + step.getName() + " selected no VM in Cluster: " + clusterName);
+            }
         } catch (Exception e) {
-            System.err.println("Caught an exception while monitoring the FT Secondary VM state");
+            err.println("Caught an exception while running plan step " + step.getName() + ": " + e);
+            stepOutcomes.add(new VmOutcome(step.getName() + "/*", false, null, e.toString(), 0));
+        } finally {
+            synchronized (busyVms) {
+                for (VmEntry vmEntry : stepVms) {
+                    busyVms.remove(vmEntry.getVmMor().getVal());
+                }
+            }
         }
 
-        return ftProtected;
+        for (VmOutcome outcome : stepOutcomes) {
+            outcomes.add(new VmOutcome(step.getName() + "/" + outcome.getVmName(), outcome.isSucceeded(),
+                outcome.getSecondaryHostName(), outcome.getMessage(), outcome.getDurationMillis()));
+        }
+        return allSucceeded(stepOutcomes);
     }
 
     /**
-     * Wait until VM's FT state turns to NotRunning / NeedSecondary
+     * VMs of a plan step - named, or matching its pattern. By pattern, a step turning on FT takes powered off VMs
+     * without FT, any other step takes FT Primary VMs. Each VM is taken once, however often it is named
      */
-    private boolean
-    waitForFailover(VirtualMachine vmObj, int timeoutSecs)
+    static List<VmEntry>
+    selectPlanVms(FTPlan.Step step, VmIndex vmIndex, String clusterName, PrintStream err) throws Exception
     {
-        boolean ftUnProtected = false;
-        try {
-            // Monitor the task status
-            int loopDelay = 5; //seconds
-            int count = timeoutSecs / loopDelay;
+        // By MOR value, in selection order
+        Map<String, VmEntry> stepVms = new LinkedHashMap<String, VmEntry>();
+        for (String vmName : step.getVmNames()) {
+            VirtualMachine vmObj = vmIndex.findByName(vmName);
             if (vmObj != null) {
-                while (count > 0) {
-                    VirtualMachineFaultToleranceState vmFTState = vmObj.getRuntime().getFaultToleranceState();
-                    if (vmFTState.equals(VirtualMachineFaultToleranceState.starting)
-                        || vmFTState.equals(VirtualMachineFaultToleranceState.needSecondary)) {
-                        System.out.println("Secondary VM is not in running state now");
-                        ftUnProtected = true;
-                        break;
-                    } else if (vmFTState.equals(VirtualMachineFaultToleranceState.running)) {
-                        System.out.println(
-                            "Secondary VM is still in running state, wait for it to go-into 'starting/needSecondary' state");
-                        Thread.sleep(1000 * 2);
-                        --count;
-                    }
-                }
+                stepVms.put(vmObj.getMOR().getVal(), vmIndex.getEntry(vmObj.getMOR()));
             } else {
-                System.err.println("VirtualMachine reference is null");
+                err.println("Could not find VM: " + vmName + " of plan step " + step.getName()
+                    + " in Cluster: " + clusterName);
             }
+        }
 
-        } catch (Exception e) {
-            System.err.println("Caught an exception while monitoring the FT Secondary VM state");
+        if (step.getVmPattern() != null) {
+            boolean turnsOnFT = step.getStages().contains(Stage.TURN_ON_FT);
+            for (VmEntry vmEntry : vmIndex.getEntries()) {
+                if (vmEntry.getName() == null || vmEntry.isTemplate()
+                    || !step.getVmPattern().matcher(vmEntry.getName()).matches()) {
+                    continue;
+                }
+                boolean selectable = turnsOnFT
+                    ? vmEntry.getFtRole() == 0 && VirtualMachinePowerState.poweredOff.equals(vmEntry.getPowerState())
+                    : vmEntry.getFtRole() == VmIndex.FT_PRIMARY_ROLE;
+                if (selectable) {
+                    stepVms.put(vmEntry.getVmMor().getVal(), vmEntry);
+                }
+            }
+        }
+        return new ArrayList<VmEntry>(stepVms.values());
+    }
+
+    /**
+     * Batch mode - VM(s) selected through --vmNames, --vmPattern or --allVms
+     */
+    private boolean
+    isBatchMode()
+    {
+        return vmNames != null || vmPattern != null || allVms;
+    }
+
+    /**
+     * Perform FT Operations on all selected VMs, concurrently as per Cluster capacity. Returns true if all of
+     * them succeeded
+     */
+    private boolean
+    performBatchFTOps(List<HostInfo> clusteredHosts) throws Exception
+    {
+        List<VmEntry> batchVms = selectBatchVms();
+        if (batchVms.isEmpty()) {
+            err.println("Could not find any VM for FT operations in Cluster: " + clusterName);
+            return false;
+        }
+        out.println("Taking " + batchVms.size() + " VM(s) for FT operations, at most " + maxConcurrent
+            + " at a time and " + maxPerHost + " per host");
+
+        // Incompatible VMs are rejected up front, before any of the batch's tasks is issued
+        List<VmOutcome> outcomes = new ArrayList<VmOutcome>();
+        if (isPreflightNeeded()) {
+            FTPreflight.Result preflightResult = newPreflight().check(batchVms);
+            outcomes.addAll(preflightResult.getRejectedVms());
+            batchVms = preflightResult.getPassedVms();
+        }
+
+        journalRun(batchVms);
+        outcomes.addAll(newScheduler(clusteredHosts).runAll(batchVms, new FTBatchScheduler.VmWorkflow() {
+            @Override
+            public boolean turnsOnFT(VmEntry vmEntry)
+            {
+                return stages.contains(Stage.TURN_ON_FT);
+            }
+
+            @Override
+            public FTWorkflow create(VirtualMachine vmObj, String vmName, HostSystem secondaryHostSys)
+            {
+                return workflowEngine.newWorkflow(vmObj, vmName, secondaryHostSys, stages);
+            }
+        }));
+        FTBatchScheduler.printOutcomes(outcomes, out);
+        return allSucceeded(outcomes);
+    }
+
+    /**
+     * Roll back (or resume) the VMs the journal has as unfinished. Returns true if all of them were recovered
+     */
+    private boolean
+    recoverUnfinishedVms(List<HostInfo> clusteredHosts) throws Exception
+    {
+        out.println("Workflow journal " + journalFile + " has VM(s) left unfinished by the previous run. "
+            + "Recovering them (" + recoveryMode.getCliName() + "), no new FT operations are started");
+        long startMillis = System.currentTimeMillis();
+
+        FTRecovery recovery = new FTRecovery(si, journal, vmIndex, taskTracker, metrics, out, err);
+        List<FTRecovery.UnfinishedVm> unfinishedVms = recovery.assess();
+        List<VmOutcome> outcomes = recoveryMode == FTRecovery.Mode.RESUME
+            ? recovery.resume(unfinishedVms, newScheduler(clusteredHosts), workflowEngine)
+            : recovery.rollback(unfinishedVms, workflowEngine);
+        FTBatchScheduler.printOutcomes(outcomes, out);
+
+        long elapsedMillis = System.currentTimeMillis() - startMillis;
+        metrics.recordLatency(FTRecovery.RECOVERY_PHASE, elapsedMillis);
+        out.println("Recovered " + outcomes.size() + " VM(s) in " + elapsedMillis + " ms");
+        return allSucceeded(outcomes);
+    }
+
+    private FTBatchScheduler
+    newScheduler(List<HostInfo> clusteredHosts) throws Exception
+    {
+        return new FTBatchScheduler(si, clusteredHosts, vmIndex, placer, maxConcurrent, maxPerHost,
+            FTBatchScheduler.DEFAULT_MAX_FT_VMS_PER_HOST, FTBatchScheduler.DEFAULT_MAX_FT_VCPUS_PER_HOST, err);
+    }
+
+    /**
+     * Journal the start of a run on the VMs, if there is a journal
+     */
+    private void
+    journalRun(List<VmEntry> vmEntries)
+    {
+        if (journal != null) {
+            journal.startRun(stages, vmEntries);
+        }
+    }
+
+    private static boolean
+    allSucceeded(List<VmOutcome> outcomes)
+    {
+        boolean allSucceeded = true;
+        for (VmOutcome outcome : outcomes) {
+            allSucceeded &= outcome.isSucceeded();
+        }
+        return allSucceeded;
+    }
+
+    /**
+     * Pre-flight is run unless turned off, or FT is not turned on by the selected stages
+     */
+    private boolean
+    isPreflightNeeded()
+    {
+        return preflight && stages.contains(Stage.TURN_ON_FT);
+    }
+
+    private FTPreflight
+    newPreflight()
+    {
+        return new FTPreflight(si, placer, metrics, FTPreflight.DEFAULT_MAX_FT_VM_VCPUS,
+            FTPreflight.DEFAULT_MAX_FT_VM_MEMORY_MB, out);
+    }
+
+    /**
+     * Pre-flight of the single VM - true if FT can be turned on for it, or no pre-flight is needed
+     */
+    private boolean
+    passesPreflight(VirtualMachine vmObj) throws Exception
+    {
+        VmEntry vmEntry = vmIndex.getEntry(vmObj.getMOR());
+        if (!isPreflightNeeded() || vmEntry == null) {
+            return true;
         }
+        return newPreflight().check(Collections.singletonList(vmEntry)).getRejectedVms().isEmpty();
+    }
+
+    /**
+     * VMs selected for batch mode. Pattern/all selection only takes powered off, non FT, non template VMs
+     */
+    private List<VmEntry>
+    selectBatchVms() throws Exception
+    {
+        List<VmEntry> batchVms = new ArrayList<VmEntry>();
 
-        return ftUnProtected;
+        if (vmNames != null) {
+            for (String vmName : vmNames.split(",")) {
+                VirtualMachine vmObj = vmIndex.findByName(vmName.trim());
+                if (vmObj != null) {
+                    batchVms.add(vmIndex.getEntry(vmObj.getMOR()));
+                } else {
+                    err.println("Could not find VM: " + vmName.trim() + " in Cluster: " + clusterName);
+                }
+            }
+        } else {
+            Pattern namePattern = vmPattern != null ? Pattern.compile(vmPattern) : null;
+            for (VmEntry vmEntry : vmIndex.getEntries()) {
+                if (vmEntry.getName() == null || vmEntry.isTemplate() || vmEntry.getFtRole() > 0
+                    || !VirtualMachinePowerState.poweredOff.equals(vmEntry.getPowerState())) {
+                    continue;
+                }
+                if (namePattern == null || namePattern.matcher(vmEntry.getName()).matches()) {
+                    batchVms.add(vmEntry);
+                }
+            }
+        }
+
+        return batchVms;
     }
 
     /**
-     * Find VM from the clustered hosts and return its VirtualMachine object
+     * Find VM from the Cluster's VM index and return its VirtualMachine object
      */
     private VirtualMachine
-    findVm(Map<ManagedEntity, List<HostSystem>> clusterHostMap, String userRequestedVM)
+    findVm(String userRequestedVM)
     {
         VirtualMachine vmObj = null;
 
         try {
-            List<HostSystem> allHosts = clusterHostMap.get(clusterHostMap.keySet().iterator().next());
-            outerLoop:
-            for (HostSystem tempHs : allHosts){
-                for (VirtualMachine tempVmObj : tempHs.getVms()) {
-                    if (tempVmObj.getName().equals(userRequestedVM)) {
-                        System.out.println("Found VM: " + userRequestedVM + " on Host: " + tempHs.getName());
-                        primaryHostSys = tempHs;
-                        vmObj = tempVmObj;
-                        break outerLoop;
-                    }
+            vmObj = vmIndex.findByName(userRequestedVM);
+            if (vmObj != null) {
+                HostInfo vmHostInfo = inventory.getHost(vmIndex.getEntry(vmObj.getMOR()).getHostMor());
+                if (vmHostInfo != null) {
+                    out.println("Found VM: " + userRequestedVM + " on Host: " + vmHostInfo.getName());
+                    primaryHostSys = vmHostInfo.getHostSystem();
                 }
+            } else {
+                err.println("Could not find VM: " + userRequestedVM + " in Cluster: " + clusterName);
             }
         } catch (Exception e) {
-            System.err.println("Caught while searching for VM: " + userRequestedVM);
+            err.println("Caught while searching for VM: " + userRequestedVM);
         }
 
         return vmObj;
     }
 
     /**
-     * All hosts from HA Enabled Cluster
+     * Retrieve HA Enabled Cluster and its connected hosts, from the inventory snapshot
      */
-    private Map<ManagedEntity, List<HostSystem>>
+    private ClusterInfo
     retrieveHAClusterNHosts(String userRequestedClusterName)
     {
-        boolean foundHAEnabledOnCluster = false;
-
-        Map<ManagedEntity, List<HostSystem>> userClusterHostsMap = new HashMap<ManagedEntity, List<HostSystem>>();
+        ClusterInfo haCluster = null;
 
         try {
-            InventoryNavigator navigator = new InventoryNavigator(si.getRootFolder());
-
-            ManagedEntity[] allClusters = navigator.searchManagedEntities(CLUSTER_COMPRES_MOR_TYPE);
-
-            if (allClusters.length > 0) {
-                System.out.println("Found Clusters in inventory. Check and retrieve HA Enabled Cluster");
-
-                /*
-                 * Traverse through each Cluster and find the user requested cluster
-                 */
-                for (ManagedEntity tempCluME : allClusters) {
-                    if (tempCluME.getName().equals(userRequestedClusterName)) {
-                        ClusterComputeResource ccr = new ClusterComputeResource(si.getServerConnection(),
-                            tempCluME.getMOR());
-
-                        // Check if HA is enabled on Cluster
-                        ClusterConfigInfo tempCluConfigInfo = ccr.getConfiguration();
-                        ClusterDasConfigInfo fdmConfigInfo = tempCluConfigInfo.getDasConfig();
-
-                        if (fdmConfigInfo != null && fdmConfigInfo.enabled) {
-                            System.out.println("HA is enabled on Cluster: " + tempCluME.getName());
-                            foundHAEnabledOnCluster = true;
-
-                            // retrieve all hosts from the cluster
-                            HostSystem[] allHosts = ccr.getHosts();
-                            if (allHosts.length > 0) {
-                                System.out.println("Found ESXi host(s). Check for all connected hosts");
-                                List<HostSystem> activeHosts = new ArrayList<HostSystem>();
-                                for (ManagedEntity tempHost : allHosts) {
-                                    HostSystem tempHostSys = (HostSystem) tempHost;
-                                    HostRuntimeInfo hostruntimeInfo = tempHostSys.getRuntime();
-                                    if ((hostruntimeInfo.getConnectionState()
-                                        .equals(HostSystemConnectionState.connected))) {
-                                        System.out.println(
-                                            "Found ESXi host: " + tempHostSys.getName() + " in connected state");
-                                        activeHosts.add(tempHostSys);
-                                    }
-                                }
-                                if (activeHosts.size() >= 2) {
-                                    userClusterHostsMap.put(tempCluME, activeHosts);
-                                } else {
-                                    System.err.println(
-                                        "Could not find minimum number (2) of ESXi hosts in connected state, for this cluster: "
-                                            + tempCluME.getName());
-                                }
-                            }
-                        } else {
-                            System.err
-                                .println("HA is not enabled on the user provided cluster: " + userRequestedClusterName);
-                        }
+            // Clusters, their HA config and hosts, all in a single round trip
+            inventory = InventorySnapshot.load(si);
+
+            if (inventory.getClusters().size() > 0) {
+                out.println("Found Clusters in inventory. Check and retrieve HA Enabled Cluster");
+
+                List<ClusterInfo> namedClusters = inventory.getClusters(userRequestedClusterName);
+                ClusterInfo userCluster = namedClusters.size() == 1 ? namedClusters.get(0) : null;
+                if (namedClusters.isEmpty()) {
+                    err.println(
+                        "Could not find Cluster: \"" + userRequestedClusterName + " \"in vCenter Server inventory");
+                } else if (userCluster == null) {
+                    List<String> clusterMors = new ArrayList<String>();
+                    for (ClusterInfo namedCluster : namedClusters) {
+                        clusterMors.add(namedCluster.getCluster().getMOR().getVal());
                     }
-                } // End of clusters loop
+                    err.println("Cluster name \"" + userRequestedClusterName + "\" is ambiguous, clusters "
+                        + clusterMors + " (e.g. of different datacenters) have it");
+                } else if (userCluster.isHaEnabled()) {
+                    out.println("HA is enabled on Cluster: " + userCluster.getName());
 
-                if (!(userClusterHostsMap != null && userClusterHostsMap.size() > 0)) {
-                    if (!foundHAEnabledOnCluster) {
-                        System.err.println(
-                            "Could not find Cluster: \"" + userRequestedClusterName + " \"in vCenter Server inventory");
+                    if (userCluster.getHosts().size() > 0) {
+                        out.println("Found ESXi host(s). Check for all connected hosts");
+                        List<HostInfo> activeHosts = userCluster.getConnectedHosts();
+                        for (HostInfo tempHostInfo : activeHosts) {
+                            out.println("Found ESXi host: " + tempHostInfo.getName() + " in connected state");
+                        }
+                        if (activeHosts.size() >= 2) {
+                            haCluster = userCluster;
+                        } else {
+                            err.println(
+                                "Could not find minimum number (2) of ESXi hosts in connected state, for this cluster: "
+                                    + userCluster.getName());
+                        }
                     }
+                } else {
+                    err.println("HA is not enabled on the user provided cluster: " + userRequestedClusterName);
                 }
             } else {
-                System.err.println("Could not find any clusters in vCenter Server");
+                err.println("Could not find any clusters in vCenter Server");
             }
 
         } catch (Exception e) {
-            System.err.println("[Error] Unable to retrieve Clusters from inventory");
-            e.printStackTrace();
+            err.println("[Error] Unable to retrieve Clusters from inventory");
+            e.printStackTrace(err);
         }
 
-        return userClusterHostsMap;
+        return haCluster;
     }
 }
\ No newline at end of file
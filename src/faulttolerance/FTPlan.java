@@ -0,0 +1,632 @@
+/**
+ * Declarative plan of FT Operations, read from a JSON or YAML file
+ * -- A plan is a list of named steps; each step selects VMs (by name or pattern) and the stages to run on them
+ * -- A step can wait for other steps ("after"); steps that do not depend on each other run in parallel
+ * -- Stages of a VM keep their order and dependencies; stages not listed are not run (and not waited for)
+ * -- "restore": false keeps the state the stages leave (e.g. FT turned on), instead of powering off and turning off
+ *    FT at the end of the step
+ *
+ * JSON:
+ *   { "steps": [
+ *       { "name": "protect", "vms": ["db-1", "db-2"], "stages": ["turnOnFT", "powerOn"], "restore": false },
+ *       { "name": "failover", "vmPattern": "web-.*", "stages": "turnOnFT,powerOn,makePrimary" },
+ *       { "name": "unprotect", "vms": ["db-1", "db-2"], "stages": ["turnOffFT"], "after": ["protect"] } ] }
+ *
+ * YAML (block mappings and sequences, flow sequences, plain or quoted scalars, # comments):
+ *   steps:
+ *     - name: protect
+ *       vms: [db-1, db-2]
+ *       stages: [turnOnFT, powerOn]
+ *       restore: false
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import faulttolerance.FTWorkflow.Stage;
+
+public class FTPlan
+{
+    private final List<Step> steps;
+
+    /**
+     * One step of the plan - stages to run on the selected VMs, once the steps it comes after are done
+     */
+    public static class Step
+    {
+        private final String name;
+        private final List<String> vmNames;
+        private final Pattern vmPattern;
+        private final EnumSet<Stage> stages;
+        private final boolean restore;
+        private final List<String> after;
+
+        Step(String name, List<String> vmNames, Pattern vmPattern, EnumSet<Stage> stages, boolean restore,
+            List<String> after)
+        {
+            this.name = name;
+            this.vmNames = vmNames;
+            this.vmPattern = vmPattern;
+            this.stages = stages;
+            this.restore = restore;
+            this.after = after;
+        }
+
+        public String
+        getName()
+        {
+            return name;
+        }
+
+        /**
+         * VMs named by the step, empty if it selects them by pattern
+         */
+        public List<String>
+        getVmNames()
+        {
+            return vmNames;
+        }
+
+        /**
+         * Pattern of the VM names the step selects, null if it names its VMs
+         */
+        public Pattern
+        getVmPattern()
+        {
+            return vmPattern;
+        }
+
+        public EnumSet<Stage>
+        getStages()
+        {
+            return stages;
+        }
+
+        /**
+         * True if the VMs are powered off, with FT turned off, at the end of the step
+         */
+        public boolean
+        isRestore()
+        {
+            return restore;
+        }
+
+        /**
+         * Steps that must have succeeded before this one starts
+         */
+        public List<String>
+        getAfter()
+        {
+            return after;
+        }
+    }
+
+    private FTPlan(List<Step> steps)
+    {
+        this.steps = steps;
+    }
+
+    /**
+     * Steps in an order where every step comes after the steps it depends on
+     */
+    public List<Step>
+    getSteps()
+    {
+        return steps;
+    }
+
+    /**
+     * Read the plan file - YAML if named *.yaml / *.yml, JSON otherwise
+     */
+    public static FTPlan
+    load(String planPath) throws IOException
+    {
+        String text = new String(Files.readAllBytes(Paths.get(planPath)), StandardCharsets.UTF_8);
+        String lowerPath = planPath.toLowerCase();
+        Object root = lowerPath.endsWith(".yaml") || lowerPath.endsWith(".yml") ? new YamlParser(text).parse()
+            : new JsonParser(text).parse();
+        return fromTree(root);
+    }
+
+    /**
+     * Build and check the plan from its parsed document
+     */
+    static FTPlan
+    fromTree(Object root)
+    {
+        Object stepsNode = root instanceof Map ? ((Map<?, ?>) root).get("steps") : root;
+        if (!(stepsNode instanceof List) || ((List<?>) stepsNode).isEmpty()) {
+            throw new IllegalArgumentException("Plan has no steps");
+        }
+
+        Map<String, Step> stepsByName = new LinkedHashMap<String, Step>();
+        for (Object stepNode : (List<?>) stepsNode) {
+            if (!(stepNode instanceof Map)) {
+                throw new IllegalArgumentException("Plan step is not a mapping: " + stepNode);
+            }
+            Map<?, ?> stepMap = (Map<?, ?>) stepNode;
+            String name = stepMap.get("name") != null ? stepMap.get("name").toString()
+                : "step-" + (stepsByName.size() + 1);
+            if (stepsByName.containsKey(name)) {
+                throw new IllegalArgumentException("Plan has more than one step named " + name);
+            }
+
+            List<String> vmNames = stringList(stepMap.get("vms"));
+            Object vmPattern = stepMap.get("vmPattern");
+            if (vmNames.isEmpty() == (vmPattern == null)) {
+                throw new IllegalArgumentException("Step " + name + " must have either vms or vmPattern");
+            }
+            List<String> stageNames = stringList(stepMap.get("stages"));
+            if (stageNames.isEmpty()) {
+                throw new IllegalArgumentException("Step " + name + " has no stages");
+            }
+            EnumSet<Stage> stages = EnumSet.noneOf(Stage.class);
+            for (String stageName : stageNames) {
+                stages.add(Stage.fromCliName(stageName));
+            }
+            Object restore = stepMap.get("restore");
+
+            stepsByName.put(name, new Step(name, vmNames,
+                vmPattern != null ? Pattern.compile(vmPattern.toString()) : null, stages,
+                restore == null || Boolean.parseBoolean(restore.toString()), stringList(stepMap.get("after"))));
+        }
+
+        return new FTPlan(ordered(stepsByName));
+    }
+
+    /**
+     * Steps ordered after their dependencies. Unknown and circular dependencies are rejected
+     */
+    private static List<Step>
+    ordered(Map<String, Step> stepsByName)
+    {
+        List<Step> orderedSteps = new ArrayList<Step>();
+        Set<String> placed = new HashSet<String>();
+        while (orderedSteps.size() < stepsByName.size()) {
+            boolean placedAny = false;
+            for (Step step : stepsByName.values()) {
+                if (placed.contains(step.name)) {
+                    continue;
+                }
+                for (String dependency : step.after) {
+                    if (!stepsByName.containsKey(dependency)) {
+                        throw new IllegalArgumentException("Step " + step.name + " comes after unknown step "
+                            + dependency);
+                    }
+                }
+                if (placed.containsAll(step.after)) {
+                    orderedSteps.add(step);
+                    placed.add(step.name);
+                    placedAny = true;
+                }
+            }
+            if (!placedAny) {
+                throw new IllegalArgumentException("Plan steps have circular dependencies");
+            }
+        }
+        return orderedSteps;
+    }
+
+    /**
+     * True if the step comes (directly or indirectly) after the other step
+     */
+    public boolean
+    isAfter(Step step, Step otherStep)
+    {
+        for (String dependency : step.after) {
+            if (dependency.equals(otherStep.name)) {
+                return true;
+            }
+            for (Step dependencyStep : steps) {
+                if (dependencyStep.name.equals(dependency) && isAfter(dependencyStep, otherStep)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * List of strings from a sequence, a comma separated string or a single value
+     */
+    private static List<String>
+    stringList(Object node)
+    {
+        if (node == null) {
+            return Collections.emptyList();
+        }
+        List<String> strings = new ArrayList<String>();
+        if (node instanceof List) {
+            for (Object item : (List<?>) node) {
+                strings.add(item.toString().trim());
+            }
+        } else {
+            for (String item : node.toString().split(",")) {
+                if (!item.trim().isEmpty()) {
+                    strings.add(item.trim());
+                }
+            }
+        }
+        return strings;
+    }
+
+    /**
+     * JSON into Maps, Lists, Strings, Booleans, Doubles and nulls
+     */
+    private static class JsonParser
+    {
+        private final String text;
+        private int pos;
+
+        JsonParser(String text)
+        {
+            this.text = text;
+        }
+
+        Object
+        parse()
+        {
+            Object value = parseValue();
+            skipWhitespace();
+            if (pos < text.length()) {
+                throw error("Unexpected content after the plan");
+            }
+            return value;
+        }
+
+        private Object
+        parseValue()
+        {
+            skipWhitespace();
+            if (pos >= text.length()) {
+                throw error("Unexpected end of the plan");
+            }
+            char c = text.charAt(pos);
+            if (c == '{') {
+                return parseObject();
+            } else if (c == '[') {
+                return parseArray();
+            } else if (c == '"') {
+                return parseString();
+            } else if (text.startsWith("true", pos)) {
+                pos += 4;
+                return Boolean.TRUE;
+            } else if (text.startsWith("false", pos)) {
+                pos += 5;
+                return Boolean.FALSE;
+            } else if (text.startsWith("null", pos)) {
+                pos += 4;
+                return null;
+            }
+            int start = pos;
+            while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) {
+                pos++;
+            }
+            if (start == pos) {
+                throw error("Unexpected character '" + c + "'");
+            }
+            return Double.valueOf(text.substring(start, pos));
+        }
+
+        private Map<String, Object>
+        parseObject()
+        {
+            Map<String, Object> object = new LinkedHashMap<String, Object>();
+            pos++;
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+                return object;
+            }
+            while (true) {
+                skipWhitespace();
+                if (peek() != '"') {
+                    throw error("Expected a field name");
+                }
+                String key = parseString();
+                skipWhitespace();
+                expect(':');
+                object.put(key, parseValue());
+                skipWhitespace();
+                if (peek() == ',') {
+                    pos++;
+                } else {
+                    expect('}');
+                    return object;
+                }
+            }
+        }
+
+        private List<Object>
+        parseArray()
+        {
+            List<Object> array = new ArrayList<Object>();
+            pos++;
+            skipWhitespace();
+            if (peek() == ']') {
+                pos++;
+                return array;
+            }
+            while (true) {
+                array.add(parseValue());
+                skipWhitespace();
+                if (peek() == ',') {
+                    pos++;
+                } else {
+                    expect(']');
+                    return array;
+                }
+            }
+        }
+
+        private String
+        parseString()
+        {
+            StringBuilder value = new StringBuilder();
+            pos++;
+            while (pos < text.length()) {
+                char c = text.charAt(pos++);
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c == '\\' && pos < text.length()) {
+                    char escaped = text.charAt(pos++);
+                    switch (escaped) {
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'u':
+                        value.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        pos += 4;
+                        break;
+                    default:
+                        value.append(escaped);
+                    }
+                } else {
+                    value.append(c);
+                }
+            }
+            throw error("Unterminated string");
+        }
+
+        private char
+        peek()
+        {
+            return pos < text.length() ? text.charAt(pos) : 0;
+        }
+
+        private void
+        expect(char c)
+        {
+            if (peek() != c) {
+                throw error("Expected '" + c + "'");
+            }
+            pos++;
+        }
+
+        private void
+        skipWhitespace()
+        {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private IllegalArgumentException
+        error(String msg)
+        {
+            return new IllegalArgumentException("Invalid JSON plan at offset " + pos + ": " + msg);
+        }
+    }
+
+    /**
+     * The YAML subset a plan needs - block mappings and sequences by indentation, flow sequences ([a, b]),
+     * plain / quoted scalars and comments
+     */
+    private static class YamlParser
+    {
+        private final List<String> lines = new ArrayList<String>();
+        private final List<Integer> indents = new ArrayList<Integer>();
+        private int lineNo;
+
+        YamlParser(String text)
+        {
+            for (String line : text.split("\r?\n")) {
+                String content = stripComment(line);
+                if (content.trim().isEmpty() || content.trim().equals("---")) {
+                    continue;
+                }
+                int indent = 0;
+                while (indent < content.length() && content.charAt(indent) == ' ') {
+                    indent++;
+                }
+                lines.add(content.trim());
+                indents.add(indent);
+            }
+        }
+
+        Object
+        parse()
+        {
+            if (lines.isEmpty()) {
+                return null;
+            }
+            Object value = parseBlock(indents.get(0));
+            if (lineNo < lines.size()) {
+                throw error("Unexpected indentation");
+            }
+            return value;
+        }
+
+        /**
+         * Block starting at the current line, whose lines are indented by the given amount
+         */
+        private Object
+        parseBlock(int indent)
+        {
+            return lines.get(lineNo).startsWith("- ") || lines.get(lineNo).equals("-") ? parseSequence(indent)
+                : parseMapping(indent, lines.get(lineNo));
+        }
+
+        private List<Object>
+        parseSequence(int indent)
+        {
+            List<Object> sequence = new ArrayList<Object>();
+            while (lineNo < lines.size() && indents.get(lineNo) == indent
+                && (lines.get(lineNo).startsWith("- ") || lines.get(lineNo).equals("-"))) {
+                String item = lines.get(lineNo).substring(1).trim();
+                if (item.isEmpty()) {
+                    lineNo++;
+                    sequence.add(lineNo < lines.size() && indents.get(lineNo) > indent
+                        ? parseBlock(indents.get(lineNo)) : null);
+                } else if (isMappingEntry(item)) {
+                    // "- key: value" starts a mapping, its other entries are indented to the key
+                    int itemIndent = indent + lines.get(lineNo).indexOf(item);
+                    sequence.add(parseMapping(itemIndent, item));
+                } else {
+                    lineNo++;
+                    sequence.add(scalarOrFlow(item));
+                }
+            }
+            return sequence;
+        }
+
+        /**
+         * Mapping at the given indent, its first entry being the given text (of the current line)
+         */
+        private Map<String, Object>
+        parseMapping(int indent, String firstEntry)
+        {
+            Map<String, Object> mapping = new LinkedHashMap<String, Object>();
+            String entry = firstEntry;
+            while (true) {
+                if (!isMappingEntry(entry)) {
+                    throw error("Expected 'key: value'");
+                }
+                int colon = entry.indexOf(':');
+                String key = unquote(entry.substring(0, colon).trim());
+                String value = entry.substring(colon + 1).trim();
+                lineNo++;
+                if (!value.isEmpty()) {
+                    mapping.put(key, scalarOrFlow(value));
+                } else if (lineNo < lines.size() && (indents.get(lineNo) > indent
+                    || indents.get(lineNo) == indent && lines.get(lineNo).startsWith("- "))) {
+                    mapping.put(key, parseBlock(indents.get(lineNo)));
+                } else {
+                    mapping.put(key, null);
+                }
+
+                if (lineNo >= lines.size() || indents.get(lineNo) != indent || lines.get(lineNo).startsWith("- ")) {
+                    return mapping;
+                }
+                entry = lines.get(lineNo);
+            }
+        }
+
+        private static boolean
+        isMappingEntry(String text)
+        {
+            if (text.startsWith("\"") || text.startsWith("'") || text.startsWith("[")) {
+                return false;
+            }
+            int colon = text.indexOf(':');
+            return colon > 0 && (colon == text.length() - 1 || text.charAt(colon + 1) == ' ');
+        }
+
+        private Object
+        scalarOrFlow(String value)
+        {
+            if (!value.startsWith("[")) {
+                return unquote(value);
+            }
+            if (!value.endsWith("]")) {
+                throw error("Unterminated flow sequence");
+            }
+            List<Object> sequence = new ArrayList<Object>();
+            String items = value.substring(1, value.length() - 1).trim();
+            if (!items.isEmpty()) {
+                for (String item : Arrays.asList(items.split(","))) {
+                    sequence.add(unquote(item.trim()));
+                }
+            }
+            return sequence;
+        }
+
+        private static String
+        unquote(String value)
+        {
+            if (value.length() >= 2 && (value.startsWith("\"") && value.endsWith("\"")
+                || value.startsWith("'") && value.endsWith("'"))) {
+                return value.substring(1, value.length() - 1);
+            }
+            return value;
+        }
+
+        private static String
+        stripComment(String line)
+        {
+            boolean inSingle = false;
+            boolean inDouble = false;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c == '\'' && !inDouble) {
+                    inSingle = !inSingle;
+                } else if (c == '"' && !inSingle) {
+                    inDouble = !inDouble;
+                } else if (c == '#' && !inSingle && !inDouble && (i == 0 || line.charAt(i - 1) == ' ')) {
+                    return line.substring(0, i);
+                }
+            }
+            return line;
+        }
+
+        private IllegalArgumentException
+        error(String msg)
+        {
+            return new IllegalArgumentException("Invalid YAML plan at line " + (lineNo + 1) + " (of non-empty lines): "
+                + msg);
+        }
+    }
+}
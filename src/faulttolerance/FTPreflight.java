@@ -0,0 +1,344 @@
+/**
+ * Bulk FT compatibility pre-flight, run before any FT task is issued
+ * -- Selected VMs' vCPUs, memory, devices and snapshots are fetched in one RetrievePropertiesEx call and checked
+ *    against the FT limits: no physical mode RDM, no host backed CD-ROM/floppy, USB, sound, PCI passthrough,
+ *    serial/parallel port or 3D video, no snapshots
+ * -- Primary hosts and Secondary candidates are checked for FT support and an FT logging vmknic, from the
+ *    placer's cached host stats
+ * -- VMs passing these checks are run through QueryFaultToleranceCompatibility (vSphere 6.0 and later) in
+ *    parallel. Where the call is not available, the first failure turns it off and the property checks stand
+ * -- A failing VM is rejected in milliseconds, instead of after its createSecondaryVM task times out
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.vmware.vim25.InvalidState;
+import com.vmware.vim25.LocalizedMethodFault;
+import com.vmware.vim25.VirtualCdrom;
+import com.vmware.vim25.VirtualDevice;
+import com.vmware.vim25.VirtualDeviceDeviceBackingInfo;
+import com.vmware.vim25.VirtualDeviceRemoteDeviceBackingInfo;
+import com.vmware.vim25.VirtualDiskCompatibilityMode;
+import com.vmware.vim25.VirtualDiskRawDiskMappingVer1BackingInfo;
+import com.vmware.vim25.VirtualFloppy;
+import com.vmware.vim25.VirtualMachineVideoCard;
+import com.vmware.vim25.VirtualPCIPassthrough;
+import com.vmware.vim25.VirtualParallelPort;
+import com.vmware.vim25.VirtualSerialPort;
+import com.vmware.vim25.VirtualSoundCard;
+import com.vmware.vim25.VirtualUSB;
+import com.vmware.vim25.VirtualUSBController;
+import com.vmware.vim25.VirtualUSBXHCIController;
+import com.vmware.vim25.VmConfigFault;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.VirtualMachine;
+
+import faulttolerance.FTBatchScheduler.VmOutcome;
+import faulttolerance.SecondaryHostPlacer.HostStats;
+import faulttolerance.VmIndex.VmEntry;
+
+public class FTPreflight
+{
+    public static final String PREFLIGHT_PHASE = "preflight";
+
+    // Per VM FT limits of the latest vSphere release (8 vCPUs, 128 GB). vCenter enforces the lower limits of older
+    // releases and editions itself; pre-flight must not reject a VM that vCenter would accept
+    public static final int DEFAULT_MAX_FT_VM_VCPUS = 8;
+    public static final int DEFAULT_MAX_FT_VM_MEMORY_MB = 128 * 1024;
+
+    public static final String VM_MEMORY_PROP = "config.hardware.memoryMB";
+    public static final String VM_DEVICE_PROP = "config.hardware.device";
+    public static final String VM_SNAPSHOT_PROP = "snapshot";
+
+    private static final String[] VM_PROPS = { VmIndex.VM_NUM_CPU_PROP, VM_MEMORY_PROP, VM_DEVICE_PROP,
+        VM_SNAPSHOT_PROP };
+    private static final int QUERY_THREADS = 8;
+
+    private final ServiceInstance si;
+    private final SecondaryHostPlacer placer;
+    private final FTMetrics metrics;
+    private final int maxVcpus;
+    private final int maxMemoryMB;
+    private final PrintStream out;
+    private volatile boolean compatibilityQueryAvailable = true;
+
+    /**
+     * VMs that passed, and outcomes of the rejected ones
+     */
+    public static class Result
+    {
+        private final List<VmEntry> passedVms = new ArrayList<VmEntry>();
+        private final List<VmOutcome> rejectedVms = new ArrayList<VmOutcome>();
+
+        public List<VmEntry>
+        getPassedVms()
+        {
+            return passedVms;
+        }
+
+        public List<VmOutcome>
+        getRejectedVms()
+        {
+            return rejectedVms;
+        }
+    }
+
+    /**
+     * Constructor
+     */
+    public FTPreflight(ServiceInstance si, SecondaryHostPlacer placer, FTMetrics metrics, int maxVcpus,
+        int maxMemoryMB, PrintStream out)
+    {
+        this.si = si;
+        this.placer = placer;
+        this.metrics = metrics;
+        this.maxVcpus = maxVcpus;
+        this.maxMemoryMB = maxMemoryMB;
+        this.out = out;
+    }
+
+    /**
+     * Check all given VMs. Rejected VMs come back as failed outcomes, with the reason
+     */
+    public Result
+    check(List<VmEntry> vmEntries) throws Exception
+    {
+        long startMillis = System.currentTimeMillis();
+        long startSoapCalls = metrics.getSoapCalls();
+        Result result = new Result();
+
+        Map<String, String> rejectReasons = metrics.inPhase(PREFLIGHT_PHASE, () -> checkConfigs(vmEntries)).call();
+        List<VmEntry> queryVms = new ArrayList<VmEntry>();
+        for (VmEntry vmEntry : vmEntries) {
+            if (!rejectReasons.containsKey(vmEntry.getVmMor().getVal())) {
+                queryVms.add(vmEntry);
+            }
+        }
+        rejectReasons.putAll(queryCompatibility(queryVms));
+
+        for (VmEntry vmEntry : vmEntries) {
+            String rejectReason = rejectReasons.get(vmEntry.getVmMor().getVal());
+            if (rejectReason != null) {
+                out.println("[" + vmEntry.getName() + "] Rejected by FT pre-flight: " + rejectReason);
+                result.rejectedVms.add(new VmOutcome(vmEntry.getName(), false, null,
+                    "Pre-flight: " + rejectReason, 0));
+            } else {
+                result.passedVms.add(vmEntry);
+            }
+        }
+
+        long elapsedMillis = System.currentTimeMillis() - startMillis;
+        metrics.recordLatency(PREFLIGHT_PHASE, elapsedMillis);
+        out.println("FT pre-flight checked " + vmEntries.size() + " VM(s) in " + elapsedMillis + " ms ("
+            + (metrics.getSoapCalls() - startSoapCalls) + " SOAP call(s)): " + result.passedVms.size() + " passed, "
+            + result.rejectedVms.size() + " rejected");
+        return result;
+    }
+
+    /**
+     * Host and VM configuration checks - one property retrieval for all VMs, host stats from the placer.
+     * Returns the reject reason per VM MOR
+     */
+    private Map<String, String>
+    checkConfigs(List<VmEntry> vmEntries) throws Exception
+    {
+        Map<String, String> rejectReasons = new HashMap<String, String>();
+        Map<String, Map<String, Object>> vmProps = InventorySnapshot.retrieveVmProps(si, vmEntries, VM_PROPS);
+        int secondaryHosts = placer.rankCandidates(null).size();
+
+        for (VmEntry vmEntry : vmEntries) {
+            String rejectReason = checkHost(vmEntry, secondaryHosts);
+            if (rejectReason == null) {
+                Map<String, Object> props = vmProps.get(vmEntry.getVmMor().getVal());
+                rejectReason = props != null ? checkVm(props) : "VM properties could not be retrieved";
+            }
+            if (rejectReason != null) {
+                rejectReasons.put(vmEntry.getVmMor().getVal(), rejectReason);
+            }
+        }
+        return rejectReasons;
+    }
+
+    /**
+     * Primary host must run FT VMs, and some other host must be able to take the Secondary
+     */
+    private String
+    checkHost(VmEntry vmEntry, int secondaryHosts) throws Exception
+    {
+        HostStats primaryStats = vmEntry.getHostMor() != null ? placer.getHostStats(vmEntry.getHostMor()) : null;
+        if (primaryStats == null) {
+            return "VM is not on a connected host of the Cluster";
+        }
+        if (primaryStats.getFtIssue() != null) {
+            return "Primary " + primaryStats.getHostInfo().getName() + ": " + primaryStats.getFtIssue();
+        }
+        // Primary host is one of the FT capable hosts
+        if (secondaryHosts < 2) {
+            return "No other host with FT support and FT logging NIC for the Secondary VM";
+        }
+        return null;
+    }
+
+    private String
+    checkVm(Map<String, Object> props)
+    {
+        Integer numCpu = (Integer) props.get(VmIndex.VM_NUM_CPU_PROP);
+        if (numCpu != null && numCpu > maxVcpus) {
+            return "VM has " + numCpu + " vCPUs, more than the FT limit (" + maxVcpus + ")";
+        }
+        Integer memoryMB = (Integer) props.get(VM_MEMORY_PROP);
+        if (memoryMB != null && memoryMB > maxMemoryMB) {
+            return "VM has " + memoryMB + " MB memory, more than the FT limit (" + maxMemoryMB + " MB)";
+        }
+        if (props.get(VM_SNAPSHOT_PROP) != null) {
+            return "VM has snapshots, FT cannot be turned on until they are removed";
+        }
+        return checkDevices((VirtualDevice[]) props.get(VM_DEVICE_PROP));
+    }
+
+    /**
+     * First device FT does not support, null if there is none
+     */
+    private static String
+    checkDevices(VirtualDevice[] devices)
+    {
+        if (devices == null) {
+            return null;
+        }
+        for (VirtualDevice device : devices) {
+            String label = device.getDeviceInfo() != null ? device.getDeviceInfo().getLabel()
+                : device.getClass().getSimpleName();
+            if (device.getBacking() instanceof VirtualDiskRawDiskMappingVer1BackingInfo
+                && VirtualDiskCompatibilityMode.physicalMode.name().equals(
+                    ((VirtualDiskRawDiskMappingVer1BackingInfo) device.getBacking()).getCompatibilityMode())) {
+                return label + " is a physical mode RDM, not supported by FT";
+            }
+            if ((device instanceof VirtualCdrom || device instanceof VirtualFloppy)
+                && (device.getBacking() instanceof VirtualDeviceDeviceBackingInfo
+                    || device.getBacking() instanceof VirtualDeviceRemoteDeviceBackingInfo)) {
+                return label + " is backed by a physical or remote device, not supported by FT";
+            }
+            if (device instanceof VirtualUSBController || device instanceof VirtualUSBXHCIController
+                || device instanceof VirtualUSB || device instanceof VirtualSoundCard
+                || device instanceof VirtualPCIPassthrough || device instanceof VirtualSerialPort
+                || device instanceof VirtualParallelPort) {
+                return label + " is not supported by FT";
+            }
+            if (device instanceof VirtualMachineVideoCard
+                && Boolean.TRUE.equals(((VirtualMachineVideoCard) device).getEnable3DSupport())) {
+                return label + " has 3D support enabled, not supported by FT";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * QueryFaultToleranceCompatibility of the VMs, in parallel. The first VM is queried alone, so that a vCenter
+     * without the call costs one round trip. Returns the reject reason per VM MOR
+     */
+    private Map<String, String>
+    queryCompatibility(List<VmEntry> vmEntries) throws InterruptedException
+    {
+        Map<String, String> rejectReasons = new HashMap<String, String>();
+        if (vmEntries.isEmpty() || !compatibilityQueryAvailable) {
+            return rejectReasons;
+        }
+
+        String firstReason = queryVm(vmEntries.get(0));
+        if (firstReason != null) {
+            rejectReasons.put(vmEntries.get(0).getVmMor().getVal(), firstReason);
+        }
+        if (!compatibilityQueryAvailable || vmEntries.size() == 1) {
+            return rejectReasons;
+        }
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService queryExecutor = Executors.newFixedThreadPool(Math.min(QUERY_THREADS, vmEntries.size() - 1),
+            r -> {
+                Thread t = new Thread(r, "ft-preflight-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        Map<String, CompletableFuture<String>> queries = new LinkedHashMap<String, CompletableFuture<String>>();
+        for (final VmEntry vmEntry : vmEntries.subList(1, vmEntries.size())) {
+            queries.put(vmEntry.getVmMor().getVal(), CompletableFuture.supplyAsync(() -> queryVm(vmEntry),
+                queryExecutor));
+        }
+        for (Map.Entry<String, CompletableFuture<String>> query : queries.entrySet()) {
+            String rejectReason = query.getValue().join();
+            if (rejectReason != null) {
+                rejectReasons.put(query.getKey(), rejectReason);
+            }
+        }
+        queryExecutor.shutdown();
+        queryExecutor.awaitTermination(1, TimeUnit.SECONDS);
+        return rejectReasons;
+    }
+
+    /**
+     * FT compatibility issue of the VM, null if there is none or the query is not available
+     */
+    private String
+    queryVm(VmEntry vmEntry)
+    {
+        if (!compatibilityQueryAvailable) {
+            return null;
+        }
+        VirtualMachine vmObj = new VirtualMachine(si.getServerConnection(), vmEntry.getVmMor());
+        try {
+            LocalizedMethodFault[] issues = metrics.inPhase(PREFLIGHT_PHASE,
+                () -> vmObj.queryFaultToleranceCompatibility()).call();
+            if (issues != null && issues.length > 0) {
+                LocalizedMethodFault issue = issues[0];
+                return issue.getLocalizedMessage() != null ? issue.getLocalizedMessage()
+                    : issue.getFault().getClass().getSimpleName();
+            }
+        } catch (InvalidState | VmConfigFault e) {
+            return "FT compatibility check failed: " + e.getClass().getSimpleName();
+        } catch (Exception e) {
+            if (compatibilityQueryAvailable) {
+                compatibilityQueryAvailable = false;
+                out.println("FT compatibility query is not available on this vCenter Server/client ("
+                    + e.getClass().getSimpleName() + "), relying on host and VM configuration checks");
+            }
+        }
+        return null;
+    }
+}
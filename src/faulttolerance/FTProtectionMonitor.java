@@ -0,0 +1,548 @@
+/**
+ * Continuous monitor of the FT protection of every FT Primary VM of a Cluster
+ * -- One incremental PropertyCollector filter over a ContainerView of the Cluster (name, FT role, FT state)
+ * -- State is kept in a table of primitive arrays keyed by the VM's MOR number, so memory only depends on the
+ *    number of VMs and an update costs no allocation of its own
+ * -- Alerts when a Primary loses its Secondary (needSecondary) or the FT pair stops running (back to enabled),
+ *    and accounts the time each one is unprotected (needSecondary, starting, disabled)
+ * -- Counters are exposed with the session's metrics (Prometheus) and in a periodic status report
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.VirtualMachineFaultToleranceState;
+import com.vmware.vim25.mo.ClusterComputeResource;
+import com.vmware.vim25.mo.ManagedObjectView;
+import com.vmware.vim25.mo.ServiceInstance;
+
+public class FTProtectionMonitor extends PropertyUpdateStream
+{
+    public static final String UNPROTECTED_WINDOW_PHASE = "monitor.unprotectedWindow";
+    public static final int DEFAULT_REPORT_INTERVAL_SECS = 60;
+
+    private static final String[] VM_PROPS = { "name", VmIndex.VM_FT_ROLE_PROP, FTStateWatcher.FT_STATE_PROP };
+    private static final VirtualMachineFaultToleranceState[] FT_STATES = VirtualMachineFaultToleranceState.values();
+    private static final int INITIAL_CAPACITY = 1024;
+    // Slot state code of a VM whose FT state has not been reported
+    private static final byte NO_STATE = -1;
+
+    private final ClusterComputeResource cluster;
+    private final FTMetrics metrics;
+
+    // Open addressing table (linear probing), slot by VM key. Parallel arrays hold the state of each slot
+    private int[] keys;
+    private boolean[] used;
+    private String[] names;
+    private byte[] roles;
+    private byte[] ftStates;
+    private long[] unprotectedSinceNanos;
+    private long[] unprotectedTotalNanos;
+    private int[] unprotectedEpisodes;
+    private int size;
+
+    // VMs whose MOR value is not "vm-<n>", keyed by a negative number instead - never reused, VMs come and go
+    private final Map<String, Integer> otherKeys = new HashMap<String, Integer>();
+    private int lastOtherKey;
+
+    private long alerts;
+    private long restorations;
+    private long closedUnprotectedNanos;
+
+    /**
+     * Constructor
+     */
+    public FTProtectionMonitor(ServiceInstance si, ClusterComputeResource cluster, FTMetrics metrics)
+    {
+        super(si, "ft-protection-monitor");
+        this.cluster = cluster;
+        this.metrics = metrics;
+        allocate(INITIAL_CAPACITY);
+        metrics.addPrometheusSource(() -> toPrometheus());
+    }
+
+    /**
+     * True if the FT state leaves a powered on Primary without a running Secondary
+     */
+    public static boolean
+    isUnprotected(VirtualMachineFaultToleranceState ftState)
+    {
+        return VirtualMachineFaultToleranceState.needSecondary.equals(ftState)
+            || VirtualMachineFaultToleranceState.starting.equals(ftState)
+            || VirtualMachineFaultToleranceState.disabled.equals(ftState);
+    }
+
+    /**
+     * FT states that raise an alert when a Primary enters them - needSecondary, and enabled (i.e. the FT pair is
+     * not running; the API has no separate notRunning state)
+     */
+    public static boolean
+    isAlerting(VirtualMachineFaultToleranceState ftState)
+    {
+        return VirtualMachineFaultToleranceState.needSecondary.equals(ftState)
+            || VirtualMachineFaultToleranceState.enabled.equals(ftState);
+    }
+
+    /**
+     * Current FT state of the Primary VM, null if the VM is not a monitored Primary
+     */
+    public synchronized VirtualMachineFaultToleranceState
+    currentState(String vmMorVal)
+    {
+        int slot = find(keyOf(vmMorVal, false));
+        return slot >= 0 && isPrimary(slot) && ftStates[slot] != NO_STATE ? FT_STATES[ftStates[slot]] : null;
+    }
+
+    /**
+     * Total time the Primary VM has been unprotected while monitored, including its current window
+     */
+    public synchronized long
+    unprotectedMillis(String vmMorVal)
+    {
+        int slot = find(keyOf(vmMorVal, false));
+        return slot >= 0 ? TimeUnit.NANOSECONDS.toMillis(unprotectedNanos(slot, System.nanoTime())) : 0;
+    }
+
+    /**
+     * Print the number of Primaries per FT state, and the Primaries unprotected right now
+     */
+    public synchronized void
+    printStatus()
+    {
+        long nowNanos = System.nanoTime();
+        int[] stateCounts = new int[FT_STATES.length];
+        int primaries = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (used[slot] && isPrimary(slot) && ftStates[slot] != NO_STATE) {
+                stateCounts[ftStates[slot]]++;
+                primaries++;
+            }
+        }
+
+        StringBuilder states = new StringBuilder();
+        for (int i = 0; i < FT_STATES.length; i++) {
+            if (stateCounts[i] > 0) {
+                states.append(states.length() > 0 ? ", " : "").append(FT_STATES[i]).append(' ')
+                    .append(stateCounts[i]);
+            }
+        }
+        System.out.println(timestamp() + " FT protection of Cluster " + cluster.getName() + ": " + primaries
+            + " FT Primary VM(s)" + (states.length() > 0 ? " (" + states + ")" : "") + ", " + alerts
+            + " alert(s), " + restorations + " reprotection(s)");
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (used[slot] && isPrimary(slot) && unprotectedSinceNanos[slot] != 0) {
+                System.out.println(String.format("    %-40s %-14s unprotected for %.1f s", names[slot],
+                    FT_STATES[ftStates[slot]], (nowNanos - unprotectedSinceNanos[slot]) / 1e9));
+            }
+        }
+    }
+
+    /**
+     * Print the Primaries that have been unprotected while monitored, and for how long in total
+     */
+    public synchronized void
+    printReport()
+    {
+        long nowNanos = System.nanoTime();
+        System.out.println("\n-------------------------------------------------------------------");
+        System.out.println("FT protection of Cluster " + cluster.getName());
+        System.out.println("-------------------------------------------------------------------");
+        System.out.println(String.format("%-40s %-14s %8s %14s", "VM", "FT state", "Windows", "Unprotected s"));
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (used[slot] && unprotectedEpisodes[slot] > 0) {
+                System.out.println(String.format("%-40s %-14s %8d %14.1f", names[slot],
+                    ftStates[slot] != NO_STATE ? FT_STATES[ftStates[slot]] : "-", unprotectedEpisodes[slot],
+                    unprotectedNanos(slot, nowNanos) / 1e9));
+            }
+        }
+        System.out.println("-------------------------------------------------------------------");
+        printStatus();
+    }
+
+    /**
+     * Counters in Prometheus text exposition format
+     */
+    public synchronized String
+    toPrometheus()
+    {
+        long nowNanos = System.nanoTime();
+        int[] stateCounts = new int[FT_STATES.length];
+        long unprotectedNanos = closedUnprotectedNanos;
+        int unprotectedVms = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (!used[slot] || !isPrimary(slot) || ftStates[slot] == NO_STATE) {
+                continue;
+            }
+            stateCounts[ftStates[slot]]++;
+            if (unprotectedSinceNanos[slot] != 0) {
+                unprotectedNanos += nowNanos - unprotectedSinceNanos[slot];
+                unprotectedVms++;
+            }
+        }
+
+        StringBuilder prom = new StringBuilder();
+        prom.append("# HELP ftops_monitor_primary_vms FT Primary VMs of the Cluster, by FT state\n");
+        prom.append("# TYPE ftops_monitor_primary_vms gauge\n");
+        for (int i = 0; i < FT_STATES.length; i++) {
+            prom.append("ftops_monitor_primary_vms{state=\"").append(FT_STATES[i]).append("\"} ")
+                .append(stateCounts[i]).append('\n');
+        }
+        prom.append("# HELP ftops_monitor_unprotected_vms FT Primary VMs without a running Secondary\n");
+        prom.append("# TYPE ftops_monitor_unprotected_vms gauge\n");
+        prom.append("ftops_monitor_unprotected_vms ").append(unprotectedVms).append('\n');
+        prom.append("# HELP ftops_monitor_unprotected_seconds_total Time FT Primary VMs were unprotected\n");
+        prom.append("# TYPE ftops_monitor_unprotected_seconds_total counter\n");
+        prom.append("ftops_monitor_unprotected_seconds_total ").append(unprotectedNanos / 1e9).append('\n');
+        prom.append("# HELP ftops_monitor_alerts_total FT Primary VMs that lost their Secondary or stopped running\n");
+        prom.append("# TYPE ftops_monitor_alerts_total counter\n");
+        prom.append("ftops_monitor_alerts_total ").append(alerts).append('\n');
+        return prom.toString();
+    }
+
+    @Override
+    protected ManagedObjectView
+    createView() throws Exception
+    {
+        return si.getViewManager().createContainerView(cluster, new String[] { FTOps.VM_MOR_TYPE }, true);
+    }
+
+    @Override
+    protected String
+    objectType()
+    {
+        return FTOps.VM_MOR_TYPE;
+    }
+
+    @Override
+    protected String[]
+    propertyPaths()
+    {
+        return VM_PROPS;
+    }
+
+    @Override
+    protected synchronized void
+    handleUpdate(ObjectUpdate objUpdate)
+    {
+        String vmMorVal = objUpdate.getObj().getVal();
+        long nowNanos = System.nanoTime();
+
+        if (objUpdate.getKind().equals(ObjectUpdateKind.leave)) {
+            int slot = find(keyOf(vmMorVal, false));
+            if (slot >= 0) {
+                closeUnprotectedWindow(slot, nowNanos);
+                remove(slot);
+            }
+            otherKeys.remove(vmMorVal);
+            return;
+        }
+
+        int slot = findOrInsert(keyOf(vmMorVal, true));
+        boolean wasPrimary = isPrimary(slot);
+        VirtualMachineFaultToleranceState newState = null;
+        if (objUpdate.getChangeSet() != null) {
+            for (PropertyChange change : objUpdate.getChangeSet()) {
+                if (change.getName().equals("name")) {
+                    names[slot] = (String) change.getVal();
+                } else if (change.getName().equals(VmIndex.VM_FT_ROLE_PROP)) {
+                    roles[slot] = change.getVal() != null ? ((Integer) change.getVal()).byteValue() : 0;
+                } else if (change.getName().equals(FTStateWatcher.FT_STATE_PROP)) {
+                    newState = (VirtualMachineFaultToleranceState) change.getVal();
+                }
+            }
+        }
+
+        if (!isPrimary(slot)) {
+            // Secondary, or FT turned off: nothing to protect
+            closeUnprotectedWindow(slot, nowNanos);
+            ftStates[slot] = newState != null ? (byte) newState.ordinal() : ftStates[slot];
+            return;
+        }
+        if (newState != null) {
+            if (!wasPrimary) {
+                // FT just turned on - the Primary has no earlier state to alert against
+                ftStates[slot] = NO_STATE;
+            }
+            transition(slot, newState, nowNanos);
+        }
+    }
+
+    @Override
+    protected void
+    streamFailed(Exception cause)
+    {
+        System.err.println(timestamp() + " FT protection monitor of Cluster " + cluster.getName()
+            + " stopped: " + cause);
+    }
+
+    /**
+     * Apply a Primary's new FT state - alert on losing the Secondary or the pair stopping, account unprotected time
+     */
+    private void
+    transition(int slot, VirtualMachineFaultToleranceState newState, long nowNanos)
+    {
+        VirtualMachineFaultToleranceState oldState = ftStates[slot] != NO_STATE ? FT_STATES[ftStates[slot]] : null;
+        ftStates[slot] = (byte) newState.ordinal();
+        if (newState.equals(oldState)) {
+            return;
+        }
+
+        // VMs already in an alerting state when the monitor starts are listed by the status instead
+        if (oldState != null && isAlerting(newState) && !isAlerting(oldState)) {
+            alerts++;
+            System.err.println(timestamp() + " ALERT [" + names[slot] + "] FT state " + oldState + " -> " + newState
+                + (newState.equals(VirtualMachineFaultToleranceState.enabled) ? ", FT pair is not running"
+                    : ", VM is not protected"));
+        }
+
+        if (isUnprotected(newState)) {
+            if (unprotectedSinceNanos[slot] == 0) {
+                unprotectedSinceNanos[slot] = nowNanos;
+                unprotectedEpisodes[slot]++;
+            }
+        } else if (unprotectedSinceNanos[slot] != 0) {
+            long windowNanos = nowNanos - unprotectedSinceNanos[slot];
+            closeUnprotectedWindow(slot, nowNanos);
+            if (VirtualMachineFaultToleranceState.running.equals(newState)) {
+                restorations++;
+                metrics.recordLatency(UNPROTECTED_WINDOW_PHASE, TimeUnit.NANOSECONDS.toMillis(windowNanos));
+                System.out.println(timestamp() + " [" + names[slot] + "] FT protection restored after "
+                    + String.format("%.1f", windowNanos / 1e9) + " s");
+            }
+        }
+    }
+
+    private void
+    closeUnprotectedWindow(int slot, long nowNanos)
+    {
+        if (unprotectedSinceNanos[slot] == 0) {
+            return;
+        }
+        long windowNanos = nowNanos - unprotectedSinceNanos[slot];
+        unprotectedTotalNanos[slot] += windowNanos;
+        closedUnprotectedNanos += windowNanos;
+        unprotectedSinceNanos[slot] = 0;
+    }
+
+    private long
+    unprotectedNanos(int slot, long nowNanos)
+    {
+        return unprotectedTotalNanos[slot]
+            + (unprotectedSinceNanos[slot] != 0 ? nowNanos - unprotectedSinceNanos[slot] : 0);
+    }
+
+    private boolean
+    isPrimary(int slot)
+    {
+        return roles[slot] == VmIndex.FT_PRIMARY_ROLE;
+    }
+
+    /**
+     * Number of a "vm-<n>" MOR value, parsed without allocating. Other values get a negative key of their own
+     */
+    private int
+    keyOf(String vmMorVal, boolean assign)
+    {
+        if (vmMorVal.startsWith("vm-") && vmMorVal.length() > 3 && vmMorVal.length() < 13) {
+            long number = 0;
+            int i = 3;
+            for (; i < vmMorVal.length(); i++) {
+                char c = vmMorVal.charAt(i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                number = number * 10 + (c - '0');
+            }
+            if (i == vmMorVal.length() && number <= Integer.MAX_VALUE) {
+                return (int) number;
+            }
+        }
+
+        Integer otherKey = otherKeys.get(vmMorVal);
+        if (otherKey == null && assign) {
+            otherKey = --lastOtherKey;
+            otherKeys.put(vmMorVal, otherKey);
+        }
+        return otherKey != null ? otherKey : Integer.MIN_VALUE;
+    }
+
+    private int
+    find(int key)
+    {
+        int mask = keys.length - 1;
+        for (int slot = mix(key) & mask; used[slot]; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int
+    findOrInsert(int key)
+    {
+        int slot = find(key);
+        if (slot >= 0) {
+            return slot;
+        }
+        if ((size + 1) * 4 > keys.length * 3) {
+            resize(keys.length * 2);
+        }
+
+        int mask = keys.length - 1;
+        slot = mix(key) & mask;
+        while (used[slot]) {
+            slot = (slot + 1) & mask;
+        }
+        used[slot] = true;
+        keys[slot] = key;
+        ftStates[slot] = NO_STATE;
+        size++;
+        return slot;
+    }
+
+    /**
+     * Remove the slot, shifting back the entries of its probe sequence (no tombstones, so the table does not
+     * degrade as VMs come and go)
+     */
+    private void
+    remove(int slot)
+    {
+        int mask = keys.length - 1;
+        clear(slot);
+        size--;
+
+        int hole = slot;
+        for (int next = (slot + 1) & mask; used[next]; next = (next + 1) & mask) {
+            int home = mix(keys[next]) & mask;
+            // Entry can move into the hole if its home slot is not between the hole and its current slot
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                move(next, hole);
+                hole = next;
+            }
+        }
+    }
+
+    private void
+    move(int from, int to)
+    {
+        used[to] = true;
+        keys[to] = keys[from];
+        names[to] = names[from];
+        roles[to] = roles[from];
+        ftStates[to] = ftStates[from];
+        unprotectedSinceNanos[to] = unprotectedSinceNanos[from];
+        unprotectedTotalNanos[to] = unprotectedTotalNanos[from];
+        unprotectedEpisodes[to] = unprotectedEpisodes[from];
+        clear(from);
+    }
+
+    private void
+    clear(int slot)
+    {
+        used[slot] = false;
+        names[slot] = null;
+        roles[slot] = 0;
+        ftStates[slot] = NO_STATE;
+        unprotectedSinceNanos[slot] = 0;
+        unprotectedTotalNanos[slot] = 0;
+        unprotectedEpisodes[slot] = 0;
+    }
+
+    private void
+    resize(int capacity)
+    {
+        int[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        String[] oldNames = names;
+        byte[] oldRoles = roles;
+        byte[] oldFtStates = ftStates;
+        long[] oldSince = unprotectedSinceNanos;
+        long[] oldTotal = unprotectedTotalNanos;
+        int[] oldEpisodes = unprotectedEpisodes;
+
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int from = 0; from < oldKeys.length; from++) {
+            if (!oldUsed[from]) {
+                continue;
+            }
+            int slot = mix(oldKeys[from]) & mask;
+            while (used[slot]) {
+                slot = (slot + 1) & mask;
+            }
+            used[slot] = true;
+            keys[slot] = oldKeys[from];
+            names[slot] = oldNames[from];
+            roles[slot] = oldRoles[from];
+            ftStates[slot] = oldFtStates[from];
+            unprotectedSinceNanos[slot] = oldSince[from];
+            unprotectedTotalNanos[slot] = oldTotal[from];
+            unprotectedEpisodes[slot] = oldEpisodes[from];
+        }
+    }
+
+    private void
+    allocate(int capacity)
+    {
+        keys = new int[capacity];
+        used = new boolean[capacity];
+        names = new String[capacity];
+        roles = new byte[capacity];
+        ftStates = new byte[capacity];
+        Arrays.fill(ftStates, NO_STATE);
+        unprotectedSinceNanos = new long[capacity];
+        unprotectedTotalNanos = new long[capacity];
+        unprotectedEpisodes = new int[capacity];
+    }
+
+    /**
+     * Spread sequential MOR numbers over the table
+     */
+    private static int
+    mix(int key)
+    {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static String
+    timestamp()
+    {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+    }
+}
@@ -0,0 +1,380 @@
+/**
+ * Recovery of the VMs a crashed run left mid-workflow, from the workflow journal
+ * -- Power and FT state of all unfinished VMs is read in a single RetrievePropertiesEx call. Tasks the crashed
+ *    run left running on them are waited for first (and the state read again), so recovery does not race them
+ * -- Rollback (default): all VMs are powered off and have FT turned off at once, each step started as soon as
+ *    the previous one has completed
+ * -- Resume: the stages each VM has still to run (as per the journal and its actual state) are run through the
+ *    batch scheduler, followed by the usual restore
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.VirtualMachineFaultToleranceState;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.HostSystem;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+import com.vmware.vim25.mo.VirtualMachine;
+
+import faulttolerance.FTBatchScheduler.VmOutcome;
+import faulttolerance.FTWorkflow.Stage;
+import faulttolerance.VmIndex.VmEntry;
+import faulttolerance.WorkflowJournal.JournalEntry;
+
+public class FTRecovery
+{
+    public static final String RECOVERY_PHASE = "recovery";
+    public static final String VM_RECENT_TASK_PROP = "recentTask";
+    // Longest stage timeout - the most a task of the crashed run can still take
+    public static final int IN_FLIGHT_TASK_WAIT_SECS = 720;
+
+    private static final String[] VM_PROPS = { FTStateWatcher.POWER_STATE_PROP, FTStateWatcher.FT_STATE_PROP,
+        VM_RECENT_TASK_PROP };
+    private static final String TASK_ENTITY_PROP = "info.entity";
+    private static final String TASK_STATE_PROP = "info.state";
+    private static final String[] RECENT_TASK_PROPS = { TASK_ENTITY_PROP, TASK_STATE_PROP };
+
+    private final ServiceInstance si;
+    private final WorkflowJournal journal;
+    private final VmIndex vmIndex;
+    private final TaskTracker taskTracker;
+    private final FTMetrics metrics;
+    private final PrintStream out;
+    private final PrintStream err;
+
+    /**
+     * What to do with the unfinished VMs
+     */
+    public enum Mode
+    {
+        ROLLBACK("rollback"),
+        RESUME("resume");
+
+        private final String cliName;
+
+        Mode(String cliName)
+        {
+            this.cliName = cliName;
+        }
+
+        public String
+        getCliName()
+        {
+            return cliName;
+        }
+
+        public static Mode
+        fromCliName(String cliName)
+        {
+            for (Mode mode : values()) {
+                if (mode.cliName.equalsIgnoreCase(cliName.trim())) {
+                    return mode;
+                }
+            }
+            throw new IllegalArgumentException("Unknown recovery mode: " + cliName);
+        }
+    }
+
+    /**
+     * Unfinished VM, its current state and the stages it has still to run
+     */
+    public static class UnfinishedVm
+    {
+        private final JournalEntry journalEntry;
+        private final VmEntry vmEntry;
+        private final VirtualMachinePowerState powerState;
+        private final VirtualMachineFaultToleranceState ftState;
+        private final EnumSet<Stage> remainingStages;
+
+        UnfinishedVm(JournalEntry journalEntry, VmEntry vmEntry, VirtualMachinePowerState powerState,
+            VirtualMachineFaultToleranceState ftState, EnumSet<Stage> remainingStages)
+        {
+            this.journalEntry = journalEntry;
+            this.vmEntry = vmEntry;
+            this.powerState = powerState;
+            this.ftState = ftState;
+            this.remainingStages = remainingStages;
+        }
+
+        public VmEntry
+        getVmEntry()
+        {
+            return vmEntry;
+        }
+
+        public VirtualMachinePowerState
+        getPowerState()
+        {
+            return powerState;
+        }
+
+        public VirtualMachineFaultToleranceState
+        getFtState()
+        {
+            return ftState;
+        }
+
+        public EnumSet<Stage>
+        getRemainingStages()
+        {
+            return remainingStages;
+        }
+
+        /**
+         * True if the VM is as it was before the run - never touched, or already powered off with FT off
+         */
+        boolean
+        isUntouched()
+        {
+            return !journalEntry.isBegun() || (!VirtualMachinePowerState.poweredOn.equals(powerState)
+                && (ftState == null || VirtualMachineFaultToleranceState.notConfigured.equals(ftState)));
+        }
+    }
+
+    /**
+     * Constructor
+     */
+    public FTRecovery(ServiceInstance si, WorkflowJournal journal, VmIndex vmIndex, TaskTracker taskTracker,
+        FTMetrics metrics, PrintStream out, PrintStream err)
+    {
+        this.si = si;
+        this.journal = journal;
+        this.vmIndex = vmIndex;
+        this.taskTracker = taskTracker;
+        this.metrics = metrics;
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * Unfinished VMs of the journal that are still in the Cluster, with their current state.
+     * VMs no longer in the Cluster are dropped from the journal
+     */
+    public List<UnfinishedVm>
+    assess() throws Exception
+    {
+        long startMillis = System.currentTimeMillis();
+        long startSoapCalls = metrics.getSoapCalls();
+
+        List<JournalEntry> journalEntries = new ArrayList<JournalEntry>();
+        List<VmEntry> vmEntries = new ArrayList<VmEntry>();
+        for (JournalEntry journalEntry : journal.getUnfinishedVms()) {
+            VmEntry vmEntry = vmIndex.getEntry(journalEntry.getVmMor());
+            if (vmEntry == null) {
+                out.println("[" + journalEntry.getVmName() + "] VM is no longer in the Cluster, nothing to "
+                    + "recover");
+                journal.done(journalEntry.getVmMor());
+                continue;
+            }
+            journalEntries.add(journalEntry);
+            vmEntries.add(vmEntry);
+        }
+
+        Callable<Map<String, Map<String, Object>>> fetchVmProps = metrics.inPhase(RECOVERY_PHASE,
+            () -> InventorySnapshot.retrieveVmProps(si, vmEntries, VM_PROPS));
+        Map<String, Map<String, Object>> vmProps = fetchVmProps.call();
+        if (awaitRecentTasks(vmProps)) {
+            vmProps = fetchVmProps.call();
+        }
+
+        EnumSet<Stage> runStages = journal.getRunStages();
+        List<UnfinishedVm> unfinishedVms = new ArrayList<UnfinishedVm>();
+        for (int i = 0; i < vmEntries.size(); i++) {
+            Map<String, Object> props = vmProps.get(vmEntries.get(i).getVmMor().getVal());
+            VirtualMachinePowerState powerState = props != null
+                ? (VirtualMachinePowerState) props.get(FTStateWatcher.POWER_STATE_PROP) : null;
+            VirtualMachineFaultToleranceState ftState = props != null
+                ? (VirtualMachineFaultToleranceState) props.get(FTStateWatcher.FT_STATE_PROP) : null;
+            unfinishedVms.add(new UnfinishedVm(journalEntries.get(i), vmEntries.get(i), powerState, ftState,
+                remainingStages(runStages, journalEntries.get(i), powerState, ftState)));
+        }
+
+        out.println("Journal " + journal.getFile() + " has " + unfinishedVms.size() + " unfinished VM(s), "
+            + "state read in " + (System.currentTimeMillis() - startMillis) + " ms ("
+            + (metrics.getSoapCalls() - startSoapCalls) + " SOAP call(s))");
+        return unfinishedVms;
+    }
+
+    /**
+     * Power off and turn off FT on all unfinished VMs at once, and wait for all of them
+     */
+    public List<VmOutcome>
+    rollback(List<UnfinishedVm> unfinishedVms, FTWorkflowEngine workflowEngine)
+    {
+        List<CompletableFuture<VmOutcome>> rollbacks = new ArrayList<CompletableFuture<VmOutcome>>();
+        for (final UnfinishedVm unfinishedVm : unfinishedVms) {
+            final VmEntry vmEntry = unfinishedVm.vmEntry;
+            if (unfinishedVm.isUntouched()) {
+                journal.done(vmEntry.getVmMor());
+                rollbacks.add(CompletableFuture.completedFuture(
+                    new VmOutcome(vmEntry.getName(), true, null, "Rollback: nothing to undo", 0)));
+                continue;
+            }
+
+            out.println("[" + vmEntry.getName() + "] Rolling back - VM is " + unfinishedVm.powerState
+                + ", FT state " + unfinishedVm.ftState);
+            final long startMillis = System.currentTimeMillis();
+            VirtualMachine vmObj = new VirtualMachine(si.getServerConnection(), vmEntry.getVmMor());
+            rollbacks.add(workflowEngine.rollback(vmObj, vmEntry.getName(), unfinishedVm.powerState,
+                unfinishedVm.ftState).handle((restored, failure) -> {
+                    boolean rolledBack = failure == null && restored;
+                    return new VmOutcome(vmEntry.getName(), rolledBack, null,
+                        rolledBack ? "Rolled back" : "Rollback: could not restore the VM's state",
+                        System.currentTimeMillis() - startMillis);
+                }));
+        }
+
+        List<VmOutcome> outcomes = new ArrayList<VmOutcome>();
+        for (CompletableFuture<VmOutcome> rollback : rollbacks) {
+            outcomes.add(rollback.join());
+        }
+        return outcomes;
+    }
+
+    /**
+     * Run the remaining stages of all unfinished VMs through the scheduler, and wait for all of them
+     */
+    public List<VmOutcome>
+    resume(List<UnfinishedVm> unfinishedVms, FTBatchScheduler scheduler, final FTWorkflowEngine workflowEngine)
+        throws InterruptedException
+    {
+        final Map<String, EnumSet<Stage>> remainingStages = new HashMap<String, EnumSet<Stage>>();
+        List<VmEntry> vmEntries = new ArrayList<VmEntry>();
+        for (UnfinishedVm unfinishedVm : unfinishedVms) {
+            out.println("[" + unfinishedVm.vmEntry.getName() + "] Resuming with stages "
+                + unfinishedVm.remainingStages);
+            remainingStages.put(unfinishedVm.vmEntry.getVmMor().getVal(), unfinishedVm.remainingStages);
+            vmEntries.add(unfinishedVm.vmEntry);
+        }
+
+        return scheduler.runAll(vmEntries, new FTBatchScheduler.VmWorkflow() {
+            @Override
+            public boolean turnsOnFT(VmEntry vmEntry)
+            {
+                return remainingStages.get(vmEntry.getVmMor().getVal()).contains(Stage.TURN_ON_FT);
+            }
+
+            @Override
+            public FTWorkflow create(VirtualMachine vmObj, String vmName, HostSystem secondaryHostSys)
+            {
+                return workflowEngine.newWorkflow(vmObj, vmName, secondaryHostSys,
+                    remainingStages.get(vmObj.getMOR().getVal()));
+            }
+        });
+    }
+
+    /**
+     * Wait for the VMs' recent tasks to end, e.g. a task issued just before the crash. Returns true if there
+     * were any, i.e. the VMs' state may have changed since it was read
+     */
+    private boolean
+    awaitRecentTasks(Map<String, Map<String, Object>> vmProps) throws Exception
+    {
+        List<ManagedObjectReference> recentTaskMors = new ArrayList<ManagedObjectReference>();
+        for (Map<String, Object> props : vmProps.values()) {
+            ManagedObjectReference[] taskMors = (ManagedObjectReference[]) props.get(VM_RECENT_TASK_PROP);
+            if (taskMors != null) {
+                recentTaskMors.addAll(Arrays.asList(taskMors));
+            }
+        }
+        Map<String, Map<String, Object>> taskProps = metrics.inPhase(RECOVERY_PHASE,
+            () -> InventorySnapshot.retrieveProps(si, TaskTracker.TASK_MOR_TYPE, recentTaskMors, RECENT_TASK_PROPS))
+            .call();
+
+        // A VM's recentTask may list tasks of other entities, and tasks that have ended - only the tasks still
+        // running on a VM being recovered can change its state
+        List<CompletableFuture<?>> recentTasks = new ArrayList<CompletableFuture<?>>();
+        for (Map.Entry<String, Map<String, Object>> vmEntry : vmProps.entrySet()) {
+            ManagedObjectReference[] taskMors =
+                (ManagedObjectReference[]) vmEntry.getValue().get(VM_RECENT_TASK_PROP);
+            if (taskMors == null) {
+                continue;
+            }
+            for (ManagedObjectReference taskMor : taskMors) {
+                Map<String, Object> props = taskProps.get(taskMor.getVal());
+                ManagedObjectReference entityMor = props != null
+                    ? (ManagedObjectReference) props.get(TASK_ENTITY_PROP) : null;
+                TaskInfoState taskState = props != null ? (TaskInfoState) props.get(TASK_STATE_PROP) : null;
+                if (entityMor != null && entityMor.getVal().equals(vmEntry.getKey())
+                    && (TaskInfoState.queued.equals(taskState) || TaskInfoState.running.equals(taskState))) {
+                    recentTasks.add(taskTracker.track(new Task(si.getServerConnection(), taskMor)));
+                }
+            }
+        }
+        if (recentTasks.isEmpty()) {
+            return false;
+        }
+
+        out.println("Waiting for " + recentTasks.size() + " task(s) of the previous run to end");
+        try {
+            CompletableFuture.allOf(recentTasks.toArray(new CompletableFuture<?>[recentTasks.size()]))
+                .get(IN_FLIGHT_TASK_WAIT_SECS, TimeUnit.SECONDS);
+        } catch (TimeoutException te) {
+            err.println("Task(s) of the previous run did not end within " + IN_FLIGHT_TASK_WAIT_SECS
+                + " seconds, recovering anyway");
+        }
+        return true;
+    }
+
+    /**
+     * Stages of the run not journaled as succeeded. A stage cut off by the crash may still have completed on
+     * vCenter, so stages whose effect is already there are left out as well
+     */
+    private static EnumSet<Stage>
+    remainingStages(EnumSet<Stage> runStages, JournalEntry journalEntry, VirtualMachinePowerState powerState,
+        VirtualMachineFaultToleranceState ftState)
+    {
+        EnumSet<Stage> stages = EnumSet.copyOf(runStages);
+        stages.removeAll(journalEntry.getSucceededStages());
+        if (ftState != null && !VirtualMachineFaultToleranceState.notConfigured.equals(ftState)) {
+            stages.remove(Stage.TURN_ON_FT);
+        }
+        if (VirtualMachinePowerState.poweredOn.equals(powerState)) {
+            stages.remove(Stage.POWER_ON);
+        }
+        if (VirtualMachineFaultToleranceState.disabled.equals(ftState)) {
+            stages.remove(Stage.DISABLE_SECONDARY);
+        }
+        return stages;
+    }
+}
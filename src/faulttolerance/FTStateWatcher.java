@@ -0,0 +1,399 @@
+/**
+ * Push based watcher of VM Fault Tolerance state
+ * -- Subscribes to runtime.faultToleranceState and runtime.powerState of a set of VMs
+ * -- Keeps the last reported values, fed by one incremental PropertyCollector update stream
+ * -- Callers await a predicate on the FT state (e.g. "running", "needSecondary|starting") with a deadline
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.VirtualMachineFaultToleranceState;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.ManagedObjectView;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.VirtualMachine;
+
+public class FTStateWatcher extends PropertyUpdateStream
+{
+    public static final String FT_STATE_PROP = "runtime.faultToleranceState";
+    public static final String POWER_STATE_PROP = "runtime.powerState";
+
+    private static final String[] VM_PROPS = { FT_STATE_PROP, POWER_STATE_PROP };
+
+    private final Map<String, VmState> vmStates = new ConcurrentHashMap<String, VmState>();
+    private final List<StateWaiter> waiters = new ArrayList<StateWaiter>();
+    private volatile FTEventTrace trace;
+
+    /**
+     * Last reported state of a watched VM
+     */
+    public static class VmState
+    {
+        volatile VirtualMachineFaultToleranceState ftState;
+        volatile VirtualMachinePowerState powerState;
+        volatile long lastChangeNanos;
+
+        public VirtualMachineFaultToleranceState
+        getFtState()
+        {
+            return ftState;
+        }
+
+        public VirtualMachinePowerState
+        getPowerState()
+        {
+            return powerState;
+        }
+
+        /**
+         * System.nanoTime() at which the last change was received
+         */
+        public long
+        getLastChangeNanos()
+        {
+            return lastChangeNanos;
+        }
+    }
+
+    /**
+     * Caller waiting for a VM's FT state to satisfy a predicate
+     */
+    private static class StateWaiter
+    {
+        final String vmKey;
+        final Predicate<VirtualMachineFaultToleranceState> predicate;
+        final CompletableFuture<StateTransition> future = new CompletableFuture<StateTransition>();
+
+        StateWaiter(String vmKey, Predicate<VirtualMachineFaultToleranceState> predicate)
+        {
+            this.vmKey = vmKey;
+            this.predicate = predicate;
+        }
+    }
+
+    /**
+     * FT state that satisfied a waiter, and when it was received
+     */
+    public static class StateTransition
+    {
+        private final VirtualMachineFaultToleranceState ftState;
+        private final long observedNanos;
+
+        StateTransition(VirtualMachineFaultToleranceState ftState, long observedNanos)
+        {
+            this.ftState = ftState;
+            this.observedNanos = observedNanos;
+        }
+
+        public VirtualMachineFaultToleranceState
+        getFtState()
+        {
+            return ftState;
+        }
+
+        /**
+         * System.nanoTime() at which the update carrying the state was received
+         */
+        public long
+        getObservedNanos()
+        {
+            return observedNanos;
+        }
+    }
+
+    /**
+     * Constructor
+     */
+    public FTStateWatcher(ServiceInstance si)
+    {
+        super(si, "ft-state-watcher");
+    }
+
+    /**
+     * Predicate matching any of the given FT states
+     */
+    public static Predicate<VirtualMachineFaultToleranceState>
+    ftStateIn(final VirtualMachineFaultToleranceState... states)
+    {
+        final List<VirtualMachineFaultToleranceState> stateList = Arrays.asList(states);
+        return new Predicate<VirtualMachineFaultToleranceState>() {
+            @Override
+            public boolean test(VirtualMachineFaultToleranceState ftState)
+            {
+                return stateList.contains(ftState);
+            }
+        };
+    }
+
+    /**
+     * Record every FT state update of the watched VMs to the trace, null for none
+     */
+    public void
+    setTrace(FTEventTrace trace)
+    {
+        this.trace = trace;
+    }
+
+    /**
+     * Subscribe to the VM's FT and power state. No-op if the VM is already watched
+     */
+    public void
+    watch(VirtualMachine vmObj) throws Exception
+    {
+        start();
+        if (vmStates.putIfAbsent(vmObj.getMOR().getVal(), new VmState()) == null) {
+            addToView(vmObj.getMOR());
+        }
+    }
+
+    /**
+     * Stop watching the VM, pending waiters of the VM are failed
+     */
+    public void
+    unwatch(VirtualMachine vmObj) throws Exception
+    {
+        String vmKey = vmObj.getMOR().getVal();
+        if (vmStates.remove(vmKey) != null) {
+            removeFromView(vmObj.getMOR());
+        }
+        failWaiters(vmKey, new IllegalStateException("VM " + vmKey + " is no longer watched"));
+    }
+
+    /**
+     * Last reported state of the VM, null if the VM is not watched
+     */
+    public VmState
+    currentState(VirtualMachine vmObj)
+    {
+        return vmStates.get(vmObj.getMOR().getVal());
+    }
+
+    /**
+     * Future completed with the VM's FT state, as soon as that state satisfies the predicate
+     */
+    public CompletableFuture<VirtualMachineFaultToleranceState>
+    when(VirtualMachine vmObj, Predicate<VirtualMachineFaultToleranceState> predicate)
+    {
+        return whenObserved(vmObj, predicate).thenApply(transition -> transition.ftState);
+    }
+
+    /**
+     * Future completed with the FT state satisfying the predicate and the time it was received. If the current
+     * state already satisfies it, the time of the last change is reported
+     */
+    public CompletableFuture<StateTransition>
+    whenObserved(VirtualMachine vmObj, Predicate<VirtualMachineFaultToleranceState> predicate)
+    {
+        String vmKey = vmObj.getMOR().getVal();
+        StateWaiter waiter = new StateWaiter(vmKey, predicate);
+
+        try {
+            watch(vmObj);
+            synchronized (waiters) {
+                VmState vmState = vmStates.get(vmKey);
+                if (vmState != null && vmState.ftState != null && predicate.test(vmState.ftState)) {
+                    waiter.future.complete(new StateTransition(vmState.ftState, vmState.lastChangeNanos));
+                } else {
+                    waiters.add(waiter);
+                }
+            }
+        } catch (Exception e) {
+            waiter.future.completeExceptionally(e);
+        }
+
+        return waiter.future;
+    }
+
+    /**
+     * Stop waiting on a future of whenObserved, e.g. once the operation it waited for has failed or timed out.
+     * The future is cancelled, unless it has completed already
+     */
+    public void
+    cancel(CompletableFuture<StateTransition> stateFuture)
+    {
+        synchronized (waiters) {
+            removeWaiter(stateFuture);
+        }
+        stateFuture.cancel(false);
+    }
+
+    /**
+     * Block until the VM's FT state satisfies the predicate or the deadline passes
+     */
+    public boolean
+    await(VirtualMachine vmObj, Predicate<VirtualMachineFaultToleranceState> predicate, int timeoutSecs)
+        throws Exception
+    {
+        CompletableFuture<StateTransition> stateFuture = whenObserved(vmObj, predicate);
+        try {
+            stateFuture.get(timeoutSecs, TimeUnit.SECONDS);
+            return true;
+        } catch (TimeoutException te) {
+            synchronized (waiters) {
+                removeWaiter(stateFuture);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Number of callers still waiting on a VM's FT state
+     */
+    int
+    waiterCount()
+    {
+        synchronized (waiters) {
+            return waiters.size();
+        }
+    }
+
+    @Override
+    public synchronized void
+    stop()
+    {
+        super.stop();
+        failWaiters(null, new IllegalStateException("FT state watcher stopped"));
+    }
+
+    @Override
+    protected ManagedObjectView
+    createView() throws Exception
+    {
+        return createEmptyListView();
+    }
+
+    @Override
+    protected String
+    objectType()
+    {
+        return FTOps.VM_MOR_TYPE;
+    }
+
+    @Override
+    protected String[]
+    propertyPaths()
+    {
+        return VM_PROPS;
+    }
+
+    @Override
+    protected void
+    handleUpdate(ObjectUpdate objUpdate)
+    {
+        String vmKey = objUpdate.getObj().getVal();
+        VmState vmState = vmStates.get(vmKey);
+        if (vmState == null || objUpdate.getKind().equals(ObjectUpdateKind.leave)
+            || objUpdate.getChangeSet() == null) {
+            return;
+        }
+
+        for (PropertyChange change : objUpdate.getChangeSet()) {
+            if (change.getName().equals(FT_STATE_PROP)) {
+                vmState.ftState = (VirtualMachineFaultToleranceState) change.getVal();
+            } else if (change.getName().equals(POWER_STATE_PROP)) {
+                vmState.powerState = (VirtualMachinePowerState) change.getVal();
+            }
+        }
+        long receivedNanos = System.nanoTime();
+        vmState.lastChangeNanos = receivedNanos;
+        if (trace != null && vmState.ftState != null) {
+            // a power state only update repeats the FT state, and is collapsed into its count
+            trace.record(vmKey, "ftState", vmState.ftState.toString());
+        }
+
+        // Completed outside of the lock - dependent stages run on this thread and may add or remove waiters
+        List<StateWaiter> observed = new ArrayList<StateWaiter>();
+        synchronized (waiters) {
+            Iterator<StateWaiter> waiterItr = waiters.iterator();
+            while (waiterItr.hasNext()) {
+                StateWaiter waiter = waiterItr.next();
+                if (waiter.vmKey.equals(vmKey) && vmState.ftState != null && waiter.predicate.test(vmState.ftState)) {
+                    waiterItr.remove();
+                    observed.add(waiter);
+                }
+            }
+        }
+        for (StateWaiter waiter : observed) {
+            waiter.future.complete(new StateTransition(vmState.ftState, receivedNanos));
+        }
+    }
+
+    @Override
+    protected void
+    streamFailed(Exception cause)
+    {
+        failWaiters(null, cause);
+    }
+
+    private void
+    removeWaiter(CompletableFuture<StateTransition> stateFuture)
+    {
+        Iterator<StateWaiter> waiterItr = waiters.iterator();
+        while (waiterItr.hasNext()) {
+            if (waiterItr.next().future == stateFuture) {
+                waiterItr.remove();
+            }
+        }
+    }
+
+    /**
+     * Fail waiters of the given VM, or of all VMs if vmKey is null
+     */
+    private void
+    failWaiters(String vmKey, Exception cause)
+    {
+        List<StateWaiter> failed = new ArrayList<StateWaiter>();
+        synchronized (waiters) {
+            Iterator<StateWaiter> waiterItr = waiters.iterator();
+            while (waiterItr.hasNext()) {
+                StateWaiter waiter = waiterItr.next();
+                if (vmKey == null || waiter.vmKey.equals(vmKey)) {
+                    waiterItr.remove();
+                    failed.add(waiter);
+                }
+            }
+        }
+        for (StateWaiter waiter : failed) {
+            waiter.future.completeExceptionally(cause);
+        }
+    }
+}
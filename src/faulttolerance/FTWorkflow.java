@@ -0,0 +1,1224 @@
+/**
+ * FT operations on one VM, as an asynchronous state machine
+ * -- Stages: Turn on FT, Power on, Disable Secondary, Enable Secondary, Make Primary (Test Failover), Turn off FT
+ * -- Each stage is individually selectable and bounded by its own timeout
+ * -- Optionally, one deadline for the whole workflow: the remaining budget is split across the stages still to run,
+ *    in proportion to their timeouts. Stages left once it has run out are skipped
+ * -- A task left running by a timed out stage is cancelled (Task.cancelTask), and waited for before moving on
+ * -- A stage is skipped if a stage it depends on was selected and did not succeed
+ * -- Inventory state (power, FT) is restored once all stages are done, driven by task completion and FT state
+ *    updates rather than fixed pauses
+ * -- With a journal, the workflow's start, stage results and end are journaled, for recovery after a crash
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.io.UncheckedIOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.VirtualMachineFaultToleranceState;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.HostSystem;
+import com.vmware.vim25.mo.Task;
+import com.vmware.vim25.mo.VirtualMachine;
+import com.vmware.vim25.ws.SoapFaultException;
+
+import faulttolerance.FTStateWatcher.StateTransition;
+import faulttolerance.TaskTracker.TaskOutcome;
+import faulttolerance.SecondaryVmResolver.SecondaryVm;
+
+public class FTWorkflow
+{
+    private static final String RESTORE_PHASE = "restoreInventoryState";
+    // What vijava's client throws when it takes a response for a SOAP fault it cannot parse - it wraps whatever
+    // the response parsing throws, by message only
+    private static final String UNPARSED_RESPONSE_MESSAGE = "VI SDK invoke exception:"
+        + SoapFaultException.class.getName();
+    // Phase of a task's submit SOAP call and of its latency, e.g. "task.powerOnVM"
+    private static final String TASK_PHASE_PREFIX = "task.";
+    private static final String CANCEL_PHASE = TASK_PHASE_PREFIX + "cancel";
+    // Time for vCenter to end a cancelled task
+    private static final int CANCEL_WAIT_SECS = 60;
+
+    /**
+     * Workflow stages, in execution order
+     */
+    public enum Stage
+    {
+        TURN_ON_FT("turnOnFT", 240, null),
+        POWER_ON("powerOn", 480, TURN_ON_FT),
+        DISABLE_SECONDARY("disableSecondary", 120, POWER_ON),
+        ENABLE_SECONDARY("enableSecondary", 480, DISABLE_SECONDARY),
+        MAKE_PRIMARY("makePrimary", 720, POWER_ON),
+        TURN_OFF_FT("turnOffFT", 240, null);
+
+        private final String cliName;
+        private final int defaultTimeoutSecs;
+        private final Stage dependsOn;
+
+        Stage(String cliName, int defaultTimeoutSecs, Stage dependsOn)
+        {
+            this.cliName = cliName;
+            this.defaultTimeoutSecs = defaultTimeoutSecs;
+            this.dependsOn = dependsOn;
+        }
+
+        public String
+        getCliName()
+        {
+            return cliName;
+        }
+
+        public int
+        getDefaultTimeoutSecs()
+        {
+            return defaultTimeoutSecs;
+        }
+
+        /**
+         * Stage as named on the command line (e.g. "makePrimary")
+         */
+        public static Stage
+        fromCliName(String cliName)
+        {
+            for (Stage stage : values()) {
+                if (stage.cliName.equalsIgnoreCase(cliName.trim())) {
+                    return stage;
+                }
+            }
+            throw new IllegalArgumentException("Unknown FT workflow stage: " + cliName);
+        }
+
+        /**
+         * Comma separated list of stages, e.g. "turnOnFT,powerOn,turnOffFT"
+         */
+        public static EnumSet<Stage>
+        parseList(String cliNames)
+        {
+            EnumSet<Stage> stages = EnumSet.noneOf(Stage.class);
+            for (String cliName : cliNames.split(",")) {
+                stages.add(fromCliName(cliName));
+            }
+            return stages;
+        }
+    }
+
+    /**
+     * Outcome of a stage
+     */
+    public enum StageResult
+    {
+        SUCCEEDED, FAILED, SKIPPED, NOT_SELECTED
+    }
+
+    /**
+     * Timings of one test failover cycle
+     */
+    public static class FailoverCycle
+    {
+        private final int cycle;
+        private final long rtoMillis;
+        private final long unprotectedMillis;
+        private final long reprotectionMillis;
+
+        FailoverCycle(int cycle, long promoteNanos, long promotedNanos, long unprotectedNanos, long reprotectedNanos)
+        {
+            this.cycle = cycle;
+            this.rtoMillis = TimeUnit.NANOSECONDS.toMillis(promotedNanos - promoteNanos);
+            this.unprotectedMillis = TimeUnit.NANOSECONDS.toMillis(reprotectedNanos - unprotectedNanos);
+            this.reprotectionMillis = TimeUnit.NANOSECONDS.toMillis(Math.max(reprotectedNanos - promotedNanos, 0));
+        }
+
+        public int
+        getCycle()
+        {
+            return cycle;
+        }
+
+        /**
+         * Promotion submitted until makePrimaryVM task completed, i.e. the Secondary has taken over
+         */
+        public long
+        getRtoMillis()
+        {
+            return rtoMillis;
+        }
+
+        /**
+         * FT state left running until it was running again, i.e. the pair was not protected
+         */
+        public long
+        getUnprotectedMillis()
+        {
+            return unprotectedMillis;
+        }
+
+        /**
+         * Promotion completed until the new Secondary was running
+         */
+        public long
+        getReprotectionMillis()
+        {
+            return reprotectionMillis;
+        }
+    }
+
+    private final FTWorkflowEngine engine;
+    private final VirtualMachine vmObj;
+    private final String vmName;
+    private final EnumSet<Stage> stages;
+    private final Map<Stage, StageResult> stageResults = new EnumMap<Stage, StageResult>(Stage.class);
+    private final List<FailoverCycle> failoverCycles = new ArrayList<FailoverCycle>();
+
+    private HostSystem secondaryHostSys;
+    private VirtualMachine secondaryVMObj;
+    private long deadlineNanos;
+    // State read in bulk by the caller (recovery), used by the restore instead of reading it again
+    private VirtualMachinePowerState knownPowerState;
+    private VirtualMachineFaultToleranceState knownFtState;
+    private volatile boolean restored;
+    private boolean restoreState = true;
+    // Stage that may issue tasks - cleared when it ends or times out, so that the chain of a timed out stage
+    // stops instead of issuing tasks under a later stage or the restore. Guarded by this, with inFlightTask
+    private volatile Stage activeStage;
+    // Task of the running stage, and its completion as tracked
+    private volatile Task inFlightTask;
+    private volatile CompletableFuture<TaskInfoState> inFlightTaskDone;
+    // FT state waiters of the running stage, cancelled when it ends or times out. Guarded by this
+    private final Set<CompletableFuture<StateTransition>> stageWaiters =
+        new HashSet<CompletableFuture<StateTransition>>();
+
+    /**
+     * Constructor
+     */
+    FTWorkflow(FTWorkflowEngine engine, VirtualMachine vmObj, String vmName, HostSystem secondaryHostSys,
+        EnumSet<Stage> stages)
+    {
+        this.engine = engine;
+        this.vmObj = vmObj;
+        this.vmName = vmName;
+        this.secondaryHostSys = secondaryHostSys;
+        this.stages = stages;
+    }
+
+    /**
+     * VM's power and FT state as just read by the caller, so that the restore does not read them again
+     */
+    FTWorkflow
+    withKnownState(VirtualMachinePowerState powerState, VirtualMachineFaultToleranceState ftState)
+    {
+        this.knownPowerState = powerState;
+        this.knownFtState = ftState;
+        return this;
+    }
+
+    /**
+     * Keep the state the stages leave the VM in, instead of powering it off and turning off FT at the end
+     */
+    FTWorkflow
+    withoutRestore()
+    {
+        this.restoreState = false;
+        return this;
+    }
+
+    /**
+     * Run all stages one after the other, then restore the VM's state (unless kept).
+     * Future completes with true if every selected stage succeeded
+     */
+    CompletableFuture<Boolean>
+    start()
+    {
+        if (engine.getWorkflowDeadline() > 0) {
+            deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(engine.getWorkflowDeadline());
+        }
+        if (!journal(journal -> journal.begun(vmObj.getMOR()))) {
+            logError("Not starting the workflow, as the workflow journal could not be written");
+            return CompletableFuture.completedFuture(false);
+        }
+
+        CompletableFuture<Void> chain = CompletableFuture.completedFuture(null);
+        for (final Stage stage : Stage.values()) {
+            chain = chain.thenComposeAsync(ignored -> advance(stage), engine.executor());
+        }
+
+        return chain
+            .thenComposeAsync(
+                ignored -> restoreState ? restoreInventoryState() : CompletableFuture.completedFuture(true),
+                engine.executor())
+            .handle((stateRestored, failure) -> {
+                try {
+                    engine.ftStateWatcher().unwatch(vmObj);
+                } catch (Exception e) {
+                    // VM was never watched
+                }
+                restored = failure == null && stateRestored;
+                if (restored) {
+                    journal(journal -> journal.done(vmObj.getMOR()));
+                }
+                return succeeded();
+            });
+    }
+
+    /**
+     * True once the workflow has completed and the VM is powered off with FT turned off
+     */
+    boolean
+    isRestored()
+    {
+        return restored;
+    }
+
+    /**
+     * True if the workflow turns on FT, i.e. creates a Secondary VM
+     */
+    boolean
+    turnsOnFT()
+    {
+        return stages.contains(Stage.TURN_ON_FT);
+    }
+
+    /**
+     * True once the workflow has completed, if FT it turned on may still be on - the VM was neither restored nor
+     * had FT turned off by its turnOffFT stage
+     */
+    boolean
+    mayHaveLeftFtOn()
+    {
+        return turnsOnFT() && stageResults.get(Stage.TURN_ON_FT) != StageResult.SKIPPED
+            && !(restoreState && restored) && stageResults.get(Stage.TURN_OFF_FT) != StageResult.SUCCEEDED;
+    }
+
+    /**
+     * Result of each stage, once the workflow has completed
+     */
+    public Map<Stage, StageResult>
+    getStageResults()
+    {
+        return stageResults;
+    }
+
+    /**
+     * Timings of the completed test failover cycles
+     */
+    public List<FailoverCycle>
+    getFailoverCycles()
+    {
+        return failoverCycles;
+    }
+
+    private boolean
+    succeeded()
+    {
+        for (Stage stage : stages) {
+            if (stageResults.get(stage) != StageResult.SUCCEEDED) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Transition into the given stage: run it, skip it or pass over it
+     */
+    private CompletableFuture<Void>
+    advance(final Stage stage)
+    {
+        if (!stages.contains(stage)) {
+            stageResults.put(stage, StageResult.NOT_SELECTED);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        StageResult dependencyResult = stage.dependsOn != null ? stageResults.get(stage.dependsOn) : null;
+        if (dependencyResult == StageResult.FAILED || dependencyResult == StageResult.SKIPPED) {
+            log("Skipping stage " + stage.getCliName() + ", as stage " + stage.dependsOn.getCliName()
+                + " did not succeed");
+            endStage(stage, StageResult.SKIPPED);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        if (deadlineNanos != 0 && System.nanoTime() >= deadlineNanos) {
+            logError("Skipping stage " + stage.getCliName() + ", as the workflow deadline ("
+                + engine.getWorkflowDeadline() + " seconds) has passed");
+            endStage(stage, StageResult.SKIPPED);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        if (engine.journal() != null && engine.journal().isFailed()) {
+            // The run is stopped - the journal would not tell what a crash in this stage left behind
+            logError("Skipping stage " + stage.getCliName() + ", as the workflow journal could not be written");
+            endStage(stage, StageResult.SKIPPED);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final int timeoutSecs = stageAllowanceSecs(stage);
+        final long startNanos = System.nanoTime();
+        synchronized (this) {
+            activeStage = stage;
+        }
+        return engine.withTimeout(runStage(stage), timeoutSecs, "Stage " + stage.getCliName())
+            .handle((stageSucceeded, failure) -> {
+                synchronized (this) {
+                    // From here on, the stage's chain (still running if it timed out) issues no task
+                    activeStage = null;
+                }
+                cancelStageWaiters();
+                if (failure != null) {
+                    Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+                    endStage(stage, StageResult.FAILED);
+                    if (cause instanceof TimeoutException) {
+                        logError(cause.getMessage());
+                        return cancelInFlightTask();
+                    }
+                    logError("Caught an exception in stage " + stage.getCliName() + ": " + cause);
+                } else {
+                    endStage(stage, stageSucceeded ? StageResult.SUCCEEDED : StageResult.FAILED);
+                    if (stageSucceeded) {
+                        recordLatency("stage." + stage.getCliName(), startNanos);
+                    }
+                }
+                return CompletableFuture.<Void>completedFuture(null);
+            })
+            .thenCompose(Function.identity());
+    }
+
+    private void
+    endStage(Stage stage, StageResult result)
+    {
+        stageResults.put(stage, result);
+        journal(journal -> journal.stageEnded(vmObj.getMOR(), stage, result));
+    }
+
+    /**
+     * Write a record to the workflow journal, if there is one. False if it could not be written: the journal has
+     * then failed, and the remaining stages of every workflow are skipped
+     */
+    private boolean
+    journal(Consumer<WorkflowJournal> record)
+    {
+        if (engine.journal() == null) {
+            return true;
+        }
+        try {
+            record.accept(engine.journal());
+            return true;
+        } catch (UncheckedIOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Time bound of the stage - its timeout, and with a workflow deadline, at most its share of the remaining
+     * budget. Shares are in proportion to the timeouts of the stages still to run, so that time left unused by
+     * a quick stage carries over to the later ones
+     */
+    private int
+    stageAllowanceSecs(Stage stage)
+    {
+        int timeoutSecs = stageTimeoutSecs(stage);
+        if (deadlineNanos == 0) {
+            return timeoutSecs;
+        }
+
+        long pendingTimeoutSecs = 0;
+        for (Stage pendingStage : stages) {
+            if (pendingStage.ordinal() >= stage.ordinal()) {
+                pendingTimeoutSecs += stageTimeoutSecs(pendingStage);
+            }
+        }
+        long remainingSecs = TimeUnit.NANOSECONDS.toSeconds(deadlineNanos - System.nanoTime());
+        long shareSecs = pendingTimeoutSecs > 0 ? remainingSecs * timeoutSecs / pendingTimeoutSecs : remainingSecs;
+        return (int) Math.max(Math.min(timeoutSecs, shareSecs), 1);
+    }
+
+    private int
+    stageTimeoutSecs(Stage stage)
+    {
+        return stage == Stage.MAKE_PRIMARY ? engine.getStageTimeout(stage) * engine.getFailoverCycles()
+            : engine.getStageTimeout(stage);
+    }
+
+    /**
+     * Cancel the task a timed out stage left running, so that it stops holding host and vCenter capacity, and
+     * wait until vCenter has ended it, so that the next stage or the restore does not race it
+     */
+    private CompletableFuture<Void>
+    cancelInFlightTask()
+    {
+        return cancelTask(inFlightTask, inFlightTaskDone);
+    }
+
+    private CompletableFuture<Void>
+    cancelTask(final Task task, final CompletableFuture<TaskInfoState> taskDone)
+    {
+        if (task == null || taskDone == null || taskDone.isDone()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        log("Cancelling task " + task.getMOR().getVal() + " left running by the timed out stage");
+        final long startNanos = System.nanoTime();
+        return engine.callAsync(CANCEL_PHASE, () -> {
+            task.cancelTask();
+            return null;
+        })
+            .thenCompose(ignored -> engine.withTimeout(taskDone, CANCEL_WAIT_SECS, "Cancelled task"))
+            .handle((taskState, failure) -> {
+                if (failure != null) {
+                    Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+                    logError("Could not cancel task " + task.getMOR().getVal() + ": " + cause);
+                } else {
+                    recordLatency(CANCEL_PHASE, startNanos);
+                    log("Task " + task.getMOR().getVal() + " ended after cancellation");
+                }
+                return null;
+            });
+    }
+
+    private CompletableFuture<Boolean>
+    runStage(Stage stage)
+    {
+        switch (stage) {
+        case TURN_ON_FT:
+            return turnOnFT();
+        case POWER_ON:
+            return powerOn();
+        case DISABLE_SECONDARY:
+            return disableSecondary();
+        case ENABLE_SECONDARY:
+            return enableSecondary();
+        case MAKE_PRIMARY:
+            return makePrimary();
+        case TURN_OFF_FT:
+            return turnOffFT();
+        default:
+            throw new IllegalArgumentException("Unknown stage " + stage);
+        }
+    }
+
+    /**
+     * Enable FT, monitor for secondary vm creation
+     */
+    private CompletableFuture<Boolean>
+    turnOnFT()
+    {
+        log("\n* * * * Turning on FT on VM: " + vmName + " * * * *");
+        return submitAndMonitor(Stage.TURN_ON_FT, "createSecondaryVM",
+            () -> vmObj.createSecondaryVM_Task(secondaryHostSys))
+            .thenApply(ftTurnedOn -> {
+                if (ftTurnedOn) {
+                    log("Successfully Turned on FT");
+                } else {
+                    logError("Failed to Turn on FT");
+                }
+                return ftTurnedOn;
+            });
+    }
+
+    /**
+     * Power on FT VM, monitor for Secondary VM power state and FT Pair protection state
+     */
+    private CompletableFuture<Boolean>
+    powerOn()
+    {
+        return submitAndMonitor(Stage.POWER_ON, "powerOnVM", () -> vmObj.powerOnVM_Task(null))
+            .thenComposeAsync(poweredOn -> {
+                if (!poweredOn) {
+                    logError("Failed to Power on FT VM");
+                    return CompletableFuture.completedFuture(false);
+                }
+                log("FT Primary VM successfully powered on");
+                log("Now Monitor for its secondary VM");
+                return waitForFTProtectionState(Stage.POWER_ON).thenApply(ftProtected -> {
+                    if (ftProtected) {
+                        log("FT Pair is successfully powered on");
+                        logFTState();
+                    } else {
+                        logError("Failed to Power on Secondary VM");
+                    }
+                    return ftProtected;
+                });
+            }, engine.executor());
+    }
+
+    /**
+     * Disable Secondary VM
+     */
+    private CompletableFuture<Boolean>
+    disableSecondary()
+    {
+        log("\n* * * * Disable Secondary VM of FT VM " + vmName + " * * * *");
+        return resolveSecondary()
+            .thenComposeAsync(resolved -> {
+                if (!resolved) {
+                    return CompletableFuture.completedFuture(false);
+                }
+                return submitAndMonitor(Stage.DISABLE_SECONDARY, "disableSecondaryVM",
+                    () -> vmObj.disableSecondaryVM_Task(secondaryVMObj));
+            }, engine.executor())
+            .thenApply(disabled -> {
+                if (disabled) {
+                    log("Successfully disabled Secondary VM");
+                    logFTState();
+                }
+                return disabled;
+            });
+    }
+
+    /**
+     * Enable Secondary VM, monitor for FT Pair protection state to restore (i.e enabled and running)
+     */
+    private CompletableFuture<Boolean>
+    enableSecondary()
+    {
+        log("\n* * * * Enable Secondary VM of FT VM " + vmName + " * * * *");
+        return resolveSecondary()
+            .thenComposeAsync(resolved -> {
+                if (!resolved) {
+                    return CompletableFuture.completedFuture(false);
+                }
+                return submitAndMonitor(Stage.ENABLE_SECONDARY, "enableSecondaryVM",
+                    () -> vmObj.enableSecondaryVM_Task(secondaryVMObj, secondaryHostSys));
+            }, engine.executor())
+            .thenComposeAsync(enabled -> {
+                if (!enabled) {
+                    return CompletableFuture.completedFuture(false);
+                }
+                return waitForFTProtectionState(Stage.ENABLE_SECONDARY).thenApply(ftProtected -> {
+                    if (ftProtected) {
+                        log("Successfully enabled Secondary VM");
+                        logFTState();
+                    } else {
+                        logError("Failed to Enable Secondary VM");
+                    }
+                    return ftProtected;
+                });
+            }, engine.executor());
+    }
+
+    /**
+     * Promote Secondary to Primary VM ('Test Failover'), monitor FT Pair protection state.
+     * Repeated on the same FT pair as many times as the engine's failover cycles
+     */
+    private CompletableFuture<Boolean>
+    makePrimary()
+    {
+        final int totalCycles = engine.getFailoverCycles();
+        CompletableFuture<Boolean> cyclesDone = CompletableFuture.completedFuture(true);
+        for (int i = 1; i <= totalCycles; i++) {
+            final int cycle = i;
+            cyclesDone = cyclesDone.thenComposeAsync(previousSucceeded -> {
+                if (!previousSucceeded || isAbandoned(Stage.MAKE_PRIMARY)) {
+                    return CompletableFuture.completedFuture(false);
+                }
+                return failoverCycle(cycle, totalCycles);
+            }, engine.executor());
+        }
+
+        return cyclesDone.thenApply(allSucceeded -> {
+            if (totalCycles > 1 && !isAbandoned(Stage.MAKE_PRIMARY)) {
+                printFailoverReport();
+            }
+            return allSucceeded;
+        });
+    }
+
+    /**
+     * One promote -> starting/needSecondary -> running cycle, timed from the task and FT state update streams
+     */
+    private CompletableFuture<Boolean>
+    failoverCycle(final int cycle, int totalCycles)
+    {
+        log("\n* * * * Promote Secondary VM to Primary VM  (Test Failover)"
+            + (totalCycles > 1 ? " - cycle " + cycle + " of " + totalCycles : "") + " * * * *");
+        if (cycle > 1) {
+            // A new Secondary is created after every failover
+            secondaryVMObj = null;
+        }
+
+        return resolveSecondary()
+            .thenComposeAsync(resolved -> {
+                if (!resolved || isAbandoned(Stage.MAKE_PRIMARY)) {
+                    return CompletableFuture.completedFuture(false);
+                }
+
+                // Registered before the promotion, so a quick failover is not missed
+                final CompletableFuture<StateTransition> leftRunning = whenFTState(Stage.MAKE_PRIMARY,
+                    VirtualMachineFaultToleranceState.starting, VirtualMachineFaultToleranceState.needSecondary);
+                final long promoteNanos = System.nanoTime();
+
+                return submitAndTrack(Stage.MAKE_PRIMARY, "makePrimaryVM",
+                    () -> vmObj.makePrimaryVM_Task(secondaryVMObj))
+                    .thenComposeAsync(promotion -> {
+                        if (!promotion.isSucceeded() || isAbandoned(Stage.MAKE_PRIMARY)) {
+                            return CompletableFuture.completedFuture(false);
+                        }
+                        // When the task tracker received the completion, not when this continuation got to run
+                        final long promotedNanos = promotion.getObservedNanos();
+
+                        // Check if failover started
+                        return waitForFailover(leftRunning).thenComposeAsync(unprotectedNanos -> {
+                            if (isAbandoned(Stage.MAKE_PRIMARY)) {
+                                return CompletableFuture.completedFuture(false);
+                            }
+                            log("Now, wait for secondary to come up");
+                            return waitForFTProtection(Stage.MAKE_PRIMARY).thenApply(reprotectedNanos -> {
+                                if (isAbandoned(Stage.MAKE_PRIMARY)) {
+                                    return false;
+                                }
+                                log("Successfully Promoted Secondary to Primary VM");
+                                logFTState();
+                                recordFailoverCycle(new FailoverCycle(cycle, promoteNanos, promotedNanos,
+                                    unprotectedNanos, reprotectedNanos));
+                                return true;
+                            });
+                        }, engine.executor());
+                    }, engine.executor())
+                    // Promotion failed or was abandoned: the failover is no longer waited for
+                    .whenComplete((promoted, failure) -> engine.ftStateWatcher().cancel(leftRunning));
+            }, engine.executor());
+    }
+
+    /**
+     * Turn off FT on VM, if it is (still) enabled
+     */
+    private CompletableFuture<Boolean>
+    turnOffFT()
+    {
+        log("\n* * * * Turn off FT on VM  * * * *");
+        return engine.callAsync("readFTState", () -> currentFTState())
+            .thenComposeAsync(vmFtState -> {
+                if (!isFTEnabled(vmFtState)) {
+                    return CompletableFuture.completedFuture(true);
+                }
+                return turnOffFaultTolerance(Stage.TURN_OFF_FT)
+                    .thenApply(turnedOff -> {
+                        if (turnedOff) {
+                            log("Successfully Turned off FT on VM");
+                        } else {
+                            logError("Failed to turn off FT");
+                        }
+                        return turnedOff;
+                    });
+            }, engine.executor());
+    }
+
+    /**
+     * Restore VM's State - Power off the VM and Turn off FT. Each step starts as soon as the previous one's task
+     * has completed. Future completes with true if the VM was left powered off with FT turned off
+     */
+    private CompletableFuture<Boolean>
+    restoreInventoryState()
+    {
+        log("\n* * * * Restore VM State  * * * *");
+        final long startNanos = System.nanoTime();
+        return readPowerState()
+            .thenComposeAsync(powerState -> {
+                // Check power state and Power off VM
+                if (!VirtualMachinePowerState.poweredOn.equals(powerState)) {
+                    return CompletableFuture.completedFuture(true);
+                }
+                return monitorTask("powerOffVM",
+                    engine.callAsync(TASK_PHASE_PREFIX + "powerOffVM", () -> vmObj.powerOffVM_Task()),
+                    Stage.TURN_OFF_FT, null)
+                    .thenApply(poweredOff -> {
+                        if (poweredOff) {
+                            log("Successfully powered off the VM");
+                        }
+                        return poweredOff;
+                    });
+            }, engine.executor())
+            .thenComposeAsync(poweredOff -> {
+                if (!poweredOff) {
+                    return CompletableFuture.completedFuture(false);
+                }
+                return readFTState().thenComposeAsync(vmFtState -> {
+                    // Turn off FT
+                    if (!isFTConfigured(vmFtState)) {
+                        return CompletableFuture.completedFuture(true);
+                    }
+                    return turnOffFaultTolerance(null).thenApply(turnedOff -> {
+                        if (turnedOff) {
+                            log("Successfully Turned off FT on VM");
+                        }
+                        return turnedOff;
+                    });
+                }, engine.executor());
+            }, engine.executor())
+            .handle((stateRestored, failure) -> {
+                if (failure != null || !stateRestored) {
+                    logError("Caught exception while restoring VM state. Pls check and restore the state");
+                    return cancelInFlightTask().thenApply(ignored -> false);
+                }
+                recordLatency(RESTORE_PHASE, startNanos);
+                return CompletableFuture.completedFuture(true);
+            })
+            .thenCompose(Function.identity());
+    }
+
+    /**
+     * Power state for the restore - as known by the caller, else read from the VM
+     */
+    private CompletableFuture<VirtualMachinePowerState>
+    readPowerState()
+    {
+        if (knownPowerState != null) {
+            return CompletableFuture.completedFuture(knownPowerState);
+        }
+        // FT state is read along, for the turn off FT step that follows
+        return engine.callAsync(RESTORE_PHASE, () -> (VirtualMachinePowerState) engine.properties()
+            .getAll(vmObj.getMOR(), FTStateWatcher.POWER_STATE_PROP, FTStateWatcher.FT_STATE_PROP)
+            .get(FTStateWatcher.POWER_STATE_PROP));
+    }
+
+    /**
+     * FT state for the restore - as known by the caller (a power off does not change whether FT is configured),
+     * else read from the VM
+     */
+    private CompletableFuture<VirtualMachineFaultToleranceState>
+    readFTState()
+    {
+        if (knownFtState != null) {
+            return CompletableFuture.completedFuture(knownFtState);
+        }
+        return engine.callAsync(RESTORE_PHASE, () -> currentFTState());
+    }
+
+    /**
+     * Turn off FT and wait for it to be done. vijava fails to parse the response of
+     * TurnOffFaultToleranceForVM_Task (any element named *Fault* is taken as a SOAP fault), after vCenter has
+     * accepted the call; the task reference is then lost, and the VM's FT state tells when FT is off. Any other
+     * failure of the call is reported as is
+     */
+    private CompletableFuture<Boolean>
+    turnOffFaultTolerance(final Stage ownerStage)
+    {
+        // Registered before the call, so a quick turn off is not missed
+        final CompletableFuture<StateTransition> ftTurnedOff = engine.ftStateWatcher().whenObserved(vmObj,
+            FTStateWatcher.ftStateIn(VirtualMachineFaultToleranceState.notConfigured));
+        return engine.callAsync(TASK_PHASE_PREFIX + "turnOffFaultTolerance", () -> {
+            checkActive(ownerStage);
+            return vmObj.turnOffFaultToleranceForVM_Task();
+        })
+            .handle((taskRef, failure) -> {
+                if (failure == null) {
+                    return monitorTask("turnOffFaultTolerance", CompletableFuture.completedFuture(taskRef),
+                        Stage.TURN_OFF_FT, ownerStage);
+                }
+                if (!isUnparsedTurnOffResponse(failure)) {
+                    // vCenter refused the call (e.g. InvalidState), FT will not be turned off
+                    CompletableFuture<Boolean> refused = new CompletableFuture<Boolean>();
+                    refused.completeExceptionally(failure);
+                    return refused;
+                }
+                log("Could not read the turn off FT task, waiting for FT state notConfigured instead");
+                return engine.withTimeout(ftTurnedOff, engine.getStageTimeout(Stage.TURN_OFF_FT), "Turn off FT")
+                    .thenApply(transition -> {
+                        engine.properties().invalidate(vmObj.getMOR());
+                        return true;
+                    });
+            })
+            .thenCompose(Function.identity())
+            // Not needed once the task is monitored, the call is refused, or the wait timed out
+            .whenComplete((turnedOff, failure) -> engine.ftStateWatcher().cancel(ftTurnedOff));
+    }
+
+    /**
+     * True if the failure is vijava failing to parse the TurnOffFaultToleranceForVM_Task response: the response
+     * element's name contains "Fault", so it is taken for a SOAP fault, with neither fault code nor detail. A
+     * fault raised by vCenter has a fault code, or is thrown as the vim25 fault of its detail (e.g. InvalidState)
+     */
+    static boolean
+    isUnparsedTurnOffResponse(Throwable failure)
+    {
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause()
+            : failure;
+        if (cause instanceof SoapFaultException) {
+            return ((SoapFaultException) cause).getFaultCode() == null;
+        }
+        return cause instanceof RemoteException && UNPARSED_RESPONSE_MESSAGE.equals(cause.getMessage());
+    }
+
+    /**
+     * Submit the stage's task on the engine's executor and monitor it until completion. Fails without submitting
+     * if the stage is no longer active (timed out)
+     */
+    private CompletableFuture<Boolean>
+    submitAndMonitor(Stage ownerStage, String taskPhase, Callable<Task> taskSubmitter)
+    {
+        return submitAndTrack(ownerStage, taskPhase, taskSubmitter).thenApply(TaskOutcome::isSucceeded);
+    }
+
+    /**
+     * Submit the stage's task and monitor it, as submitAndMonitor(). Future completes with the task's outcome
+     */
+    private CompletableFuture<TaskOutcome>
+    submitAndTrack(final Stage ownerStage, String taskPhase, final Callable<Task> taskSubmitter)
+    {
+        return trackTask(taskPhase, engine.callAsync(TASK_PHASE_PREFIX + taskPhase, () -> {
+            checkActive(ownerStage);
+            return taskSubmitter.call();
+        }), null, ownerStage);
+    }
+
+    /**
+     * True if the stage is no longer the active one, i.e. it ended or timed out
+     */
+    private boolean
+    isAbandoned(Stage stage)
+    {
+        return activeStage != stage;
+    }
+
+    /**
+     * Fail if the owner stage is no longer active. Tasks without an owner stage (the restore's) always pass
+     */
+    private void
+    checkActive(Stage ownerStage)
+    {
+        if (ownerStage != null && isAbandoned(ownerStage)) {
+            throw new CancellationException("Stage " + ownerStage.getCliName() + " timed out, not issuing its task");
+        }
+    }
+
+    /**
+     * Make the task the in flight one, to be cancelled if its stage times out. False if the owner stage is no
+     * longer active (it timed out as the task was submitted), the task is then left to the caller
+     */
+    private synchronized boolean
+    trackInFlight(Stage ownerStage, Task taskRef, CompletableFuture<TaskInfoState> taskDone)
+    {
+        if (ownerStage != null && isAbandoned(ownerStage)) {
+            return false;
+        }
+        inFlightTask = taskRef;
+        inFlightTaskDone = taskDone;
+        return true;
+    }
+
+    /**
+     * Monitor the task state. Restore path bounds its own tasks with the given stage's timeout, and has no
+     * owner stage. Latency is taken from the task submission to its completion
+     */
+    private CompletableFuture<Boolean>
+    monitorTask(String taskPhase, CompletableFuture<Task> submittedTask, Stage boundingStage, Stage ownerStage)
+    {
+        return trackTask(taskPhase, submittedTask, boundingStage, ownerStage).thenApply(TaskOutcome::isSucceeded);
+    }
+
+    /**
+     * Monitor the task state, as monitorTask(). Future completes with the task's outcome
+     */
+    private CompletableFuture<TaskOutcome>
+    trackTask(final String taskPhase, CompletableFuture<Task> submittedTask, Stage boundingStage,
+        final Stage ownerStage)
+    {
+        final long startNanos = System.nanoTime();
+        CompletableFuture<TaskOutcome> taskDone = submittedTask
+            .thenCompose(taskRef -> {
+                CompletableFuture<TaskOutcome> tracked = engine.taskTracker().trackOutcome(taskRef);
+                CompletableFuture<TaskInfoState> trackedState = tracked.thenApply(TaskOutcome::getState);
+                if (!trackInFlight(ownerStage, taskRef, trackedState)) {
+                    // Submitted as its stage timed out, after the stage's in flight task was cancelled
+                    return cancelTask(taskRef, trackedState).<TaskOutcome>thenApply(ignored -> {
+                        throw new CancellationException("Stage " + ownerStage.getCliName() + " timed out");
+                    });
+                }
+                progress(taskPhase, "submitted", "Wait for the task to complete");
+                return tracked;
+            })
+            .thenApply(outcome -> {
+                TaskInfoState taskState = outcome.getState();
+                // A power off does not change whether FT is configured (all the restore reads next), other
+                // tasks may change the FT state
+                if (taskPhase.equals("powerOffVM")) {
+                    engine.properties().invalidate(vmObj.getMOR(), FTStateWatcher.POWER_STATE_PROP);
+                } else {
+                    engine.properties().invalidate(vmObj.getMOR());
+                }
+                if (taskState.equals(TaskInfoState.success)) {
+                    recordLatency(TASK_PHASE_PREFIX + taskPhase, startNanos);
+                    progress(taskPhase, taskState.toString(), "Task succeeded");
+                    return outcome;
+                }
+                progress(taskPhase, taskState.toString(), null);
+                logError("Task Failed: " + outcome.getErrorMessage());
+                return outcome;
+            });
+
+        if (boundingStage != null) {
+            taskDone = engine.withTimeout(taskDone, engine.getStageTimeout(boundingStage), "Task");
+        }
+        return taskDone;
+    }
+
+    /**
+     * Wait until VM's FT state turns to Running (i.e. Secondary VM is up and FT Pair is protected)
+     */
+    private CompletableFuture<Boolean>
+    waitForFTProtectionState(Stage ownerStage)
+    {
+        return waitForFTProtection(ownerStage).thenApply(observedNanos -> true);
+    }
+
+    /**
+     * Wait until VM's FT state turns to Running. Future completes with the time the state was received
+     */
+    private CompletableFuture<Long>
+    waitForFTProtection(Stage ownerStage)
+    {
+        progress("waitForFTProtection", "waiting", "Wait for Secondary VM to reach running state");
+        final long startNanos = System.nanoTime();
+        return whenFTState(ownerStage, VirtualMachineFaultToleranceState.running)
+            .thenApply(transition -> {
+                recordLatency("waitForFTProtection", startNanos);
+                progress("waitForFTProtection", transition.getFtState().toString(), "Secondary VM is running now");
+                return transition.getObservedNanos();
+            });
+    }
+
+    /**
+     * Wait for the VM's FT state, on behalf of the stage. The waiter is cancelled when the stage ends or times
+     * out - right away if it already has - so that an abandoned chain does not leave it with the FT state watcher
+     */
+    private CompletableFuture<StateTransition>
+    whenFTState(Stage ownerStage, VirtualMachineFaultToleranceState... ftStates)
+    {
+        CompletableFuture<StateTransition> waiter = engine.ftStateWatcher().whenObserved(vmObj,
+            FTStateWatcher.ftStateIn(ftStates));
+        synchronized (this) {
+            if (!isAbandoned(ownerStage)) {
+                stageWaiters.add(waiter);
+                waiter.whenComplete((transition, failure) -> removeStageWaiter(waiter));
+                return waiter;
+            }
+        }
+        engine.ftStateWatcher().cancel(waiter);
+        return waiter;
+    }
+
+    private synchronized void
+    removeStageWaiter(CompletableFuture<StateTransition> waiter)
+    {
+        stageWaiters.remove(waiter);
+    }
+
+    /**
+     * Stop the FT state waiters of the stage that just ended or timed out
+     */
+    private void
+    cancelStageWaiters()
+    {
+        List<CompletableFuture<StateTransition>> waiters;
+        synchronized (this) {
+            waiters = new ArrayList<CompletableFuture<StateTransition>>(stageWaiters);
+            stageWaiters.clear();
+        }
+        for (CompletableFuture<StateTransition> waiter : waiters) {
+            engine.ftStateWatcher().cancel(waiter);
+        }
+    }
+
+    /**
+     * Wait until VM's FT state turns to Starting / NeedSecondary. Future completes with the time the state was
+     * received, which can be before this call if the waiter was registered earlier
+     */
+    private CompletableFuture<Long>
+    waitForFailover(CompletableFuture<StateTransition> leftRunning)
+    {
+        progress("waitForFailover", "waiting", "Wait for Secondary VM to go-into 'starting/needSecondary' state");
+        final long startNanos = System.nanoTime();
+        return leftRunning.thenApply(transition -> {
+            recordLatency("waitForFailover", startNanos);
+            progress("waitForFailover", transition.getFtState().toString(), "Secondary VM is not in running state now");
+            return transition.getObservedNanos();
+        });
+    }
+
+    /**
+     * Get Secondary VM reference, and the host it currently runs on (once per workflow)
+     */
+    private CompletableFuture<Boolean>
+    resolveSecondary()
+    {
+        if (secondaryVMObj != null) {
+            return CompletableFuture.completedFuture(true);
+        }
+        return engine.callAsync("resolveSecondary", () -> {
+            SecondaryVm secondaryVm = new SecondaryVmResolver(engine.serviceInstance(), engine.vmIndex(),
+                engine.properties())
+                .resolve(vmObj);
+            if (secondaryVm == null) {
+                logError("Could not obtain Secondary VM's reference object");
+                return false;
+            }
+            secondaryVMObj = secondaryVm.getVm();
+            if (secondaryVm.getHost() != null) {
+                secondaryHostSys = secondaryVm.getHost();
+            }
+            return true;
+        });
+    }
+
+    private void
+    recordFailoverCycle(FailoverCycle failoverCycle)
+    {
+        failoverCycles.add(failoverCycle);
+        engine.metrics().recordLatency("failover.rto", failoverCycle.rtoMillis);
+        engine.metrics().recordLatency("failover.unprotectedWindow", failoverCycle.unprotectedMillis);
+        engine.metrics().recordLatency("failover.reprotection", failoverCycle.reprotectionMillis);
+        log(String.format("Failover cycle %d: RTO %.3f s, unprotected %.3f s, reprotection %.3f s",
+            failoverCycle.cycle, failoverCycle.rtoMillis / 1000.0, failoverCycle.unprotectedMillis / 1000.0,
+            failoverCycle.reprotectionMillis / 1000.0));
+    }
+
+    /**
+     * RTO / unprotected window / reprotection time distribution over all completed cycles
+     */
+    private void
+    printFailoverReport()
+    {
+        List<Long> rtos = new ArrayList<Long>();
+        List<Long> unprotectedWindows = new ArrayList<Long>();
+        List<Long> reprotections = new ArrayList<Long>();
+        for (FailoverCycle failoverCycle : failoverCycles) {
+            rtos.add(failoverCycle.rtoMillis);
+            unprotectedWindows.add(failoverCycle.unprotectedMillis);
+            reprotections.add(failoverCycle.reprotectionMillis);
+        }
+
+        engine.out().println("\n-------------------------------------------------------------------");
+        engine.out().println("Test Failover of " + vmName + ": " + failoverCycles.size() + " cycle(s) completed");
+        engine.out().println("-------------------------------------------------------------------");
+        engine.out().println(String.format("%-20s %10s %10s %10s %10s %10s", "(seconds)", "min", "p50", "p95", "p99",
+            "max"));
+        printDistribution("RTO", rtos);
+        printDistribution("Unprotected window", unprotectedWindows);
+        printDistribution("Reprotection", reprotections);
+        engine.out().println("-------------------------------------------------------------------");
+    }
+
+    private void
+    printDistribution(String measure, List<Long> millis)
+    {
+        if (millis.isEmpty()) {
+            return;
+        }
+        Collections.sort(millis);
+        engine.out().println(String.format("%-20s %10.3f %10.3f %10.3f %10.3f %10.3f", measure, millis.get(0) / 1000.0,
+            nearestRank(millis, 0.50) / 1000.0, nearestRank(millis, 0.95) / 1000.0,
+            nearestRank(millis, 0.99) / 1000.0, millis.get(millis.size() - 1) / 1000.0));
+    }
+
+    private static long
+    nearestRank(List<Long> sortedMillis, double quantile)
+    {
+        int rank = (int) Math.ceil(quantile * sortedMillis.size());
+        return sortedMillis.get(Math.max(rank, 1) - 1);
+    }
+
+    private VirtualMachineFaultToleranceState
+    currentFTState() throws Exception
+    {
+        return engine.properties().getFTState(vmObj);
+    }
+
+    /**
+     * FT is configured on the VM, in any state (e.g. also with the Secondary disabled or still starting)
+     */
+    private static boolean
+    isFTConfigured(VirtualMachineFaultToleranceState vmFtState)
+    {
+        return vmFtState != null && !VirtualMachineFaultToleranceState.notConfigured.equals(vmFtState);
+    }
+
+    private static boolean
+    isFTEnabled(VirtualMachineFaultToleranceState vmFtState)
+    {
+        return VirtualMachineFaultToleranceState.enabled.equals(vmFtState)
+            || VirtualMachineFaultToleranceState.running.equals(vmFtState);
+    }
+
+    /**
+     * FT state as last reported to the watcher
+     */
+    private void
+    logFTState()
+    {
+        FTStateWatcher.VmState vmState = engine.ftStateWatcher().currentState(vmObj);
+        log("VM FT State: " + (vmState != null ? vmState.getFtState() : "unknown"));
+    }
+
+    private void
+    recordLatency(String phase, long startNanos)
+    {
+        engine.metrics().recordLatency(phase, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Progress of a wait - recorded to the event trace if there is one, printed otherwise (if there is a message)
+     */
+    private void
+    progress(String phase, String state, String msg)
+    {
+        FTEventTrace trace = engine.trace();
+        if (trace != null) {
+            trace.record(vmObj.getMOR().getVal(), phase, state);
+        } else if (msg != null) {
+            log(msg);
+        }
+    }
+
+    private void
+    log(String msg)
+    {
+        engine.out().println(msg.startsWith("\n") ? msg : "[" + vmName + "] " + msg);
+    }
+
+    private void
+    logError(String msg)
+    {
+        engine.err().println("[" + vmName + "] " + msg);
+    }
+}
@@ -0,0 +1,350 @@
+/**
+ * Shared runtime for asynchronous FT workflows
+ * -- One small executor issues the vSphere API calls of all workflows (task submission, property reads)
+ * -- Waiting is done on futures completed by the task tracker / FT state watcher, so no thread is parked per VM
+ * -- One scheduler thread enforces stage deadlines and delays
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.vmware.vim25.VirtualMachineFaultToleranceState;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.HostSystem;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.VirtualMachine;
+
+import faulttolerance.FTWorkflow.Stage;
+
+public class FTWorkflowEngine
+{
+    public static final int DEFAULT_WORKFLOW_THREADS = 4;
+
+    private final ServiceInstance si;
+    private final TaskTracker taskTracker;
+    private final FTStateWatcher ftStateWatcher;
+    private final VmIndex vmIndex;
+    private final FTMetrics metrics;
+    private final PropertyReader propertyReader;
+    private final ExecutorService apiExecutor;
+    private final ScheduledExecutorService timerExecutor;
+    private final Map<Stage, Integer> stageTimeouts = new EnumMap<Stage, Integer>(Stage.class);
+    private int failoverCycles = 1;
+    private int workflowDeadlineSecs;
+    private WorkflowJournal journal;
+    private FTEventTrace trace;
+    private PrintStream out = System.out;
+    private PrintStream err = System.err;
+
+    /**
+     * Constructor
+     */
+    public FTWorkflowEngine(ServiceInstance si, TaskTracker taskTracker, FTStateWatcher ftStateWatcher,
+        VmIndex vmIndex, FTMetrics metrics, int workflowThreads)
+    {
+        this.si = si;
+        this.taskTracker = taskTracker;
+        this.ftStateWatcher = ftStateWatcher;
+        this.vmIndex = vmIndex;
+        this.metrics = metrics;
+        this.propertyReader = new PropertyReader(si, PropertyReader.DEFAULT_TTL_MILLIS);
+        this.apiExecutor = Executors.newFixedThreadPool(workflowThreads, daemonThreads("ft-workflow"));
+        this.timerExecutor = Executors.newSingleThreadScheduledExecutor(daemonThreads("ft-workflow-timer"));
+
+        for (Stage stage : Stage.values()) {
+            stageTimeouts.put(stage, stage.getDefaultTimeoutSecs());
+        }
+    }
+
+    /**
+     * Override the time bound of a stage
+     */
+    public void
+    setStageTimeout(Stage stage, int timeoutSecs)
+    {
+        stageTimeouts.put(stage, timeoutSecs);
+    }
+
+    public int
+    getStageTimeout(Stage stage)
+    {
+        return stageTimeouts.get(stage);
+    }
+
+    /**
+     * Time the workflows' VM property reads are cached for
+     */
+    public void
+    setPropertyTtl(int ttlMillis)
+    {
+        propertyReader.setTtl(ttlMillis);
+    }
+
+    /**
+     * Number of promote -> reprotect cycles run by the makePrimary stage (its timeout applies to each cycle)
+     */
+    public void
+    setFailoverCycles(int failoverCycles)
+    {
+        this.failoverCycles = Math.max(failoverCycles, 1);
+    }
+
+    public int
+    getFailoverCycles()
+    {
+        return failoverCycles;
+    }
+
+    /**
+     * End-to-end time budget of each VM's workflow, split across its stages (0 for none - stage timeouts only)
+     */
+    public void
+    setWorkflowDeadline(int deadlineSecs)
+    {
+        this.workflowDeadlineSecs = Math.max(deadlineSecs, 0);
+    }
+
+    public int
+    getWorkflowDeadline()
+    {
+        return workflowDeadlineSecs;
+    }
+
+    /**
+     * Journal the workflows' transitions to, null for none
+     */
+    public void
+    setJournal(WorkflowJournal journal)
+    {
+        this.journal = journal;
+    }
+
+    /**
+     * Record the workflows' progress events to the trace instead of printing them, null to print them
+     */
+    public void
+    setTrace(FTEventTrace trace)
+    {
+        this.trace = trace;
+    }
+
+    /**
+     * Print the workflows' output to out/err instead of System.out/System.err
+     */
+    public void
+    setConsole(PrintStream out, PrintStream err)
+    {
+        this.out = out;
+        this.err = err;
+    }
+
+    /**
+     * Start the selected stages of the FT workflow on the VM. Future completes with true if every stage succeeded
+     */
+    public CompletableFuture<Boolean>
+    run(VirtualMachine vmObj, String vmName, HostSystem secondaryHostSys, EnumSet<Stage> stages)
+    {
+        return newWorkflow(vmObj, vmName, secondaryHostSys, stages).start();
+    }
+
+    /**
+     * FT workflow of the selected stages on the VM, not started yet
+     */
+    FTWorkflow
+    newWorkflow(VirtualMachine vmObj, String vmName, HostSystem secondaryHostSys, EnumSet<Stage> stages)
+    {
+        return new FTWorkflow(this, vmObj, vmName, secondaryHostSys, stages);
+    }
+
+    /**
+     * Only restore the VM's inventory state (power off, turn off FT), from its power and FT state as just read.
+     * Future completes with true if the VM was left powered off with FT turned off
+     */
+    public CompletableFuture<Boolean>
+    rollback(VirtualMachine vmObj, String vmName, VirtualMachinePowerState powerState,
+        VirtualMachineFaultToleranceState ftState)
+    {
+        final FTWorkflow workflow = new FTWorkflow(this, vmObj, vmName, null, EnumSet.noneOf(Stage.class))
+            .withKnownState(powerState, ftState);
+        return workflow.start().thenApply(ignored -> workflow.isRestored());
+    }
+
+    /**
+     * Stop the engine's threads. Workflows still running are abandoned
+     */
+    public void
+    shutdown()
+    {
+        apiExecutor.shutdownNow();
+        timerExecutor.shutdownNow();
+    }
+
+    /**
+     * Run a (blocking) vSphere API call on the engine's executor, its SOAP calls counted against the given phase
+     */
+    <T> CompletableFuture<T>
+    callAsync(String phase, Callable<T> call)
+    {
+        final Callable<T> apiCall = phase != null ? metrics.inPhase(phase, call) : call;
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        apiExecutor.execute(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    result.complete(apiCall.call());
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Future failing with a TimeoutException if the given future does not complete within the deadline
+     */
+    <T> CompletableFuture<T>
+    withTimeout(CompletableFuture<T> future, final int timeoutSecs, final String what)
+    {
+        final CompletableFuture<T> bounded = new CompletableFuture<T>();
+        final ScheduledFuture<?> timer = timerExecutor.schedule(new Runnable() {
+            @Override
+            public void run()
+            {
+                bounded.completeExceptionally(
+                    new TimeoutException(what + " did not complete within " + timeoutSecs + " seconds"));
+            }
+        }, timeoutSecs, TimeUnit.SECONDS);
+
+        future.whenComplete((value, failure) -> {
+            timer.cancel(false);
+            if (failure != null) {
+                bounded.completeExceptionally(failure);
+            } else {
+                bounded.complete(value);
+            }
+        });
+        return bounded;
+    }
+
+    ExecutorService
+    executor()
+    {
+        return apiExecutor;
+    }
+
+    FTMetrics
+    metrics()
+    {
+        return metrics;
+    }
+
+    PropertyReader
+    properties()
+    {
+        return propertyReader;
+    }
+
+    ServiceInstance
+    serviceInstance()
+    {
+        return si;
+    }
+
+    TaskTracker
+    taskTracker()
+    {
+        return taskTracker;
+    }
+
+    WorkflowJournal
+    journal()
+    {
+        return journal;
+    }
+
+    FTEventTrace
+    trace()
+    {
+        return trace;
+    }
+
+    PrintStream
+    out()
+    {
+        return out;
+    }
+
+    PrintStream
+    err()
+    {
+        return err;
+    }
+
+    FTStateWatcher
+    ftStateWatcher()
+    {
+        return ftStateWatcher;
+    }
+
+    VmIndex
+    vmIndex()
+    {
+        return vmIndex;
+    }
+
+    private static ThreadFactory
+    daemonThreads(final String namePrefix)
+    {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, namePrefix + "-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
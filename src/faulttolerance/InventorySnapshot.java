@@ -0,0 +1,381 @@
+/**
+ * Immutable snapshot of the Clusters and ESXi hosts of the vCenter Server inventory
+ * -- Loaded through a ContainerView over all Clusters, in a single RetrievePropertiesEx call
+ * -- Holds each Cluster's HA (das) enabled flag and its hosts' names and connection states
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.HostSystemConnectionState;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.mo.ClusterComputeResource;
+import com.vmware.vim25.mo.ContainerView;
+import com.vmware.vim25.mo.HostSystem;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServerConnection;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.util.PropertyCollectorUtil;
+
+import faulttolerance.VmIndex.VmEntry;
+
+public final class InventorySnapshot
+{
+    // configurationEx is declared as ComputeResourceConfigInfo, which has no dasConfig - so use configuration
+    public static final String CLUSTER_HA_ENABLED_PROP = "configuration.dasConfig.enabled";
+    public static final String HOST_CONN_STATE_PROP = "runtime.connectionState";
+
+    private static final String[] CLUSTER_PROPS = { "name", CLUSTER_HA_ENABLED_PROP, "host" };
+    private static final String[] HOST_PROPS = { "name", HOST_CONN_STATE_PROP };
+
+    private final Map<String, ClusterInfo> clustersByMor;
+    private final Map<String, HostInfo> hostsByMor;
+
+    /**
+     * ESXi host as seen at snapshot time
+     */
+    public static final class HostInfo
+    {
+        private final HostSystem hostSys;
+        private final String name;
+        private final HostSystemConnectionState connectionState;
+
+        HostInfo(HostSystem hostSys, String name, HostSystemConnectionState connectionState)
+        {
+            this.hostSys = hostSys;
+            this.name = name;
+            this.connectionState = connectionState;
+        }
+
+        public HostSystem
+        getHostSystem()
+        {
+            return hostSys;
+        }
+
+        public String
+        getName()
+        {
+            return name;
+        }
+
+        public HostSystemConnectionState
+        getConnectionState()
+        {
+            return connectionState;
+        }
+
+        public boolean
+        isConnected()
+        {
+            return HostSystemConnectionState.connected.equals(connectionState);
+        }
+    }
+
+    /**
+     * Cluster as seen at snapshot time
+     */
+    public static final class ClusterInfo
+    {
+        private final ClusterComputeResource cluster;
+        private final String name;
+        private final boolean haEnabled;
+        private final List<HostInfo> hosts;
+
+        ClusterInfo(ClusterComputeResource cluster, String name, boolean haEnabled, List<HostInfo> hosts)
+        {
+            this.cluster = cluster;
+            this.name = name;
+            this.haEnabled = haEnabled;
+            this.hosts = Collections.unmodifiableList(hosts);
+        }
+
+        public ClusterComputeResource
+        getCluster()
+        {
+            return cluster;
+        }
+
+        public String
+        getName()
+        {
+            return name;
+        }
+
+        public boolean
+        isHaEnabled()
+        {
+            return haEnabled;
+        }
+
+        public List<HostInfo>
+        getHosts()
+        {
+            return hosts;
+        }
+
+        /**
+         * Hosts of the cluster in connected state
+         */
+        public List<HostInfo>
+        getConnectedHosts()
+        {
+            List<HostInfo> connectedHosts = new ArrayList<HostInfo>();
+            for (HostInfo hostInfo : hosts) {
+                if (hostInfo.isConnected()) {
+                    connectedHosts.add(hostInfo);
+                }
+            }
+            return connectedHosts;
+        }
+    }
+
+    private InventorySnapshot(Map<String, ClusterInfo> clustersByMor, Map<String, HostInfo> hostsByMor)
+    {
+        this.clustersByMor = Collections.unmodifiableMap(clustersByMor);
+        this.hostsByMor = Collections.unmodifiableMap(hostsByMor);
+    }
+
+    /**
+     * Cluster by its name, null if not in the inventory. Cluster names are unique per datacenter only, a name
+     * of more than one cluster fails with an IllegalArgumentException
+     */
+    public ClusterInfo
+    getCluster(String clusterName)
+    {
+        List<ClusterInfo> namedClusters = getClusters(clusterName);
+        if (namedClusters.size() > 1) {
+            throw new IllegalArgumentException("Cluster name \"" + clusterName + "\" is ambiguous, "
+                + namedClusters.size() + " clusters have it");
+        }
+        return namedClusters.isEmpty() ? null : namedClusters.get(0);
+    }
+
+    /**
+     * Clusters of the given name, e.g. in different datacenters
+     */
+    public List<ClusterInfo>
+    getClusters(String clusterName)
+    {
+        List<ClusterInfo> namedClusters = new ArrayList<ClusterInfo>();
+        for (ClusterInfo clusterInfo : clustersByMor.values()) {
+            if (clusterInfo.getName() != null && clusterInfo.getName().equals(clusterName)) {
+                namedClusters.add(clusterInfo);
+            }
+        }
+        return namedClusters;
+    }
+
+    public Collection<ClusterInfo>
+    getClusters()
+    {
+        return clustersByMor.values();
+    }
+
+    /**
+     * Host by its MOR, null if the host is not part of any cluster
+     */
+    public HostInfo
+    getHost(ManagedObjectReference hostMor)
+    {
+        return hostMor != null ? hostsByMor.get(hostMor.getVal()) : null;
+    }
+
+    /**
+     * Load the snapshot - Clusters and their hosts are retrieved in one RetrievePropertiesEx call
+     */
+    public static InventorySnapshot
+    load(ServiceInstance si) throws Exception
+    {
+        ServerConnection conn = si.getServerConnection();
+        PropertyCollector pc = si.getPropertyCollector();
+        ContainerView clusterView = si.getViewManager().createContainerView(si.getRootFolder(),
+            new String[] { FTOps.CLUSTER_COMPRES_MOR_TYPE }, true);
+
+        Map<String, ObjectContent> clusterContents = new LinkedHashMap<String, ObjectContent>();
+        Map<String, ObjectContent> hostContents = new HashMap<String, ObjectContent>();
+
+        try {
+            TraversalSpec clusterToHost = new TraversalSpec();
+            clusterToHost.setName("clusterToHost");
+            clusterToHost.setType(FTOps.CLUSTER_COMPRES_MOR_TYPE);
+            clusterToHost.setPath("host");
+            clusterToHost.setSkip(Boolean.FALSE);
+
+            TraversalSpec viewToCluster = new TraversalSpec();
+            viewToCluster.setName("viewToCluster");
+            viewToCluster.setType(clusterView.getMOR().getType());
+            viewToCluster.setPath("view");
+            viewToCluster.setSkip(Boolean.FALSE);
+            viewToCluster.setSelectSet(new SelectionSpec[] { clusterToHost });
+
+            ObjectSpec viewSpec = new ObjectSpec();
+            viewSpec.setObj(clusterView.getMOR());
+            viewSpec.setSkip(Boolean.TRUE);
+            viewSpec.setSelectSet(new SelectionSpec[] { viewToCluster });
+
+            PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+            filterSpec.setObjectSet(new ObjectSpec[] { viewSpec });
+            filterSpec.setPropSet(new PropertySpec[] {
+                PropertyCollectorUtil.createPropertySpec(FTOps.CLUSTER_COMPRES_MOR_TYPE, false, CLUSTER_PROPS),
+                PropertyCollectorUtil.createPropertySpec(FTOps.HOST_MOR_TYPE, false, HOST_PROPS) });
+
+            RetrieveResult result = pc.retrievePropertiesEx(new PropertyFilterSpec[] { filterSpec },
+                new RetrieveOptions());
+            while (result != null) {
+                if (result.getObjects() != null) {
+                    for (ObjectContent objContent : result.getObjects()) {
+                        if (objContent.getObj().getType().equals(FTOps.CLUSTER_COMPRES_MOR_TYPE)) {
+                            clusterContents.put(objContent.getObj().getVal(), objContent);
+                        } else {
+                            hostContents.put(objContent.getObj().getVal(), objContent);
+                        }
+                    }
+                }
+                // Only very large inventories are split into more than one page
+                result = result.getToken() != null ? pc.continueRetrievePropertiesEx(result.getToken()) : null;
+            }
+        } finally {
+            clusterView.destroyView();
+        }
+
+        Map<String, ClusterInfo> clustersByMor = new LinkedHashMap<String, ClusterInfo>();
+        Map<String, HostInfo> hostsByMor = new HashMap<String, HostInfo>();
+
+        for (ObjectContent clusterContent : clusterContents.values()) {
+            Map<String, Object> clusterProps = toPropertyMap(clusterContent);
+            List<HostInfo> clusterHosts = new ArrayList<HostInfo>();
+
+            ManagedObjectReference[] hostMors = (ManagedObjectReference[]) clusterProps.get("host");
+            if (hostMors != null) {
+                for (ManagedObjectReference hostMor : hostMors) {
+                    ObjectContent hostContent = hostContents.get(hostMor.getVal());
+                    if (hostContent == null) {
+                        continue;
+                    }
+                    Map<String, Object> hostProps = toPropertyMap(hostContent);
+                    HostInfo hostInfo = new HostInfo(new HostSystem(conn, hostMor), (String) hostProps.get("name"),
+                        (HostSystemConnectionState) hostProps.get(HOST_CONN_STATE_PROP));
+                    clusterHosts.add(hostInfo);
+                    hostsByMor.put(hostMor.getVal(), hostInfo);
+                }
+            }
+
+            String clusterName = (String) clusterProps.get("name");
+            Boolean haEnabled = (Boolean) clusterProps.get(CLUSTER_HA_ENABLED_PROP);
+            clustersByMor.put(clusterContent.getObj().getVal(), new ClusterInfo(
+                new ClusterComputeResource(conn, clusterContent.getObj()), clusterName, haEnabled != null && haEnabled,
+                clusterHosts));
+        }
+
+        return new InventorySnapshot(clustersByMor, hostsByMor);
+    }
+
+    /**
+     * Property name to value map of an ObjectContent, ArrayOfXXX values are converted to plain arrays
+     */
+    static Map<String, Object>
+    toPropertyMap(ObjectContent objContent)
+    {
+        Map<String, Object> propMap = new HashMap<String, Object>();
+        if (objContent.getPropSet() != null) {
+            for (DynamicProperty dynProp : objContent.getPropSet()) {
+                propMap.put(dynProp.getName(),
+                    dynProp.getVal() != null ? PropertyCollectorUtil.convertProperty(dynProp.getVal()) : null);
+            }
+        }
+        return propMap;
+    }
+
+    /**
+     * Properties of the VMs by MOR value, in a single RetrievePropertiesEx call (continued if the result is paged)
+     */
+    static Map<String, Map<String, Object>>
+    retrieveVmProps(ServiceInstance si, List<VmEntry> vmEntries, String[] propPaths) throws Exception
+    {
+        List<ManagedObjectReference> vmMors = new ArrayList<ManagedObjectReference>();
+        for (VmEntry vmEntry : vmEntries) {
+            vmMors.add(vmEntry.getVmMor());
+        }
+        return retrieveProps(si, FTOps.VM_MOR_TYPE, vmMors, propPaths);
+    }
+
+    /**
+     * Properties of the objects (all of the given type) by MOR value, in a single RetrievePropertiesEx call
+     * (continued if the result is paged)
+     */
+    static Map<String, Map<String, Object>>
+    retrieveProps(ServiceInstance si, String objType, List<ManagedObjectReference> objMors, String[] propPaths)
+        throws Exception
+    {
+        Map<String, Map<String, Object>> objProps = new HashMap<String, Map<String, Object>>();
+        if (objMors.isEmpty()) {
+            return objProps;
+        }
+
+        List<ObjectSpec> objSpecs = new ArrayList<ObjectSpec>();
+        for (ManagedObjectReference objMor : objMors) {
+            ObjectSpec objSpec = new ObjectSpec();
+            objSpec.setObj(objMor);
+            objSpec.setSkip(Boolean.FALSE);
+            objSpecs.add(objSpec);
+        }
+        PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+        filterSpec.setObjectSet(objSpecs.toArray(new ObjectSpec[objSpecs.size()]));
+        filterSpec.setPropSet(
+            new PropertySpec[] { PropertyCollectorUtil.createPropertySpec(objType, false, propPaths) });
+
+        PropertyCollector pc = si.getPropertyCollector();
+        RetrieveResult result = pc.retrievePropertiesEx(new PropertyFilterSpec[] { filterSpec }, new RetrieveOptions());
+        while (result != null) {
+            if (result.getObjects() != null) {
+                for (ObjectContent objContent : result.getObjects()) {
+                    objProps.put(objContent.getObj().getVal(), toPropertyMap(objContent));
+                }
+            }
+            result = result.getToken() != null ? pc.continueRetrievePropertiesEx(result.getToken()) : null;
+        }
+        return objProps;
+    }
+}
@@ -0,0 +1,349 @@
+/**
+ * Typed reads of single managed object properties, fetching only the property paths asked for
+ * -- Concurrent reads of the same object join one RetrievePropertiesEx call instead of each issuing their own
+ * -- Values are cached per object and property path for a short, configurable time to live
+ * -- Callers that change an object's state (e.g. through a task) invalidate the affected paths
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.FaultToleranceConfigInfo;
+import com.vmware.vim25.LocalizedMethodFault;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.MissingProperty;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.VirtualMachineFaultToleranceState;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.ManagedObject;
+import com.vmware.vim25.mo.ServiceInstance;
+
+public class PropertyReader
+{
+    public static final int DEFAULT_TTL_MILLIS = 2000;
+
+    private final ServiceInstance si;
+    private volatile long ttlNanos;
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong fetches = new AtomicLong();
+
+    // Cached values, by object and property path
+    private final Map<String, Map<String, CachedValue>> cache =
+        new ConcurrentHashMap<String, Map<String, CachedValue>>();
+    // Fetch in flight per object, guarded by itself
+    private final Map<String, Fetch> inFlight = new HashMap<String, Fetch>();
+    // Number of invalidations per object, guarded by inFlight
+    private final Map<String, Long> generations = new HashMap<String, Long>();
+
+    /**
+     * Value of a property path, and the time it was fetched
+     */
+    private static class CachedValue
+    {
+        final Object value;
+        final long fetchedNanos;
+
+        CachedValue(Object value, long fetchedNanos)
+        {
+            this.value = value;
+            this.fetchedNanos = fetchedNanos;
+        }
+    }
+
+    /**
+     * One RetrievePropertiesEx call for an object - joined by concurrent reads of the same paths, as long as the
+     * object is not invalidated after it started
+     */
+    private static class Fetch
+    {
+        final Set<String> paths;
+        final long generation;
+        final CompletableFuture<Map<String, Object>> result = new CompletableFuture<Map<String, Object>>();
+
+        Fetch(List<String> paths, long generation)
+        {
+            this.paths = new LinkedHashSet<String>(paths);
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Constructor
+     */
+    public PropertyReader(ServiceInstance si, int ttlMillis)
+    {
+        this.si = si;
+        setTtl(ttlMillis);
+    }
+
+    /**
+     * Time a fetched value is served from the cache, 0 to always fetch (concurrent reads are still coalesced)
+     */
+    public void
+    setTtl(int ttlMillis)
+    {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(ttlMillis, 0));
+    }
+
+    public VirtualMachinePowerState
+    getPowerState(ManagedObject vmObj) throws Exception
+    {
+        return (VirtualMachinePowerState) get(vmObj.getMOR(), FTStateWatcher.POWER_STATE_PROP);
+    }
+
+    public VirtualMachineFaultToleranceState
+    getFTState(ManagedObject vmObj) throws Exception
+    {
+        return (VirtualMachineFaultToleranceState) get(vmObj.getMOR(), FTStateWatcher.FT_STATE_PROP);
+    }
+
+    public FaultToleranceConfigInfo
+    getFTInfo(ManagedObject vmObj) throws Exception
+    {
+        return (FaultToleranceConfigInfo) get(vmObj.getMOR(), SecondaryVmResolver.VM_FT_INFO_PROP);
+    }
+
+    /**
+     * Host the VM runs on
+     */
+    public ManagedObjectReference
+    getHost(ManagedObject vmObj) throws Exception
+    {
+        return (ManagedObjectReference) get(vmObj.getMOR(), VmIndex.VM_HOST_PROP);
+    }
+
+    public String
+    getName(ManagedObject managedObj) throws Exception
+    {
+        return (String) get(managedObj.getMOR(), "name");
+    }
+
+    /**
+     * Value of one property path of the object, null if the property is not set
+     */
+    public Object
+    get(ManagedObjectReference mor, String path) throws Exception
+    {
+        return getAll(mor, path).get(path);
+    }
+
+    /**
+     * Values of the object's property paths - the ones not cached are fetched together, in one call
+     */
+    public Map<String, Object>
+    getAll(ManagedObjectReference mor, String... paths) throws Exception
+    {
+        String objKey = keyOf(mor);
+        long nowNanos = System.nanoTime();
+        Map<String, Object> values = new HashMap<String, Object>();
+        List<String> stalePaths = new ArrayList<String>();
+        Map<String, CachedValue> cachedValues = cache.get(objKey);
+        for (String path : paths) {
+            CachedValue cachedValue = cachedValues != null ? cachedValues.get(path) : null;
+            if (cachedValue != null && nowNanos - cachedValue.fetchedNanos < ttlNanos) {
+                values.put(path, cachedValue.value);
+            } else {
+                stalePaths.add(path);
+            }
+        }
+        if (stalePaths.isEmpty()) {
+            cacheHits.incrementAndGet();
+            return values;
+        }
+
+        Fetch fetch;
+        boolean joined;
+        synchronized (inFlight) {
+            long generation = generationOf(objKey);
+            fetch = inFlight.get(objKey);
+            joined = fetch != null && fetch.generation == generation && fetch.paths.containsAll(stalePaths);
+            if (!joined) {
+                fetch = new Fetch(stalePaths, generation);
+                inFlight.put(objKey, fetch);
+            }
+        }
+
+        if (joined) {
+            try {
+                values.putAll(fetch.result.get());
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+            return values;
+        }
+
+        try {
+            Map<String, Object> fetched = retrieve(mor, fetch.paths);
+            store(objKey, fetch, fetched, nowNanos);
+            fetch.result.complete(fetched);
+            values.putAll(fetched);
+            return values;
+        } catch (Exception e) {
+            fetch.result.completeExceptionally(e);
+            throw e;
+        } finally {
+            synchronized (inFlight) {
+                inFlight.remove(objKey, fetch);
+            }
+        }
+    }
+
+    /**
+     * Drop the cached values of the object's property paths (all of them if none are given), e.g. after a task
+     * changed its state. A fetch already in flight neither brings them back nor is joined by later reads
+     */
+    public void
+    invalidate(ManagedObjectReference mor, String... paths)
+    {
+        String objKey = keyOf(mor);
+        synchronized (inFlight) {
+            generations.put(objKey, generationOf(objKey) + 1);
+            if (paths.length == 0) {
+                cache.remove(objKey);
+                return;
+            }
+            Map<String, CachedValue> cachedValues = cache.get(objKey);
+            if (cachedValues != null) {
+                for (String path : paths) {
+                    cachedValues.remove(path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads served from the cache, and RetrievePropertiesEx calls issued
+     */
+    public String
+    getStats()
+    {
+        return cacheHits.get() + " cached, " + fetches.get() + " fetched";
+    }
+
+    private void
+    store(String objKey, Fetch fetch, Map<String, Object> fetched, long fetchStartNanos)
+    {
+        synchronized (inFlight) {
+            // Invalidated after this fetch started, its values may predate the change
+            if (generationOf(objKey) != fetch.generation) {
+                return;
+            }
+            Map<String, CachedValue> cachedValues =
+                cache.computeIfAbsent(objKey, key -> new ConcurrentHashMap<String, CachedValue>());
+            for (Map.Entry<String, Object> fetchedEntry : fetched.entrySet()) {
+                CachedValue current = cachedValues.get(fetchedEntry.getKey());
+                // Fetched again after this fetch started
+                if (current != null && current.fetchedNanos > fetchStartNanos) {
+                    continue;
+                }
+                cachedValues.put(fetchedEntry.getKey(), new CachedValue(fetchedEntry.getValue(), fetchStartNanos));
+            }
+        }
+    }
+
+    /**
+     * Caller holds inFlight
+     */
+    private long
+    generationOf(String objKey)
+    {
+        Long generation = generations.get(objKey);
+        return generation != null ? generation : 0;
+    }
+
+    /**
+     * The given paths of the object, in a single RetrievePropertiesEx call. Paths of unset properties map to null,
+     * a path vCenter could not read fails the call with its fault
+     */
+    private Map<String, Object>
+    retrieve(ManagedObjectReference mor, Set<String> paths) throws Exception
+    {
+        fetches.incrementAndGet();
+        PropertySpec propSpec = new PropertySpec();
+        propSpec.setType(mor.getType());
+        propSpec.setPathSet(paths.toArray(new String[paths.size()]));
+
+        ObjectSpec objSpec = new ObjectSpec();
+        objSpec.setObj(mor);
+        objSpec.setSkip(Boolean.FALSE);
+
+        PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+        filterSpec.setObjectSet(new ObjectSpec[] { objSpec });
+        filterSpec.setPropSet(new PropertySpec[] { propSpec });
+
+        Map<String, Object> values = new HashMap<String, Object>();
+        for (String path : paths) {
+            values.put(path, null);
+        }
+        RetrieveResult result = si.getPropertyCollector()
+            .retrievePropertiesEx(new PropertyFilterSpec[] { filterSpec }, new RetrieveOptions());
+        if (result != null && result.getObjects() != null) {
+            for (ObjectContent objContent : result.getObjects()) {
+                if (objContent.getMissingSet() != null && objContent.getMissingSet().length > 0) {
+                    MissingProperty missing = objContent.getMissingSet()[0];
+                    LocalizedMethodFault fault = missing.getFault();
+                    if (fault != null && fault.getFault() != null) {
+                        throw fault.getFault();
+                    }
+                    throw new IllegalStateException("Could not read property " + missing.getPath() + " of "
+                        + keyOf(mor) + (fault != null ? ": " + fault.getLocalizedMessage() : ""));
+                }
+                if (objContent.getPropSet() == null) {
+                    continue;
+                }
+                for (DynamicProperty prop : objContent.getPropSet()) {
+                    values.put(prop.getName(), prop.getVal());
+                }
+            }
+        }
+        return values;
+    }
+
+    private static String
+    keyOf(ManagedObjectReference mor)
+    {
+        return mor.getType() + ":" + mor.getVal();
+    }
+}
@@ -0,0 +1,309 @@
+/**
+ * Base for incremental PropertyCollector update streams over a vSphere View
+ * -- Creates a private PropertyCollector and one filter, traversing the view's "view" property
+ * -- One background thread drives WaitForUpdatesEx and hands every ObjectUpdate to the subclass
+ * -- Objects can be added to/removed from a ListView backed stream while the stream is running
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.util.concurrent.Executor;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.VimPortType;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.mo.ManagedObject;
+import com.vmware.vim25.mo.ManagedObjectView;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.PropertyFilter;
+import com.vmware.vim25.mo.ServiceInstance;
+
+public abstract class PropertyUpdateStream
+{
+    private static final int MAX_WAIT_SECS = 30;
+
+    protected final ServiceInstance si;
+    private final String streamName;
+    private final Executor updateExecutor;
+
+    private PropertyCollector streamCollector;
+    private PropertyFilter streamFilter;
+    private ManagedObjectView streamView;
+    private Thread updateThread;
+    private volatile boolean running;
+
+    /**
+     * Constructor
+     */
+    protected PropertyUpdateStream(ServiceInstance si, String streamName)
+    {
+        this(si, streamName, null);
+    }
+
+    /**
+     * Constructor - the update loop runs on the given executor instead of a thread of its own
+     */
+    protected PropertyUpdateStream(ServiceInstance si, String streamName, Executor updateExecutor)
+    {
+        this.si = si;
+        this.streamName = streamName;
+        this.updateExecutor = updateExecutor;
+    }
+
+    /**
+     * View whose members are reported by this stream (ListView/ContainerView)
+     */
+    protected abstract ManagedObjectView
+    createView() throws Exception;
+
+    /**
+     * Managed object type of the view members
+     */
+    protected abstract String
+    objectType();
+
+    /**
+     * Property paths to be reported for each view member
+     */
+    protected abstract String[]
+    propertyPaths();
+
+    /**
+     * Apply one object's changes. Called on the update thread
+     */
+    protected abstract void
+    handleUpdate(ObjectUpdate objUpdate);
+
+    /**
+     * Called on the update thread once a complete UpdateSet has been applied. An exception fails the stream
+     */
+    protected void
+    updateSetApplied() throws Exception
+    {
+        // Placeholder
+    }
+
+    /**
+     * Called on the update thread if the stream fails and stops
+     */
+    protected void
+    streamFailed(Exception cause)
+    {
+        // Placeholder
+    }
+
+    /**
+     * Create the private PropertyCollector, the view and the filter over it, and start the update thread
+     */
+    public synchronized void
+    start() throws Exception
+    {
+        if (running) {
+            return;
+        }
+
+        // Private collector, so our WaitForUpdatesEx version does not interfere with any other filters of the session
+        streamCollector = si.getPropertyCollector().createPropertyCollector();
+        streamView = createView();
+
+        TraversalSpec viewTraversal = new TraversalSpec();
+        viewTraversal.setName("viewTraversal");
+        viewTraversal.setType(streamView.getMOR().getType());
+        viewTraversal.setPath("view");
+        viewTraversal.setSkip(Boolean.FALSE);
+
+        ObjectSpec viewSpec = new ObjectSpec();
+        viewSpec.setObj(streamView.getMOR());
+        viewSpec.setSkip(Boolean.TRUE);
+        viewSpec.setSelectSet(new SelectionSpec[] { viewTraversal });
+
+        PropertySpec propSpec = new PropertySpec();
+        propSpec.setType(objectType());
+        propSpec.setPathSet(propertyPaths());
+
+        PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+        filterSpec.setObjectSet(new ObjectSpec[] { viewSpec });
+        filterSpec.setPropSet(new PropertySpec[] { propSpec });
+
+        streamFilter = streamCollector.createFilter(filterSpec, true);
+
+        running = true;
+        Runnable updateLoop = new Runnable() {
+            @Override
+            public void run()
+            {
+                collectUpdates();
+            }
+        };
+        if (updateExecutor != null) {
+            updateExecutor.execute(updateLoop);
+            return;
+        }
+        updateThread = new Thread(updateLoop, streamName);
+        updateThread.setDaemon(true);
+        updateThread.start();
+    }
+
+    /**
+     * Stop the update thread and release the server side collector, filter and view
+     */
+    public synchronized void
+    stop()
+    {
+        if (!running) {
+            return;
+        }
+        running = false;
+
+        try {
+            streamCollector.cancelWaitForUpdates();
+        } catch (Exception e) {
+            // update thread may have already exited
+        }
+        release();
+    }
+
+    /**
+     * Destroy the server side filter, view and collector of the stream, so a restart starts from fresh ones
+     */
+    private void
+    release()
+    {
+        try {
+            streamFilter.destroyPropertyFilter();
+        } catch (Exception e) {
+            System.err.println("Caught an exception while destroying the PropertyFilter of " + streamName);
+        }
+        try {
+            streamView.destroyView();
+        } catch (Exception e) {
+            System.err.println("Caught an exception while destroying the View of " + streamName);
+        }
+        try {
+            streamCollector.destroyPropertyCollector();
+        } catch (Exception e) {
+            System.err.println("Caught an exception while releasing the PropertyCollector of " + streamName);
+        }
+    }
+
+    public boolean
+    isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * Add objects to the ListView, they enter the filter and their current values are reported on the next update
+     */
+    protected void
+    addToView(ManagedObjectReference... objMors) throws Exception
+    {
+        vimService().modifyListView(streamView.getMOR(), objMors, null);
+    }
+
+    /**
+     * Remove objects from the ListView, no further updates are reported for them
+     */
+    protected void
+    removeFromView(ManagedObjectReference... objMors) throws Exception
+    {
+        vimService().modifyListView(streamView.getMOR(), null, objMors);
+    }
+
+    /**
+     * Empty ListView, to be populated through addToView()
+     */
+    protected ManagedObjectView
+    createEmptyListView() throws Exception
+    {
+        return si.getViewManager().createListView(new ManagedObject[0]);
+    }
+
+    protected VimPortType
+    vimService()
+    {
+        return si.getServerConnection().getVimService();
+    }
+
+    /**
+     * Update loop - one WaitForUpdatesEx call serves every object of the view
+     */
+    private void
+    collectUpdates()
+    {
+        WaitOptions waitOptions = new WaitOptions();
+        waitOptions.setMaxWaitSeconds(MAX_WAIT_SECS);
+        String version = "";
+
+        while (running) {
+            try {
+                UpdateSet updateSet = streamCollector.waitForUpdatesEx(version, waitOptions);
+                if (updateSet == null) {
+                    // maxWaitSeconds elapsed without any change
+                    continue;
+                }
+                version = updateSet.getVersion();
+
+                if (updateSet.getFilterSet() != null) {
+                    for (PropertyFilterUpdate filterUpdate : updateSet.getFilterSet()) {
+                        if (filterUpdate.getObjectSet() == null) {
+                            continue;
+                        }
+                        for (ObjectUpdate objUpdate : filterUpdate.getObjectSet()) {
+                            handleUpdate(objUpdate);
+                        }
+                    }
+                }
+                updateSetApplied();
+            } catch (Exception e) {
+                boolean failed;
+                synchronized (this) {
+                    // stop() may have raced us and released everything already
+                    failed = running;
+                    if (failed) {
+                        running = false;
+                        release();
+                    }
+                }
+                if (failed) {
+                    System.err.println("Caught an exception while waiting for updates on " + streamName);
+                    e.printStackTrace();
+                    streamFailed(e);
+                }
+            }
+        }
+    }
+}
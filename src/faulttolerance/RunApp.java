@@ -39,6 +39,10 @@
  */
 package faulttolerance;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 public class RunApp
 {
     /**
@@ -48,12 +52,84 @@ public class RunApp
     {
         System.out.println(
             "Usage: java -jar ftops.jar --vsphereip <vc/esxi server IP> --username <uname> --password <pwd> --clusterName <cluster name> [--vmName <vmName>]");
+        System.out.println(
+            "       [--vmNames <vm1,vm2,..> | --vmPattern <regex> | --allVms] [--maxConcurrent <n>] [--maxPerHost <n>]");
+        System.out.println(
+            "       [--stages <turnOnFT,powerOn,disableSecondary,enableSecondary,makePrimary,turnOffFT>] [--stageTimeouts <stage=secs,..>]");
+        System.out.println("       [--failoverCycles <n>] [--metricsOut <file prefix>] [--metricsPort <port>]");
+        System.out.println(
+            "       [--workflowDeadline <secs>] (end-to-end time budget per VM, split across its stages; tasks still running at a stage's bound are cancelled)");
+        System.out.println(
+            "       [--plan <plan.json|plan.yaml>] (runs the plan's steps - VMs, stages, restore or not, steps they come after - instead of the same stages on all VMs)");
+        System.out.println(
+            "       [--propertyTtl <ms>] (how long VM power/FT state reads are cached for, 0 to always read; default 2000)");
+        System.out.println(
+            "       [--simulate <clusters=n,hosts=n,vms=n,taskMs=n,ftStartMs=n,ftIssueEvery=n>] (runs against a local vSphere simulator, no --vsphereip needed)");
+        System.out.println("       [--connectTimeout <secs>] [--readTimeout <secs>] [--noGzip]");
+        System.out.println(
+            "       [--noPreflight] (issues the FT tasks without first checking FT compatibility of all VMs and hosts)");
+        System.out.println(
+            "       [--journal <file>] [--recover <rollback|resume>] (journals each VM's progress; the next run with the journal rolls back, or resumes, VMs a crashed run left unfinished)");
+        System.out.println(
+            "       [--trace <file, .bin for binary>] (records task/FT state progress events to a JSONL or binary trace instead of printing them; replay with faulttolerance.FTEventTrace <file>)");
+        System.out.println(
+            "       [--load <secs>] [--loadRate <operations/min>] [--loadReport <secs>] (cycles createSecondary, powerOn, disable/enableSecondary, makePrimary, turnOffFT over the selected VMs, at most --maxConcurrent in flight, reporting throughput, queued vs running time and errors)");
+        System.out.println(
+            "       [--evacuateHost <host name>] (moves every FT Secondary VM off the host, e.g. before maintenance, at most --maxConcurrent at a time and --maxPerHost to the same host, until the FT pairs are protected again)");
+        System.out.println(
+            "       [--monitor <secs, 0 until stopped>] [--monitorReport <secs>] (only monitors the FT protection of the Cluster's Primary VMs, alerting when one loses its Secondary)");
+        System.out.println(
+            "       [--targets <file of vsphereip,clusterName[,username,password] lines>] [--maxTargets <n>] (runs on all targets at once, instead of --vsphereip/--clusterName)");
+        System.out.println(
+            "       [--sessionCache <file>] (reuses the vSphere session across runs, kept encrypted in the file)");
+        System.out.println(
+            "       [--daemon <port>] (keeps the session, serves FT requests on the local port) | [--useDaemon <port>] (sends this request to the daemon)");
+        System.out.println(
+            "       [--daemonSecret <file>] (owner only file with the secret the daemon requires of each request, created by the daemon; default ~/.ftops-daemon.secret)");
         System.out.println("\nExample : To Enable/Disable FT on any VM from Cluster");
         System.out.println(
             "\"java -jar ftops.jar --vsphereip 10.1.2.3 --username adminUser --password dummy --clusterName TestCluster\"");
         System.out.println("\nExample : To Enable/Disable FT on specific VM from Cluster");
         System.out.println(
             "\"java -jar ftops.jar --vsphereip 10.1.2.3 --username adminUser --password dummy --clusterName TestCluster --vmName TestVM\"");
+        System.out.println("\nExample : To Enable/Disable FT on all powered off VMs matching a pattern, 4 VMs at a time");
+        System.out.println(
+            "\"java -jar ftops.jar --vsphereip 10.1.2.3 --username adminUser --password dummy --clusterName TestCluster --vmPattern Test.* --maxConcurrent 4\"");
+        System.out.println("\nExample : To only Test Failover on a VM, allowing 15 minutes for it");
+        System.out.println(
+            "\"java -jar ftops.jar --vsphereip 10.1.2.3 --username adminUser --password dummy --clusterName TestCluster --vmName TestVM --stages turnOnFT,powerOn,makePrimary --stageTimeouts makePrimary=900\"");
+        System.out.println("\nExample : To Enable/Disable FT on Test VMs, giving up on (and cancelling the tasks of) any VM not done in 10 minutes");
+        System.out.println(
+            "\"java -jar ftops.jar --vsphereip 10.1.2.3 --username adminUser --password dummy --clusterName TestCluster --vmPattern Test.* --workflowDeadline 600\"");
+        System.out.println("\nExample : To Enable/Disable FT on Test VMs, and after a crash, roll back the VMs left unfinished");
+        System.out.println(
+            "\"java -jar ftops.jar --vsphereip 10.1.2.3 --username adminUser --password dummy --clusterName TestCluster --vmPattern Test.* --journal ft.journal\"");
+        System.out.println("\nExample : To run a maintenance window's FT operations from a plan file");
+        System.out.println(
+            "\"java -jar ftops.jar --vsphereip 10.1.2.3 --username adminUser --password dummy --clusterName TestCluster --plan window.yaml --maxConcurrent 16\"");
+        System.out.println("\nExample : To soak test FT operations at 120 operations/min over a pool of 20 VMs, for an hour");
+        System.out.println(
+            "\"java -jar ftops.jar --vsphereip 10.1.2.3 --username adminUser --password dummy --clusterName TestCluster --vmPattern 'soak-vm-[0-9]+' --load 3600 --loadRate 120 --maxConcurrent 16\"");
+        System.out.println("\nExample : To move all FT Secondary VMs off a host before patching it, 8 at a time and 2 per destination host");
+        System.out.println(
+            "\"java -jar ftops.jar --vsphereip 10.1.2.3 --username adminUser --password dummy --clusterName TestCluster --evacuateHost esx-03.example.com --maxConcurrent 8 --maxPerHost 2\"");
+        System.out.println("\nExample : To monitor FT protection of the Cluster's VMs, exposing unprotected time on a metrics port");
+        System.out.println(
+            "\"java -jar ftops.jar --vsphereip 10.1.2.3 --username adminUser --password dummy --clusterName TestCluster --monitor 0 --monitorReport 300 --metricsPort 9400\"");
+        System.out.println("\nExample : To measure failover RTO over 20 Test Failover cycles on a VM");
+        System.out.println(
+            "\"java -jar ftops.jar --vsphereip 10.1.2.3 --username adminUser --password dummy --clusterName TestCluster --vmName TestVM --stages turnOnFT,powerOn,makePrimary --failoverCycles 20 --metricsOut rto\"");
+        System.out.println("\nExample : To benchmark the FT workflow on 500 VMs of a simulated 10000 VM Cluster");
+        System.out.println(
+            "\"java -jar ftops.jar --simulate clusters=1,hosts=16,vms=10000,taskMs=200 --clusterName sim-cluster-1 --vmPattern sim-vm-1-[0-9]{1,3} --maxConcurrent 64 --metricsOut sim\"");
+        System.out.println("\nExample : To Enable/Disable FT on all powered off Test VMs of every vCenter/Cluster in a file");
+        System.out.println(
+            "\"java -jar ftops.jar --targets vcenters.txt --username adminUser --password dummy --vmPattern Test.* --metricsOut all\"");
+        System.out.println("\nExample : To run FT operations through a daemon, logged in once");
+        System.out.println(
+            "\"java -jar ftops.jar --vsphereip 10.1.2.3 --username adminUser --password dummy --daemon 9700\"");
+        System.out.println(
+            "\"java -jar ftops.jar --useDaemon 9700 --clusterName TestCluster --vmName TestVM\"");
      }
 
     /**
@@ -65,14 +141,37 @@ public class RunApp
             .println("######################### Fault Tolerance Script execution STARTED #########################");
 
         // Read command line arguments
-        if (args.length > 0 && args.length >= 8) {
+        List<String> argList = Arrays.asList(args);
+        boolean requestFailed = false;
+        int useDaemonIndex = argList.indexOf("--useDaemon");
+        if (useDaemonIndex >= 0 && useDaemonIndex + 1 < args.length) {
+            // hand the request over to the daemon, which is logged in already
+            List<String> requestArgs = new ArrayList<String>(argList);
+            requestArgs.subList(useDaemonIndex, useDaemonIndex + 2).clear();
+            String secretFile = FTDaemon.DEFAULT_SECRET_FILE;
+            int secretIndex = requestArgs.indexOf("--daemonSecret");
+            if (secretIndex >= 0 && secretIndex + 1 < requestArgs.size()) {
+                secretFile = requestArgs.get(secretIndex + 1);
+                requestArgs.subList(secretIndex, secretIndex + 2).clear();
+            }
+            requestFailed = !FTDaemon.submit(Integer.parseInt(args[useDaemonIndex + 1]), secretFile,
+                requestArgs.toArray(new String[requestArgs.size()]));
+        } else if (argList.contains("--targets")) {
+            // every vCenter/Cluster of the targets file, concurrently
+            new FTFanOut(args).runAll();
+        } else if (args.length >= 8 || (args.length >= 4 && argList.contains("--simulate"))) {
             FTOps ftOpSample = new FTOps(args);
 
             // validate arguments
             if (ftOpSample.validateProperties()) {
 
-                // perform FT Operations
-                ftOpSample.performFTOps();
+                if (ftOpSample.getDaemonPort() > 0) {
+                    // serve FT requests on the session, until asked to shut down
+                    new FTDaemon(ftOpSample, ftOpSample.getDaemonPort(), ftOpSample.getDaemonSecretFile()).serve();
+                } else {
+                    // perform FT Operations
+                    ftOpSample.performFTOps();
+                }
             }
         } else {
             usage();
@@ -85,5 +184,10 @@ public class RunApp
         }
         System.out.println(
             "######################### Fault Tolerance Script execution completed #########################");
+
+        if (requestFailed) {
+            // the daemon's result is the requester's exit status
+            System.exit(1);
+        }
     }
 }
\ No newline at end of file
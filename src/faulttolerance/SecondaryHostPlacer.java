@@ -0,0 +1,358 @@
+/**
+ * Load aware placement of FT Secondary VMs
+ * -- CPU/memory usage, FT support and FT logging NIC of all clustered hosts are fetched in one RetrievePropertiesEx call
+ * -- FT VMs per host come from the Cluster's VM index, so they cost no round trip
+ * -- Host stats are cached for a short TTL, so many placements in a row do not re-query vCenter
+ * -- Hosts are ranked by FT VMs, then by CPU + memory utilization
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import com.vmware.vim25.HostHardwareSummary;
+import com.vmware.vim25.HostListSummaryQuickStats;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.VirtualNicManagerNetConfig;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.util.PropertyCollectorUtil;
+
+import faulttolerance.InventorySnapshot.HostInfo;
+import faulttolerance.VmIndex.VmEntry;
+
+public class SecondaryHostPlacer
+{
+    public static final int DEFAULT_STATS_TTL_SECS = 30;
+
+    public static final String HOST_QUICK_STATS_PROP = "summary.quickStats";
+    public static final String HOST_HARDWARE_PROP = "summary.hardware";
+    public static final String HOST_FT_SUPPORTED_PROP = "capability.ftSupported";
+    public static final String HOST_FT_ISSUES_PROP = "capability.ftCompatibilityIssues";
+    public static final String HOST_NIC_NET_CONFIG_PROP = "config.virtualNicManagerInfo.netConfig";
+
+    // VirtualNicManager nic type carrying FT logging traffic
+    public static final String FT_LOGGING_NIC_TYPE = "faultToleranceLogging";
+
+    private static final String[] HOST_PROPS = { HOST_QUICK_STATS_PROP, HOST_HARDWARE_PROP, HOST_FT_SUPPORTED_PROP,
+        HOST_FT_ISSUES_PROP, HOST_NIC_NET_CONFIG_PROP };
+
+    private final ServiceInstance si;
+    private final Map<String, HostInfo> hostsByMor = new LinkedHashMap<String, HostInfo>();
+    private final VmIndex vmIndex;
+    private final long statsTtlMillis;
+
+    private Map<String, HostStats> statsByMor = Collections.emptyMap();
+    private long statsFetchedMillis;
+
+    /**
+     * Load of one host, as of the last refresh
+     */
+    public static class HostStats
+    {
+        private final HostInfo hostInfo;
+        private final int cpuUsageMhz;
+        private final long cpuCapacityMhz;
+        private final int memUsageMB;
+        private final long memCapacityMB;
+        private final boolean ftSupported;
+        private final boolean ftLoggingConfigured;
+        private final String[] ftIssues;
+        private int ftVms;
+
+        HostStats(HostInfo hostInfo, int cpuUsageMhz, long cpuCapacityMhz, int memUsageMB, long memCapacityMB,
+            boolean ftSupported, String[] ftIssues, boolean ftLoggingConfigured)
+        {
+            this.hostInfo = hostInfo;
+            this.cpuUsageMhz = cpuUsageMhz;
+            this.cpuCapacityMhz = cpuCapacityMhz;
+            this.memUsageMB = memUsageMB;
+            this.memCapacityMB = memCapacityMB;
+            this.ftSupported = ftSupported;
+            this.ftLoggingConfigured = ftLoggingConfigured;
+            this.ftIssues = ftIssues;
+        }
+
+        public HostInfo
+        getHostInfo()
+        {
+            return hostInfo;
+        }
+
+        /**
+         * CPU + memory utilization, between 0 (idle) and 2 (both saturated)
+         */
+        public double
+        getUtilization()
+        {
+            double cpuUtil = cpuCapacityMhz > 0 ? (double) cpuUsageMhz / cpuCapacityMhz : 0;
+            double memUtil = memCapacityMB > 0 ? (double) memUsageMB / memCapacityMB : 0;
+            return Math.min(cpuUtil, 1.0) + Math.min(memUtil, 1.0);
+        }
+
+        /**
+         * FT VMs on the host, including Secondaries placed since the last refresh
+         */
+        public int
+        getFtVms()
+        {
+            return ftVms;
+        }
+
+        /**
+         * Host supports FT and has a vmknic selected for FT logging
+         */
+        public boolean
+        canHostSecondary()
+        {
+            return ftSupported && ftLoggingConfigured;
+        }
+
+        /**
+         * Why the host cannot run FT VMs, null if it can
+         */
+        public String
+        getFtIssue()
+        {
+            if (!ftSupported) {
+                return "host does not support FT"
+                    + (ftIssues != null && ftIssues.length > 0 ? " (" + String.join(", ", ftIssues) + ")" : "");
+            }
+            if (!ftLoggingConfigured) {
+                return "host has no vmknic selected for FT logging";
+            }
+            return null;
+        }
+
+        @Override
+        public String
+        toString()
+        {
+            return String.format("%s (FT VMs: %d, CPU: %d/%d MHz, Mem: %d/%d MB%s)", hostInfo.getName(), ftVms,
+                cpuUsageMhz, cpuCapacityMhz, memUsageMB, memCapacityMB,
+                canHostSecondary() ? "" : ", no FT support/FT logging NIC");
+        }
+    }
+
+    /**
+     * Constructor
+     */
+    public SecondaryHostPlacer(ServiceInstance si, List<HostInfo> clusteredHosts, VmIndex vmIndex, int statsTtlSecs)
+    {
+        this.si = si;
+        this.vmIndex = vmIndex;
+        this.statsTtlMillis = statsTtlSecs * 1000L;
+        for (HostInfo hostInfo : clusteredHosts) {
+            hostsByMor.put(hostInfo.getHostSystem().getMOR().getVal(), hostInfo);
+        }
+    }
+
+    /**
+     * Candidate hosts for the Secondary of a VM on the given host, best first. Hosts that cannot run a
+     * Secondary (no FT support, no FT logging NIC) are left out
+     */
+    public synchronized List<HostStats>
+    rankCandidates(ManagedObjectReference primaryHostMor) throws Exception
+    {
+        List<HostStats> candidates = new ArrayList<HostStats>();
+        for (HostStats hostStats : getStats().values()) {
+            if (primaryHostMor != null
+                && hostStats.hostInfo.getHostSystem().getMOR().getVal().equals(primaryHostMor.getVal())) {
+                continue;
+            }
+            if (hostStats.canHostSecondary()) {
+                candidates.add(hostStats);
+            }
+        }
+
+        Collections.sort(candidates, new Comparator<HostStats>() {
+            @Override
+            public int compare(HostStats h1, HostStats h2)
+            {
+                if (h1.ftVms != h2.ftVms) {
+                    return h1.ftVms < h2.ftVms ? -1 : 1;
+                }
+                return Double.compare(h1.getUtilization(), h2.getUtilization());
+            }
+        });
+        return candidates;
+    }
+
+    /**
+     * Least loaded candidate for the Secondary, null if there is none. The placement is counted against the host
+     * until the next refresh, so consecutive placements spread across hosts
+     */
+    public synchronized HostInfo
+    placeSecondary(ManagedObjectReference primaryHostMor) throws Exception
+    {
+        return placeSecondary(primaryHostMor, hostInfo -> true);
+    }
+
+    /**
+     * Least loaded candidate for the Secondary that the filter accepts (e.g. not a host being evacuated), null if
+     * there is none. Counted against the host like placeSecondary(primaryHostMor)
+     */
+    public synchronized HostInfo
+    placeSecondary(ManagedObjectReference primaryHostMor, Predicate<HostInfo> hostFilter) throws Exception
+    {
+        for (HostStats candidate : rankCandidates(primaryHostMor)) {
+            if (hostFilter.test(candidate.hostInfo)) {
+                candidate.ftVms++;
+                return candidate.hostInfo;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stats of the host, null if the host is not part of the placement
+     */
+    public synchronized HostStats
+    getHostStats(ManagedObjectReference hostMor) throws Exception
+    {
+        return getStats().get(hostMor.getVal());
+    }
+
+    /**
+     * Drop the cached stats, the next placement re-queries vCenter
+     */
+    public synchronized void
+    invalidate()
+    {
+        statsFetchedMillis = 0;
+    }
+
+    private Map<String, HostStats>
+    getStats() throws Exception
+    {
+        if (statsFetchedMillis == 0 || System.currentTimeMillis() - statsFetchedMillis > statsTtlMillis) {
+            statsByMor = fetchStats();
+            statsFetchedMillis = System.currentTimeMillis();
+        }
+        return statsByMor;
+    }
+
+    /**
+     * All hosts' stats in a single RetrievePropertiesEx call
+     */
+    private Map<String, HostStats>
+    fetchStats() throws Exception
+    {
+        PropertyCollector pc = si.getPropertyCollector();
+
+        List<ObjectSpec> hostSpecs = new ArrayList<ObjectSpec>();
+        for (HostInfo hostInfo : hostsByMor.values()) {
+            ObjectSpec hostSpec = new ObjectSpec();
+            hostSpec.setObj(hostInfo.getHostSystem().getMOR());
+            hostSpec.setSkip(Boolean.FALSE);
+            hostSpecs.add(hostSpec);
+        }
+
+        PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+        filterSpec.setObjectSet(hostSpecs.toArray(new ObjectSpec[hostSpecs.size()]));
+        filterSpec.setPropSet(
+            new PropertySpec[] { PropertyCollectorUtil.createPropertySpec(FTOps.HOST_MOR_TYPE, false, HOST_PROPS) });
+
+        Map<String, HostStats> fetchedStats = new LinkedHashMap<String, HostStats>();
+        RetrieveResult result = pc.retrievePropertiesEx(new PropertyFilterSpec[] { filterSpec }, new RetrieveOptions());
+        while (result != null) {
+            if (result.getObjects() != null) {
+                for (ObjectContent objContent : result.getObjects()) {
+                    String hostKey = objContent.getObj().getVal();
+                    fetchedStats.put(hostKey, toHostStats(hostsByMor.get(hostKey),
+                        InventorySnapshot.toPropertyMap(objContent)));
+                }
+            }
+            result = result.getToken() != null ? pc.continueRetrievePropertiesEx(result.getToken()) : null;
+        }
+
+        // FT VMs (Primaries and Secondaries) per host, from the VM index
+        Map<String, Integer> ftVmsByHost = new HashMap<String, Integer>();
+        for (VmEntry vmEntry : vmIndex.getEntries()) {
+            if (vmEntry.getFtRole() > 0 && vmEntry.getHostMor() != null) {
+                Integer ftVms = ftVmsByHost.get(vmEntry.getHostMor().getVal());
+                ftVmsByHost.put(vmEntry.getHostMor().getVal(), ftVms != null ? ftVms + 1 : 1);
+            }
+        }
+        for (Map.Entry<String, HostStats> statsEntry : fetchedStats.entrySet()) {
+            Integer ftVms = ftVmsByHost.get(statsEntry.getKey());
+            statsEntry.getValue().ftVms = ftVms != null ? ftVms : 0;
+        }
+
+        return fetchedStats;
+    }
+
+    private static HostStats
+    toHostStats(HostInfo hostInfo, Map<String, Object> hostProps)
+    {
+        int cpuUsageMhz = 0;
+        int memUsageMB = 0;
+        HostListSummaryQuickStats quickStats = (HostListSummaryQuickStats) hostProps.get(HOST_QUICK_STATS_PROP);
+        if (quickStats != null) {
+            cpuUsageMhz = quickStats.getOverallCpuUsage() != null ? quickStats.getOverallCpuUsage() : 0;
+            memUsageMB = quickStats.getOverallMemoryUsage() != null ? quickStats.getOverallMemoryUsage() : 0;
+        }
+
+        long cpuCapacityMhz = 0;
+        long memCapacityMB = 0;
+        HostHardwareSummary hardware = (HostHardwareSummary) hostProps.get(HOST_HARDWARE_PROP);
+        if (hardware != null) {
+            cpuCapacityMhz = (long) hardware.getCpuMhz() * hardware.getNumCpuCores();
+            memCapacityMB = hardware.getMemorySize() / (1024 * 1024);
+        }
+
+        Boolean ftSupported = (Boolean) hostProps.get(HOST_FT_SUPPORTED_PROP);
+
+        boolean ftLoggingConfigured = false;
+        VirtualNicManagerNetConfig[] netConfigs = (VirtualNicManagerNetConfig[]) hostProps.get(HOST_NIC_NET_CONFIG_PROP);
+        if (netConfigs != null) {
+            for (VirtualNicManagerNetConfig netConfig : netConfigs) {
+                if (FT_LOGGING_NIC_TYPE.equals(netConfig.getNicType()) && netConfig.getSelectedVnic() != null
+                    && netConfig.getSelectedVnic().length > 0) {
+                    ftLoggingConfigured = true;
+                }
+            }
+        }
+
+        return new HostStats(hostInfo, cpuUsageMhz, cpuCapacityMhz, memUsageMB, memCapacityMB,
+            ftSupported != null && ftSupported, (String[]) hostProps.get(HOST_FT_ISSUES_PROP), ftLoggingConfigured);
+    }
+}
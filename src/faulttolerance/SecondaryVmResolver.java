@@ -0,0 +1,133 @@
+/**
+ * Resolves the Secondary VM of an FT Primary VM, and the host it currently runs on
+ * -- Secondary is read from the Primary's config.ftInfo (secondaries / instance UUIDs)
+ * -- Secondary's current host comes from the Cluster's VM index, which already streams runtime.host
+ * -- No host's VM list is enumerated, so the result stays correct after the Secondary has moved hosts
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import com.vmware.vim25.FaultToleranceConfigInfo;
+import com.vmware.vim25.FaultTolerancePrimaryConfigInfo;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.mo.HostSystem;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.VirtualMachine;
+
+public class SecondaryVmResolver
+{
+    public static final String VM_FT_INFO_PROP = "config.ftInfo";
+
+    private final ServiceInstance si;
+    private final VmIndex vmIndex;
+    private final PropertyReader propertyReader;
+
+    /**
+     * Secondary VM and the host it currently runs on
+     */
+    public static class SecondaryVm
+    {
+        private final VirtualMachine vmObj;
+        private final HostSystem hostSys;
+
+        SecondaryVm(VirtualMachine vmObj, HostSystem hostSys)
+        {
+            this.vmObj = vmObj;
+            this.hostSys = hostSys;
+        }
+
+        public VirtualMachine
+        getVm()
+        {
+            return vmObj;
+        }
+
+        public HostSystem
+        getHost()
+        {
+            return hostSys;
+        }
+    }
+
+    /**
+     * Constructor
+     */
+    public SecondaryVmResolver(ServiceInstance si, VmIndex vmIndex)
+    {
+        this(si, vmIndex, new PropertyReader(si, 0));
+    }
+
+    /**
+     * Constructor - VM properties are read through the given (shared, caching) reader
+     */
+    public SecondaryVmResolver(ServiceInstance si, VmIndex vmIndex, PropertyReader propertyReader)
+    {
+        this.si = si;
+        this.vmIndex = vmIndex;
+        this.propertyReader = propertyReader;
+    }
+
+    /**
+     * Secondary of the given Primary VM, null if FT is not configured on the VM
+     */
+    public SecondaryVm
+    resolve(VirtualMachine primaryVm) throws Exception
+    {
+        FaultToleranceConfigInfo ftInfo = propertyReader.getFTInfo(primaryVm);
+        if (ftInfo == null || ftInfo.getRole() != VmIndex.FT_PRIMARY_ROLE) {
+            return null;
+        }
+
+        VirtualMachine secondaryVm = null;
+        if (ftInfo instanceof FaultTolerancePrimaryConfigInfo) {
+            ManagedObjectReference[] secondaryMors = ((FaultTolerancePrimaryConfigInfo) ftInfo).getSecondaries();
+            if (secondaryMors != null && secondaryMors.length > 0) {
+                secondaryVm = new VirtualMachine(si.getServerConnection(), secondaryMors[0]);
+            }
+        }
+        if (secondaryVm == null && ftInfo.getInstanceUuids() != null && ftInfo.getInstanceUuids().length > 1) {
+            // instanceUuids[0] is the Primary, the rest are its Secondaries
+            secondaryVm = vmIndex.findByInstanceUuid(ftInfo.getInstanceUuids()[1]);
+        }
+        if (secondaryVm == null) {
+            return null;
+        }
+
+        ManagedObjectReference hostMor = null;
+        VmIndex.VmEntry secondaryEntry = vmIndex.getEntry(secondaryVm.getMOR());
+        if (secondaryEntry != null) {
+            hostMor = secondaryEntry.getHostMor();
+        }
+        if (hostMor == null) {
+            // Not (yet) seen by the index
+            hostMor = propertyReader.getHost(secondaryVm);
+        }
+
+        return new SecondaryVm(secondaryVm, hostMor != null ? new HostSystem(si.getServerConnection(), hostMor) : null);
+    }
+}
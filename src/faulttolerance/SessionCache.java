@@ -0,0 +1,203 @@
+/**
+ * Encrypted local cache of a vSphere session cookie, so that repeated runs of the tool reuse one session
+ * -- The cookie is stored AES-GCM encrypted, with a key derived from the user's password (PBKDF2), readable by
+ *    the file owner only
+ * -- A cached session is validated with SessionManager.currentSession (unset once the session has expired)
+ *    before it is reused, otherwise the caller logs in again and caches the new session
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.vmware.vim25.UserSession;
+import com.vmware.vim25.mo.ServiceInstance;
+
+public class SessionCache
+{
+    private static final byte[] FILE_MAGIC = "FTSC1".getBytes(StandardCharsets.US_ASCII);
+    private static final int SALT_BYTES = 16;
+    private static final int IV_BYTES = 12;
+    private static final int GCM_TAG_BITS = 128;
+    private static final int KEY_BITS = 256;
+    private static final int KDF_ITERATIONS = 65536;
+
+    private final Path cacheFile;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Constructor
+     */
+    public SessionCache(String cacheFile)
+    {
+        this.cacheFile = Paths.get(cacheFile);
+    }
+
+    /**
+     * Session of the cache file if it belongs to the same server/user and is still authenticated, otherwise null
+     */
+    public ServiceInstance
+    reuse(String url, String userName, String password)
+    {
+        if (!Files.exists(cacheFile)) {
+            return null;
+        }
+
+        String cookie;
+        try {
+            cookie = read(url, userName, password);
+        } catch (Exception e) {
+            // Wrong password or a corrupt file - same as no cache, a new session overwrites it
+            System.err.println("Ignoring unreadable session cache: " + cacheFile);
+            return null;
+        }
+        if (cookie == null) {
+            return null;
+        }
+
+        try {
+            ServiceInstance si = new ServiceInstance(new URL(url), cookie, true);
+            UserSession session = si.getSessionManager().getCurrentSession();
+            if (session != null) {
+                System.out.println("Reusing cached vSphere session of user: " + session.getUserName());
+                return si;
+            }
+        } catch (Exception e) {
+            // Server unreachable or it refuses the cookie, a fresh login tells the user the details
+        }
+        System.out.println("Cached vSphere session has expired, logging in again");
+        return null;
+    }
+
+    /**
+     * Cache the session of the given (logged in) service instance
+     */
+    public void
+    save(ServiceInstance si, String url, String userName, String password)
+    {
+        try {
+            write(url, userName, password, si.getServerConnection().getSessionStr());
+        } catch (Exception e) {
+            System.err.println("Caught an exception while caching the vSphere session in " + cacheFile);
+        }
+    }
+
+    /**
+     * Cookie of the cache file, null if it was cached for another server or user
+     */
+    private String
+    read(String url, String userName, String password) throws Exception
+    {
+        ByteBuffer fileBuf = ByteBuffer.wrap(Files.readAllBytes(cacheFile));
+        byte[] magic = new byte[FILE_MAGIC.length];
+        fileBuf.get(magic);
+        if (!Arrays.equals(magic, FILE_MAGIC)) {
+            throw new IOException("Not a session cache file");
+        }
+        byte[] salt = new byte[SALT_BYTES];
+        byte[] iv = new byte[IV_BYTES];
+        fileBuf.get(salt).get(iv);
+        byte[] encrypted = new byte[fileBuf.remaining()];
+        fileBuf.get(encrypted);
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, deriveKey(password, salt), new GCMParameterSpec(GCM_TAG_BITS, iv));
+        // Server and user are encrypted along with the cookie, a session of another server/user is not reused
+        String[] entry = new String(cipher.doFinal(encrypted), StandardCharsets.UTF_8).split("\n", 3);
+        if (entry.length != 3 || !entry[0].equals(url) || !entry[1].equals(userName)) {
+            return null;
+        }
+        return entry[2];
+    }
+
+    private void
+    write(String url, String userName, String password, String cookie) throws Exception
+    {
+        byte[] salt = new byte[SALT_BYTES];
+        byte[] iv = new byte[IV_BYTES];
+        random.nextBytes(salt);
+        random.nextBytes(iv);
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, deriveKey(password, salt), new GCMParameterSpec(GCM_TAG_BITS, iv));
+        byte[] encrypted = cipher.doFinal((url + "\n" + userName + "\n" + cookie).getBytes(StandardCharsets.UTF_8));
+
+        ByteBuffer fileBuf = ByteBuffer.allocate(FILE_MAGIC.length + SALT_BYTES + IV_BYTES + encrypted.length);
+        fileBuf.put(FILE_MAGIC).put(salt).put(iv).put(encrypted);
+
+        // Written next to the cache file and moved over it, so a concurrent run never reads half a file
+        Path dir = cacheFile.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmpFile = Files.createTempFile(dir, ".ftsession", ".tmp");
+        try {
+            restrictToOwner(tmpFile);
+            Files.write(tmpFile, fileBuf.array());
+            Files.move(tmpFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    private static SecretKeySpec
+    deriveKey(String password, byte[] salt) throws Exception
+    {
+        PBEKeySpec keySpec = new PBEKeySpec(password.toCharArray(), salt, KDF_ITERATIONS, KEY_BITS);
+        try {
+            byte[] key = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(keySpec).getEncoded();
+            return new SecretKeySpec(key, "AES");
+        } finally {
+            keySpec.clearPassword();
+        }
+    }
+
+    private static void
+    restrictToOwner(Path file)
+    {
+        try {
+            Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException | IOException e) {
+            // Windows - the file is created in the user's own directory, and ACLs are inherited
+        }
+    }
+}
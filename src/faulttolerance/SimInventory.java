@@ -0,0 +1,1345 @@
+/**
+ * Inventory of the local vSphere simulator
+ * -- Datacenter, Clusters, hosts and VMs held as vim25 data objects, property paths are resolved by reflection
+ * -- Every change stamps the object with a new change sequence, which the simulated PropertyCollector diffs on
+ * -- FT tasks (turn on, power on/off, disable/enable/make primary, turn off) drive the VM's FT state like vCenter
+ *    does, with configurable task and Secondary start latencies
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.vmware.vim25.ClusterConfigInfo;
+import com.vmware.vim25.ClusterDasConfigInfo;
+import com.vmware.vim25.Description;
+import com.vmware.vim25.FaultToleranceConfigInfo;
+import com.vmware.vim25.FaultTolerancePrimaryConfigInfo;
+import com.vmware.vim25.FaultToleranceSecondaryConfigInfo;
+import com.vmware.vim25.HostCapability;
+import com.vmware.vim25.HostConfigInfo;
+import com.vmware.vim25.HostHardwareSummary;
+import com.vmware.vim25.HostListSummary;
+import com.vmware.vim25.HostListSummaryQuickStats;
+import com.vmware.vim25.HostRuntimeInfo;
+import com.vmware.vim25.HostSystemConnectionState;
+import com.vmware.vim25.HostSystemPowerState;
+import com.vmware.vim25.HostVirtualNicManagerInfo;
+import com.vmware.vim25.InvalidArgument;
+import com.vmware.vim25.InvalidPowerState;
+import com.vmware.vim25.InvalidState;
+import com.vmware.vim25.LocalizedMethodFault;
+import com.vmware.vim25.ManagedObjectNotFound;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.MethodFault;
+import com.vmware.vim25.RequestCanceled;
+import com.vmware.vim25.TaskInfo;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.VirtualDevice;
+import com.vmware.vim25.VirtualDisk;
+import com.vmware.vim25.VirtualDiskCompatibilityMode;
+import com.vmware.vim25.VirtualDiskFlatVer2BackingInfo;
+import com.vmware.vim25.VirtualDiskRawDiskMappingVer1BackingInfo;
+import com.vmware.vim25.VirtualHardware;
+import com.vmware.vim25.VirtualMachineConfigInfo;
+import com.vmware.vim25.VirtualMachineConnectionState;
+import com.vmware.vim25.VirtualMachineFaultToleranceState;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.VirtualMachineRuntimeInfo;
+import com.vmware.vim25.VirtualMachineSnapshotInfo;
+import com.vmware.vim25.VirtualMachineSnapshotTree;
+import com.vmware.vim25.VirtualNicManagerNetConfig;
+import com.vmware.vim25.VirtualUSBController;
+import com.vmware.vim25.VmFaultToleranceConfigIssue;
+
+public class SimInventory
+{
+    public static final String FT_LOGGING_NIC_TYPE = "faultToleranceLogging";
+
+    // Simulated host and VM sizes
+    private static final int HOST_CPU_MHZ = 2600;
+    private static final short HOST_CPU_CORES = 16;
+    private static final long HOST_MEMORY_BYTES = 256L * 1024 * 1024 * 1024;
+    private static final int VM_CPU_DEMAND_MHZ = 500;
+    private static final int VM_MEMORY_MB = 1024;
+    private static final long VM_DISK_KB = 16L * 1024 * 1024;
+    private static final int FT_ISSUE_MEMORY_MB = 256 * 1024;
+
+    private static final Map<String, Field> FIELDS_BY_PATH = new ConcurrentHashMap<String, Field>();
+
+    /**
+     * Managed object of the simulator - its MOR and top level properties, as vim25 data objects
+     */
+    static class SimObject
+    {
+        final ManagedObjectReference mor;
+        final Map<String, Object> props = new HashMap<String, Object>();
+        long changeSeq;
+
+        SimObject(String type, String val)
+        {
+            mor = new ManagedObjectReference();
+            mor.setType(type);
+            mor.set_value(val);
+        }
+
+        String
+        getType()
+        {
+            return mor.getType();
+        }
+
+        String
+        getVal()
+        {
+            return mor.getVal();
+        }
+    }
+
+    /**
+     * ContainerView - its "view" property is recomputed when the inventory structure changes
+     */
+    static class SimContainerView extends SimObject
+    {
+        final SimObject container;
+        final Set<String> types;
+        final boolean recursive;
+        ManagedObjectReference[] view;
+        long viewStructureSeq = -1;
+
+        SimContainerView(String val, SimObject container, String[] types, boolean recursive)
+        {
+            super("ContainerView", val);
+            this.container = container;
+            this.types = types != null ? new HashSet<String>(Arrays.asList(types)) : new HashSet<String>();
+            this.recursive = recursive;
+        }
+    }
+
+    /**
+     * vim25 fault raised by a simulated operation. Reported as SOAP fault, or as the task error
+     */
+    static class SimFault extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+        final MethodFault fault;
+
+        SimFault(String message, MethodFault fault)
+        {
+            super(message);
+            this.fault = fault;
+        }
+    }
+
+    private final int taskMillis;
+    private final int ftStartMillis;
+    private final int ftIssueEvery;
+    private final ScheduledExecutorService taskScheduler;
+    private final Map<String, SimObject> objectsByVal = new HashMap<String, SimObject>();
+    private final Map<String, SimObject> vmsByInstanceUuid = new HashMap<String, SimObject>();
+    private final Map<String, SimObject> vmsByUuid = new HashMap<String, SimObject>();
+    private final Map<String, Integer> ftGenerations = new HashMap<String, Integer>();
+    // VMs that FT cannot be turned on for, and why
+    private final Map<String, String> ftIssues = new HashMap<String, String>();
+    // Tasks waiting for a task slot, in submission order
+    private final Map<String, Runnable> queuedTasks = new LinkedHashMap<String, Runnable>();
+    private final SimObject rootFolder;
+    private final List<SimObject> clusters = new ArrayList<SimObject>();
+    private long changeSeq;
+    private long structureSeq;
+    private int nextKey = 1;
+    private int vmCount;
+    private int taskCount;
+    private int taskSlots;
+    private int runningTasks;
+
+    /**
+     * Constructor - builds the inventory: one Datacenter, its Clusters (HA enabled), hosts and powered off VMs.
+     * VMs of a Cluster are spread round robin over its hosts. Every ftIssueEvery-th VM of a Cluster (0 for none)
+     * has a configuration FT does not support
+     */
+    public SimInventory(int clusterCount, int hostsPerCluster, int vmsPerCluster, int taskMillis, int ftStartMillis,
+        int ftIssueEvery)
+    {
+        this.taskMillis = taskMillis;
+        this.ftStartMillis = ftStartMillis;
+        this.ftIssueEvery = ftIssueEvery;
+        this.taskScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sim-task-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+
+        rootFolder = add("Folder", "group-d" + nextKey++);
+        rootFolder.props.put("name", "Datacenters");
+        SimObject datacenter = add("Datacenter", "datacenter-" + nextKey++);
+        datacenter.props.put("name", "sim-datacenter");
+        SimObject hostFolder = add("Folder", "group-h" + nextKey++);
+        hostFolder.props.put("name", "host");
+        SimObject vmFolder = add("Folder", "group-v" + nextKey++);
+        vmFolder.props.put("name", "vm");
+        datacenter.props.put("hostFolder", hostFolder.mor);
+        datacenter.props.put("vmFolder", vmFolder.mor);
+        rootFolder.props.put("childEntity", new ManagedObjectReference[] { datacenter.mor });
+
+        List<ManagedObjectReference> clusterMors = new ArrayList<ManagedObjectReference>();
+        for (int c = 1; c <= clusterCount; c++) {
+            SimObject cluster = buildCluster(c, hostsPerCluster, vmsPerCluster);
+            clusters.add(cluster);
+            clusterMors.add(cluster.mor);
+        }
+        hostFolder.props.put("childEntity", clusterMors.toArray(new ManagedObjectReference[clusterMors.size()]));
+    }
+
+    /**
+     * Stop scheduling task completions
+     */
+    public void
+    shutdown()
+    {
+        taskScheduler.shutdownNow();
+    }
+
+    public ManagedObjectReference
+    getRootFolder()
+    {
+        return rootFolder.mor;
+    }
+
+    public synchronized int
+    getVmCount()
+    {
+        return vmCount;
+    }
+
+    public synchronized int
+    getTaskCount()
+    {
+        return taskCount;
+    }
+
+    /**
+     * Tasks run at the same time (0 for no limit), like vCenter's task scheduling - the others are queued
+     */
+    public synchronized void
+    setTaskSlots(int taskSlots)
+    {
+        this.taskSlots = Math.max(taskSlots, 0);
+        startQueuedTasks();
+    }
+
+    public synchronized int
+    getObjectCount()
+    {
+        return objectsByVal.size();
+    }
+
+    /*
+     * Access for the simulated PropertyCollector and services - callers hold the inventory lock
+     */
+
+    SimObject
+    lookup(ManagedObjectReference mor)
+    {
+        return mor != null ? objectsByVal.get(mor.getVal()) : null;
+    }
+
+    SimObject
+    lookupOrFail(ManagedObjectReference mor)
+    {
+        SimObject obj = lookup(mor);
+        if (obj == null) {
+            ManagedObjectNotFound fault = new ManagedObjectNotFound();
+            fault.setObj(mor);
+            throw new SimFault("The object has already been deleted or has not been completely created", fault);
+        }
+        return obj;
+    }
+
+    long
+    getChangeSeq()
+    {
+        return changeSeq;
+    }
+
+    long
+    getStructureSeq()
+    {
+        return structureSeq;
+    }
+
+    String
+    newKey(String prefix)
+    {
+        return prefix + nextKey++;
+    }
+
+    /**
+     * Value of a property path ("runtime.host", "config.ftInfo.role"), null if unset
+     */
+    Object
+    getProperty(SimObject obj, String path)
+    {
+        int dot = path.indexOf('.');
+        String topProp = dot < 0 ? path : path.substring(0, dot);
+        Object value = (obj instanceof SimContainerView && topProp.equals("view"))
+            ? containerViewContents((SimContainerView) obj) : obj.props.get(topProp);
+
+        while (value != null && dot >= 0) {
+            int nextDot = path.indexOf('.', dot + 1);
+            String fieldName = nextDot < 0 ? path.substring(dot + 1) : path.substring(dot + 1, nextDot);
+            value = readField(value, fieldName);
+            dot = nextDot;
+        }
+        return value;
+    }
+
+    /**
+     * Top level property names of the object, for PropertySpec.all
+     */
+    Set<String>
+    getPropertyNames(SimObject obj)
+    {
+        Set<String> names = new LinkedHashSet<String>(obj.props.keySet());
+        if (obj instanceof SimContainerView) {
+            names.add("view");
+        }
+        return names;
+    }
+
+    /**
+     * Record a change of the object's properties and wake up the waiting PropertyCollectors
+     */
+    void
+    touch(SimObject obj)
+    {
+        obj.changeSeq = ++changeSeq;
+        notifyAll();
+    }
+
+    /**
+     * Record a change of the inventory structure (objects added/removed, views modified)
+     */
+    void
+    structureChanged()
+    {
+        structureSeq++;
+        changeSeq++;
+        notifyAll();
+    }
+
+    SimObject
+    add(String type, String val)
+    {
+        SimObject obj = new SimObject(type, val);
+        objectsByVal.put(val, obj);
+        structureSeq++;
+        return obj;
+    }
+
+    SimObject
+    add(SimObject obj)
+    {
+        objectsByVal.put(obj.getVal(), obj);
+        structureChanged();
+        return obj;
+    }
+
+    void
+    remove(SimObject obj)
+    {
+        objectsByVal.remove(obj.getVal());
+        structureChanged();
+    }
+
+    /**
+     * Is the object of the given type. Covers the inheritance the FT tool relies on
+     */
+    static boolean
+    isA(SimObject obj, String type)
+    {
+        String objType = obj.getType();
+        if (objType.equals(type)) {
+            return true;
+        }
+        if (type.equals("ManagedEntity")) {
+            return !objType.endsWith("View") && !objType.equals("Task") && !objType.startsWith("Property");
+        }
+        if (type.equals("ComputeResource")) {
+            return objType.equals("ClusterComputeResource");
+        }
+        if (type.equals("ManagedObjectView")) {
+            return objType.endsWith("View");
+        }
+        return false;
+    }
+
+    /*
+     * Search index
+     */
+
+    synchronized ManagedObjectReference
+    findVmByUuid(String uuid, boolean instanceUuid)
+    {
+        SimObject vm = instanceUuid ? vmsByInstanceUuid.get(uuid) : vmsByUuid.get(uuid);
+        return vm != null ? vm.mor : null;
+    }
+
+    /*
+     * Views
+     */
+
+    synchronized ManagedObjectReference
+    createContainerView(ManagedObjectReference containerMor, String[] types, boolean recursive)
+    {
+        SimObject container = lookupOrFail(containerMor);
+        return add(new SimContainerView(newKey("session[sim]view-"), container, types, recursive)).mor;
+    }
+
+    synchronized ManagedObjectReference
+    createListView(ManagedObjectReference[] objMors)
+    {
+        SimObject listView = add("ListView", newKey("session[sim]view-"));
+        listView.props.put("view", objMors != null ? objMors : new ManagedObjectReference[0]);
+        structureChanged();
+        return listView.mor;
+    }
+
+    synchronized void
+    modifyListView(ManagedObjectReference viewMor, ManagedObjectReference[] addMors,
+        ManagedObjectReference[] removeMors)
+    {
+        SimObject listView = lookupOrFail(viewMor);
+        Set<String> removeVals = new HashSet<String>();
+        if (removeMors != null) {
+            for (ManagedObjectReference mor : removeMors) {
+                removeVals.add(mor.getVal());
+            }
+        }
+
+        List<ManagedObjectReference> viewMors = new ArrayList<ManagedObjectReference>();
+        Set<String> viewVals = new HashSet<String>();
+        for (ManagedObjectReference mor : (ManagedObjectReference[]) listView.props.get("view")) {
+            if (!removeVals.contains(mor.getVal()) && viewVals.add(mor.getVal())) {
+                viewMors.add(mor);
+            }
+        }
+        if (addMors != null) {
+            for (ManagedObjectReference mor : addMors) {
+                if (viewVals.add(mor.getVal())) {
+                    viewMors.add(mor);
+                }
+            }
+        }
+        listView.props.put("view", viewMors.toArray(new ManagedObjectReference[viewMors.size()]));
+        touch(listView);
+        structureChanged();
+    }
+
+    synchronized void
+    destroyView(ManagedObjectReference viewMor)
+    {
+        remove(lookupOrFail(viewMor));
+    }
+
+    /*
+     * FT operations - each returns the Task, its body runs after the simulated task latency
+     */
+
+    synchronized ManagedObjectReference
+    createSecondaryVM(ManagedObjectReference vmMor, ManagedObjectReference hostMor)
+    {
+        final SimObject vm = lookupVm(vmMor);
+        final SimObject requestedHost = hostMor != null ? lookupOrFail(hostMor) : null;
+
+        return runTask("CreateSecondaryVM_Task", vm, () -> {
+            if (ftInfo(vm) != null) {
+                throw invalidState("The virtual machine is already configured for Fault Tolerance");
+            }
+            if (ftIssues.containsKey(vm.getVal())) {
+                VmFaultToleranceConfigIssue fault = new VmFaultToleranceConfigIssue();
+                fault.setReason("unsupportedProduct");
+                fault.setEntity(vm.mor);
+                fault.setEntityName((String) vm.props.get("name"));
+                throw new SimFault(ftIssues.get(vm.getVal()), fault);
+            }
+            SimObject primaryHost = lookup(runtime(vm).getHost());
+            SimObject secondaryHost = requestedHost != null ? requestedHost : anotherHost(vm, primaryHost);
+            if (secondaryHost == null || secondaryHost == primaryHost) {
+                throw invalidState("The Secondary VM must be placed on a host other than the Primary VM's host");
+            }
+
+            SimObject secondary = createSecondary(vm, secondaryHost);
+            FaultTolerancePrimaryConfigInfo primaryFtInfo = new FaultTolerancePrimaryConfigInfo();
+            primaryFtInfo.setRole(1);
+            primaryFtInfo.setInstanceUuids(ftInfo(secondary).getInstanceUuids());
+            primaryFtInfo.setSecondaries(new ManagedObjectReference[] { secondary.mor });
+            config(vm).setFtInfo(primaryFtInfo);
+            touch(vm);
+
+            if (VirtualMachinePowerState.poweredOn.equals(runtime(vm).getPowerState())) {
+                startSecondary(vm);
+            } else {
+                setFtState(vm, VirtualMachineFaultToleranceState.enabled);
+            }
+        });
+    }
+
+    synchronized ManagedObjectReference
+    powerOnVM(ManagedObjectReference vmMor)
+    {
+        final SimObject vm = lookupVm(vmMor);
+
+        return runTask("PowerOnVM_Task", vm, () -> {
+            checkPowerState(vm, VirtualMachinePowerState.poweredOff, VirtualMachinePowerState.poweredOn);
+            setPowerState(vm, VirtualMachinePowerState.poweredOn);
+            if (isFtPrimary(vm)
+                && VirtualMachineFaultToleranceState.enabled.equals(runtime(vm).getFaultToleranceState())) {
+                startSecondary(vm);
+            }
+        });
+    }
+
+    synchronized ManagedObjectReference
+    powerOffVM(ManagedObjectReference vmMor)
+    {
+        final SimObject vm = lookupVm(vmMor);
+
+        return runTask("PowerOffVM_Task", vm, () -> {
+            checkPowerState(vm, VirtualMachinePowerState.poweredOn, VirtualMachinePowerState.poweredOff);
+            setPowerState(vm, VirtualMachinePowerState.poweredOff);
+            if (isFtPrimary(vm)) {
+                for (SimObject secondary : secondaries(vm)) {
+                    setPowerState(secondary, VirtualMachinePowerState.poweredOff);
+                }
+                setFtState(vm, VirtualMachineFaultToleranceState.enabled);
+            }
+        });
+    }
+
+    synchronized ManagedObjectReference
+    disableSecondaryVM(ManagedObjectReference vmMor, ManagedObjectReference secondaryMor)
+    {
+        final SimObject vm = lookupVm(vmMor);
+        final SimObject secondary = lookupVm(secondaryMor);
+
+        return runTask("DisableSecondaryVM_Task", vm, () -> {
+            checkSecondaryOf(vm, secondary);
+            if (VirtualMachineFaultToleranceState.disabled.equals(runtime(vm).getFaultToleranceState())) {
+                throw invalidState("The Secondary VM is already disabled");
+            }
+            setPowerState(secondary, VirtualMachinePowerState.poweredOff);
+            setFtState(vm, VirtualMachineFaultToleranceState.disabled);
+        });
+    }
+
+    synchronized ManagedObjectReference
+    enableSecondaryVM(ManagedObjectReference vmMor, ManagedObjectReference secondaryMor,
+        ManagedObjectReference hostMor)
+    {
+        final SimObject vm = lookupVm(vmMor);
+        final SimObject secondary = lookupVm(secondaryMor);
+        final SimObject host = hostMor != null ? lookupOrFail(hostMor) : null;
+
+        return runTask("EnableSecondaryVM_Task", vm, () -> {
+            checkSecondaryOf(vm, secondary);
+            if (!VirtualMachineFaultToleranceState.disabled.equals(runtime(vm).getFaultToleranceState())) {
+                throw invalidState("The Secondary VM is not disabled");
+            }
+            if (host != null && !host.mor.getVal().equals(runtime(secondary).getHost().getVal())) {
+                moveVm(secondary, host);
+            }
+            if (VirtualMachinePowerState.poweredOn.equals(runtime(vm).getPowerState())) {
+                startSecondary(vm);
+            } else {
+                setFtState(vm, VirtualMachineFaultToleranceState.enabled);
+            }
+        });
+    }
+
+    /**
+     * Test Failover - the Secondary takes over on its host, a new Secondary is started on the old Primary's host
+     */
+    synchronized ManagedObjectReference
+    makePrimaryVM(ManagedObjectReference vmMor, ManagedObjectReference secondaryMor)
+    {
+        final SimObject vm = lookupVm(vmMor);
+        final SimObject secondary = lookupVm(secondaryMor);
+
+        return runTask("MakePrimaryVM_Task", vm, () -> {
+            checkSecondaryOf(vm, secondary);
+            if (!VirtualMachineFaultToleranceState.running.equals(runtime(vm).getFaultToleranceState())) {
+                throw invalidState("Fault Tolerance protection is not running for the virtual machine");
+            }
+            SimObject oldPrimaryHost = lookup(runtime(vm).getHost());
+            SimObject newPrimaryHost = lookup(runtime(secondary).getHost());
+
+            removeVm(secondary);
+            moveVm(vm, newPrimaryHost);
+            setFtState(vm, VirtualMachineFaultToleranceState.needSecondary);
+
+            SimObject newSecondary = createSecondary(vm, oldPrimaryHost);
+            FaultTolerancePrimaryConfigInfo primaryFtInfo = (FaultTolerancePrimaryConfigInfo) ftInfo(vm);
+            primaryFtInfo.setInstanceUuids(ftInfo(newSecondary).getInstanceUuids());
+            primaryFtInfo.setSecondaries(new ManagedObjectReference[] { newSecondary.mor });
+            touch(vm);
+            startSecondary(vm);
+        });
+    }
+
+    synchronized ManagedObjectReference
+    turnOffFaultTolerance(ManagedObjectReference vmMor)
+    {
+        final SimObject vm = lookupVm(vmMor);
+
+        return runTask("TurnOffFaultToleranceForVM_Task", vm, () -> {
+            if (!isFtPrimary(vm)) {
+                throw invalidState("The virtual machine is not a Fault Tolerance Primary VM");
+            }
+            for (SimObject secondary : secondaries(vm)) {
+                removeVm(secondary);
+            }
+            config(vm).setFtInfo(null);
+            setFtState(vm, VirtualMachineFaultToleranceState.notConfigured);
+        });
+    }
+
+    /*
+     * Inventory building
+     */
+
+    private SimObject
+    buildCluster(int clusterNum, int hostCount, int vmCount)
+    {
+        SimObject cluster = add("ClusterComputeResource", "domain-c" + nextKey++);
+        cluster.props.put("name", "sim-cluster-" + clusterNum);
+        ClusterDasConfigInfo dasConfig = new ClusterDasConfigInfo();
+        dasConfig.setEnabled(Boolean.TRUE);
+        ClusterConfigInfo clusterConfig = new ClusterConfigInfo();
+        clusterConfig.setDasConfig(dasConfig);
+        cluster.props.put("configuration", clusterConfig);
+
+        SimObject resourcePool = add("ResourcePool", "resgroup-" + nextKey++);
+        resourcePool.props.put("name", "Resources");
+        resourcePool.props.put("owner", cluster.mor);
+        cluster.props.put("resourcePool", resourcePool.mor);
+
+        SimObject[] hosts = new SimObject[hostCount];
+        List<List<ManagedObjectReference>> hostVms = new ArrayList<List<ManagedObjectReference>>();
+        ManagedObjectReference[] hostMors = new ManagedObjectReference[hostCount];
+        for (int h = 0; h < hostCount; h++) {
+            hosts[h] = buildHost(cluster, String.format("sim-esx-%d-%02d.local", clusterNum, h + 1));
+            hostMors[h] = hosts[h].mor;
+            hostVms.add(new ArrayList<ManagedObjectReference>());
+        }
+        cluster.props.put("host", hostMors);
+
+        ManagedObjectReference[] poolVms = new ManagedObjectReference[vmCount];
+        for (int v = 0; v < vmCount && hostCount > 0; v++) {
+            SimObject vm = buildVm("sim-vm-" + clusterNum + "-" + (v + 1), hosts[v % hostCount], resourcePool);
+            if (ftIssueEvery > 0 && (v + 1) % ftIssueEvery == 0) {
+                addFtIssue(vm, (v + 1) / ftIssueEvery);
+            }
+            poolVms[v] = vm.mor;
+            hostVms.get(v % hostCount).add(vm.mor);
+        }
+        resourcePool.props.put("vm", hostCount > 0 ? poolVms : new ManagedObjectReference[0]);
+        for (int h = 0; h < hostCount; h++) {
+            List<ManagedObjectReference> vms = hostVms.get(h);
+            hosts[h].props.put("vm", vms.toArray(new ManagedObjectReference[vms.size()]));
+        }
+        return cluster;
+    }
+
+    private SimObject
+    buildHost(SimObject cluster, String hostName)
+    {
+        SimObject host = add("HostSystem", "host-" + nextKey++);
+        host.props.put("name", hostName);
+        host.props.put("parent", cluster.mor);
+
+        HostRuntimeInfo runtime = new HostRuntimeInfo();
+        runtime.setConnectionState(HostSystemConnectionState.connected);
+        runtime.setPowerState(HostSystemPowerState.poweredOn);
+        host.props.put("runtime", runtime);
+
+        HostHardwareSummary hardware = new HostHardwareSummary();
+        hardware.setCpuMhz(HOST_CPU_MHZ);
+        hardware.setNumCpuCores(HOST_CPU_CORES);
+        hardware.setNumCpuPkgs((short) 2);
+        hardware.setNumCpuThreads((short) (HOST_CPU_CORES * 2));
+        hardware.setMemorySize(HOST_MEMORY_BYTES);
+        hardware.setVendor("VMware, Inc.");
+        hardware.setModel("Simulated host");
+        HostListSummaryQuickStats quickStats = new HostListSummaryQuickStats();
+        quickStats.setOverallCpuUsage(0);
+        quickStats.setOverallMemoryUsage(0);
+        HostListSummary summary = new HostListSummary();
+        summary.setHost(host.mor);
+        summary.setHardware(hardware);
+        summary.setQuickStats(quickStats);
+        host.props.put("summary", summary);
+
+        HostCapability capability = new HostCapability();
+        capability.setFtSupported(Boolean.TRUE);
+        host.props.put("capability", capability);
+
+        VirtualNicManagerNetConfig ftNetConfig = new VirtualNicManagerNetConfig();
+        ftNetConfig.setNicType(FT_LOGGING_NIC_TYPE);
+        ftNetConfig.setMultiSelectAllowed(true);
+        ftNetConfig.setSelectedVnic(new String[] { FT_LOGGING_NIC_TYPE + ".key-vim.host.VirtualNic-vmk1" });
+        HostVirtualNicManagerInfo nicManagerInfo = new HostVirtualNicManagerInfo();
+        nicManagerInfo.setNetConfig(new VirtualNicManagerNetConfig[] { ftNetConfig });
+        HostConfigInfo config = new HostConfigInfo();
+        config.setHost(host.mor);
+        config.setVirtualNicManagerInfo(nicManagerInfo);
+        host.props.put("config", config);
+        return host;
+    }
+
+    private SimObject
+    buildVm(String vmName, SimObject host, SimObject resourcePool)
+    {
+        SimObject vm = add("VirtualMachine", "vm-" + nextKey++);
+        vm.props.put("name", vmName);
+        vm.props.put("resourcePool", resourcePool.mor);
+        vm.props.put("recentTask", new ManagedObjectReference[0]);
+
+        VirtualHardware hardware = new VirtualHardware();
+        hardware.setNumCPU(1);
+        hardware.setMemoryMB(VM_MEMORY_MB);
+        hardware.setDevice(new VirtualDevice[] { buildDisk(vmName) });
+        VirtualMachineConfigInfo config = new VirtualMachineConfigInfo();
+        config.setName(vmName);
+        config.setGuestId("otherGuest64");
+        config.setGuestFullName("Other (64-bit)");
+        config.setVersion("vmx-10");
+        config.setUuid(UUID.randomUUID().toString());
+        config.setInstanceUuid(UUID.randomUUID().toString());
+        config.setTemplate(false);
+        config.setHardware(hardware);
+        vm.props.put("config", config);
+
+        VirtualMachineRuntimeInfo runtime = new VirtualMachineRuntimeInfo();
+        runtime.setHost(host.mor);
+        runtime.setConnectionState(VirtualMachineConnectionState.connected);
+        runtime.setPowerState(VirtualMachinePowerState.poweredOff);
+        runtime.setFaultToleranceState(VirtualMachineFaultToleranceState.notConfigured);
+        vm.props.put("runtime", runtime);
+
+        vmsByInstanceUuid.put(config.getInstanceUuid(), vm);
+        vmsByUuid.put(config.getUuid(), vm);
+        vmCount++;
+        return vm;
+    }
+
+    private static VirtualDisk
+    buildDisk(String vmName)
+    {
+        VirtualDiskFlatVer2BackingInfo backing = new VirtualDiskFlatVer2BackingInfo();
+        backing.setFileName("[sim-datastore] " + vmName + "/" + vmName + ".vmdk");
+        backing.setDiskMode("persistent");
+        backing.setThinProvisioned(Boolean.TRUE);
+        Description deviceInfo = new Description();
+        deviceInfo.setLabel("Hard disk 1");
+        deviceInfo.setSummary(VM_DISK_KB + " KB");
+        VirtualDisk disk = new VirtualDisk();
+        disk.setKey(2000);
+        disk.setDeviceInfo(deviceInfo);
+        disk.setBacking(backing);
+        disk.setControllerKey(1000);
+        disk.setUnitNumber(0);
+        disk.setCapacityInKB(VM_DISK_KB);
+        return disk;
+    }
+
+    /**
+     * Give the VM one of the configurations FT does not support - physical mode RDM, snapshot, memory above the
+     * FT limit or a USB controller, in turns
+     */
+    private void
+    addFtIssue(SimObject vm, int issueNum)
+    {
+        VirtualHardware hardware = config(vm).getHardware();
+        String ftIssue;
+        switch (issueNum % 4) {
+            case 1:
+                VirtualDiskRawDiskMappingVer1BackingInfo rdmBacking = new VirtualDiskRawDiskMappingVer1BackingInfo();
+                rdmBacking.setFileName(((VirtualDiskFlatVer2BackingInfo) hardware.getDevice()[0].getBacking())
+                    .getFileName());
+                rdmBacking.setDeviceName("vml.0200000000600000000000000000000000000000000000000000");
+                rdmBacking.setCompatibilityMode(VirtualDiskCompatibilityMode.physicalMode.name());
+                rdmBacking.setDiskMode("independent_persistent");
+                hardware.getDevice()[0].setBacking(rdmBacking);
+                ftIssue = "Physical mode RDM disks are not supported for Fault Tolerance";
+                break;
+            case 2:
+                ManagedObjectReference snapshotMor = new ManagedObjectReference();
+                snapshotMor.setType("VirtualMachineSnapshot");
+                snapshotMor.set_value(newKey("snapshot-"));
+                VirtualMachineSnapshotTree snapshotTree = new VirtualMachineSnapshotTree();
+                snapshotTree.setSnapshot(snapshotMor);
+                snapshotTree.setVm(vm.mor);
+                snapshotTree.setName("sim-snapshot");
+                snapshotTree.setId(1);
+                snapshotTree.setCreateTime(now());
+                snapshotTree.setState(VirtualMachinePowerState.poweredOff);
+                VirtualMachineSnapshotInfo snapshotInfo = new VirtualMachineSnapshotInfo();
+                snapshotInfo.setCurrentSnapshot(snapshotMor);
+                snapshotInfo.setRootSnapshotList(new VirtualMachineSnapshotTree[] { snapshotTree });
+                vm.props.put("snapshot", snapshotInfo);
+                ftIssue = "Fault Tolerance is not supported on a virtual machine with snapshots";
+                break;
+            case 3:
+                hardware.setMemoryMB(FT_ISSUE_MEMORY_MB);
+                ftIssue = "Memory of the virtual machine exceeds the Fault Tolerance limit";
+                break;
+            default:
+                Description deviceInfo = new Description();
+                deviceInfo.setLabel("USB controller");
+                deviceInfo.setSummary("Auto connect Disabled");
+                VirtualUSBController usbController = new VirtualUSBController();
+                usbController.setKey(7000);
+                usbController.setDeviceInfo(deviceInfo);
+                usbController.setBusNumber(0);
+                hardware.setDevice(new VirtualDevice[] { hardware.getDevice()[0], usbController });
+                ftIssue = "USB devices are not supported for Fault Tolerance";
+                break;
+        }
+        ftIssues.put(vm.getVal(), ftIssue);
+    }
+
+    /*
+     * FT state handling
+     */
+
+    private SimObject
+    createSecondary(SimObject primary, SimObject host)
+    {
+        VirtualMachineConfigInfo primaryConfig = config(primary);
+        SimObject resourcePool = lookup((ManagedObjectReference) primary.props.get("resourcePool"));
+        SimObject secondary = buildVm(primaryConfig.getName(), host, resourcePool);
+        // Secondary shares the BIOS UUID of the Primary, only its instance UUID is its own
+        vmsByUuid.remove(config(secondary).getUuid());
+        config(secondary).setUuid(primaryConfig.getUuid());
+
+        FaultToleranceSecondaryConfigInfo secondaryFtInfo = new FaultToleranceSecondaryConfigInfo();
+        secondaryFtInfo.setRole(2);
+        secondaryFtInfo.setPrimaryVM(primary.mor);
+        secondaryFtInfo.setInstanceUuids(
+            new String[] { primaryConfig.getInstanceUuid(), config(secondary).getInstanceUuid() });
+        config(secondary).setFtInfo(secondaryFtInfo);
+        runtime(secondary).setFaultToleranceState(runtime(primary).getFaultToleranceState());
+
+        addToArray(host, "vm", secondary.mor);
+        addToArray(resourcePool, "vm", secondary.mor);
+        structureChanged();
+        return secondary;
+    }
+
+    private void
+    removeVm(SimObject vm)
+    {
+        SimObject host = lookup(runtime(vm).getHost());
+        SimObject resourcePool = lookup((ManagedObjectReference) vm.props.get("resourcePool"));
+        removeFromArray(host, "vm", vm.mor);
+        removeFromArray(resourcePool, "vm", vm.mor);
+        vmsByInstanceUuid.remove(config(vm).getInstanceUuid());
+        vmCount--;
+        remove(vm);
+        updateHostStats(host);
+    }
+
+    private void
+    moveVm(SimObject vm, SimObject toHost)
+    {
+        SimObject fromHost = lookup(runtime(vm).getHost());
+        removeFromArray(fromHost, "vm", vm.mor);
+        addToArray(toHost, "vm", vm.mor);
+        runtime(vm).setHost(toHost.mor);
+        touch(vm);
+        updateHostStats(fromHost);
+        updateHostStats(toHost);
+    }
+
+    /**
+     * starting -> running once the Secondary start latency has elapsed, unless the FT state has moved on meanwhile
+     */
+    private void
+    startSecondary(final SimObject vm)
+    {
+        final int generation = setFtState(vm, VirtualMachineFaultToleranceState.starting);
+        schedule(ftStartMillis, () -> {
+            if (generation == ftGenerations.get(vm.getVal()) && lookup(vm.mor) != null
+                && VirtualMachinePowerState.poweredOn.equals(runtime(vm).getPowerState())) {
+                for (SimObject secondary : secondaries(vm)) {
+                    setPowerState(secondary, VirtualMachinePowerState.poweredOn);
+                }
+                setFtState(vm, VirtualMachineFaultToleranceState.running);
+            }
+        });
+    }
+
+    /**
+     * Set the FT state of the Primary and its Secondaries, returns the new FT state generation of the VM
+     */
+    private int
+    setFtState(SimObject vm, VirtualMachineFaultToleranceState ftState)
+    {
+        runtime(vm).setFaultToleranceState(ftState);
+        touch(vm);
+        for (SimObject secondary : secondaries(vm)) {
+            runtime(secondary).setFaultToleranceState(ftState);
+            touch(secondary);
+        }
+        Integer generation = ftGenerations.get(vm.getVal());
+        int nextGeneration = generation != null ? generation + 1 : 1;
+        ftGenerations.put(vm.getVal(), nextGeneration);
+        return nextGeneration;
+    }
+
+    private void
+    setPowerState(SimObject vm, VirtualMachinePowerState powerState)
+    {
+        runtime(vm).setPowerState(powerState);
+        touch(vm);
+        updateHostStats(lookup(runtime(vm).getHost()));
+    }
+
+    /**
+     * Host quick stats follow the powered on VMs placed on it
+     */
+    private void
+    updateHostStats(SimObject host)
+    {
+        if (host == null) {
+            return;
+        }
+        int poweredOnVms = 0;
+        for (ManagedObjectReference vmMor : (ManagedObjectReference[]) host.props.get("vm")) {
+            SimObject vm = lookup(vmMor);
+            if (vm != null && VirtualMachinePowerState.poweredOn.equals(runtime(vm).getPowerState())) {
+                poweredOnVms++;
+            }
+        }
+        HostListSummaryQuickStats quickStats = ((HostListSummary) host.props.get("summary")).getQuickStats();
+        quickStats.setOverallCpuUsage(poweredOnVms * VM_CPU_DEMAND_MHZ);
+        quickStats.setOverallMemoryUsage(poweredOnVms * VM_MEMORY_MB);
+        touch(host);
+    }
+
+    private List<SimObject>
+    secondaries(SimObject vm)
+    {
+        List<SimObject> secondaries = new ArrayList<SimObject>();
+        FaultToleranceConfigInfo ftInfo = ftInfo(vm);
+        if (ftInfo instanceof FaultTolerancePrimaryConfigInfo) {
+            ManagedObjectReference[] secondaryMors = ((FaultTolerancePrimaryConfigInfo) ftInfo).getSecondaries();
+            if (secondaryMors != null) {
+                for (ManagedObjectReference secondaryMor : secondaryMors) {
+                    SimObject secondary = lookup(secondaryMor);
+                    if (secondary != null) {
+                        secondaries.add(secondary);
+                    }
+                }
+            }
+        }
+        return secondaries;
+    }
+
+    private boolean
+    isFtPrimary(SimObject vm)
+    {
+        return ftInfo(vm) instanceof FaultTolerancePrimaryConfigInfo;
+    }
+
+    private void
+    checkSecondaryOf(SimObject vm, SimObject secondary)
+    {
+        if (!isFtPrimary(vm) || !secondaries(vm).contains(secondary)) {
+            throw new SimFault("The virtual machine " + secondary.getVal() + " is not a Secondary VM of "
+                + vm.getVal(), new InvalidArgument());
+        }
+    }
+
+    private void
+    checkPowerState(SimObject vm, VirtualMachinePowerState expected, VirtualMachinePowerState requested)
+    {
+        VirtualMachinePowerState existing = runtime(vm).getPowerState();
+        if (!expected.equals(existing)) {
+            InvalidPowerState fault = new InvalidPowerState();
+            fault.setExistingState(existing);
+            fault.setRequestedState(requested);
+            throw new SimFault("The attempted operation cannot be performed in the current state (" + existing + ")",
+                fault);
+        }
+    }
+
+    private SimObject
+    anotherHost(SimObject vm, SimObject notThisHost)
+    {
+        SimObject cluster = lookup((ManagedObjectReference) notThisHost.props.get("parent"));
+        for (ManagedObjectReference hostMor : (ManagedObjectReference[]) cluster.props.get("host")) {
+            if (!hostMor.getVal().equals(notThisHost.getVal())) {
+                return lookup(hostMor);
+            }
+        }
+        return null;
+    }
+
+    private SimObject
+    lookupVm(ManagedObjectReference vmMor)
+    {
+        SimObject vm = lookupOrFail(vmMor);
+        if (!vm.getType().equals(FTOps.VM_MOR_TYPE)) {
+            throw new SimFault("Object " + vmMor.getVal() + " is not a VirtualMachine", new InvalidArgument());
+        }
+        return vm;
+    }
+
+    private static VirtualMachineConfigInfo
+    config(SimObject vm)
+    {
+        return (VirtualMachineConfigInfo) vm.props.get("config");
+    }
+
+    private static VirtualMachineRuntimeInfo
+    runtime(SimObject vm)
+    {
+        return (VirtualMachineRuntimeInfo) vm.props.get("runtime");
+    }
+
+    private static FaultToleranceConfigInfo
+    ftInfo(SimObject vm)
+    {
+        return config(vm).getFtInfo();
+    }
+
+    private static SimFault
+    invalidState(String message)
+    {
+        return new SimFault(message, new InvalidState());
+    }
+
+    /*
+     * Tasks
+     */
+
+    /**
+     * Create the Task, and complete it with the action's outcome after the task latency. The task is queued
+     * while all task slots are taken
+     */
+    private ManagedObjectReference
+    runTask(String taskName, SimObject entity, final Runnable action)
+    {
+        final SimObject task = add("Task", newKey("task-"));
+        TaskInfo taskInfo = new TaskInfo();
+        taskInfo.setKey(task.getVal());
+        taskInfo.setTask(task.mor);
+        taskInfo.setName(taskName);
+        taskInfo.setDescriptionId("VirtualMachine." + taskName);
+        taskInfo.setEntity(entity.mor);
+        taskInfo.setEntityName((String) entity.props.get("name"));
+        taskInfo.setCancelable(true);
+        taskInfo.setQueueTime(now());
+        taskInfo.setEventChainId(nextKey);
+        task.props.put("info", taskInfo);
+        taskCount++;
+        addToArray(entity, "recentTask", task.mor);
+
+        if (taskSlots > 0 && runningTasks >= taskSlots) {
+            taskInfo.setState(TaskInfoState.queued);
+            queuedTasks.put(task.getVal(), () -> startTask(task, action));
+        } else {
+            startTask(task, action);
+        }
+        return task.mor;
+    }
+
+    /**
+     * Task takes a slot and runs
+     */
+    private void
+    startTask(final SimObject task, final Runnable action)
+    {
+        TaskInfo taskInfo = (TaskInfo) task.props.get("info");
+        taskInfo.setState(TaskInfoState.running);
+        taskInfo.setStartTime(now());
+        runningTasks++;
+        touch(task);
+
+        schedule(taskMillis, () -> {
+            TaskInfo info = (TaskInfo) task.props.get("info");
+            if (!TaskInfoState.running.equals(info.getState())) {
+                // Cancelled
+                return;
+            }
+            try {
+                action.run();
+                info.setState(TaskInfoState.success);
+            } catch (SimFault f) {
+                LocalizedMethodFault error = new LocalizedMethodFault();
+                error.setFault(f.fault);
+                error.setLocalizedMessage(f.getMessage());
+                info.setError(error);
+                info.setState(TaskInfoState.error);
+            }
+            info.setCompleteTime(now());
+            touch(task);
+            taskEnded(info);
+            runningTasks--;
+            startQueuedTasks();
+        });
+    }
+
+    /**
+     * Start queued tasks while there are free task slots
+     */
+    private void
+    startQueuedTasks()
+    {
+        Iterator<Runnable> queuedItr = queuedTasks.values().iterator();
+        while (queuedItr.hasNext() && (taskSlots == 0 || runningTasks < taskSlots)) {
+            Runnable start = queuedItr.next();
+            queuedItr.remove();
+            start.run();
+        }
+    }
+
+    /**
+     * Cancel a queued or running task - it ends in error (RequestCanceled), its operation is not carried out
+     */
+    synchronized void
+    cancelTask(ManagedObjectReference taskMor)
+    {
+        SimObject task = lookupOrFail(taskMor);
+        TaskInfo info = (TaskInfo) task.props.get("info");
+        boolean queued = queuedTasks.remove(task.getVal()) != null;
+        if (!queued && !TaskInfoState.running.equals(info.getState())) {
+            throw invalidState("The task has already completed");
+        }
+        LocalizedMethodFault error = new LocalizedMethodFault();
+        error.setFault(new RequestCanceled());
+        error.setLocalizedMessage("The task was canceled by a user.");
+        info.setError(error);
+        info.setCancelled(true);
+        info.setState(TaskInfoState.error);
+        info.setCompleteTime(now());
+        touch(task);
+        taskEnded(info);
+        if (!queued) {
+            runningTasks--;
+            startQueuedTasks();
+        }
+    }
+
+    /**
+     * Ended task leaves the recentTask list of its entity
+     */
+    private void
+    taskEnded(TaskInfo info)
+    {
+        SimObject entity = lookup(info.getEntity());
+        if (entity != null) {
+            removeFromArray(entity, "recentTask", info.getTask());
+        }
+    }
+
+    /**
+     * Run the action under the inventory lock, after the delay
+     */
+    private void
+    schedule(int delayMillis, final Runnable action)
+    {
+        taskScheduler.schedule(() -> {
+            synchronized (SimInventory.this) {
+                try {
+                    action.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Simulator: caught an exception in a scheduled inventory change");
+                    e.printStackTrace();
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static Calendar
+    now()
+    {
+        return Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    }
+
+    /*
+     * Containment and reflection helpers
+     */
+
+    private ManagedObjectReference[]
+    containerViewContents(SimContainerView containerView)
+    {
+        if (containerView.viewStructureSeq == structureSeq) {
+            return containerView.view;
+        }
+        Set<String> visited = new HashSet<String>();
+        List<ManagedObjectReference> contents = new ArrayList<ManagedObjectReference>();
+        List<SimObject> level = new ArrayList<SimObject>();
+        level.add(containerView.container);
+        visited.add(containerView.container.getVal());
+
+        while (!level.isEmpty()) {
+            List<SimObject> nextLevel = new ArrayList<SimObject>();
+            for (SimObject parent : level) {
+                for (SimObject child : children(parent)) {
+                    if (!visited.add(child.getVal())) {
+                        continue;
+                    }
+                    if (containerView.types.isEmpty() || matchesAny(child, containerView.types)) {
+                        contents.add(child.mor);
+                    }
+                    nextLevel.add(child);
+                }
+            }
+            level = containerView.recursive ? nextLevel : new ArrayList<SimObject>();
+        }
+        containerView.view = contents.toArray(new ManagedObjectReference[contents.size()]);
+        containerView.viewStructureSeq = structureSeq;
+        return containerView.view;
+    }
+
+    private static boolean
+    matchesAny(SimObject obj, Set<String> types)
+    {
+        for (String type : types) {
+            if (isA(obj, type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Objects contained in a container entity, as ContainerView sees them
+     */
+    private List<SimObject>
+    children(SimObject parent)
+    {
+        List<SimObject> children = new ArrayList<SimObject>();
+        String[] childProps;
+        switch (parent.getType()) {
+            case "Folder":
+                childProps = new String[] { "childEntity" };
+                break;
+            case "Datacenter":
+                childProps = new String[] { "hostFolder", "vmFolder" };
+                break;
+            case "ClusterComputeResource":
+                childProps = new String[] { "host", "resourcePool" };
+                break;
+            case "ResourcePool":
+            case "HostSystem":
+                childProps = new String[] { "vm" };
+                break;
+            default:
+                return children;
+        }
+        for (String childProp : childProps) {
+            Object value = parent.props.get(childProp);
+            if (value instanceof ManagedObjectReference) {
+                value = new ManagedObjectReference[] { (ManagedObjectReference) value };
+            }
+            if (value instanceof ManagedObjectReference[]) {
+                for (ManagedObjectReference childMor : (ManagedObjectReference[]) value) {
+                    SimObject child = lookup(childMor);
+                    if (child != null) {
+                        children.add(child);
+                    }
+                }
+            }
+        }
+        return children;
+    }
+
+    private void
+    addToArray(SimObject obj, String prop, ManagedObjectReference mor)
+    {
+        ManagedObjectReference[] mors = (ManagedObjectReference[]) obj.props.get(prop);
+        ManagedObjectReference[] newMors = Arrays.copyOf(mors, mors.length + 1);
+        newMors[mors.length] = mor;
+        obj.props.put(prop, newMors);
+        touch(obj);
+        structureChanged();
+    }
+
+    private void
+    removeFromArray(SimObject obj, String prop, ManagedObjectReference mor)
+    {
+        List<ManagedObjectReference> mors = new ArrayList<ManagedObjectReference>();
+        for (ManagedObjectReference existing : (ManagedObjectReference[]) obj.props.get(prop)) {
+            if (!existing.getVal().equals(mor.getVal())) {
+                mors.add(existing);
+            }
+        }
+        obj.props.put(prop, mors.toArray(new ManagedObjectReference[mors.size()]));
+        touch(obj);
+        structureChanged();
+    }
+
+    private static Object
+    readField(Object dataObj, String fieldName)
+    {
+        String key = dataObj.getClass().getName() + "#" + fieldName;
+        Field field = FIELDS_BY_PATH.get(key);
+        try {
+            if (field == null) {
+                field = dataObj.getClass().getField(fieldName);
+                FIELDS_BY_PATH.put(key, field);
+            }
+            return field.get(dataObj);
+        } catch (NoSuchFieldException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,494 @@
+/**
+ * PropertyCollector of the local vSphere simulator
+ * -- RetrieveProperties/RetrievePropertiesEx (paged through tokens) over ObjectSpec/TraversalSpec selections
+ * -- Filters remember the values they last reported, WaitForUpdatesEx returns enter/modify/leave diffs against them
+ * -- WaitForUpdatesEx parks on the inventory lock until a change arrives, maxWaitSeconds elapses or it is cancelled
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.InvalidArgument;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RequestCanceled;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.UserSession;
+
+import faulttolerance.SimInventory.SimFault;
+import faulttolerance.SimInventory.SimObject;
+
+public class SimPropertyCollector
+{
+    public static final String SESSION_MANAGER_TYPE = "SessionManager";
+
+    // Objects per RetrievePropertiesEx page, unless the client asks for fewer
+    private static final int MAX_PAGE_OBJECTS = 1000;
+
+    /**
+     * PropertyFilter and the values it has reported, per object and property path
+     */
+    private static class Filter
+    {
+        final ManagedObjectReference mor;
+        final PropertyFilterSpec spec;
+        final UserSession session;
+        final Map<String, Map<String, String>> reported = new HashMap<String, Map<String, String>>();
+        final Map<String, ManagedObjectReference> reportedMors = new HashMap<String, ManagedObjectReference>();
+        Map<String, SimObject> selected;
+        long scannedChangeSeq = -1;
+        long selectedStructureSeq = -1;
+
+        Filter(ManagedObjectReference mor, PropertyFilterSpec spec, UserSession session)
+        {
+            this.mor = mor;
+            this.spec = spec;
+            this.session = session;
+        }
+    }
+
+    private final SimInventory inventory;
+    private final ManagedObjectReference mor;
+    private final Map<String, Filter> filters = new LinkedHashMap<String, Filter>();
+    private final Map<String, List<ObjectContent>> pendingPages = new HashMap<String, List<ObjectContent>>();
+    // Continued retrievals keep the page size of the first call, like vCenter does
+    private final Map<String, Integer> pendingPageSizes = new HashMap<String, Integer>();
+    private int updateVersion;
+    private boolean waitCancelled;
+
+    /**
+     * Constructor
+     */
+    public SimPropertyCollector(SimInventory inventory, ManagedObjectReference mor)
+    {
+        this.inventory = inventory;
+        this.mor = mor;
+    }
+
+    public ManagedObjectReference
+    getMOR()
+    {
+        return mor;
+    }
+
+    /**
+     * RetrieveProperties - all matching objects in one response
+     */
+    public ObjectContent[]
+    retrieveProperties(PropertyFilterSpec[] specSet, UserSession session)
+    {
+        synchronized (inventory) {
+            List<ObjectContent> contents = retrieve(specSet, session);
+            return contents.toArray(new ObjectContent[contents.size()]);
+        }
+    }
+
+    /**
+     * RetrievePropertiesEx - first page, the rest is fetched with ContinueRetrievePropertiesEx(token)
+     */
+    public RetrieveResult
+    retrievePropertiesEx(PropertyFilterSpec[] specSet, Integer maxObjects, UserSession session)
+    {
+        synchronized (inventory) {
+            int pageSize = maxObjects != null && maxObjects > 0 ? Math.min(maxObjects, MAX_PAGE_OBJECTS)
+                : MAX_PAGE_OBJECTS;
+            List<ObjectContent> contents = retrieve(specSet, session);
+            return contents.isEmpty() ? null : nextPage(contents, pageSize);
+        }
+    }
+
+    public RetrieveResult
+    continueRetrievePropertiesEx(String token)
+    {
+        synchronized (inventory) {
+            List<ObjectContent> remaining = pendingPages.remove(token);
+            if (remaining == null) {
+                throw new SimFault("Unknown or expired token: " + token, new InvalidArgument());
+            }
+            return nextPage(remaining, pendingPageSizes.remove(token));
+        }
+    }
+
+    public void
+    cancelRetrievePropertiesEx(String token)
+    {
+        synchronized (inventory) {
+            pendingPages.remove(token);
+            pendingPageSizes.remove(token);
+        }
+    }
+
+    public ManagedObjectReference
+    createFilter(PropertyFilterSpec spec, UserSession session)
+    {
+        synchronized (inventory) {
+            ManagedObjectReference filterMor = new ManagedObjectReference();
+            filterMor.setType("PropertyFilter");
+            filterMor.set_value(inventory.newKey("session[sim]filter-"));
+            filters.put(filterMor.getVal(), new Filter(filterMor, spec, session));
+            // Wake up a waiting WaitForUpdatesEx, the new filter's objects enter on it
+            inventory.structureChanged();
+            return filterMor;
+        }
+    }
+
+    /**
+     * Destroy the filter, if it belongs to this collector
+     */
+    public boolean
+    destroyFilter(ManagedObjectReference filterMor)
+    {
+        synchronized (inventory) {
+            return filters.remove(filterMor.getVal()) != null;
+        }
+    }
+
+    /**
+     * WaitForUpdatesEx - changes since the filters last reported. Returns null if maxWaitSeconds elapses first
+     */
+    public UpdateSet
+    waitForUpdatesEx(Integer maxWaitSeconds) throws InterruptedException
+    {
+        long deadline = maxWaitSeconds != null ? System.currentTimeMillis() + maxWaitSeconds * 1000L : 0;
+
+        synchronized (inventory) {
+            while (true) {
+                if (waitCancelled) {
+                    waitCancelled = false;
+                    throw new SimFault("The request was canceled", new RequestCanceled());
+                }
+
+                List<PropertyFilterUpdate> filterUpdates = new ArrayList<PropertyFilterUpdate>();
+                for (Filter filter : filters.values()) {
+                    PropertyFilterUpdate filterUpdate = collectUpdates(filter);
+                    if (filterUpdate != null) {
+                        filterUpdates.add(filterUpdate);
+                    }
+                }
+                if (!filterUpdates.isEmpty()) {
+                    UpdateSet updateSet = new UpdateSet();
+                    updateSet.setVersion(String.valueOf(++updateVersion));
+                    updateSet.setFilterSet(filterUpdates.toArray(new PropertyFilterUpdate[filterUpdates.size()]));
+                    return updateSet;
+                }
+
+                if (maxWaitSeconds == null) {
+                    inventory.wait();
+                } else {
+                    long remainingMillis = deadline - System.currentTimeMillis();
+                    if (remainingMillis <= 0) {
+                        return null;
+                    }
+                    inventory.wait(remainingMillis);
+                }
+            }
+        }
+    }
+
+    /**
+     * CancelWaitForUpdates - the outstanding (or next) WaitForUpdatesEx fails with RequestCanceled
+     */
+    public void
+    cancelWaitForUpdates()
+    {
+        synchronized (inventory) {
+            waitCancelled = true;
+            inventory.notifyAll();
+        }
+    }
+
+    /*
+     * Selection and property collection - caller holds the inventory lock
+     */
+
+    private List<ObjectContent>
+    retrieve(PropertyFilterSpec[] specSet, UserSession session)
+    {
+        List<ObjectContent> contents = new ArrayList<ObjectContent>();
+        for (PropertyFilterSpec spec : specSet) {
+            for (SimObject obj : select(spec).values()) {
+                Map<String, Object> values = collectValues(obj, spec.getPropSet(), session);
+                if (values == null) {
+                    continue;
+                }
+                List<DynamicProperty> propSet = new ArrayList<DynamicProperty>();
+                for (Map.Entry<String, Object> value : values.entrySet()) {
+                    if (value.getValue() == null) {
+                        // unset properties are left out, like vCenter does
+                        continue;
+                    }
+                    DynamicProperty dynProp = new DynamicProperty();
+                    dynProp.setName(value.getKey());
+                    dynProp.setVal(value.getValue());
+                    propSet.add(dynProp);
+                }
+                ObjectContent objContent = new ObjectContent();
+                objContent.setObj(obj.mor);
+                objContent.setPropSet(propSet.toArray(new DynamicProperty[propSet.size()]));
+                contents.add(objContent);
+            }
+        }
+        return contents;
+    }
+
+    private RetrieveResult
+    nextPage(List<ObjectContent> contents, int pageSize)
+    {
+        RetrieveResult result = new RetrieveResult();
+        if (contents.size() <= pageSize) {
+            result.setObjects(contents.toArray(new ObjectContent[contents.size()]));
+            return result;
+        }
+        List<ObjectContent> page = contents.subList(0, pageSize);
+        result.setObjects(page.toArray(new ObjectContent[pageSize]));
+        String token = inventory.newKey("token-");
+        pendingPages.put(token, new ArrayList<ObjectContent>(contents.subList(pageSize, contents.size())));
+        pendingPageSizes.put(token, pageSize);
+        result.setToken(token);
+        return result;
+    }
+
+    /**
+     * Changes of one filter since its last report, null if none
+     */
+    private PropertyFilterUpdate
+    collectUpdates(Filter filter)
+    {
+        if (filter.scannedChangeSeq == inventory.getChangeSeq()) {
+            return null;
+        }
+
+        boolean reselected = false;
+        if (filter.selectedStructureSeq != inventory.getStructureSeq()) {
+            filter.selected = select(filter.spec);
+            filter.selectedStructureSeq = inventory.getStructureSeq();
+            reselected = true;
+        }
+
+        List<ObjectUpdate> objUpdates = new ArrayList<ObjectUpdate>();
+        for (SimObject obj : filter.selected.values()) {
+            Map<String, String> reportedValues = filter.reported.get(obj.getVal());
+            if (reportedValues != null && obj.changeSeq <= filter.scannedChangeSeq) {
+                continue;
+            }
+            Map<String, Object> values = collectValues(obj, filter.spec.getPropSet(), filter.session);
+            if (values == null) {
+                continue;
+            }
+
+            boolean entering = reportedValues == null;
+            if (entering) {
+                reportedValues = new HashMap<String, String>();
+                filter.reported.put(obj.getVal(), reportedValues);
+                filter.reportedMors.put(obj.getVal(), obj.mor);
+            }
+
+            List<PropertyChange> changes = new ArrayList<PropertyChange>();
+            for (Map.Entry<String, Object> value : values.entrySet()) {
+                String valueXml = value.getValue() != null ? SimSoapCodec.valueXml(value.getValue()) : null;
+                boolean unchanged = entering ? valueXml == null
+                    : Objects.equals(valueXml, reportedValues.get(value.getKey()));
+                if (unchanged) {
+                    continue;
+                }
+                reportedValues.put(value.getKey(), valueXml);
+
+                PropertyChange change = new PropertyChange();
+                change.setName(value.getKey());
+                change.setOp(PropertyChangeOp.assign);
+                change.setVal(value.getValue());
+                changes.add(change);
+            }
+
+            if (entering || !changes.isEmpty()) {
+                ObjectUpdate objUpdate = new ObjectUpdate();
+                objUpdate.setKind(entering ? ObjectUpdateKind.enter : ObjectUpdateKind.modify);
+                objUpdate.setObj(obj.mor);
+                objUpdate.setChangeSet(changes.toArray(new PropertyChange[changes.size()]));
+                objUpdates.add(objUpdate);
+            }
+        }
+
+        if (reselected) {
+            Iterator<Map.Entry<String, ManagedObjectReference>> reportedIter =
+                filter.reportedMors.entrySet().iterator();
+            while (reportedIter.hasNext()) {
+                Map.Entry<String, ManagedObjectReference> reportedObj = reportedIter.next();
+                if (!filter.selected.containsKey(reportedObj.getKey())) {
+                    reportedIter.remove();
+                    filter.reported.remove(reportedObj.getKey());
+
+                    ObjectUpdate objUpdate = new ObjectUpdate();
+                    objUpdate.setKind(ObjectUpdateKind.leave);
+                    objUpdate.setObj(reportedObj.getValue());
+                    objUpdates.add(objUpdate);
+                }
+            }
+        }
+        filter.scannedChangeSeq = inventory.getChangeSeq();
+
+        if (objUpdates.isEmpty()) {
+            return null;
+        }
+        PropertyFilterUpdate filterUpdate = new PropertyFilterUpdate();
+        filterUpdate.setFilter(filter.mor);
+        filterUpdate.setObjectSet(objUpdates.toArray(new ObjectUpdate[objUpdates.size()]));
+        return filterUpdate;
+    }
+
+    /**
+     * Objects selected by the filter spec: ObjectSpec objects, and those reached through their TraversalSpecs
+     */
+    private Map<String, SimObject>
+    select(PropertyFilterSpec spec)
+    {
+        Map<String, TraversalSpec> namedSpecs = new HashMap<String, TraversalSpec>();
+        Map<String, SimObject> selected = new LinkedHashMap<String, SimObject>();
+        Set<String> visited = new HashSet<String>();
+
+        for (ObjectSpec objSpec : spec.getObjectSet()) {
+            collectNamedSpecs(objSpec.getSelectSet(), namedSpecs);
+        }
+        for (ObjectSpec objSpec : spec.getObjectSet()) {
+            SimObject obj = inventory.lookup(objSpec.getObj());
+            if (obj == null) {
+                continue;
+            }
+            if (!Boolean.TRUE.equals(objSpec.getSkip())) {
+                selected.put(obj.getVal(), obj);
+            }
+            traverse(obj, objSpec.getSelectSet(), namedSpecs, selected, visited);
+        }
+        return selected;
+    }
+
+    private void
+    traverse(SimObject obj, SelectionSpec[] selectSet, Map<String, TraversalSpec> namedSpecs,
+        Map<String, SimObject> selected, Set<String> visited)
+    {
+        if (selectSet == null) {
+            return;
+        }
+        for (SelectionSpec selectSpec : selectSet) {
+            TraversalSpec traversalSpec = selectSpec instanceof TraversalSpec ? (TraversalSpec) selectSpec
+                : namedSpecs.get(selectSpec.getName());
+            if (traversalSpec == null || !SimInventory.isA(obj, traversalSpec.getType())
+                || !visited.add(System.identityHashCode(traversalSpec) + "/" + obj.getVal())) {
+                continue;
+            }
+
+            Object value = inventory.getProperty(obj, traversalSpec.getPath());
+            if (value instanceof ManagedObjectReference) {
+                value = new ManagedObjectReference[] { (ManagedObjectReference) value };
+            }
+            if (!(value instanceof ManagedObjectReference[])) {
+                continue;
+            }
+            for (ManagedObjectReference targetMor : (ManagedObjectReference[]) value) {
+                SimObject target = inventory.lookup(targetMor);
+                if (target == null) {
+                    continue;
+                }
+                if (!Boolean.TRUE.equals(traversalSpec.getSkip())) {
+                    selected.put(target.getVal(), target);
+                }
+                traverse(target, traversalSpec.getSelectSet(), namedSpecs, selected, visited);
+            }
+        }
+    }
+
+    private static void
+    collectNamedSpecs(SelectionSpec[] selectSet, Map<String, TraversalSpec> namedSpecs)
+    {
+        if (selectSet == null) {
+            return;
+        }
+        for (SelectionSpec selectSpec : selectSet) {
+            if (!(selectSpec instanceof TraversalSpec)) {
+                continue;
+            }
+            if (selectSpec.getName() != null) {
+                if (namedSpecs.containsKey(selectSpec.getName())) {
+                    continue;
+                }
+                namedSpecs.put(selectSpec.getName(), (TraversalSpec) selectSpec);
+            }
+            collectNamedSpecs(((TraversalSpec) selectSpec).getSelectSet(), namedSpecs);
+        }
+    }
+
+    /**
+     * Requested property values of the object (null values included), null if no PropertySpec covers its type
+     */
+    private Map<String, Object>
+    collectValues(SimObject obj, PropertySpec[] propSpecs, UserSession session)
+    {
+        Map<String, Object> values = null;
+        for (PropertySpec propSpec : propSpecs) {
+            if (!SimInventory.isA(obj, propSpec.getType())) {
+                continue;
+            }
+            if (values == null) {
+                values = new LinkedHashMap<String, Object>();
+            }
+            Iterable<String> paths = Boolean.TRUE.equals(propSpec.getAll()) ? inventory.getPropertyNames(obj)
+                : propSpec.getPathSet() != null ? Arrays.asList(propSpec.getPathSet())
+                : new ArrayList<String>();
+            for (String path : paths) {
+                if (obj.getType().equals(SESSION_MANAGER_TYPE) && path.equals("currentSession")) {
+                    values.put(path, session);
+                } else {
+                    values.put(path, inventory.getProperty(obj, path));
+                }
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,460 @@
+/**
+ * vim25 SOAP encoding for the local vSphere simulator
+ * -- Requests are parsed with the JDK DOM parser, into the vim25 data objects the simulator needs
+ * -- Responses are vim25 data objects serialized by reflection, xsi:type is written where the client needs it
+ *    to pick the concrete type (polymorphic and xsd:anyType fields)
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.MethodFault;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+
+public class SimSoapCodec
+{
+    private static final String XSI_NS = "http://www.w3.org/2001/XMLSchema-instance";
+    private static final String ENVELOPE_START = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+        + "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\""
+        + " xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\" xmlns:xsi=\"" + XSI_NS + "\"><soapenv:Body>";
+    private static final String ENVELOPE_END = "</soapenv:Body></soapenv:Envelope>";
+
+    // Serializable fields of each vim25 data object class, base class fields first
+    private static final Map<Class<?>, List<Field>> FIELDS_BY_CLASS = new ConcurrentHashMap<Class<?>, List<Field>>();
+
+    private static final ThreadLocal<DocumentBuilder> DOC_BUILDERS = new ThreadLocal<DocumentBuilder>() {
+        @Override
+        protected DocumentBuilder initialValue()
+        {
+            try {
+                DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+                factory.setNamespaceAware(true);
+                return factory.newDocumentBuilder();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * Operation element of a SOAP request (first child of the Body)
+     */
+    public static Element
+    parseRequest(InputStream in) throws Exception
+    {
+        Document doc = DOC_BUILDERS.get().parse(in);
+        Element body = child(doc.getDocumentElement(), "Body");
+        if (body == null) {
+            throw new IllegalArgumentException("SOAP request without Body");
+        }
+        return firstChild(body);
+    }
+
+    /**
+     * <opResponse> with the return value, an array return value is written as repeated returnval elements
+     */
+    public static String
+    response(String opName, Object returnVal, Class<?> declaredType)
+    {
+        StringBuilder xml = new StringBuilder(256).append(ENVELOPE_START);
+        xml.append('<').append(opName).append("Response xmlns=\"urn:vim25\">");
+        if (returnVal != null) {
+            writeValue(xml, "returnval", declaredType, returnVal);
+        }
+        xml.append("</").append(opName).append("Response>").append(ENVELOPE_END);
+        return xml.toString();
+    }
+
+    /**
+     * XML of a property value, as written in a PropertyChange. Two values are equal if their XML is
+     */
+    public static String
+    valueXml(Object value)
+    {
+        StringBuilder xml = new StringBuilder(64);
+        writeValue(xml, "val", Object.class, value);
+        return xml.toString();
+    }
+
+    /**
+     * SOAP fault carrying the vim25 fault in its detail
+     */
+    public static String
+    fault(String message, MethodFault fault)
+    {
+        StringBuilder xml = new StringBuilder(256).append(ENVELOPE_START);
+        xml.append("<soapenv:Fault><faultcode>ServerFaultCode</faultcode><faultstring>");
+        escape(xml, message);
+        xml.append("</faultstring>");
+        if (fault != null) {
+            xml.append("<detail>");
+            String faultType = fault.getClass().getSimpleName();
+            xml.append('<').append(faultType).append("Fault xmlns=\"urn:vim25\" xsi:type=\"").append(faultType)
+                .append("\">");
+            writeFields(xml, fault);
+            xml.append("</").append(faultType).append("Fault>");
+            xml.append("</detail>");
+        }
+        xml.append("</soapenv:Fault>").append(ENVELOPE_END);
+        return xml.toString();
+    }
+
+    /**
+     * First child element with the given local name, null if none
+     */
+    public static Element
+    child(Element parent, String localName)
+    {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element && localName.equals(localName((Element) node))) {
+                return (Element) node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * All child elements with the given local name
+     */
+    public static List<Element>
+    children(Element parent, String localName)
+    {
+        List<Element> elements = new ArrayList<Element>();
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element && localName.equals(localName((Element) node))) {
+                elements.add((Element) node);
+            }
+        }
+        return elements;
+    }
+
+    public static String
+    childText(Element parent, String localName)
+    {
+        Element childElem = child(parent, localName);
+        return childElem != null ? childElem.getTextContent().trim() : null;
+    }
+
+    public static String
+    localName(Element elem)
+    {
+        return elem.getLocalName() != null ? elem.getLocalName() : elem.getNodeName();
+    }
+
+    public static ManagedObjectReference
+    parseMor(Element elem)
+    {
+        if (elem == null) {
+            return null;
+        }
+        ManagedObjectReference mor = new ManagedObjectReference();
+        mor.setType(elem.getAttribute("type"));
+        mor.setVal(elem.getTextContent().trim());
+        return mor;
+    }
+
+    public static ManagedObjectReference[]
+    parseMors(Element parent, String localName)
+    {
+        List<Element> morElems = children(parent, localName);
+        ManagedObjectReference[] mors = new ManagedObjectReference[morElems.size()];
+        for (int i = 0; i < mors.length; i++) {
+            mors[i] = parseMor(morElems.get(i));
+        }
+        return mors;
+    }
+
+    public static PropertyFilterSpec
+    parseFilterSpec(Element specElem)
+    {
+        PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+
+        List<PropertySpec> propSpecs = new ArrayList<PropertySpec>();
+        for (Element propElem : children(specElem, "propSet")) {
+            PropertySpec propSpec = new PropertySpec();
+            propSpec.setType(childText(propElem, "type"));
+            propSpec.setAll(Boolean.valueOf(childText(propElem, "all")));
+            List<String> paths = new ArrayList<String>();
+            for (Element pathElem : children(propElem, "pathSet")) {
+                paths.add(pathElem.getTextContent().trim());
+            }
+            propSpec.setPathSet(paths.toArray(new String[paths.size()]));
+            propSpecs.add(propSpec);
+        }
+        filterSpec.setPropSet(propSpecs.toArray(new PropertySpec[propSpecs.size()]));
+
+        List<ObjectSpec> objSpecs = new ArrayList<ObjectSpec>();
+        for (Element objElem : children(specElem, "objectSet")) {
+            ObjectSpec objSpec = new ObjectSpec();
+            objSpec.setObj(parseMor(child(objElem, "obj")));
+            objSpec.setSkip(Boolean.valueOf(childText(objElem, "skip")));
+            objSpec.setSelectSet(parseSelectSet(objElem));
+            objSpecs.add(objSpec);
+        }
+        filterSpec.setObjectSet(objSpecs.toArray(new ObjectSpec[objSpecs.size()]));
+        return filterSpec;
+    }
+
+    private static SelectionSpec[]
+    parseSelectSet(Element parent)
+    {
+        List<SelectionSpec> selectSpecs = new ArrayList<SelectionSpec>();
+        for (Element selectElem : children(parent, "selectSet")) {
+            String xsiType = selectElem.getAttributeNS(XSI_NS, "type");
+            SelectionSpec selectSpec;
+            if (xsiType.endsWith("TraversalSpec") || child(selectElem, "path") != null) {
+                TraversalSpec traversalSpec = new TraversalSpec();
+                traversalSpec.setType(childText(selectElem, "type"));
+                traversalSpec.setPath(childText(selectElem, "path"));
+                traversalSpec.setSkip(Boolean.valueOf(childText(selectElem, "skip")));
+                traversalSpec.setSelectSet(parseSelectSet(selectElem));
+                selectSpec = traversalSpec;
+            } else {
+                selectSpec = new SelectionSpec();
+            }
+            selectSpec.setName(childText(selectElem, "name"));
+            selectSpecs.add(selectSpec);
+        }
+        return selectSpecs.toArray(new SelectionSpec[selectSpecs.size()]);
+    }
+
+    private static Element
+    firstChild(Element parent)
+    {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element) {
+                return (Element) node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write one value. Arrays in a typed field are repeated elements; arrays in an xsd:anyType field
+     * (DynamicProperty.val, PropertyChange.val) are wrapped into ArrayOfXXX
+     */
+    private static void
+    writeValue(StringBuilder xml, String tag, Class<?> declaredType, Object value)
+    {
+        Class<?> valueClass = value.getClass();
+
+        if (valueClass.isArray()) {
+            int length = Array.getLength(value);
+            if (declaredType.isArray()) {
+                for (int i = 0; i < length; i++) {
+                    Object item = Array.get(value, i);
+                    if (item != null) {
+                        writeValue(xml, tag, declaredType.getComponentType(), item);
+                    }
+                }
+            } else {
+                String itemTag = xsdItemName(valueClass.getComponentType());
+                xml.append('<').append(tag).append(" xsi:type=\"ArrayOf").append(capitalize(itemTag)).append("\">");
+                for (int i = 0; i < length; i++) {
+                    Object item = Array.get(value, i);
+                    if (item != null) {
+                        writeValue(xml, itemTag, valueClass.getComponentType(), item);
+                    }
+                }
+                xml.append("</").append(tag).append('>');
+            }
+            return;
+        }
+
+        boolean anyType = declaredType == Object.class;
+        xml.append('<').append(tag);
+
+        if (value instanceof ManagedObjectReference) {
+            ManagedObjectReference mor = (ManagedObjectReference) value;
+            if (anyType) {
+                xml.append(" xsi:type=\"ManagedObjectReference\"");
+            }
+            xml.append(" type=\"").append(mor.getType()).append("\">");
+            escape(xml, mor.getVal());
+        } else if (isSimple(valueClass)) {
+            if (anyType) {
+                xml.append(" xsi:type=\"").append(xsdTypeName(valueClass)).append('"');
+            }
+            xml.append('>');
+            escape(xml, simpleText(value));
+        } else {
+            if (anyType || valueClass != declaredType) {
+                xml.append(" xsi:type=\"").append(valueClass.getSimpleName()).append('"');
+            }
+            xml.append('>');
+            writeFields(xml, value);
+        }
+        xml.append("</").append(tag).append('>');
+    }
+
+    private static void
+    writeFields(StringBuilder xml, Object dataObj)
+    {
+        try {
+            for (Field field : fieldsOf(dataObj.getClass())) {
+                Object fieldVal = field.get(dataObj);
+                if (fieldVal != null) {
+                    writeValue(xml, field.getName(), field.getType(), fieldVal);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static List<Field>
+    fieldsOf(Class<?> dataClass)
+    {
+        List<Field> fields = FIELDS_BY_CLASS.get(dataClass);
+        if (fields == null) {
+            LinkedList<Class<?>> hierarchy = new LinkedList<Class<?>>();
+            for (Class<?> c = dataClass; c != null && c.getName().startsWith("com.vmware.vim25.");
+                c = c.getSuperclass()) {
+                hierarchy.addFirst(c);
+            }
+            fields = new ArrayList<Field>();
+            for (Class<?> c : hierarchy) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (!Modifier.isStatic(modifiers) && Modifier.isPublic(modifiers)) {
+                        fields.add(field);
+                    }
+                }
+            }
+            FIELDS_BY_CLASS.put(dataClass, fields);
+        }
+        return fields;
+    }
+
+    private static boolean
+    isSimple(Class<?> valueClass)
+    {
+        return valueClass == String.class || Number.class.isAssignableFrom(valueClass)
+            || valueClass == Boolean.class || valueClass.isEnum() || Calendar.class.isAssignableFrom(valueClass);
+    }
+
+    private static String
+    simpleText(Object value)
+    {
+        if (value instanceof Calendar) {
+            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+            dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return dateFormat.format(((Calendar) value).getTime());
+        }
+        return value.toString();
+    }
+
+    private static String
+    xsdTypeName(Class<?> valueClass)
+    {
+        if (valueClass.isEnum()) {
+            return valueClass.getSimpleName();
+        }
+        return "xsd:" + xsdItemName(valueClass);
+    }
+
+    /**
+     * Element name of an ArrayOfXXX item, e.g. "string", "int", "ManagedObjectReference", "HostVirtualNic"
+     */
+    private static String
+    xsdItemName(Class<?> itemClass)
+    {
+        if (itemClass == String.class) {
+            return "string";
+        } else if (itemClass == Integer.class || itemClass == int.class) {
+            return "int";
+        } else if (itemClass == Long.class || itemClass == long.class) {
+            return "long";
+        } else if (itemClass == Short.class || itemClass == short.class) {
+            return "short";
+        } else if (itemClass == Boolean.class || itemClass == boolean.class) {
+            return "boolean";
+        } else if (itemClass == Double.class || itemClass == double.class) {
+            return "double";
+        } else if (itemClass == Float.class || itemClass == float.class) {
+            return "float";
+        } else if (Calendar.class.isAssignableFrom(itemClass)) {
+            return "dateTime";
+        }
+        return itemClass.getSimpleName();
+    }
+
+    private static String
+    capitalize(String name)
+    {
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    private static void
+    escape(StringBuilder xml, String text)
+    {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+            case '<':
+                xml.append("&lt;");
+                break;
+            case '>':
+                xml.append("&gt;");
+                break;
+            case '&':
+                xml.append("&amp;");
+                break;
+            case '"':
+                xml.append("&quot;");
+                break;
+            default:
+                xml.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,466 @@
+/**
+ * HTTP transport settings of the vim25 client connection
+ * -- Keep-alive connection pool of the JDK HTTP client sized to the number of concurrent workflows, so that
+ *    parallel calls each keep their own connection instead of reconnecting (and TLS handshaking) per call
+ * -- gzip compressed SOAP responses (Accept-Encoding), large property retrievals are mostly repetitive XML
+ * -- Connect/read timeouts, so that a hung vCenter connection fails the call instead of blocking a workflow
+ * -- Every call is counted into FTMetrics: request latency, bytes sent, and bytes received (on the wire and
+ *    uncompressed)
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.Proxy;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.ws.WSClient;
+
+public class SoapTransport
+{
+    public static final int DEFAULT_CONNECT_TIMEOUT_SECS = 30;
+    // Well above the update streams' WaitForUpdatesEx long poll (30 secs)
+    public static final int DEFAULT_READ_TIMEOUT_SECS = 120;
+    // Connections long polling for the VM index, task tracker and FT state watcher, alongside the workflows
+    public static final int UPDATE_STREAM_CONNECTIONS = 4;
+
+    private static final String POOL_SIZE_PROPERTY = "http.maxConnections";
+
+    private final int connectTimeoutSecs;
+    private final int readTimeoutSecs;
+    private final boolean gzip;
+
+    /**
+     * Counts the bytes passing through
+     */
+    private static class CountingInputStream extends FilterInputStream
+    {
+        long count;
+
+        CountingInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        @Override
+        public int
+        read() throws IOException
+        {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int
+        read(byte[] buf, int off, int len) throws IOException
+        {
+            int n = super.read(buf, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long
+        skip(long n) throws IOException
+        {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream
+    {
+        long count;
+
+        CountingOutputStream(OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void
+        write(int b) throws IOException
+        {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void
+        write(byte[] buf, int off, int len) throws IOException
+        {
+            out.write(buf, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * HttpURLConnection of one SOAP call - delegates to the JDK's connection, decompresses the response and
+     * records the call's latency and bytes when the response is closed
+     */
+    private static class SoapConnection extends HttpURLConnection
+    {
+        private final HttpURLConnection conn;
+        private final FTMetrics metrics;
+        private final long startNanos = System.nanoTime();
+        private CountingOutputStream requestOut;
+        private long latencyMillis = -1;
+
+        SoapConnection(HttpURLConnection conn, FTMetrics metrics, boolean gzip)
+        {
+            super(conn.getURL());
+            this.conn = conn;
+            this.metrics = metrics;
+            if (gzip) {
+                conn.setRequestProperty("Accept-Encoding", "gzip");
+            }
+            metrics.countSoapCall();
+        }
+
+        @Override
+        public OutputStream
+        getOutputStream() throws IOException
+        {
+            if (requestOut == null) {
+                requestOut = new CountingOutputStream(conn.getOutputStream());
+            }
+            return requestOut;
+        }
+
+        @Override
+        public InputStream
+        getInputStream() throws IOException
+        {
+            InputStream rawIn;
+            try {
+                rawIn = conn.getInputStream();
+            } finally {
+                responseArrived();
+            }
+            return responseStream(rawIn);
+        }
+
+        /**
+         * Body of a SOAP fault (HTTP 500)
+         */
+        @Override
+        public InputStream
+        getErrorStream()
+        {
+            responseArrived();
+            InputStream errorIn = conn.getErrorStream();
+            try {
+                return errorIn != null ? responseStream(errorIn) : null;
+            } catch (IOException e) {
+                return errorIn;
+            }
+        }
+
+        /**
+         * Latency is taken up to the response headers, so that it does not include the client's XML parsing
+         */
+        private void
+        responseArrived()
+        {
+            if (latencyMillis < 0) {
+                latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            }
+        }
+
+        private InputStream
+        responseStream(InputStream rawIn) throws IOException
+        {
+            final CountingInputStream wireIn = new CountingInputStream(rawIn);
+            InputStream bodyIn = "gzip".equalsIgnoreCase(conn.getContentEncoding()) ? new GZIPInputStream(wireIn)
+                : wireIn;
+            return new CountingInputStream(bodyIn) {
+                private boolean closed;
+
+                @Override
+                public void
+                close() throws IOException
+                {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                    try {
+                        // The parser may stop before the end, an unread response keeps the connection out of the
+                        // keep-alive pool
+                        byte[] drainBuf = new byte[4096];
+                        while (wireIn.read(drainBuf, 0, drainBuf.length) >= 0) {
+                            // discard
+                        }
+                    } catch (IOException e) {
+                        // connection is not reused then
+                    } finally {
+                        super.close();
+                        metrics.recordSoapExchange(latencyMillis, requestOut != null ? requestOut.count : 0,
+                            wireIn.count, count);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void
+        connect() throws IOException
+        {
+            conn.connect();
+        }
+
+        @Override
+        public void
+        disconnect()
+        {
+            conn.disconnect();
+        }
+
+        @Override
+        public boolean
+        usingProxy()
+        {
+            return conn.usingProxy();
+        }
+
+        @Override
+        public void
+        setConnectTimeout(int timeout)
+        {
+            conn.setConnectTimeout(timeout);
+        }
+
+        @Override
+        public int
+        getConnectTimeout()
+        {
+            return conn.getConnectTimeout();
+        }
+
+        @Override
+        public void
+        setReadTimeout(int timeout)
+        {
+            conn.setReadTimeout(timeout);
+        }
+
+        @Override
+        public int
+        getReadTimeout()
+        {
+            return conn.getReadTimeout();
+        }
+
+        @Override
+        public void
+        setRequestMethod(String method) throws ProtocolException
+        {
+            conn.setRequestMethod(method);
+        }
+
+        @Override
+        public String
+        getRequestMethod()
+        {
+            return conn.getRequestMethod();
+        }
+
+        @Override
+        public void
+        setDoOutput(boolean doOutput)
+        {
+            conn.setDoOutput(doOutput);
+        }
+
+        @Override
+        public boolean
+        getDoOutput()
+        {
+            return conn.getDoOutput();
+        }
+
+        @Override
+        public void
+        setDoInput(boolean doInput)
+        {
+            conn.setDoInput(doInput);
+        }
+
+        @Override
+        public boolean
+        getDoInput()
+        {
+            return conn.getDoInput();
+        }
+
+        @Override
+        public void
+        setRequestProperty(String key, String value)
+        {
+            conn.setRequestProperty(key, value);
+        }
+
+        @Override
+        public void
+        addRequestProperty(String key, String value)
+        {
+            conn.addRequestProperty(key, value);
+        }
+
+        @Override
+        public String
+        getRequestProperty(String key)
+        {
+            return conn.getRequestProperty(key);
+        }
+
+        @Override
+        public int
+        getResponseCode() throws IOException
+        {
+            return conn.getResponseCode();
+        }
+
+        @Override
+        public String
+        getResponseMessage() throws IOException
+        {
+            return conn.getResponseMessage();
+        }
+
+        @Override
+        public String
+        getHeaderField(String name)
+        {
+            return conn.getHeaderField(name);
+        }
+
+        @Override
+        public String
+        getHeaderField(int n)
+        {
+            return conn.getHeaderField(n);
+        }
+
+        @Override
+        public String
+        getHeaderFieldKey(int n)
+        {
+            return conn.getHeaderFieldKey(n);
+        }
+
+        @Override
+        public Map<String, List<String>>
+        getHeaderFields()
+        {
+            return conn.getHeaderFields();
+        }
+    }
+
+    /**
+     * Constructor
+     */
+    public SoapTransport(int connectTimeoutSecs, int readTimeoutSecs, boolean gzip)
+    {
+        this.connectTimeoutSecs = connectTimeoutSecs;
+        this.readTimeoutSecs = readTimeoutSecs;
+        this.gzip = gzip;
+    }
+
+    /**
+     * Transport with the default timeouts and gzip
+     */
+    public SoapTransport()
+    {
+        this(DEFAULT_CONNECT_TIMEOUT_SECS, DEFAULT_READ_TIMEOUT_SECS, true);
+    }
+
+    /**
+     * Size the JDK's keep-alive pool (idle connections kept per server, 5 by default) for the given number of
+     * concurrent workflows. Only takes effect before the first HTTP connection of the JVM, i.e. before login.
+     * An explicit -Dhttp.maxConnections is left as is
+     */
+    public static void
+    sizeConnectionPool(int concurrentWorkflows)
+    {
+        if (System.getProperty(POOL_SIZE_PROPERTY) == null) {
+            System.setProperty(POOL_SIZE_PROPERTY, String.valueOf(concurrentWorkflows + UPDATE_STREAM_CONNECTIONS));
+        }
+    }
+
+    /**
+     * Use this transport for the SOAP calls of the session, counting them into the given metrics. Every call of
+     * the vim25 client opens a connection on its base URL, so a URL handler wrapping the default one sees each
+     * call
+     */
+    public void
+    install(ServiceInstance si, final FTMetrics metrics) throws IOException
+    {
+        WSClient wsc = si.getServerConnection().getVimService().getWsc();
+        wsc.setConnectTimeout((int) TimeUnit.SECONDS.toMillis(connectTimeoutSecs));
+        wsc.setReadTimeout((int) TimeUnit.SECONDS.toMillis(readTimeoutSecs));
+
+        URL baseUrl = wsc.getBaseUrl();
+        wsc.setBaseUrl(new URL(null, baseUrl.toExternalForm(), new URLStreamHandler() {
+            @Override
+            protected URLConnection
+            openConnection(URL u) throws IOException
+            {
+                return new SoapConnection((HttpURLConnection) new URL(u.toExternalForm()).openConnection(),
+                    metrics, gzip);
+            }
+
+            @Override
+            protected URLConnection
+            openConnection(URL u, Proxy proxy) throws IOException
+            {
+                return new SoapConnection((HttpURLConnection) new URL(u.toExternalForm()).openConnection(proxy),
+                    metrics, gzip);
+            }
+        }));
+    }
+}
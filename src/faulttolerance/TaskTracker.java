@@ -0,0 +1,336 @@
+/**
+ * Tracks completion of outstanding vSphere tasks through a single PropertyCollector filter
+ * -- All tracked Task objects are kept in one ListView, filtered on info.state / info.error
+ * -- One background thread (see PropertyUpdateStream) completes a future per task
+ * -- Completed tasks are dropped from the ListView, so the filter only carries in-flight tasks
+ * -- Queue, start and complete times of the TaskInfo are kept, for the time a task was queued vs running
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.vmware.vim25.LocalizedMethodFault;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.mo.ManagedObjectView;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+
+public class TaskTracker extends PropertyUpdateStream
+{
+    public static final String TASK_MOR_TYPE = "Task";
+
+    private static final String[] TASK_PROPS = { "info.state", "info.error", "info.queueTime", "info.startTime",
+        "info.completeTime" };
+
+    private final Map<String, PendingTask> pendingTasks = new ConcurrentHashMap<String, PendingTask>();
+    // Tasks completed by the current UpdateSet, still in the view, with their outcome
+    private final Map<ManagedObjectReference, TaskOutcome> completedTasks =
+        new LinkedHashMap<ManagedObjectReference, TaskOutcome>();
+
+    /**
+     * Outstanding task and the future completed once the task reaches success/error
+     */
+    private static class PendingTask
+    {
+        final CompletableFuture<TaskInfoState> future = new CompletableFuture<TaskInfoState>();
+        final CompletableFuture<TaskOutcome> outcome = new CompletableFuture<TaskOutcome>();
+        LocalizedMethodFault error;
+        Calendar queueTime;
+        Calendar startTime;
+        Calendar completeTime;
+    }
+
+    /**
+     * Final state of a task, its error, the times vCenter queued, started and completed it, and the time the
+     * tracker received the completion
+     */
+    public static class TaskOutcome
+    {
+        private final TaskInfoState state;
+        private final LocalizedMethodFault error;
+        private final Calendar queueTime;
+        private final Calendar startTime;
+        private final Calendar completeTime;
+        private final long observedNanos;
+
+        TaskOutcome(TaskInfoState state, LocalizedMethodFault error, Calendar queueTime, Calendar startTime,
+            Calendar completeTime, long observedNanos)
+        {
+            this.state = state;
+            this.error = error;
+            this.queueTime = queueTime;
+            this.startTime = startTime;
+            this.completeTime = completeTime;
+            this.observedNanos = observedNanos;
+        }
+
+        public TaskInfoState
+        getState()
+        {
+            return state;
+        }
+
+        public boolean
+        isSucceeded()
+        {
+            return TaskInfoState.success.equals(state);
+        }
+
+        public String
+        getErrorMessage()
+        {
+            return isSucceeded() ? null : describeError(error);
+        }
+
+        /**
+         * Time from queueing to start (to completion, for a task cancelled while queued), -1 if not known
+         */
+        public long
+        getQueuedMillis()
+        {
+            Calendar queueEnd = startTime != null ? startTime : completeTime;
+            return queueTime != null && queueEnd != null
+                ? Math.max(queueEnd.getTimeInMillis() - queueTime.getTimeInMillis(), 0) : -1;
+        }
+
+        /**
+         * Time from start to completion, -1 if not known or the task never started
+         */
+        public long
+        getRunningMillis()
+        {
+            return startTime != null && completeTime != null
+                ? Math.max(completeTime.getTimeInMillis() - startTime.getTimeInMillis(), 0) : -1;
+        }
+
+        /**
+         * System.nanoTime() when the completion was received from vCenter
+         */
+        public long
+        getObservedNanos()
+        {
+            return observedNanos;
+        }
+    }
+
+    /**
+     * Constructor
+     */
+    public TaskTracker(ServiceInstance si)
+    {
+        super(si, "ft-task-tracker");
+    }
+
+    /**
+     * Register the task with the tracker. Returned future completes with the final task state (success/error).
+     * A task already being tracked gets the future of its earlier registration
+     */
+    public CompletableFuture<TaskInfoState>
+    track(Task taskRef)
+    {
+        return register(taskRef).future;
+    }
+
+    /**
+     * Register the task with the tracker. Returned future completes with the task's outcome and its times
+     */
+    public CompletableFuture<TaskOutcome>
+    trackOutcome(Task taskRef)
+    {
+        return register(taskRef).outcome;
+    }
+
+    private PendingTask
+    register(Task taskRef)
+    {
+        final PendingTask created = new PendingTask();
+        String taskKey = taskRef.getMOR().getVal();
+        PendingTask pending = pendingTasks.computeIfAbsent(taskKey, key -> created);
+        if (pending != created) {
+            // Already in the view, the earlier registration completes on the same update
+            return pending;
+        }
+
+        try {
+            start();
+            // Newly added task enters the view, its current state is reported on the next update
+            addToView(taskRef.getMOR());
+        } catch (Exception e) {
+            pendingTasks.remove(taskKey, pending);
+            pending.future.completeExceptionally(e);
+            pending.outcome.completeExceptionally(e);
+        }
+
+        return pending;
+    }
+
+    /**
+     * Number of registered tasks that have not completed yet
+     */
+    int
+    pendingTaskCount()
+    {
+        return pendingTasks.size();
+    }
+
+    /**
+     * Error reported by vCenter for a failed task, if any
+     */
+    public static String
+    describeError(LocalizedMethodFault error)
+    {
+        if (error == null) {
+            return "Unknown error";
+        }
+        if (error.getLocalizedMessage() != null) {
+            return error.getLocalizedMessage();
+        }
+        return error.getFault() != null ? error.getFault().getClass().getSimpleName() : "Unknown error";
+    }
+
+    @Override
+    public synchronized void
+    stop()
+    {
+        super.stop();
+        failPendingTasks(new IllegalStateException("Task tracker stopped"));
+    }
+
+    @Override
+    protected ManagedObjectView
+    createView() throws Exception
+    {
+        return createEmptyListView();
+    }
+
+    @Override
+    protected String
+    objectType()
+    {
+        return TASK_MOR_TYPE;
+    }
+
+    @Override
+    protected String[]
+    propertyPaths()
+    {
+        return TASK_PROPS;
+    }
+
+    /**
+     * Apply property changes of one task, and complete its future once it has reached a final state
+     */
+    @Override
+    protected void
+    handleUpdate(ObjectUpdate objUpdate)
+    {
+        PendingTask pending = pendingTasks.get(objUpdate.getObj().getVal());
+        if (pending == null || objUpdate.getChangeSet() == null) {
+            return;
+        }
+
+        TaskInfoState taskState = null;
+        for (PropertyChange change : objUpdate.getChangeSet()) {
+            if (change.getName().equals("info.state")) {
+                taskState = (TaskInfoState) change.getVal();
+            } else if (change.getName().equals("info.error")) {
+                pending.error = (LocalizedMethodFault) change.getVal();
+            } else if (change.getName().equals("info.queueTime")) {
+                pending.queueTime = (Calendar) change.getVal();
+            } else if (change.getName().equals("info.startTime")) {
+                pending.startTime = (Calendar) change.getVal();
+            } else if (change.getName().equals("info.completeTime")) {
+                pending.completeTime = (Calendar) change.getVal();
+            }
+        }
+
+        if (taskState != null
+            && (taskState.equals(TaskInfoState.success) || taskState.equals(TaskInfoState.error))) {
+            long receivedNanos = System.nanoTime();
+            TaskOutcome outcome = new TaskOutcome(taskState, pending.error, pending.queueTime, pending.startTime,
+                pending.completeTime, receivedNanos);
+            pendingTasks.remove(objUpdate.getObj().getVal());
+            completedTasks.put(objUpdate.getObj(), outcome);
+            pending.future.complete(taskState);
+            pending.outcome.complete(outcome);
+        }
+    }
+
+    /**
+     * Drop completed tasks from the view, so the filter only carries in-flight tasks. A failure stops the stream
+     */
+    @Override
+    protected void
+    updateSetApplied() throws Exception
+    {
+        if (completedTasks.isEmpty()) {
+            return;
+        }
+        try {
+            removeFromView(completedTasks.keySet().toArray(new ManagedObjectReference[completedTasks.size()]));
+        } finally {
+            // A task registered again while it was still in the view gets no further update, it takes the outcome
+            // just seen
+            for (Map.Entry<ManagedObjectReference, TaskOutcome> completed : completedTasks.entrySet()) {
+                PendingTask pending = pendingTasks.remove(completed.getKey().getVal());
+                if (pending != null) {
+                    pending.future.complete(completed.getValue().getState());
+                    pending.outcome.complete(completed.getValue());
+                }
+            }
+            completedTasks.clear();
+        }
+    }
+
+    @Override
+    protected void
+    streamFailed(Exception cause)
+    {
+        failPendingTasks(cause);
+    }
+
+    private void
+    failPendingTasks(Exception cause)
+    {
+        for (String taskKey : pendingTasks.keySet()) {
+            PendingTask pending = pendingTasks.remove(taskKey);
+            if (pending != null) {
+                pending.future.completeExceptionally(cause);
+                pending.outcome.completeExceptionally(cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,567 @@
+/**
+ * Local vSphere (vim25 SOAP) simulator, for scale and performance testing of the FT operations without a vCenter
+ * -- Serves http://127.0.0.1:<port>/sdk, ServiceInstance logs in to it like to a vCenter Server
+ * -- Covers the vim25 subset used here: login/session, ViewManager, PropertyCollector, SearchIndex.FindByUuid
+ *    and the VirtualMachine FT tasks (cancellable)
+ * -- Inventory size and task latencies come from a spec, e.g. "clusters=1,hosts=8,vms=10000,taskMs=200,ftStartMs=1000"
+ * -- ftIssueEvery=<n> in the spec gives every n-th VM a configuration FT does not support, turning FT on for it fails
+ * -- taskSlots=<n> in the spec runs at most n tasks at a time, the others are queued (as vCenter does under load)
+ * -- Runs in-process (FTOps --simulate) or standalone, to keep its memory out of the measured process
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import org.w3c.dom.Element;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.vmware.vim25.AboutInfo;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.NotAuthenticated;
+import com.vmware.vim25.NotSupported;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.ServiceContent;
+import com.vmware.vim25.SystemError;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.UserSession;
+
+import faulttolerance.SimInventory.SimFault;
+
+public class VimSimulator
+{
+    public static final String DEFAULT_SPEC = "clusters=1,hosts=8,vms=1000,taskMs=200,ftStartMs=1000,ftIssueEvery=0,"
+        + "taskSlots=0";
+
+    private static final String SDK_PATH = "/sdk";
+    private static final String SESSION_COOKIE = "vmware_soap_session";
+    private static final Pattern SESSION_COOKIE_PATTERN = Pattern.compile(SESSION_COOKIE + "=\"?([^\";]+)");
+
+    private final SimInventory inventory;
+    private final ServiceContent serviceContent;
+    private final Map<String, SimPropertyCollector> collectors = new ConcurrentHashMap<String, SimPropertyCollector>();
+    private final Map<String, UserSession> sessions = new ConcurrentHashMap<String, UserSession>();
+    private final Map<String, AtomicLong> requestCounts = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong responseBytes = new AtomicLong();
+    private HttpServer httpServer;
+    private ExecutorService httpExecutor;
+
+    /**
+     * Constructor
+     */
+    public VimSimulator(int clusters, int hostsPerCluster, int vmsPerCluster, int taskMillis, int ftStartMillis,
+        int ftIssueEvery)
+    {
+        inventory = new SimInventory(clusters, hostsPerCluster, vmsPerCluster, taskMillis, ftStartMillis,
+            ftIssueEvery);
+
+        AboutInfo about = new AboutInfo();
+        about.setName("VMware vCenter Server");
+        about.setFullName("VMware vCenter Server 5.5.0 (simulated)");
+        about.setVendor("VMware, Inc.");
+        about.setVersion("5.5.0");
+        about.setBuild("0");
+        about.setOsType("linux-x64");
+        about.setProductLineId("vpx");
+        about.setApiType("VirtualCenter");
+        about.setApiVersion("5.5");
+        about.setInstanceUuid(UUID.randomUUID().toString());
+
+        serviceContent = new ServiceContent();
+        serviceContent.setAbout(about);
+        serviceContent.setRootFolder(inventory.getRootFolder());
+        serviceContent.setPropertyCollector(serviceObject("PropertyCollector", "propertyCollector"));
+        serviceContent.setViewManager(serviceObject("ViewManager", "ViewManager"));
+        serviceContent.setSearchIndex(serviceObject("SearchIndex", "SearchIndex"));
+        serviceContent.setSessionManager(serviceObject(SimPropertyCollector.SESSION_MANAGER_TYPE, "SessionManager"));
+        serviceContent.setTaskManager(serviceObject("TaskManager", "TaskManager"));
+
+        ManagedObjectReference pcMor = serviceContent.getPropertyCollector();
+        collectors.put(pcMor.getVal(), new SimPropertyCollector(inventory, pcMor));
+    }
+
+    /**
+     * Simulator from a spec - comma separated clusters, hosts (per Cluster), vms (per Cluster), taskMs,
+     * ftStartMs (time for the Secondary to reach running), ftIssueEvery and taskSlots. Values not in the spec are
+     * taken from DEFAULT_SPEC
+     */
+    public static VimSimulator
+    fromSpec(String spec)
+    {
+        Map<String, Integer> values = new TreeMap<String, Integer>();
+        parseSpec(DEFAULT_SPEC, values);
+        if (spec != null) {
+            parseSpec(spec, values);
+        }
+        VimSimulator simulator = new VimSimulator(values.get("clusters"), values.get("hosts"), values.get("vms"),
+            values.get("taskMs"), values.get("ftStartMs"), values.get("ftIssueEvery"));
+        simulator.inventory.setTaskSlots(values.get("taskSlots"));
+        return simulator;
+    }
+
+    /**
+     * Start serving on the loopback interface (port 0 picks a free port). Returns the SDK URL to log in to
+     */
+    public synchronized String
+    start(int port) throws IOException
+    {
+        if (httpServer == null) {
+            // Response headers and body go out in separate writes; with Nagle on, every keep-alive call would
+            // wait out the client's delayed ACK (~40 ms). Read once, when the JDK's first HTTP server is created
+            if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+                System.setProperty("sun.net.httpserver.nodelay", "true");
+            }
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 256);
+            httpServer.createContext(SDK_PATH, new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException
+                {
+                    handleRequest(exchange);
+                }
+            });
+            // One thread per outstanding request, WaitForUpdatesEx calls park for up to maxWaitSeconds
+            final AtomicInteger threadCount = new AtomicInteger();
+            httpExecutor = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "sim-vim-http-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            httpServer.setExecutor(httpExecutor);
+            httpServer.start();
+        }
+        return getUrl();
+    }
+
+    public synchronized String
+    getUrl()
+    {
+        return "http://127.0.0.1:" + httpServer.getAddress().getPort() + SDK_PATH;
+    }
+
+    public synchronized void
+    stop()
+    {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpExecutor.shutdownNow();
+            httpServer = null;
+        }
+        inventory.shutdown();
+    }
+
+    /**
+     * Requests served per operation, and inventory size
+     */
+    public void
+    printStats()
+    {
+        long totalRequests = 0;
+        System.out.println("\nSimulator requests served");
+        System.out.println("-------------------------------------------------------------------");
+        for (Map.Entry<String, AtomicLong> opCount : new TreeMap<String, AtomicLong>(requestCounts).entrySet()) {
+            System.out.println(String.format("%-40s %10d", opCount.getKey(), opCount.getValue().get()));
+            totalRequests += opCount.getValue().get();
+        }
+        System.out.println(String.format("%-40s %10d", "Total", totalRequests));
+        System.out.println(String.format("%-40s %10d KB", "Response bytes", responseBytes.get() / 1024));
+        System.out.println(String.format("Inventory: %d objects, %d VMs, %d tasks run", inventory.getObjectCount(),
+            inventory.getVmCount(), inventory.getTaskCount()));
+        System.out.println("-------------------------------------------------------------------");
+    }
+
+    /**
+     * Standalone simulator: [--spec <spec>] [--port <port>]
+     */
+    public static void
+    main(String[] args) throws Exception
+    {
+        String spec = null;
+        int port = 8989;
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals("--spec")) {
+                spec = args[i + 1];
+            } else if (args[i].equals("--port")) {
+                port = Integer.parseInt(args[i + 1]);
+            }
+        }
+
+        final VimSimulator simulator = fromSpec(spec);
+        System.out.println("vSphere simulator serving " + simulator.start(port) + " (" + simulator.inventory.getVmCount()
+            + " VMs). Log in with any credentials, e.g. --vsphereip " + simulator.getUrl());
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> simulator.printStats()));
+        Thread.currentThread().join();
+    }
+
+    /**
+     * One SOAP request. vim25 faults are returned as SOAP faults with HTTP status 500, like vCenter does
+     */
+    private void
+    handleRequest(HttpExchange exchange) throws IOException
+    {
+        String responseXml;
+        int status = 200;
+        try {
+            InputStream in = exchange.getRequestBody();
+            Element opElem;
+            try {
+                opElem = SimSoapCodec.parseRequest(in);
+            } finally {
+                in.close();
+            }
+            String opName = SimSoapCodec.localName(opElem);
+            countRequest(opName);
+            responseXml = invoke(opName, opElem, exchange);
+        } catch (SimFault f) {
+            status = 500;
+            responseXml = SimSoapCodec.fault(f.getMessage(), f.fault);
+        } catch (Exception e) {
+            status = 500;
+            SystemError fault = new SystemError();
+            fault.setReason(String.valueOf(e));
+            responseXml = SimSoapCodec.fault("Simulator error: " + e, fault);
+        }
+
+        byte[] body = responseXml.getBytes(StandardCharsets.UTF_8);
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            body = gzip(body);
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        responseBytes.addAndGet(body.length);
+        exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[]
+    gzip(byte[] body) throws IOException
+    {
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream(body.length / 4 + 64);
+        GZIPOutputStream gzipOut = new GZIPOutputStream(gzipped);
+        try {
+            gzipOut.write(body);
+        } finally {
+            gzipOut.close();
+        }
+        return gzipped.toByteArray();
+    }
+
+    private String
+    invoke(String opName, Element opElem, HttpExchange exchange) throws Exception
+    {
+        ManagedObjectReference thisMor = SimSoapCodec.parseMor(SimSoapCodec.child(opElem, "_this"));
+
+        if (opName.equals("RetrieveServiceContent")) {
+            return SimSoapCodec.response(opName, serviceContent, ServiceContent.class);
+        } else if (opName.equals("Login")) {
+            UserSession session = login(SimSoapCodec.childText(opElem, "userName"),
+                SimSoapCodec.childText(opElem, "locale"));
+            exchange.getResponseHeaders().add("Set-Cookie",
+                SESSION_COOKIE + "=\"" + session.getKey() + "\"; Path=/; HttpOnly");
+            return SimSoapCodec.response(opName, session, UserSession.class);
+        }
+
+        UserSession session = findSession(exchange);
+        if (session == null && !isSessionCheck(opName, opElem)) {
+            throw new SimFault("The session is not authenticated.", new NotAuthenticated());
+        }
+        switch (opName) {
+            case "Logout":
+                sessions.remove(session.getKey());
+                return SimSoapCodec.response(opName, null, null);
+
+            // ViewManager / views
+            case "CreateContainerView":
+                return SimSoapCodec.response(opName, inventory.createContainerView(
+                    SimSoapCodec.parseMor(SimSoapCodec.child(opElem, "container")), texts(opElem, "type"),
+                    Boolean.parseBoolean(SimSoapCodec.childText(opElem, "recursive"))),
+                    ManagedObjectReference.class);
+            case "CreateListView":
+                return SimSoapCodec.response(opName, inventory.createListView(SimSoapCodec.parseMors(opElem, "obj")),
+                    ManagedObjectReference.class);
+            case "ModifyListView":
+                inventory.modifyListView(thisMor, SimSoapCodec.parseMors(opElem, "add"),
+                    SimSoapCodec.parseMors(opElem, "remove"));
+                return SimSoapCodec.response(opName, null, null);
+            case "DestroyView":
+                inventory.destroyView(thisMor);
+                return SimSoapCodec.response(opName, null, null);
+
+            // PropertyCollector
+            case "CreatePropertyCollector":
+                return SimSoapCodec.response(opName, createPropertyCollector(), ManagedObjectReference.class);
+            case "DestroyPropertyCollector":
+                collectors.remove(thisMor.getVal());
+                return SimSoapCodec.response(opName, null, null);
+            case "RetrieveProperties":
+                return SimSoapCodec.response(opName, collector(thisMor).retrieveProperties(specSet(opElem), session),
+                    ObjectContent[].class);
+            case "RetrievePropertiesEx":
+                return SimSoapCodec.response(opName, collector(thisMor).retrievePropertiesEx(specSet(opElem),
+                    intOption(opElem, "maxObjects"), session), RetrieveResult.class);
+            case "ContinueRetrievePropertiesEx":
+                return SimSoapCodec.response(opName,
+                    collector(thisMor).continueRetrievePropertiesEx(SimSoapCodec.childText(opElem, "token")),
+                    RetrieveResult.class);
+            case "CancelRetrievePropertiesEx":
+                collector(thisMor).cancelRetrievePropertiesEx(SimSoapCodec.childText(opElem, "token"));
+                return SimSoapCodec.response(opName, null, null);
+            case "CreateFilter":
+                return SimSoapCodec.response(opName, collector(thisMor).createFilter(
+                    SimSoapCodec.parseFilterSpec(SimSoapCodec.child(opElem, "spec")), session),
+                    ManagedObjectReference.class);
+            case "DestroyPropertyFilter":
+                for (SimPropertyCollector collector : collectors.values()) {
+                    collector.destroyFilter(thisMor);
+                }
+                return SimSoapCodec.response(opName, null, null);
+            case "WaitForUpdatesEx":
+                return SimSoapCodec.response(opName,
+                    collector(thisMor).waitForUpdatesEx(intOption(opElem, "maxWaitSeconds")), UpdateSet.class);
+            case "CancelWaitForUpdates":
+                collector(thisMor).cancelWaitForUpdates();
+                return SimSoapCodec.response(opName, null, null);
+
+            // SearchIndex
+            case "FindByUuid":
+                return SimSoapCodec.response(opName, inventory.findVmByUuid(SimSoapCodec.childText(opElem, "uuid"),
+                    Boolean.parseBoolean(SimSoapCodec.childText(opElem, "instanceUuid"))),
+                    ManagedObjectReference.class);
+
+            // VirtualMachine FT tasks
+            case "CreateSecondaryVM_Task":
+                return taskResponse(opName,
+                    inventory.createSecondaryVM(thisMor, SimSoapCodec.parseMor(SimSoapCodec.child(opElem, "host"))));
+            case "PowerOnVM_Task":
+                return taskResponse(opName, inventory.powerOnVM(thisMor));
+            case "PowerOffVM_Task":
+                return taskResponse(opName, inventory.powerOffVM(thisMor));
+            case "DisableSecondaryVM_Task":
+                return taskResponse(opName, inventory.disableSecondaryVM(thisMor,
+                    SimSoapCodec.parseMor(SimSoapCodec.child(opElem, "vm"))));
+            case "EnableSecondaryVM_Task":
+                return taskResponse(opName, inventory.enableSecondaryVM(thisMor,
+                    SimSoapCodec.parseMor(SimSoapCodec.child(opElem, "vm")),
+                    SimSoapCodec.parseMor(SimSoapCodec.child(opElem, "host"))));
+            case "MakePrimaryVM_Task":
+                return taskResponse(opName, inventory.makePrimaryVM(thisMor,
+                    SimSoapCodec.parseMor(SimSoapCodec.child(opElem, "vm"))));
+            case "TurnOffFaultToleranceForVM_Task":
+                return taskResponse(opName, inventory.turnOffFaultTolerance(thisMor));
+
+            // Task
+            case "CancelTask":
+                inventory.cancelTask(thisMor);
+                return SimSoapCodec.response(opName, null, null);
+
+            default:
+                throw new SimFault("Operation " + opName + " is not supported by the simulator", new NotSupported());
+        }
+    }
+
+    private UserSession
+    login(String userName, String locale)
+    {
+        Calendar now = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        UserSession session = new UserSession();
+        session.setKey(UUID.randomUUID().toString());
+        session.setUserName(userName);
+        session.setFullName(userName);
+        session.setLoginTime(now);
+        session.setLastActiveTime(now);
+        session.setLocale(locale != null ? locale : "en");
+        session.setMessageLocale(session.getLocale());
+        sessions.put(session.getKey(), session);
+        return session;
+    }
+
+    /**
+     * Session of the request's cookie, null if there is none
+     */
+    private UserSession
+    findSession(HttpExchange exchange)
+    {
+        String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+        if (cookie != null) {
+            Matcher matcher = SESSION_COOKIE_PATTERN.matcher(cookie);
+            if (matcher.find()) {
+                UserSession session = sessions.get(matcher.group(1));
+                if (session != null) {
+                    return session;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Retrieval of SessionManager properties only - allowed without a session, like vCenter does, so that
+     * currentSession comes back unset for an expired session instead of failing
+     */
+    private boolean
+    isSessionCheck(String opName, Element opElem)
+    {
+        if (!opName.equals("RetrieveProperties") && !opName.equals("RetrievePropertiesEx")) {
+            return false;
+        }
+        PropertyFilterSpec[] specs = specSet(opElem);
+        for (PropertyFilterSpec spec : specs) {
+            for (ObjectSpec objSpec : spec.getObjectSet()) {
+                if (!objSpec.getObj().getType().equals(SimPropertyCollector.SESSION_MANAGER_TYPE)
+                    || Boolean.TRUE.equals(objSpec.getSkip()) || objSpec.getSelectSet() != null) {
+                    return false;
+                }
+            }
+        }
+        return specs.length > 0;
+    }
+
+    private synchronized ManagedObjectReference
+    createPropertyCollector()
+    {
+        ManagedObjectReference pcMor = new ManagedObjectReference();
+        pcMor.setType("PropertyCollector");
+        synchronized (inventory) {
+            pcMor.set_value(inventory.newKey("session[sim]collector-"));
+        }
+        collectors.put(pcMor.getVal(), new SimPropertyCollector(inventory, pcMor));
+        return pcMor;
+    }
+
+    private SimPropertyCollector
+    collector(ManagedObjectReference pcMor)
+    {
+        SimPropertyCollector collector = pcMor != null ? collectors.get(pcMor.getVal()) : null;
+        if (collector == null) {
+            synchronized (inventory) {
+                inventory.lookupOrFail(pcMor);
+            }
+        }
+        return collector;
+    }
+
+    private ManagedObjectReference
+    serviceObject(String type, String val)
+    {
+        synchronized (inventory) {
+            return inventory.add(type, val).mor;
+        }
+    }
+
+    private static String
+    taskResponse(String opName, ManagedObjectReference taskMor)
+    {
+        return SimSoapCodec.response(opName, taskMor, ManagedObjectReference.class);
+    }
+
+    private static PropertyFilterSpec[]
+    specSet(Element opElem)
+    {
+        List<PropertyFilterSpec> specs = new ArrayList<PropertyFilterSpec>();
+        for (Element specElem : SimSoapCodec.children(opElem, "specSet")) {
+            specs.add(SimSoapCodec.parseFilterSpec(specElem));
+        }
+        return specs.toArray(new PropertyFilterSpec[specs.size()]);
+    }
+
+    private static String[]
+    texts(Element parent, String localName)
+    {
+        List<String> texts = new ArrayList<String>();
+        for (Element elem : SimSoapCodec.children(parent, localName)) {
+            texts.add(elem.getTextContent().trim());
+        }
+        return texts.toArray(new String[texts.size()]);
+    }
+
+    /**
+     * Integer field of the request's options (RetrieveOptions, WaitOptions), null if not set
+     */
+    private static Integer
+    intOption(Element opElem, String optionName)
+    {
+        Element options = SimSoapCodec.child(opElem, "options");
+        String value = options != null ? SimSoapCodec.childText(options, optionName) : null;
+        return value != null ? Integer.valueOf(value.trim()) : null;
+    }
+
+    private void
+    countRequest(String opName)
+    {
+        AtomicLong count = requestCounts.get(opName);
+        if (count == null) {
+            requestCounts.putIfAbsent(opName, new AtomicLong());
+            count = requestCounts.get(opName);
+        }
+        count.incrementAndGet();
+    }
+
+    private static void
+    parseSpec(String spec, Map<String, Integer> values)
+    {
+        for (String setting : spec.split(",")) {
+            String[] nameNValue = setting.split("=");
+            if (nameNValue.length != 2) {
+                System.err.println("Ignoring invalid simulator setting: " + setting);
+                continue;
+            }
+            values.put(nameNValue[0].trim(), Integer.parseInt(nameNValue[1].trim()));
+        }
+    }
+}
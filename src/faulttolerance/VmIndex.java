@@ -0,0 +1,345 @@
+/**
+ * In-memory index of the VMs of a Cluster, by name and by instance UUID
+ * -- Populated from the initial update of a PropertyCollector filter over a ContainerView of the Cluster
+ * -- Kept current incrementally from the same update stream (VMs added, removed, renamed, moved)
+ * -- Lookups are map reads, so repeated lookups within a session cost no round trips
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.ClusterComputeResource;
+import com.vmware.vim25.mo.ManagedEntity;
+import com.vmware.vim25.mo.ManagedObjectView;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.VirtualMachine;
+
+public class VmIndex extends PropertyUpdateStream
+{
+    public static final String VM_HOST_PROP = "runtime.host";
+    public static final String VM_INSTANCE_UUID_PROP = "config.instanceUuid";
+    public static final String VM_FT_ROLE_PROP = "config.ftInfo.role";
+    public static final String VM_TEMPLATE_PROP = "config.template";
+    public static final String VM_NUM_CPU_PROP = "config.hardware.numCPU";
+    public static final String VM_POWER_STATE_PROP = "runtime.powerState";
+
+    // FaultToleranceConfigInfo.role - 1 is the primary, 2 and above are secondaries
+    public static final int FT_PRIMARY_ROLE = 1;
+
+    private static final String[] VM_PROPS = { "name", VM_INSTANCE_UUID_PROP, VM_FT_ROLE_PROP, VM_HOST_PROP,
+        VM_TEMPLATE_PROP, VM_NUM_CPU_PROP, VM_POWER_STATE_PROP };
+    private static final int SYNC_TIMEOUT_SECS = 120;
+
+    private final ClusterComputeResource cluster;
+    private final Map<String, VmEntry> vmsByMor = new ConcurrentHashMap<String, VmEntry>();
+    private final Map<String, VmEntry> vmsByName = new ConcurrentHashMap<String, VmEntry>();
+    private final Map<String, VmEntry> vmsByInstanceUuid = new ConcurrentHashMap<String, VmEntry>();
+    private final CountDownLatch initialSync = new CountDownLatch(1);
+
+    /**
+     * Indexed properties of one VM
+     */
+    public static class VmEntry
+    {
+        final ManagedObjectReference vmMor;
+        volatile String name;
+        volatile String instanceUuid;
+        volatile int ftRole;
+        volatile ManagedObjectReference hostMor;
+        volatile boolean template;
+        volatile int numCpu;
+        volatile VirtualMachinePowerState powerState;
+
+        VmEntry(ManagedObjectReference vmMor)
+        {
+            this.vmMor = vmMor;
+        }
+
+        public ManagedObjectReference
+        getVmMor()
+        {
+            return vmMor;
+        }
+
+        public String
+        getName()
+        {
+            return name;
+        }
+
+        public String
+        getInstanceUuid()
+        {
+            return instanceUuid;
+        }
+
+        /**
+         * FT role of the VM, 0 if FT is not configured
+         */
+        public int
+        getFtRole()
+        {
+            return ftRole;
+        }
+
+        public boolean
+        isFtSecondary()
+        {
+            return ftRole > FT_PRIMARY_ROLE;
+        }
+
+        public ManagedObjectReference
+        getHostMor()
+        {
+            return hostMor;
+        }
+
+        public boolean
+        isTemplate()
+        {
+            return template;
+        }
+
+        public int
+        getNumCpu()
+        {
+            return numCpu;
+        }
+
+        public VirtualMachinePowerState
+        getPowerState()
+        {
+            return powerState;
+        }
+    }
+
+    /**
+     * Constructor
+     */
+    public VmIndex(ServiceInstance si, ClusterComputeResource cluster)
+    {
+        super(si, "ft-vm-index");
+        this.cluster = cluster;
+    }
+
+    /**
+     * Constructor - the index's update loop runs on the given executor, e.g. one whose threads outlive the index
+     */
+    VmIndex(ServiceInstance si, ClusterComputeResource cluster, Executor updateExecutor)
+    {
+        super(si, "ft-vm-index", updateExecutor);
+        this.cluster = cluster;
+    }
+
+    /**
+     * VM by name. FT secondaries share the primary's name and are not indexed by name
+     */
+    public VirtualMachine
+    findByName(String vmName) throws Exception
+    {
+        awaitInitialSync();
+        VmEntry vmEntry = vmsByName.get(vmName);
+        return vmEntry != null ? toVirtualMachine(vmEntry.vmMor) : null;
+    }
+
+    /**
+     * VM by instance UUID. Falls back to the SearchIndex for VMs not (yet) seen by the index
+     */
+    public VirtualMachine
+    findByInstanceUuid(String instanceUuid) throws Exception
+    {
+        awaitInitialSync();
+        VmEntry vmEntry = vmsByInstanceUuid.get(instanceUuid);
+        if (vmEntry != null) {
+            return toVirtualMachine(vmEntry.vmMor);
+        }
+
+        ManagedEntity vmEntity = si.getSearchIndex().findByUuid(null, instanceUuid, true, Boolean.TRUE);
+        return vmEntity != null ? toVirtualMachine(vmEntity.getMOR()) : null;
+    }
+
+    /**
+     * Indexed properties of the VM, null if the VM is not part of the Cluster
+     */
+    public VmEntry
+    getEntry(ManagedObjectReference vmMor) throws Exception
+    {
+        awaitInitialSync();
+        return vmsByMor.get(vmMor.getVal());
+    }
+
+    /**
+     * All indexed VMs
+     */
+    public Collection<VmEntry>
+    getEntries() throws Exception
+    {
+        awaitInitialSync();
+        return vmsByMor.values();
+    }
+
+    /**
+     * Number of VMs in the index
+     */
+    public int
+    size()
+    {
+        return vmsByMor.size();
+    }
+
+    /**
+     * Block until the initial contents of the Cluster have been received
+     */
+    public void
+    awaitInitialSync() throws Exception
+    {
+        start();
+        if (!initialSync.await(SYNC_TIMEOUT_SECS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("VM index of Cluster " + cluster.getMOR().getVal()
+                + " was not populated within " + SYNC_TIMEOUT_SECS + " seconds");
+        }
+    }
+
+    @Override
+    protected ManagedObjectView
+    createView() throws Exception
+    {
+        return si.getViewManager().createContainerView(cluster, new String[] { FTOps.VM_MOR_TYPE }, true);
+    }
+
+    @Override
+    protected String
+    objectType()
+    {
+        return FTOps.VM_MOR_TYPE;
+    }
+
+    @Override
+    protected String[]
+    propertyPaths()
+    {
+        return VM_PROPS;
+    }
+
+    @Override
+    protected void
+    handleUpdate(ObjectUpdate objUpdate)
+    {
+        String vmKey = objUpdate.getObj().getVal();
+
+        if (objUpdate.getKind().equals(ObjectUpdateKind.leave)) {
+            VmEntry vmEntry = vmsByMor.remove(vmKey);
+            if (vmEntry != null) {
+                unindex(vmEntry);
+            }
+            return;
+        }
+
+        VmEntry vmEntry = vmsByMor.get(vmKey);
+        if (vmEntry == null) {
+            vmEntry = new VmEntry(objUpdate.getObj());
+            vmsByMor.put(vmKey, vmEntry);
+        }
+
+        unindex(vmEntry);
+        if (objUpdate.getChangeSet() != null) {
+            for (PropertyChange change : objUpdate.getChangeSet()) {
+                if (change.getName().equals("name")) {
+                    vmEntry.name = (String) change.getVal();
+                } else if (change.getName().equals(VM_INSTANCE_UUID_PROP)) {
+                    vmEntry.instanceUuid = (String) change.getVal();
+                } else if (change.getName().equals(VM_FT_ROLE_PROP)) {
+                    vmEntry.ftRole = change.getVal() != null ? (Integer) change.getVal() : 0;
+                } else if (change.getName().equals(VM_HOST_PROP)) {
+                    vmEntry.hostMor = (ManagedObjectReference) change.getVal();
+                } else if (change.getName().equals(VM_TEMPLATE_PROP)) {
+                    vmEntry.template = change.getVal() != null && (Boolean) change.getVal();
+                } else if (change.getName().equals(VM_NUM_CPU_PROP)) {
+                    vmEntry.numCpu = change.getVal() != null ? (Integer) change.getVal() : 0;
+                } else if (change.getName().equals(VM_POWER_STATE_PROP)) {
+                    vmEntry.powerState = (VirtualMachinePowerState) change.getVal();
+                }
+            }
+        }
+        index(vmEntry);
+    }
+
+    @Override
+    protected void
+    updateSetApplied()
+    {
+        initialSync.countDown();
+    }
+
+    @Override
+    protected void
+    streamFailed(Exception cause)
+    {
+        // Do not keep lookups blocked on a stream that is gone
+        initialSync.countDown();
+    }
+
+    private void
+    index(VmEntry vmEntry)
+    {
+        if (vmEntry.name != null && !vmEntry.isFtSecondary()) {
+            vmsByName.put(vmEntry.name, vmEntry);
+        }
+        if (vmEntry.instanceUuid != null) {
+            vmsByInstanceUuid.put(vmEntry.instanceUuid, vmEntry);
+        }
+    }
+
+    private void
+    unindex(VmEntry vmEntry)
+    {
+        if (vmEntry.name != null) {
+            vmsByName.remove(vmEntry.name, vmEntry);
+        }
+        if (vmEntry.instanceUuid != null) {
+            vmsByInstanceUuid.remove(vmEntry.instanceUuid, vmEntry);
+        }
+    }
+
+    private VirtualMachine
+    toVirtualMachine(ManagedObjectReference vmMor)
+    {
+        return new VirtualMachine(si.getServerConnection(), vmMor);
+    }
+}
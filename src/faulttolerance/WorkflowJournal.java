@@ -0,0 +1,392 @@
+/**
+ * Append-only local journal of FT workflow transitions, to recover VMs left mid-workflow by a crashed run
+ * -- One short text record per transition: run started, VM queued, workflow begun, stage result, VM done
+ * -- Every append is forced to disk before the workflow moves on
+ * -- VMs queued but not done are "unfinished"; the journal is rewritten with only those once a run ends
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vmware.vim25.ManagedObjectReference;
+
+import faulttolerance.FTWorkflow.Stage;
+import faulttolerance.FTWorkflow.StageResult;
+import faulttolerance.VmIndex.VmEntry;
+
+public class WorkflowJournal
+{
+    // Record types - "run <millis> <stages>", "queue <vm> <name>", "begin <vm>", "stage <vm> <stage> <result>",
+    // "done <vm>"
+    private static final String RUN_RECORD = "run";
+    private static final String QUEUE_RECORD = "queue";
+    private static final String BEGIN_RECORD = "begin";
+    private static final String STAGE_RECORD = "stage";
+    private static final String DONE_RECORD = "done";
+
+    private final File journalFile;
+    private final Map<String, JournalEntry> unfinishedVms = new LinkedHashMap<String, JournalEntry>();
+    private EnumSet<Stage> runStages = EnumSet.noneOf(Stage.class);
+    private FileChannel channel;
+    // Set once a record could not be written - no record is written after a lost one
+    private volatile boolean failed;
+
+    /**
+     * Journaled progress of one VM
+     */
+    public static class JournalEntry
+    {
+        private final String vmMorVal;
+        private final String vmName;
+        private final EnumSet<Stage> succeededStages = EnumSet.noneOf(Stage.class);
+        private boolean begun;
+
+        JournalEntry(String vmMorVal, String vmName)
+        {
+            this.vmMorVal = vmMorVal;
+            this.vmName = vmName;
+        }
+
+        public ManagedObjectReference
+        getVmMor()
+        {
+            ManagedObjectReference vmMor = new ManagedObjectReference();
+            vmMor.setType(FTOps.VM_MOR_TYPE);
+            vmMor.set_value(vmMorVal);
+            return vmMor;
+        }
+
+        public String
+        getVmName()
+        {
+            return vmName;
+        }
+
+        /**
+         * Stages journaled as succeeded. A stage that was running when the run ended is not among them
+         */
+        public EnumSet<Stage>
+        getSucceededStages()
+        {
+            return succeededStages;
+        }
+
+        /**
+         * True if the workflow was started on the VM, i.e. tasks may have been issued for it
+         */
+        public boolean
+        isBegun()
+        {
+            return begun;
+        }
+    }
+
+    /**
+     * Constructor - reads the VMs left unfinished by the previous run, if the journal exists
+     */
+    public WorkflowJournal(String journalPath) throws IOException
+    {
+        this.journalFile = new File(journalPath);
+        if (journalFile.exists()) {
+            replay(Files.readAllBytes(journalFile.toPath()));
+        }
+    }
+
+    public File
+    getFile()
+    {
+        return journalFile;
+    }
+
+    /**
+     * Stages of the run that left the unfinished VMs
+     */
+    public synchronized EnumSet<Stage>
+    getRunStages()
+    {
+        return runStages.clone();
+    }
+
+    public synchronized List<JournalEntry>
+    getUnfinishedVms()
+    {
+        return new ArrayList<JournalEntry>(unfinishedVms.values());
+    }
+
+    public synchronized boolean
+    hasUnfinishedVms()
+    {
+        return !unfinishedVms.isEmpty();
+    }
+
+    /**
+     * True once a record could not be written. The journal no longer tells what a crash would leave behind, so
+     * the run is to be stopped
+     */
+    public boolean
+    isFailed()
+    {
+        return failed;
+    }
+
+    /**
+     * Start a new run of the given stages on the VMs. The previous run must have no unfinished VMs left
+     */
+    public synchronized void
+    startRun(EnumSet<Stage> stages, List<VmEntry> vmEntries)
+    {
+        runStages = EnumSet.copyOf(stages);
+        unfinishedVms.clear();
+
+        StringBuilder records = new StringBuilder();
+        records.append(RUN_RECORD).append(' ').append(System.currentTimeMillis()).append(' ')
+            .append(formatStages(stages)).append('\n');
+        for (VmEntry vmEntry : vmEntries) {
+            String vmMorVal = vmEntry.getVmMor().getVal();
+            unfinishedVms.put(vmMorVal, new JournalEntry(vmMorVal, vmEntry.getName()));
+            records.append(QUEUE_RECORD).append(' ').append(vmMorVal).append(' ').append(vmEntry.getName())
+                .append('\n');
+        }
+        rewrite(records.toString());
+    }
+
+    /**
+     * Workflow started on the VM
+     */
+    public void
+    begun(ManagedObjectReference vmMor)
+    {
+        append(BEGIN_RECORD + " " + vmMor.getVal());
+    }
+
+    /**
+     * Stage of the VM's workflow ended with the given result
+     */
+    public void
+    stageEnded(ManagedObjectReference vmMor, Stage stage, StageResult result)
+    {
+        append(STAGE_RECORD + " " + vmMor.getVal() + " " + stage.getCliName() + " " + result);
+    }
+
+    /**
+     * VM's workflow is over, and its inventory state restored
+     */
+    public void
+    done(ManagedObjectReference vmMor)
+    {
+        append(DONE_RECORD + " " + vmMor.getVal());
+    }
+
+    /**
+     * Rewrite the journal with the unfinished VMs only (empty if there are none), and close it
+     */
+    public synchronized void
+    close()
+    {
+        StringBuilder records = new StringBuilder();
+        if (!unfinishedVms.isEmpty()) {
+            records.append(RUN_RECORD).append(' ').append(System.currentTimeMillis()).append(' ')
+                .append(formatStages(getRunStages())).append('\n');
+            for (JournalEntry entry : unfinishedVms.values()) {
+                records.append(QUEUE_RECORD).append(' ').append(entry.vmMorVal).append(' ').append(entry.vmName)
+                    .append('\n');
+                if (entry.begun) {
+                    records.append(BEGIN_RECORD).append(' ').append(entry.vmMorVal).append('\n');
+                }
+                for (Stage stage : entry.succeededStages) {
+                    records.append(STAGE_RECORD).append(' ').append(entry.vmMorVal).append(' ')
+                        .append(stage.getCliName()).append(' ').append(StageResult.SUCCEEDED).append('\n');
+                }
+            }
+        }
+        rewrite(records.toString());
+        closeChannel();
+    }
+
+    /**
+     * Append one record and force it to disk, then apply it. Fails with UncheckedIOException if the record could
+     * not be written, or an earlier one could not
+     */
+    private synchronized void
+    append(String record)
+    {
+        if (failed) {
+            throw new UncheckedIOException(new IOException("Workflow journal " + journalFile + " has failed"));
+        }
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            }
+            channel.write(ByteBuffer.wrap((record + "\n").getBytes(StandardCharsets.UTF_8)));
+            channel.force(false);
+        } catch (IOException e) {
+            failed = true;
+            System.err.println("Caught an exception while writing to the workflow journal " + journalFile + ": " + e);
+            throw new UncheckedIOException(e);
+        }
+        apply(record.split(" ", 4));
+    }
+
+    /**
+     * Replace the journal's content - written to a temporary file and moved over the journal, so a crash leaves
+     * either the old or the new content
+     */
+    private void
+    rewrite(String records)
+    {
+        closeChannel();
+        File tempFile = new File(journalFile.getPath() + ".tmp");
+        try (FileChannel tempChannel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            tempChannel.write(ByteBuffer.wrap(records.getBytes(StandardCharsets.UTF_8)));
+            tempChannel.force(false);
+        } catch (IOException e) {
+            System.err.println("Caught an exception while writing to the workflow journal " + tempFile + ": " + e);
+            return;
+        }
+        try {
+            Files.move(tempFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Caught an exception while replacing the workflow journal " + journalFile + ": " + e);
+        }
+    }
+
+    private void
+    closeChannel()
+    {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Every record was already forced to disk
+        }
+        channel = null;
+    }
+
+    /**
+     * Rebuild the unfinished VMs from the journal's records. Every record ends with a newline: a tail without
+     * one was torn by a crash, and is dropped - from the file too, so that the next record does not extend it
+     */
+    private void
+    replay(byte[] content) throws IOException
+    {
+        int recordsEnd = content.length;
+        while (recordsEnd > 0 && content[recordsEnd - 1] != '\n') {
+            recordsEnd--;
+        }
+        if (recordsEnd < content.length) {
+            try (FileChannel journalChannel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+                journalChannel.truncate(recordsEnd);
+                journalChannel.force(false);
+            }
+        }
+
+        for (String record : new String(content, 0, recordsEnd, StandardCharsets.UTF_8).split("\n")) {
+            String[] fields = record.trim().split(" ", 4);
+            if (fields.length < 2) {
+                continue;
+            }
+            if (fields[0].equals(RUN_RECORD)) {
+                runStages = fields.length > 2 ? parseStages(fields[2]) : EnumSet.noneOf(Stage.class);
+                unfinishedVms.clear();
+            } else {
+                apply(fields);
+            }
+        }
+    }
+
+    private void
+    apply(String[] fields)
+    {
+        if (fields[0].equals(QUEUE_RECORD) && fields.length > 2) {
+            // VM names may contain spaces - the name is the rest of the record
+            String vmName = fields.length > 3 ? fields[2] + " " + fields[3] : fields[2];
+            unfinishedVms.put(fields[1], new JournalEntry(fields[1], vmName));
+            return;
+        }
+
+        JournalEntry entry = unfinishedVms.get(fields[1]);
+        if (entry == null) {
+            return;
+        }
+        if (fields[0].equals(BEGIN_RECORD)) {
+            entry.begun = true;
+        } else if (fields[0].equals(STAGE_RECORD) && fields.length > 3) {
+            try {
+                Stage stage = Stage.fromCliName(fields[2]);
+                if (StageResult.valueOf(fields[3]) == StageResult.SUCCEEDED) {
+                    entry.succeededStages.add(stage);
+                } else {
+                    entry.succeededStages.remove(stage);
+                }
+            } catch (IllegalArgumentException e) {
+                // Torn record
+            }
+        } else if (fields[0].equals(DONE_RECORD)) {
+            unfinishedVms.remove(fields[1]);
+        }
+    }
+
+    private static String
+    formatStages(EnumSet<Stage> stages)
+    {
+        StringBuilder cliNames = new StringBuilder();
+        for (Stage stage : stages) {
+            cliNames.append(cliNames.length() > 0 ? "," : "").append(stage.getCliName());
+        }
+        return cliNames.toString();
+    }
+
+    private static EnumSet<Stage>
+    parseStages(String cliNames)
+    {
+        try {
+            return Stage.parseList(cliNames);
+        } catch (IllegalArgumentException e) {
+            return EnumSet.noneOf(Stage.class);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * VM selection of plan steps, against the vSphere simulator
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import faulttolerance.VmIndex.VmEntry;
+
+public class FTOpsPlanSelectionTest
+{
+    private static SimulatedCluster simulated;
+
+    @BeforeClass
+    public static void
+    startSimulator() throws Exception
+    {
+        simulated = new SimulatedCluster("clusters=1,hosts=3,vms=12,taskMs=10,ftStartMs=10");
+    }
+
+    @AfterClass
+    public static void
+    stopSimulator()
+    {
+        simulated.close();
+    }
+
+    @Test
+    public void
+    takesNamedVmOnce() throws Exception
+    {
+        FTPlan.Step step = step("vms", Arrays.asList("sim-vm-1-2", "sim-vm-1-1", "sim-vm-1-2", "no-such-vm"),
+            "turnOnFT");
+        ByteArrayOutputStream errBytes = new ByteArrayOutputStream();
+
+        List<VmEntry> stepVms = FTOps.selectPlanVms(step, simulated.getVmIndex(), SimulatedCluster.CLUSTER_NAME,
+            new PrintStream(errBytes, true));
+
+        assertEquals(Arrays.asList("sim-vm-1-2", "sim-vm-1-1"), names(stepVms));
+        assertTrue(errBytes.toString().contains("Could not find VM: no-such-vm"));
+    }
+
+    @Test
+    public void
+    takesPatternVmsByRole() throws Exception
+    {
+        // Simulated VMs start powered off, without FT
+        List<VmEntry> turnOnVms = FTOps.selectPlanVms(step("vmPattern", "sim-vm-1-1[0-2]?", "turnOnFT"),
+            simulated.getVmIndex(), SimulatedCluster.CLUSTER_NAME, System.err);
+        assertEquals(new HashSet<String>(Arrays.asList("sim-vm-1-1", "sim-vm-1-10", "sim-vm-1-11", "sim-vm-1-12")),
+            new HashSet<String>(names(turnOnVms)));
+
+        List<VmEntry> powerOnVms = FTOps.selectPlanVms(step("vmPattern", "sim-vm-1-1[0-2]?", "powerOn"),
+            simulated.getVmIndex(), SimulatedCluster.CLUSTER_NAME, System.err);
+        assertTrue(powerOnVms.isEmpty());
+    }
+
+    /**
+     * Single step plan, selecting its VMs by "vms" or "vmPattern"
+     */
+    private static FTPlan.Step
+    step(String selector, Object vms, String stages)
+    {
+        Map<String, Object> stepNode = new LinkedHashMap<String, Object>();
+        stepNode.put("name", "test-step");
+        stepNode.put(selector, vms);
+        stepNode.put("stages", Arrays.asList(stages.split(",")));
+        return FTPlan.fromTree(Arrays.asList(stepNode)).getSteps().get(0);
+    }
+
+    private static List<String>
+    names(List<VmEntry> vmEntries)
+    {
+        List<String> vmNames = new ArrayList<String>();
+        for (VmEntry vmEntry : vmEntries) {
+            vmNames.add(vmEntry.getName());
+        }
+        return vmNames;
+    }
+}
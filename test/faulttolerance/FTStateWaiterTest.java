@@ -0,0 +1,184 @@
+/**
+ * FT state waiters against the vSphere simulator - no waiter is left behind once its caller is done with it
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintStream;
+import java.util.EnumSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.vmware.vim25.VirtualMachineFaultToleranceState;
+import com.vmware.vim25.mo.HostSystem;
+import com.vmware.vim25.mo.VirtualMachine;
+
+import faulttolerance.FTStateWatcher.StateTransition;
+import faulttolerance.FTWorkflow.Stage;
+import faulttolerance.InventorySnapshot.HostInfo;
+import faulttolerance.VmIndex.VmEntry;
+
+public class FTStateWaiterTest
+{
+    private static final int WORKFLOW_WAIT_SECS = 60;
+    private static final String VM_NAME = "sim-vm-1-1";
+
+    @Test
+    public void
+    cancelRemovesWaiter() throws Exception
+    {
+        try (SimulatedCluster simulated = new SimulatedCluster("clusters=1,hosts=3,vms=4,taskMs=10")) {
+            FTStateWatcher ftStateWatcher = new FTStateWatcher(simulated.getServiceInstance());
+            try {
+                VirtualMachine vmObj = simulated.getVmIndex().findByName(VM_NAME);
+                CompletableFuture<StateTransition> protectedState = ftStateWatcher.whenObserved(vmObj,
+                    FTStateWatcher.ftStateIn(VirtualMachineFaultToleranceState.running));
+                assertEquals(1, ftStateWatcher.waiterCount());
+
+                ftStateWatcher.cancel(protectedState);
+
+                assertTrue(protectedState.isCancelled());
+                assertEquals(0, ftStateWatcher.waiterCount());
+            } finally {
+                ftStateWatcher.stop();
+            }
+        }
+    }
+
+    @Test
+    public void
+    awaitTimeoutRemovesWaiter() throws Exception
+    {
+        try (SimulatedCluster simulated = new SimulatedCluster("clusters=1,hosts=3,vms=4,taskMs=10")) {
+            FTStateWatcher ftStateWatcher = new FTStateWatcher(simulated.getServiceInstance());
+            try {
+                VirtualMachine vmObj = simulated.getVmIndex().findByName(VM_NAME);
+
+                assertFalse(ftStateWatcher.await(vmObj,
+                    FTStateWatcher.ftStateIn(VirtualMachineFaultToleranceState.running), 1));
+                assertEquals(0, ftStateWatcher.waiterCount());
+            } finally {
+                ftStateWatcher.stop();
+            }
+        }
+    }
+
+    @Test
+    public void
+    completedWorkflowLeavesNoWaiters() throws Exception
+    {
+        try (SimulatedCluster simulated = new SimulatedCluster("clusters=1,hosts=3,vms=4,taskMs=10,ftStartMs=50")) {
+            assertTrue(runWorkflow(simulated, EnumSet.of(Stage.TURN_ON_FT, Stage.POWER_ON, Stage.MAKE_PRIMARY,
+                Stage.TURN_OFF_FT), null, 2, new AtomicInteger(-1)));
+        }
+    }
+
+    @Test
+    public void
+    timedOutStageLeavesNoWaiters() throws Exception
+    {
+        // The Secondary VM never starts, so the power on stage times out waiting for FT protection
+        try (SimulatedCluster simulated = new SimulatedCluster("clusters=1,hosts=3,vms=4,taskMs=10,ftStartMs=600000")) {
+            AtomicInteger waitersAtTimeout = new AtomicInteger(-1);
+            assertFalse(runWorkflow(simulated, EnumSet.of(Stage.TURN_ON_FT, Stage.POWER_ON, Stage.TURN_OFF_FT),
+                Stage.POWER_ON, 1, waitersAtTimeout));
+            // The VM is still watched then, so a waiter left behind by the stage would still be counted
+            assertEquals(0, waitersAtTimeout.get());
+        }
+    }
+
+    /**
+     * Run the workflow on the test VM, and check that it left no FT state waiter and no task registered. With
+     * timedOutStage, that stage gets a one second timeout, and waitersAtTimeout is set to the FT state waiters
+     * left when the timeout is logged
+     */
+    private static boolean
+    runWorkflow(SimulatedCluster simulated, EnumSet<Stage> stages, Stage timedOutStage, int failoverCycles,
+        final AtomicInteger waitersAtTimeout) throws Exception
+    {
+        TaskTracker taskTracker = new TaskTracker(simulated.getServiceInstance());
+        final FTStateWatcher ftStateWatcher = new FTStateWatcher(simulated.getServiceInstance());
+        FTWorkflowEngine engine = new FTWorkflowEngine(simulated.getServiceInstance(), taskTracker, ftStateWatcher,
+            simulated.getVmIndex(), new FTMetrics(), FTWorkflowEngine.DEFAULT_WORKFLOW_THREADS);
+        // The timeout is logged once the stage's waiters should have been cancelled
+        engine.setConsole(System.out, new PrintStream(System.err, true) {
+            @Override
+            public void
+            println(String line)
+            {
+                if (line.contains(" did not complete within ")) {
+                    waitersAtTimeout.compareAndSet(-1, ftStateWatcher.waiterCount());
+                }
+                super.println(line);
+            }
+        });
+        try {
+            engine.setFailoverCycles(failoverCycles);
+            if (timedOutStage != null) {
+                engine.setStageTimeout(timedOutStage, 1);
+            }
+            VirtualMachine vmObj = simulated.getVmIndex().findByName(VM_NAME);
+
+            boolean succeeded;
+            try {
+                succeeded = engine.run(vmObj, VM_NAME, secondaryHost(simulated, vmObj), stages)
+                    .get(WORKFLOW_WAIT_SECS, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                succeeded = false;
+            }
+
+            assertEquals(0, ftStateWatcher.waiterCount());
+            assertEquals(0, taskTracker.pendingTaskCount());
+            return succeeded;
+        } finally {
+            engine.shutdown();
+            ftStateWatcher.stop();
+            taskTracker.stop();
+        }
+    }
+
+    private static HostSystem
+    secondaryHost(SimulatedCluster simulated, VirtualMachine vmObj) throws Exception
+    {
+        VmEntry vmEntry = simulated.getVmIndex().getEntry(vmObj.getMOR());
+        for (HostInfo hostInfo : simulated.getCluster().getConnectedHosts()) {
+            if (!hostInfo.getHostSystem().getMOR().getVal().equals(vmEntry.getHostMor().getVal())) {
+                return hostInfo.getHostSystem();
+            }
+        }
+        throw new IllegalStateException("Simulated Cluster has no host for the Secondary VM");
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * vSphere simulator for the tests - started in-process, logged into, with the index of its first Cluster
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import java.net.URL;
+
+import com.vmware.vim25.mo.ServiceInstance;
+
+import faulttolerance.InventorySnapshot.ClusterInfo;
+
+public class SimulatedCluster implements AutoCloseable
+{
+    public static final String CLUSTER_NAME = "sim-cluster-1";
+
+    private final VimSimulator simulator;
+    private final ServiceInstance si;
+    private final ClusterInfo cluster;
+    private final VmIndex vmIndex;
+
+    /**
+     * Constructor - spec as taken by --simulate, e.g. "clusters=1,hosts=3,vms=10,taskMs=50"
+     */
+    public SimulatedCluster(String spec) throws Exception
+    {
+        simulator = VimSimulator.fromSpec(spec);
+        si = new ServiceInstance(new URL(simulator.start(0)), "test", "test", true);
+        cluster = InventorySnapshot.load(si).getCluster(CLUSTER_NAME);
+        vmIndex = new VmIndex(si, cluster.getCluster());
+    }
+
+    public ServiceInstance
+    getServiceInstance()
+    {
+        return si;
+    }
+
+    public ClusterInfo
+    getCluster()
+    {
+        return cluster;
+    }
+
+    public VmIndex
+    getVmIndex()
+    {
+        return vmIndex;
+    }
+
+    @Override
+    public void
+    close()
+    {
+        vmIndex.stop();
+        try {
+            si.getServerConnection().logout();
+        } catch (Exception e) {
+            System.err.println("Caught an exception while logging out of the simulator");
+        }
+        simulator.stop();
+    }
+}
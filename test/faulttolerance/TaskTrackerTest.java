@@ -0,0 +1,133 @@
+/**
+ * Task tracking against the vSphere simulator - registrations of a task and their completion
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.mo.Task;
+import com.vmware.vim25.mo.VirtualMachine;
+
+import faulttolerance.TaskTracker.TaskOutcome;
+
+public class TaskTrackerTest
+{
+    private static final int TASK_WAIT_SECS = 30;
+
+    private static SimulatedCluster simulated;
+    private TaskTracker taskTracker;
+
+    @BeforeClass
+    public static void
+    startSimulator() throws Exception
+    {
+        // Tasks run long enough to be registered more than once while running
+        simulated = new SimulatedCluster("clusters=1,hosts=3,vms=4,taskMs=500");
+    }
+
+    @AfterClass
+    public static void
+    stopSimulator()
+    {
+        simulated.close();
+    }
+
+    @Before
+    public void
+    startTracker()
+    {
+        taskTracker = new TaskTracker(simulated.getServiceInstance());
+    }
+
+    @After
+    public void
+    stopTracker()
+    {
+        taskTracker.stop();
+    }
+
+    @Test
+    public void
+    reRegisteredTaskSharesItsFutures() throws Exception
+    {
+        VirtualMachine vmObj = simulated.getVmIndex().findByName("sim-vm-1-1");
+        Task powerOnTask = vmObj.powerOnVM_Task(null);
+
+        CompletableFuture<TaskOutcome> outcome = taskTracker.trackOutcome(powerOnTask);
+        CompletableFuture<TaskInfoState> state = taskTracker.track(powerOnTask);
+        assertSame(outcome, taskTracker.trackOutcome(powerOnTask));
+        assertSame(state, taskTracker.track(powerOnTask));
+        assertEquals(1, taskTracker.pendingTaskCount());
+
+        assertTrue(outcome.get(TASK_WAIT_SECS, TimeUnit.SECONDS).isSucceeded());
+        assertEquals(TaskInfoState.success, state.get(TASK_WAIT_SECS, TimeUnit.SECONDS));
+        assertEquals(0, taskTracker.pendingTaskCount());
+    }
+
+    @Test
+    public void
+    completedTaskCanBeTrackedAgain() throws Exception
+    {
+        VirtualMachine vmObj = simulated.getVmIndex().findByName("sim-vm-1-2");
+        Task powerOnTask = vmObj.powerOnVM_Task(null);
+        TaskOutcome firstOutcome = taskTracker.trackOutcome(powerOnTask).get(TASK_WAIT_SECS, TimeUnit.SECONDS);
+
+        // A new registration, reporting the task's current (final) state
+        TaskOutcome secondOutcome = taskTracker.trackOutcome(powerOnTask).get(TASK_WAIT_SECS, TimeUnit.SECONDS);
+
+        assertTrue(firstOutcome.isSucceeded());
+        assertTrue(secondOutcome.isSucceeded());
+        assertEquals(0, taskTracker.pendingTaskCount());
+    }
+
+    @Test
+    public void
+    stopFailsPendingTasks() throws Exception
+    {
+        VirtualMachine vmObj = simulated.getVmIndex().findByName("sim-vm-1-3");
+        CompletableFuture<TaskOutcome> outcome = taskTracker.trackOutcome(vmObj.powerOnVM_Task(null));
+
+        taskTracker.stop();
+
+        assertTrue(outcome.isCompletedExceptionally());
+        assertEquals(0, taskTracker.pendingTaskCount());
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Workflow journal replay - unfinished VMs and their succeeded stages, and a tail torn by a crash
+ *
+ * Copyright (c) 2016
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge,
+ * publish, distribute, sublicense, and/or sell copies of the Software,
+ * and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * @author Gururaja Hegdal (ghegdal@vmware.com)
+ * @version 1.0
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package faulttolerance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.vmware.vim25.ManagedObjectReference;
+
+import faulttolerance.FTWorkflow.Stage;
+import faulttolerance.WorkflowJournal.JournalEntry;
+
+public class WorkflowJournalTest
+{
+    private static final String RUN_RECORDS = "run 1 turnOnFT,powerOn,turnOffFT\n"
+        + "queue vm-1 sim vm one\n"
+        + "queue vm-2 sim-vm-2\n"
+        + "queue vm-3 sim-vm-3\n"
+        + "begin vm-1\n"
+        + "stage vm-1 turnOnFT SUCCEEDED\n"
+        + "begin vm-2\n"
+        + "stage vm-2 turnOnFT SUCCEEDED\n"
+        + "stage vm-2 powerOn SUCCEEDED\n"
+        + "done vm-2\n";
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void
+    replaysUnfinishedVms() throws IOException
+    {
+        File journalFile = writeJournal(RUN_RECORDS);
+
+        WorkflowJournal journal = new WorkflowJournal(journalFile.getPath());
+
+        assertEquals(EnumSet.of(Stage.TURN_ON_FT, Stage.POWER_ON, Stage.TURN_OFF_FT), journal.getRunStages());
+        List<JournalEntry> unfinishedVms = journal.getUnfinishedVms();
+        assertEquals(2, unfinishedVms.size());
+        assertEquals("vm-1", unfinishedVms.get(0).getVmMor().getVal());
+        assertEquals("sim vm one", unfinishedVms.get(0).getVmName());
+        assertTrue(unfinishedVms.get(0).isBegun());
+        assertEquals(EnumSet.of(Stage.TURN_ON_FT), unfinishedVms.get(0).getSucceededStages());
+        assertEquals("vm-3", unfinishedVms.get(1).getVmMor().getVal());
+        assertFalse(unfinishedVms.get(1).isBegun());
+    }
+
+    @Test
+    public void
+    dropsTornTail() throws IOException
+    {
+        // Crash while appending "stage vm-1 powerOn SUCCEEDED"
+        File journalFile = writeJournal(RUN_RECORDS + "stage vm-1 powerOn SUCC");
+
+        WorkflowJournal journal = new WorkflowJournal(journalFile.getPath());
+
+        assertEquals(EnumSet.of(Stage.TURN_ON_FT), journal.getUnfinishedVms().get(0).getSucceededStages());
+        assertEquals(RUN_RECORDS, readJournal(journalFile));
+
+        // Next record starts on a line of its own
+        journal.done(journal.getUnfinishedVms().get(0).getVmMor());
+        assertEquals(RUN_RECORDS + "done vm-1\n", readJournal(journalFile));
+        assertEquals(1, new WorkflowJournal(journalFile.getPath()).getUnfinishedVms().size());
+    }
+
+    @Test
+    public void
+    dropsTornFirstRecord() throws IOException
+    {
+        File journalFile = writeJournal("run 1 turnOnFT,pow");
+
+        WorkflowJournal journal = new WorkflowJournal(journalFile.getPath());
+
+        assertFalse(journal.hasUnfinishedVms());
+        assertEquals(0, journalFile.length());
+    }
+
+    @Test
+    public void
+    failsOnceRecordIsLost() throws IOException
+    {
+        File devFull = new File("/dev/full");
+        assumeTrue(devFull.exists());
+        File journalFile = new File(tempFolder.getRoot(), "journal");
+        WorkflowJournal journal = new WorkflowJournal(journalFile.getPath());
+        // Every write to the journal now fails with "No space left on device"
+        Files.createSymbolicLink(journalFile.toPath(), devFull.toPath());
+        ManagedObjectReference vmMor = new ManagedObjectReference();
+        vmMor.setType(FTOps.VM_MOR_TYPE);
+        vmMor.set_value("vm-1");
+
+        try {
+            journal.begun(vmMor);
+            throw new AssertionError("Record was written to a full device");
+        } catch (UncheckedIOException e) {
+            assertTrue(journal.isFailed());
+        }
+        try {
+            journal.done(vmMor);
+            throw new AssertionError("Record was written after a lost one");
+        } catch (UncheckedIOException e) {
+            assertTrue(journal.isFailed());
+        }
+    }
+
+    private File
+    writeJournal(String records) throws IOException
+    {
+        File journalFile = tempFolder.newFile();
+        Files.write(journalFile.toPath(), records.getBytes(StandardCharsets.UTF_8));
+        return journalFile;
+    }
+
+    private static String
+    readJournal(File journalFile) throws IOException
+    {
+        return new String(Files.readAllBytes(journalFile.toPath()), StandardCharsets.UTF_8);
+    }
+}